@@ -4,7 +4,6 @@ import android.content.Context;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
-import android.util.Log;
 
 import com.alibaba.dashscope.audio.asr.recognition.Recognition;
 import com.alibaba.dashscope.audio.asr.recognition.RecognitionParam;
@@ -39,13 +38,13 @@ public class AliyunAsrClient extends AsrClientBase {
         }
         this.context = context;
         this.apiKey = apiKey;
-        Log.d(TAG, "AliyunAsrClient initialized with apiKey: " + (apiKey != null && !apiKey.isEmpty() ? "***" : "null/empty"));
+        Trace.d(TAG, "AliyunAsrClient initialized with apiKey: %s", (apiKey != null && !apiKey.isEmpty() ? "***" : "null/empty"));
     }
     
     @Override
     public void startRecognize() {
         if (callback == null) {
-            Log.e(TAG, "Callback is null, cannot start recognition");
+            Trace.e(TAG, "Callback is null, cannot start recognition");
             return;
         }
         
@@ -79,7 +78,7 @@ public class AliyunAsrClient extends AsrClientBase {
                 try {	
                     startRecordingAndRecognition();
                 } catch (Exception e) {
-                    Log.e(TAG, "Recording and recognition error", e);
+                    Trace.e(TAG, e, "Recording and recognition error");
                     if (callback != null) {
                         callback.onError("语音识别错误：" + e.getMessage());
                     }
@@ -88,7 +87,7 @@ public class AliyunAsrClient extends AsrClientBase {
             recordingThread.start();
             
         } catch (Exception e) {
-            Log.e(TAG, "Start recognize error", e);
+            Trace.e(TAG, e, "Start recognize error");
             callback.onError("启动语音识别失败：" + e.getMessage());
         }
     }
@@ -98,7 +97,7 @@ public class AliyunAsrClient extends AsrClientBase {
             return context.checkSelfPermission(android.Manifest.permission.RECORD_AUDIO) 
                 == android.content.pm.PackageManager.PERMISSION_GRANTED;
         } catch (Exception e) {
-            Log.e(TAG, "Error checking audio permission", e);
+            Trace.e(TAG, e, "Error checking audio permission");
             return false;
         }
     }
@@ -113,7 +112,7 @@ public class AliyunAsrClient extends AsrClientBase {
                 audioRecord.release();
                 audioRecord = null;
             } catch (Exception e) {
-                Log.w(TAG, "Error releasing previous AudioRecord", e);
+                Trace.w(TAG, e, "Error releasing previous AudioRecord");
             }
         }
         
@@ -151,16 +150,16 @@ public class AliyunAsrClient extends AsrClientBase {
                         );
                         
                         if (audioRecord.getState() == AudioRecord.STATE_INITIALIZED) {
-                            Log.d(TAG, String.format("AudioRecord initialized successfully: sampleRate=%d, audioSource=%d, channelConfig=%d, bufferSize=%d", 
-                                sampleRate, audioSource, channelConfig, bufferSize));
+                            Trace.d(TAG, "AudioRecord initialized successfully: sampleRate=%d, audioSource=%d, channelConfig=%d, bufferSize=%d",
+                                sampleRate, audioSource, channelConfig, bufferSize);
                             return true;
                         } else {
                             audioRecord.release();
                             audioRecord = null;
                         }
                     } catch (Exception e) {
-                        Log.w(TAG, String.format("Failed to initialize AudioRecord with sampleRate=%d, audioSource=%d, channelConfig=%d: %s", 
-                            sampleRate, audioSource, channelConfig, e.getMessage()));
+                        Trace.w(TAG, "Failed to initialize AudioRecord with sampleRate=%d, audioSource=%d, channelConfig=%d: %s",
+                            sampleRate, audioSource, channelConfig, e.getMessage());
                         if (audioRecord != null) {
                             try {
                                 audioRecord.release();
@@ -174,7 +173,7 @@ public class AliyunAsrClient extends AsrClientBase {
             }
         }
         
-        Log.e(TAG, "Failed to initialize AudioRecord with any configuration");
+        Trace.e(TAG, "Failed to initialize AudioRecord with any configuration");
         return false;
     }
     
@@ -201,13 +200,13 @@ public class AliyunAsrClient extends AsrClientBase {
                 .subscribe(
                     result -> {
                         // Subscribe to the output result
-                        Log.d(TAG, "Recognition result: " + result.toString());
+                        Trace.d(TAG, "Recognition result: %s", result.toString());
                         
                         if (result != null && result.getSentence() != null) {
                             String text = result.getSentence().getText();
                             if (text != null && !text.isEmpty()) {
                                 if (result.isSentenceEnd()) {
-                                    Log.d(TAG, "Final Result: " + text);
+                                    Trace.d(TAG, "Final Result: %s", text);
                                     if (callback != null) {
                                         callback.onResult(text);
                                         if (autoStop) {
@@ -215,7 +214,7 @@ public class AliyunAsrClient extends AsrClientBase {
                                         }
                                     }
                                 } else {
-                                    Log.d(TAG, "Intermediate Result: " + text);
+                                    Trace.d(TAG, "Intermediate Result: %s", text);
                                     if (callback != null) {
                                         callback.onResult(text);
                                     }
@@ -224,20 +223,20 @@ public class AliyunAsrClient extends AsrClientBase {
                         }
                     },
                     error -> {
-                        Log.e(TAG, "Recognition error", error);
+                        Trace.e(TAG, error, "Recognition error");
                         if (callback != null) {
                             callback.onError("阿里云语音识别错误：" + error.getMessage());
                         }
                     },
                     () -> {
-                        Log.d(TAG, "Recognition completed");
+                        Trace.d(TAG, "Recognition completed");
                         if (autoStop && callback != null) {
                             callback.onAutoStop();
                         }
                     }
                 );
         
-        Log.d(TAG, "Recognition started successfully");
+        Trace.d(TAG, "Recognition started successfully");
     }
     
     private Flowable<ByteBuffer> createAudioSource() {
@@ -256,12 +255,12 @@ public class AliyunAsrClient extends AsrClientBase {
                         try {
                             audioRecord.startRecording();
                             if (audioRecord.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
-                                Log.d(TAG, "Audio recording started successfully");
+                                Trace.d(TAG, "Audio recording started successfully");
                                 break;
                             } else {
                                 retryCount++;
                                 if (retryCount < 3) {
-                                    Log.w(TAG, "Failed to start recording, retrying... (" + retryCount + "/3)");
+                                    Trace.w(TAG, "Failed to start recording, retrying... (%s/3)", retryCount);
                                     Thread.sleep(100);
                                 } else {
                                     emitter.onError(new RuntimeException("Failed to start audio recording after 3 attempts"));
@@ -271,7 +270,7 @@ public class AliyunAsrClient extends AsrClientBase {
                         } catch (Exception e) {
                             retryCount++;
                             if (retryCount < 3) {
-                                Log.w(TAG, "Exception starting recording, retrying... (" + retryCount + "/3): " + e.getMessage());
+                                Trace.w(TAG, "Exception starting recording, retrying... (%s/3): %s", retryCount, e.getMessage());
                                 Thread.sleep(100);
                             } else {
                                 emitter.onError(new RuntimeException("Failed to start audio recording: " + e.getMessage()));
@@ -300,10 +299,10 @@ public class AliyunAsrClient extends AsrClientBase {
                             } else if (bytesRead == AudioRecord.ERROR_INVALID_OPERATION || 
                                        bytesRead == AudioRecord.ERROR_BAD_VALUE) {
                                 consecutiveErrors++;
-                                Log.w(TAG, "AudioRecord read error: " + bytesRead + " (consecutive errors: " + consecutiveErrors + ")");
+                                Trace.w(TAG, "AudioRecord read error: %s (consecutive errors: %s)", bytesRead, consecutiveErrors);
                                 
                                 if (consecutiveErrors >= 5) {
-                                    Log.e(TAG, "Too many consecutive AudioRecord errors, stopping");
+                                    Trace.e(TAG, "Too many consecutive AudioRecord errors, stopping");
                                     emitter.onError(new RuntimeException("AudioRecord read errors: " + bytesRead));
                                     break;
                                 }
@@ -320,14 +319,14 @@ public class AliyunAsrClient extends AsrClientBase {
                                 }
                             }
                         } catch (InterruptedException e) {
-                            Log.d(TAG, "Audio recording interrupted");
+                            Trace.d(TAG, "Audio recording interrupted");
                             break;
                         } catch (Exception e) {
                             consecutiveErrors++;
-                            Log.w(TAG, "Exception reading audio data: " + e.getMessage() + " (consecutive errors: " + consecutiveErrors + ")");
+                            Trace.w(TAG, "Exception reading audio data: %s (consecutive errors: %s)", e.getMessage(), consecutiveErrors);
                             
                             if (consecutiveErrors >= 5) {
-                                Log.e(TAG, "Too many consecutive exceptions, stopping");
+                                Trace.e(TAG, "Too many consecutive exceptions, stopping");
                                 emitter.onError(e);
                                 break;
                             }
@@ -335,13 +334,13 @@ public class AliyunAsrClient extends AsrClientBase {
                         }
                     }
                     
-                    Log.d(TAG, "Audio streaming completed");
+                    Trace.d(TAG, "Audio streaming completed");
                     if (!emitter.isCancelled()) {
                         emitter.onComplete();
                     }
                     
                 } catch (Exception e) {
-                    Log.e(TAG, "Audio source error", e);
+                    Trace.e(TAG, e, "Audio source error");
                     if (!emitter.isCancelled()) {
                         emitter.onError(e);
                     }
@@ -353,7 +352,7 @@ public class AliyunAsrClient extends AsrClientBase {
     
     @Override
     public void stopRecognize() {
-        Log.d(TAG, "Stopping recognition");
+        Trace.d(TAG, "Stopping recognition");
         
         // Signal to stop the audio recording loop
         synchronized (exitFlag) {
@@ -368,7 +367,7 @@ public class AliyunAsrClient extends AsrClientBase {
                 recognitionDisposable = null;
             }
         } catch (Exception e) {
-            Log.w(TAG, "Error disposing recognition stream", e);
+            Trace.w(TAG, e, "Error disposing recognition stream");
         }
         
         // Interrupt and clean up the recording thread first
@@ -377,9 +376,9 @@ public class AliyunAsrClient extends AsrClientBase {
                 recordingThread.interrupt();
                 recordingThread.join(2000); // Wait up to 2 seconds for thread to finish
             } catch (InterruptedException e) {
-                Log.w(TAG, "Thread join interrupted", e);
+                Trace.w(TAG, e, "Thread join interrupted");
             } catch (Exception e) {
-                Log.w(TAG, "Error stopping recording thread", e);
+                Trace.w(TAG, e, "Error stopping recording thread");
             }
             recordingThread = null;
         }
@@ -391,14 +390,14 @@ public class AliyunAsrClient extends AsrClientBase {
                     audioRecord.stop();
                 }
             } catch (Exception e) {
-                Log.w(TAG, "Error stopping audio record", e);
+                Trace.w(TAG, e, "Error stopping audio record");
             }
             
             try {
                 audioRecord.release();
-                Log.d(TAG, "Audio recording stopped and released");
+                Trace.d(TAG, "Audio recording stopped and released");
             } catch (Exception e) {
-                Log.w(TAG, "Error releasing audio record", e);
+                Trace.w(TAG, e, "Error releasing audio record");
             }
             audioRecord = null;
         }
@@ -406,7 +405,7 @@ public class AliyunAsrClient extends AsrClientBase {
     
     @Override
     public void cancelRecognize() {
-        Log.d(TAG, "Canceling recognition");
+        Trace.d(TAG, "Canceling recognition");
         stopRecognize();
     }
     
@@ -419,19 +418,19 @@ public class AliyunAsrClient extends AsrClientBase {
     public void setParam(String key, Object value) {
         if ("apiKey".equals(key) && value instanceof String) {
             this.apiKey = (String) value;
-            Log.d(TAG, "API Key updated");
+            Trace.d(TAG, "API Key updated");
         }
     }
     
     @Override
     public void setEnableAutoStop(boolean enable) {
         this.autoStop = enable;
-        Log.d(TAG, "Auto stop enabled: " + enable);
+        Trace.d(TAG, "Auto stop enabled: %s", enable);
     }
     
     @Override
     public void destroy() {
-        Log.d(TAG, "Destroying AliyunAsrClient");
+        Trace.d(TAG, "Destroying AliyunAsrClient");
         stopRecognize();
         
         // 确保所有资源都被释放
@@ -441,7 +440,7 @@ public class AliyunAsrClient extends AsrClientBase {
                 audioRecord = null;
             }
         } catch (Exception e) {
-            Log.w(TAG, "Error releasing AudioRecord in destroy", e);
+            Trace.w(TAG, e, "Error releasing AudioRecord in destroy");
         }
         
         callback = null;
@@ -449,6 +448,6 @@ public class AliyunAsrClient extends AsrClientBase {
     
     public void setApiKey(String apiKey) {
         this.apiKey = apiKey;
-        Log.d(TAG, "API Key set: " + (apiKey != null ? "***" : "null"));
+        Trace.d(TAG, "API Key set: %s", (apiKey != null ? "***" : "null"));
     }
 } 
\ No newline at end of file
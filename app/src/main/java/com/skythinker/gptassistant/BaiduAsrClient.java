@@ -1,7 +1,6 @@
 package com.skythinker.gptassistant;
 
 import android.content.Context;
-import android.util.Log;
 
 import com.baidu.speech.EventListener;
 import com.baidu.speech.EventManager;
@@ -27,7 +26,7 @@ public class BaiduAsrClient extends AsrClientBase{
             @Override
             public void onEvent(String name, String params, byte[] data, int offset, int length) {
                 if(name.equals(SpeechConstant.CALLBACK_EVENT_ASR_PARTIAL)) { // 产生识别结果
-                    Log.d("bd asr partial", params);
+                    Trace.d("bd asr partial", "%s", params);
                     try {
                         JSONObject json = new JSONObject(params);
                         String resultType = json.getString("result_type");
@@ -43,19 +42,19 @@ public class BaiduAsrClient extends AsrClientBase{
                         e.printStackTrace();
                     }
                 } else if(name.equals(SpeechConstant.CALLBACK_EVENT_ASR_FINISH)) { // 识别结束（用于错误处理）
-                    Log.d("bd asr finish", params);
+                    Trace.d("bd asr finish", "%s", params);
                     try {
                         JSONObject json = new JSONObject(params);
                         int errorCode = json.getInt("error");
                         if(errorCode == 0 && autoStop) {
-                            Log.d("asr auto stop", "auto stop");
+                            Trace.d("asr auto stop", "auto stop");
                             callback.onAutoStop();
                         } else if(errorCode == 7) {
-                            Log.d("bd asr error", "no speech detected");
+                            Trace.d("bd asr error", "no speech detected");
                             startRecognize();
                         } else if(errorCode != 0) {
                             String errorMessage = json.getString("desc");
-                            Log.d("bd asr error", "error code: " + errorCode + ", error message: " + errorMessage);
+                            Trace.d("bd asr error", "error code: %s, error message: %s", errorCode, errorMessage);
                             callback.onError(errorMessage);
                         }
                     } catch (JSONException e) {
@@ -0,0 +1,49 @@
+package com.skythinker.gptassistant;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.UUID;
+
+import cn.hutool.crypto.digest.DigestUtil;
+
+// 附件的内容寻址存储：文件以内容的SHA-256命名，相同内容只保存一份，重复添加时不再写入
+// 写入时先写临时文件并同步到磁盘，再重命名为目标文件，中途退出不会留下不完整的附件；引用计数和清理由ChatManager负责
+public class BlobStore {
+    static final String TEMP_SUFFIX = ".tmp"; // 未完成的写入，由清理任务删除
+    static final Object lock = new Object(); // 检查文件是否存在并更新修改时间、清理任务确认并删除文件时持有，两者不会交错
+
+    // 内容的键（SHA-256十六进制）
+    public static String getKey(byte[] data) {
+        return DigestUtil.sha256Hex(data);
+    }
+
+    // 将内容写入文件，文件已存在时只更新修改时间（避免刚被复用的附件被清理），返回文件是否可用
+    public static boolean write(File file, byte[] data) {
+        synchronized (lock) {
+            if(file.exists()) {
+                file.setLastModified(System.currentTimeMillis());
+                MetricsRegistry.increment("attachment.dedup_hits");
+                return true;
+            }
+        }
+        File dir = file.getParentFile();
+        if(!dir.exists() && !dir.mkdirs()) {
+            return false;
+        }
+        File temp = new File(dir, file.getName() + "." + UUID.randomUUID() + TEMP_SUFFIX); // 同一内容可能被同时写入，临时文件不能重名
+        try(FileOutputStream fos = new FileOutputStream(temp)) {
+            fos.write(data);
+            fos.getFD().sync();
+        } catch (Exception e) {
+            Trace.w("BlobStore", e, "write failed: %s", file.getName());
+            temp.delete();
+            return false;
+        }
+        if(!temp.renameTo(file)) {
+            temp.delete();
+            return file.exists(); // 其他线程已写入相同内容
+        }
+        MetricsRegistry.add("attachment.bytes_written", data.length);
+        return true;
+    }
+}
@@ -1,23 +1,16 @@
 package com.skythinker.gptassistant;
 
 import android.content.Context;
-import android.util.Log;
 import android.util.Pair;
 
+import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.unfbx.chatgpt.OpenAiStreamClient;
-import com.unfbx.chatgpt.entity.chat.BaseChatCompletion;
 import com.unfbx.chatgpt.entity.chat.BaseMessage;
-import com.unfbx.chatgpt.entity.chat.ChatCompletionWithPicture;
-import com.unfbx.chatgpt.entity.chat.Content;
-import com.unfbx.chatgpt.entity.chat.FunctionCall;
 import com.unfbx.chatgpt.entity.chat.Functions;
-import com.unfbx.chatgpt.entity.chat.ImageUrl;
 import com.unfbx.chatgpt.entity.chat.Message;
 import com.unfbx.chatgpt.entity.chat.ChatCompletion;
-import com.unfbx.chatgpt.entity.chat.MessagePicture;
-import com.unfbx.chatgpt.entity.chat.Parameters;
 
 import java.io.File;
 import java.io.IOException;
@@ -25,25 +18,28 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
+import cn.hutool.json.JSONArray;
 import cn.hutool.json.JSONObject;
-import okhttp3.ConnectionSpec;
+import okhttp3.Call;
+import okhttp3.Callback;
 import okhttp3.Interceptor;
+import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
+import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.internal.http2.StreamResetException;
 import okhttp3.sse.EventSource;
 import okhttp3.sse.EventSourceListener;
+import okhttp3.sse.EventSources;
 
 import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
 import com.skythinker.gptassistant.ChatManager.ChatMessage;
-import com.unfbx.chatgpt.entity.chat.tool.ToolCallFunction;
-import com.unfbx.chatgpt.entity.chat.tool.ToolCalls;
-import com.unfbx.chatgpt.entity.chat.tool.ToolChoice;
-import com.unfbx.chatgpt.entity.chat.tool.Tools;
-import com.unfbx.chatgpt.entity.chat.tool.ToolsFunction;
 import com.unfbx.chatgpt.entity.whisper.WhisperResponse;
 
 public class ChatApiClient {
@@ -55,7 +51,14 @@ public class ChatApiClient {
         void onFinished(boolean completed);
     }
 
+    // 非流式请求的回调接口
+    public interface OnCompletionListener {
+        void onCompletion(String content);
+        void onError(String message);
+    }
+
     public static class CallingFunction {
+        public int index = -1; // 流式数据中tool_calls的index，-1表示接口未提供
         public String toolId = "";
         public String name = "";
         public String arguments = "";
@@ -68,14 +71,116 @@ public class ChatApiClient {
     OnReceiveListener listener = null;
 
     OkHttpClient httpClient = null;
+    OkHttpClient backgroundClient = null; // 用于后台任务的客户端，使用共享的Dispatcher，不影响isStreaming()和stop()
     OpenAiStreamClient chatGPT = null;
 
-    List<Tools> functions = new ArrayList<>();
+    JSONArray functions = new JSONArray(); // 函数列表（OpenAI tools格式）
+    PromptPayloadBuilder payloadBuilder = new PromptPayloadBuilder(); // 请求体构建器，缓存历史消息的序列化结果
+    ContextBudget contextBudget = null; // 按模型上下文窗口裁剪消息列表
 
     ArrayList<CallingFunction> callingFunctions = new ArrayList<>();
 
     boolean isReasoning = false;
 
+    String finishReason = null; // 最近一次回复的结束原因
+    int promptTokens = -1, completionTokens = -1; // 最近一次回复的token用量（接口未返回时为-1）
+
+    StringBuilder replyText = new StringBuilder(); // 本次回复已收到的全部内容（续写时累加）
+
+    private static final int MAX_RESUME_COUNT = 3; // 连接中断后最多续写的次数
+    private static final long RESUME_BASE_DELAY_MS = 1000; // 续写的初始退避时间，每次翻倍
+    private static final int MAX_AUTO_CONTINUE_COUNT = 3; // 因长度限制截断后最多自动续写的次数
+    private static final int STITCH_WINDOW = 64; // 续写开头用于去除重复内容的比较窗口
+    private static final int MIN_STITCH_OVERLAP = 8; // 认定为重复内容的最小长度，较短的重复（如"la la"、重复的词）可能是正常内容，保留不删
+    private static final String CONTINUE_PROMPT = "Your previous reply was cut off. Continue exactly from where it stopped, "
+            + "without repeating any text already written and without any preface.";
+
+    List<ChatMessage> promptList = null; // 当前回复对应的原始消息列表
+    int resumeCount = 0; // 本次回复因连接中断已续写的次数
+    int autoContinueCount = 0; // 本次回复因长度限制已续写的次数
+    boolean suppressReasoning = false; // 续写时不再输出思维链
+    String stitchTail = null; // 续写前已输出内容的结尾，非null时表示正在拼接续写内容
+    StringBuilder stitchHead = new StringBuilder(); // 续写开头暂存的内容，去除与stitchTail重复的部分后再输出
+    volatile ScheduledFuture<?> resumeFuture = null; // 等待退避结束的续写任务
+
+    ResponseCache responseCache = null; // 单次请求的回复缓存
+    String pendingCacheKey = null; // 当前请求完成后需要写入缓存的键
+    volatile Thread replayThread = null; // 回放缓存回复的线程
+
+    long requestStartTime = 0; // 本次回复的开始时间（用于性能统计）
+    long firstTokenTime = 0; // 本次回复收到首个数据块的时间
+
+    EndpointPool endpointPool = new EndpointPool(); // 主地址和备用地址
+    StreamRequest currentRequest = null; // 当前的流式请求
+    private static final ScheduledExecutorService hedgeScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    // 流式数据块解码器，直接从原始文本中提取增量字段，避免每个数据块都构建JSON对象
+    final StreamDeltaDecoder deltaDecoder = new StreamDeltaDecoder(new StreamDeltaDecoder.Listener() {
+        @Override
+        public void onContent(String content) { // GPT返回普通消息
+            if (isReasoning) {
+                isReasoning = false;
+                emitMessage("\n</think>\n");
+            }
+            emitMessage(content);
+        }
+
+        @Override
+        public void onReasoning(String reasoning) { // GPT返回思维链消息
+            if (suppressReasoning) {
+                return;
+            }
+            if (!isReasoning) {
+                isReasoning = true;
+                emitMessage("<think>\n");
+            }
+            emitMessage(reasoning);
+        }
+
+        @Override
+        public void onToolCall(int index, String id, String name, String arguments) { // GPT请求函数调用，多个调用的片段按index区分
+            CallingFunction callingFunction = null;
+            for (int i = callingFunctions.size() - 1; i >= 0; i--) { // 从后向前查找，index缺失时取最后一个
+                if (index < 0 || callingFunctions.get(i).index == index) {
+                    callingFunction = callingFunctions.get(i);
+                    break;
+                }
+            }
+            if (callingFunction != null && id != null && !id.isEmpty() && !callingFunction.toolId.isEmpty()
+                    && !callingFunction.toolId.equals(id)) { // 部分接口所有调用的index都为0，以id区分不同调用
+                callingFunction = null;
+            }
+            if (callingFunction == null) {
+                if (id == null && name == null) { // 没有调用头的参数片段
+                    return;
+                }
+                callingFunction = new CallingFunction();
+                callingFunction.index = index;
+                callingFunctions.add(callingFunction);
+            }
+            if (id != null && callingFunction.toolId.isEmpty()) {
+                callingFunction.toolId = id;
+            }
+            if (name != null && callingFunction.name.isEmpty()) {
+                callingFunction.name = name;
+            }
+            if (arguments != null) {
+                callingFunction.arguments += arguments;
+            }
+        }
+
+        @Override
+        public void onFinishReason(String reason) {
+            finishReason = reason;
+        }
+
+        @Override
+        public void onUsage(int prompt, int completion, int total) {
+            promptTokens = prompt;
+            completionTokens = completion;
+        }
+    });
+
     Context context = null;
 
     public ChatApiClient(Context context, String url, String apiKey, String model, OnReceiveListener listener) {
@@ -85,12 +190,10 @@ public class ChatApiClient {
         this.temperature = GlobalDataHolder.getGptTemperature(); // 从全局设置中获取温度参数
         
         // 为阿里云模式创建特殊的HTTP客户端
-        OkHttpClient.Builder clientBuilder = new OkHttpClient.Builder()
+        OkHttpClient.Builder clientBuilder = NetworkStack.newClientBuilder() // 与其他请求共享连接池，独立的Dispatcher便于单独中断
             .connectTimeout(60, TimeUnit.SECONDS)  // 增加连接超时时间
             .readTimeout(120, TimeUnit.SECONDS)    // 增加读取超时时间，适应流式响应
-            .writeTimeout(60, TimeUnit.SECONDS)    // 增加写入超时时间
-            .connectionSpecs(Arrays.asList(ConnectionSpec.MODERN_TLS, ConnectionSpec.COMPATIBLE_TLS))  // 优先使用现代TLS
-            .retryOnConnectionFailure(true);  // 启用连接失败重试
+            .writeTimeout(60, TimeUnit.SECONDS);   // 增加写入超时时间
             
         // 如果是阿里云模式，添加特殊的拦截器
         if (GlobalDataHolder.getUseAliyunChat()) {
@@ -101,8 +204,8 @@ public class ChatApiClient {
                     
                     // 获取原始URL
                     String originalUrl = originalRequest.url().toString();
-                    Log.d("ChatApiClient", "=== ALIYUN REQUEST INTERCEPTOR ===");
-                    Log.d("ChatApiClient", "Original request URL: " + originalUrl);
+                    Trace.d("ChatApiClient", "=== ALIYUN REQUEST INTERCEPTOR ===");
+                    Trace.d("ChatApiClient", "Original request URL: %s", originalUrl);
                     
                     // 检查并修正阿里云URL
                     String newUrl = originalUrl;
@@ -115,18 +218,18 @@ public class ChatApiClient {
                                 // 替换 /v1/ 为 /compatible-mode/v1/
                                 newUrl = originalUrl.replace("/v1/", "/compatible-mode/v1/");
                                 urlModified = true;
-                                Log.d("ChatApiClient", "Replaced /v1/ with /compatible-mode/v1/");
+                                Trace.d("ChatApiClient", "Replaced /v1/ with /compatible-mode/v1/");
                             } else if (originalUrl.endsWith("/")) {
                                 // 在末尾添加 compatible-mode/v1/
                                 newUrl = originalUrl + "compatible-mode/v1/";
                                 urlModified = true;
-                                Log.d("ChatApiClient", "Added compatible-mode/v1/ to base URL");
+                                Trace.d("ChatApiClient", "Added compatible-mode/v1/ to base URL");
                             } else {
                                 // 在域名后添加路径
                                 newUrl = originalUrl.replace("dashscope.aliyuncs.com", 
                                                            "dashscope.aliyuncs.com/compatible-mode/v1");
                                 urlModified = true;
-                                Log.d("ChatApiClient", "Added compatible-mode/v1 path");
+                                Trace.d("ChatApiClient", "Added compatible-mode/v1 path");
                             }
                         }
                         
@@ -138,20 +241,20 @@ public class ChatApiClient {
                                 newUrl = originalUrl.replace("dashscope.aliyuncs.com/", 
                                                            "dashscope.aliyuncs.com/compatible-mode/v1/");
                                 urlModified = true;
-                                Log.d("ChatApiClient", "Fixed endpoint URL path");
+                                Trace.d("ChatApiClient", "Fixed endpoint URL path");
                             }
                         }
                     }
                     
                     if (urlModified) {
-                        Log.d("ChatApiClient", "Modified URL: " + newUrl);
+                        Trace.d("ChatApiClient", "Modified URL: %s", newUrl);
                         Request newRequest = originalRequest.newBuilder()
                             .url(newUrl)
                             .build();
-                        Log.d("ChatApiClient", "Proceeding with modified request");
+                        Trace.d("ChatApiClient", "Proceeding with modified request");
                         return chain.proceed(newRequest);
                     } else {
-                        Log.d("ChatApiClient", "URL is correct, proceeding with original request");
+                        Trace.d("ChatApiClient", "URL is correct, proceeding with original request");
                         return chain.proceed(originalRequest);
                     }
                 }
@@ -159,18 +262,21 @@ public class ChatApiClient {
         }
         
         httpClient = clientBuilder.build();
+        backgroundClient = httpClient.newBuilder().dispatcher(NetworkStack.getClient().dispatcher()).build();
+        responseCache = new ResponseCache(new File(context.getCacheDir(), "response_cache.json"));
+        contextBudget = new ContextBudget(context);
         setApiInfo(url, apiKey);
         
         // 如果是阿里云模式，自动测试连接
         if (GlobalDataHolder.getUseAliyunChat()) {
-            Log.d("ChatApiClient", "Aliyun mode detected, testing connection...");
+            Trace.d("ChatApiClient", "Aliyun mode detected, testing connection...");
             // 延迟测试，让构造函数先完成
             new Thread(() -> {
                 try {
                     Thread.sleep(1000); // 等待1秒
                     testAliyunConnection();
                 } catch (InterruptedException e) {
-                    Log.e("ChatApiClient", "Connection test interrupted", e);
+                    Trace.e("ChatApiClient", e, "Connection test interrupted");
                 }
             }).start();
         }
@@ -178,26 +284,44 @@ public class ChatApiClient {
 
     // 向GPT发送消息列表
     public void sendPromptList(List<ChatMessage> promptList) {
+        sendPromptList(promptList, false);
+    }
+
+    // 向GPT发送消息列表，useCache为true时优先使用本地缓存的回复，未命中则在完整回复后写入缓存
+    public void sendPromptList(List<ChatMessage> promptList, boolean useCache) {
         if(url.isEmpty() || apiKey.isEmpty() || chatGPT == null) {
             listener.onError(context.getString(R.string.text_gpt_conf_error));
             return;
         }
+
+        pendingCacheKey = null;
+        if(useCache) {
+            String cacheKey = ResponseCache.makeKey(promptList, model.replaceAll("\\*$",""), temperature, functions);
+            String cachedReply = responseCache.get(cacheKey);
+            Trace.d("ChatApiClient", "response cache %s (hit=%s, miss=%s)", (cachedReply != null ? "hit" : "miss"), responseCache.getHitCount(), responseCache.getMissCount());
+            MetricsRegistry.increment(cachedReply != null ? "chat.cache_hit" : "chat.cache_miss");
+            if(cachedReply != null) {
+                replayCachedReply(cachedReply);
+                return;
+            }
+            pendingCacheKey = cacheKey;
+        }
         
-        Log.d("ChatApiClient", "=== REQUEST DEBUG INFO ===");
-        Log.d("ChatApiClient", "Sending request to: " + url);
-        Log.d("ChatApiClient", "Using model: " + model);
-        Log.d("ChatApiClient", "API Key: " + (apiKey != null && apiKey.length() > 10 ? apiKey.substring(0, 10) + "..." : apiKey));
-        Log.d("ChatApiClient", "Is Aliyun mode: " + GlobalDataHolder.getUseAliyunChat());
-        Log.d("ChatApiClient", "Temperature: " + temperature);
+        Trace.d("ChatApiClient", "=== REQUEST DEBUG INFO ===");
+        Trace.d("ChatApiClient", "Sending request to: %s", url);
+        Trace.d("ChatApiClient", "Using model: %s", model);
+        Trace.d("ChatApiClient", "API Key: %s", (apiKey != null && apiKey.length() > 10 ? apiKey.substring(0, 10) + "..." : apiKey));
+        Trace.d("ChatApiClient", "Is Aliyun mode: %s", GlobalDataHolder.getUseAliyunChat());
+        Trace.d("ChatApiClient", "Temperature: %s", temperature);
         
         // 验证阿里云模式下的配置
         if (GlobalDataHolder.getUseAliyunChat()) {
-            Log.d("ChatApiClient", "=== ALIYUN CONFIG CHECK ===");
-            Log.d("ChatApiClient", "Expected URL: https://dashscope.aliyuncs.com/compatible-mode/v1/");
-            Log.d("ChatApiClient", "Actual URL: " + url);
-            Log.d("ChatApiClient", "URL Match: " + url.equals("https://dashscope.aliyuncs.com/compatible-mode/v1/"));
-            Log.d("ChatApiClient", "API Key Format: " + (apiKey != null && apiKey.startsWith("sk-") ? "✓ Correct (sk-...)" : "✗ Wrong format"));
-            Log.d("ChatApiClient", "Model: " + model);
+            Trace.d("ChatApiClient", "=== ALIYUN CONFIG CHECK ===");
+            Trace.d("ChatApiClient", "Expected URL: https://dashscope.aliyuncs.com/compatible-mode/v1/");
+            Trace.d("ChatApiClient", "Actual URL: %s", url);
+            Trace.d("ChatApiClient", "URL Match: %s", url.equals("https://dashscope.aliyuncs.com/compatible-mode/v1/"));
+            Trace.d("ChatApiClient", "API Key Format: %s", (apiKey != null && apiKey.startsWith("sk-") ? "✓ Correct (sk-...)" : "✗ Wrong format"));
+            Trace.d("ChatApiClient", "Model: %s", model);
             
             // 检查模型是否是支持的Qwen模型
             String[] supportedModels = {"qwen-turbo", "qwen-plus", "qwen-max", "qwen-long", 
@@ -209,295 +333,415 @@ public class ChatApiClient {
                 "qwen1.5-110b-chat", "qwen1.5-72b-chat", "qwen1.5-32b-chat", 
                 "qwen1.5-14b-chat", "qwen1.5-7b-chat", "qwen1.5-4b-chat", "qwen1.5-1.8b-chat", "qwen1.5-0.5b-chat"};
             boolean isModelSupported = java.util.Arrays.asList(supportedModels).contains(model.replaceAll("\\*$", ""));
-            Log.d("ChatApiClient", "Model Support: " + (isModelSupported ? "✓ Supported" : "⚠ Unknown model"));
-            Log.d("ChatApiClient", "============================");
+            Trace.d("ChatApiClient", "Model Support: %s", (isModelSupported ? "✓ Supported" : "⚠ Unknown model"));
+            Trace.d("ChatApiClient", "============================");
         }
         
-        Log.d("ChatApiClient", "=========================");
+        Trace.d("ChatApiClient", "=========================");
 
-        BaseChatCompletion chatCompletion = null;
+        promptList = contextBudget.fit(promptList, model, functions, GlobalUtils.checkVisionSupport(model)); // 超出上下文窗口时裁剪旧消息，不影响原列表
+        this.promptList = new ArrayList<>(promptList);
+        requestStartTime = System.currentTimeMillis();
+        firstTokenTime = 0;
+        MetricsRegistry.increment("chat.requests");
+        replyText.setLength(0);
+        resumeCount = autoContinueCount = 0;
+        suppressReasoning = false;
+        stitchTail = null;
+        stitchHead.setLength(0);
 
-        boolean hasAnyAtttachment = false;
-        for(ChatMessage message : promptList) {
-            if(message.attachments.size() > 0) {
-                hasAnyAtttachment = true;
-                break;
+        // 记录请求详情以便调试
+        Trace.d("ChatApiClient", "Final request model: %s", model.replaceAll("\\*$",""));
+        Trace.d("ChatApiClient", "Request temperature: %s", temperature);
+        Trace.d("ChatApiClient", "Functions count: %s", functions.size());
+        Trace.d("ChatApiClient", "Messages count: %s", promptList.size());
+
+        startStream(promptList, false);
+    }
+
+    // 发起一次流式请求，continuation表示是对已有回复的续写
+    private void startStream(List<ChatMessage> promptList, boolean continuation) {
+        RequestBody requestBody = payloadBuilder.build(promptList, model.replaceAll("\\*$",""), // 去掉自定义模型结尾的*号
+                temperature, GlobalUtils.checkVisionSupport(model));
+
+        callingFunctions.clear(); // 清空当前函数调用列表
+        finishReason = null;
+        promptTokens = completionTokens = -1;
+
+        updateEndpoints();
+        StreamRequest streamRequest = new StreamRequest(requestBody, continuation);
+        synchronized (this) {
+            currentRequest = streamRequest;
+            startAttempt(streamRequest, endpointPool.pick(null));
+        }
+        if(GlobalDataHolder.getGptHedgeRequest() && endpointPool.size() > 1) { // 首字迟迟未到时向另一个地址发送对冲请求
+            streamRequest.hedgeFuture = hedgeScheduler.schedule(() -> hedge(streamRequest),
+                    endpointPool.getHedgeDelay(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 根据当前设置更新地址池（阿里云模式只使用固定地址）
+    private void updateEndpoints() {
+        endpointPool.setEndpoints(url, apiKey, GlobalDataHolder.getUseAliyunChat() ? null : GlobalDataHolder.getGptBackupHosts());
+    }
+
+    // 一次流式请求，对冲或故障转移时包含多个尝试，最先收到数据的尝试胜出
+    private static class StreamRequest {
+        final RequestBody body;
+        final boolean continuation; // 是否为续写请求
+        final List<StreamAttempt> attempts = new ArrayList<>();
+        StreamAttempt winner = null;
+        boolean stopped = false; // 被用户中断
+        boolean finished = false; // 已向监听器报告结束或错误
+        ScheduledFuture<?> hedgeFuture = null;
+
+        StreamRequest(RequestBody body, boolean continuation) {
+            this.body = body;
+            this.continuation = continuation;
+        }
+
+        List<EndpointPool.Endpoint> getTriedEndpoints() {
+            List<EndpointPool.Endpoint> endpoints = new ArrayList<>();
+            for(StreamAttempt attempt : attempts) {
+                endpoints.add(attempt.endpoint);
             }
+            return endpoints;
         }
 
-        if(!hasAnyAtttachment) { // 没有任何附件，使用普通content格式（兼容旧模型）
-            ArrayList<Message> messageList = new ArrayList<>(); // 将消息数据转换为ChatGPT需要的格式
-            for (ChatMessage message : promptList) {
-                if (message.role == ChatRole.SYSTEM) {
-                    messageList.add(Message.builder().role(Message.Role.SYSTEM).content(message.contentText).build());
-                } else if (message.role == ChatRole.USER) {
-                    messageList.add(Message.builder().role(Message.Role.USER).content(message.contentText).build());
-                } else if (message.role == ChatRole.ASSISTANT) {
-                    if (message.toolCalls.size() > 0) {
-                        if(message.toolCalls.get(0).id != null) { // 用tool方式回复
-                            ArrayList<ToolCalls> toolCallsList = new ArrayList<>();
-                            for(ChatMessage.ToolCall toolCall : message.toolCalls) {
-                                ToolCallFunction functionCall = ToolCallFunction.builder()
-                                        .name(toolCall.functionName)
-                                        .arguments(toolCall.arguments)
-                                        .build();
-                                ToolCalls toolCalls = ToolCalls.builder()
-                                        .id(toolCall.id)
-                                        .type(Tools.Type.FUNCTION.getName())
-                                        .function(functionCall)
-                                        .build();
-                                toolCallsList.add(toolCalls);
-                            }
-                            messageList.add(Message.builder().role(Message.Role.ASSISTANT).toolCalls(toolCallsList).content("").build());
-                        } else { // 用function方式回复（历史遗留）
-                            ChatMessage.ToolCall toolCall = message.toolCalls.get(0);
-                            FunctionCall functionCall = FunctionCall.builder()
-                                .name(toolCall.functionName)
-                                .arguments(toolCall.arguments)
-                                .build();
-                            messageList.add(Message.builder().role(Message.Role.ASSISTANT).functionCall(functionCall).content("").build());
-                        }
-                    } else {
-                        messageList.add(Message.builder().role(Message.Role.ASSISTANT)
-                                .content(message.contentText.replaceFirst("(?s)^<think>\\n.*?\\n</think>\\n", "")).build()); // 去除思维链内容
+        boolean hasAliveAttempt() {
+            for(StreamAttempt attempt : attempts) {
+                if(!attempt.failed && !attempt.cancelled) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // 向指定地址发起一次尝试，需在持有锁时调用
+    private void startAttempt(StreamRequest request, EndpointPool.Endpoint endpoint) {
+        StreamAttempt attempt = new StreamAttempt(request, endpoint);
+        request.attempts.add(attempt);
+        MetricsRegistry.increment("chat.attempts");
+        try {
+            MetricsRegistry.add("chat.bytes_out", request.body.contentLength());
+        } catch (IOException ignored) { }
+        Request httpRequest = new Request.Builder()
+                .url(endpoint.url + "v1/chat/completions")
+                .header("Authorization", "Bearer " + endpoint.apiKey)
+                .post(request.body)
+                .build();
+        attempt.eventSource = EventSources.createFactory(httpClient).newEventSource(httpRequest, attempt);
+    }
+
+    // 发送对冲请求
+    private synchronized void hedge(StreamRequest request) {
+        if(request != currentRequest || request.winner != null || request.stopped || request.finished) {
+            return;
+        }
+        EndpointPool.Endpoint endpoint = endpointPool.pick(request.getTriedEndpoints());
+        if(endpoint != null) {
+            Trace.d("ChatApiClient", "first token timeout, hedging request to %s", endpoint.url);
+            MetricsRegistry.increment("chat.hedge");
+            startAttempt(request, endpoint);
+        }
+    }
+
+    // 对某个地址的一次请求尝试
+    private class StreamAttempt extends EventSourceListener {
+        final StreamRequest request;
+        final EndpointPool.Endpoint endpoint;
+        final long startTime = System.currentTimeMillis();
+        EventSource eventSource = null;
+        boolean cancelled = false; // 因其他尝试胜出而被取消
+        boolean failed = false;
+
+        StreamAttempt(StreamRequest request, EndpointPool.Endpoint endpoint) {
+            this.request = request;
+            this.endpoint = endpoint;
+        }
+
+        // 判断本尝试的数据是否交给监听器，首个收到数据的尝试胜出并取消其余尝试
+        private boolean claim() {
+            synchronized (ChatApiClient.this) {
+                if(cancelled || request != currentRequest) {
+                    return false;
+                }
+                if(request.winner == null) {
+                    long now = System.currentTimeMillis();
+                    request.winner = this;
+                    endpointPool.reportFirstToken(endpoint, now - startTime);
+                    if(firstTokenTime == 0) { // 用户感知的首字延迟，从发起请求开始计算
+                        firstTokenTime = now;
+                        MetricsRegistry.recordLatency("chat.ttft_ms", now - requestStartTime);
+                    }
+                    if(request.hedgeFuture != null) {
+                        request.hedgeFuture.cancel(false);
                     }
-                } else if (message.role == ChatRole.FUNCTION) {
-                    ChatMessage.ToolCall toolCall = message.toolCalls.get(0);
-                    if(toolCall.id != null) { // 用tool方式回复
-                        messageList.add(Message.builder().role(Message.Role.TOOL).toolCallId(toolCall.id).name(toolCall.functionName).content(toolCall.content).build());
-                    } else { // 用function方式回复（历史遗留）
-                        messageList.add(Message.builder().role(Message.Role.FUNCTION).name(toolCall.functionName).content(toolCall.content).build());
+                    for(StreamAttempt other : request.attempts) {
+                        if(other != this && !other.failed) {
+                            other.cancelled = true;
+                            endpointPool.reportSlow(other.endpoint, now - other.startTime);
+                            other.eventSource.cancel();
+                        }
                     }
                 }
+                return request.winner == this;
             }
+        }
 
-            if (!functions.isEmpty()) { // 如果有函数列表，则将函数列表传入
-                chatCompletion = ChatCompletion.builder()
-                        .messages(messageList)
-                        .model(model.replaceAll("\\*$","")) // 去掉自定义模型结尾的*号
-                        .tools(functions)
-                        .toolChoice(ToolChoice.Choice.AUTO.getName())
-                        .temperature(temperature)
-                        .build();
-            } else {
-                chatCompletion = ChatCompletion.builder()
-                        .messages(messageList)
-                        .model(model.replaceAll("\\*$","")) // 去掉自定义模型结尾的*号
-                        .temperature(temperature)
-                        .build();
+        @Override
+        public void onOpen(EventSource eventSource, Response response) {
+            Trace.d("ChatApiClient", "=== CONNECTION OPENED ===");
+            Trace.d("ChatApiClient", "Endpoint: %s", endpoint.url);
+            Trace.d("ChatApiClient", "Response Code: %s", response.code());
+            Trace.d("ChatApiClient", "Response Message: %s", response.message());
+            Trace.d("ChatApiClient", "Is Aliyun Mode: %s", GlobalDataHolder.getUseAliyunChat());
+            Trace.d("ChatApiClient", "========================");
+            MetricsRegistry.recordLatency("chat.open_ms", System.currentTimeMillis() - startTime);
+        }
+
+        @Override
+        public void onEvent(EventSource eventSource, @Nullable String id, @Nullable String type, String data) {
+            if(!claim()) {
+                return;
             }
-        } else { // 含有附件，使用contentList格式
-            ArrayList<MessagePicture> messageList = new ArrayList<>(); // 将消息数据转换为ChatGPT需要的格式
-            for (ChatMessage message : promptList) {
-                List<Content> contentList = new ArrayList<>();
-                if (message.contentText != null) {
-                    String contentText = message.role != ChatRole.ASSISTANT ? message.contentText :
-                            message.contentText.replaceFirst("(?s)^<think>\\n.*?\\n</think>\\n", ""); // 去除思维链内容
-                    contentList.add(Content.builder().type(Content.Type.TEXT.getName()).text(contentText).build());
+            MetricsRegistry.add("chat.bytes_in", data.length());
+            if(data.equals("[DONE]")){ // 回复完成
+                Trace.d("ChatApiClient", "onEvent: DONE");
+                synchronized (ChatApiClient.this) {
+                    request.finished = true;
                 }
-                for(ChatMessage.ToolCall toolCall : message.toolCalls) { // 处理函数调用
-                    if(toolCall.content != null) {
-                        contentList.add(Content.builder().type(Content.Type.TEXT.getName()).text(toolCall.content).build());
+                flushStitch();
+                if(callingFunctions.isEmpty() && "length".equals(finishReason) && autoContinueCount < MAX_AUTO_CONTINUE_COUNT) { // 因长度限制被截断，自动续写
+                    autoContinueCount++;
+                    Trace.d("ChatApiClient", "reply truncated by length, auto continue %s", autoContinueCount);
+                    MetricsRegistry.increment("chat.auto_continue");
+                    continueReply();
+                } else if(callingFunctions.isEmpty()) {
+                    recordCompletion();
+                    if(pendingCacheKey != null && (finishReason == null || finishReason.equals("stop"))) { // 仅缓存正常结束的回复
+                        responseCache.put(pendingCacheKey, replyText.toString());
                     }
+                    pendingCacheKey = null;
+                    listener.onFinished(true);
+                } else {
+                    MetricsRegistry.increment("chat.function_calls");
+                    MetricsRegistry.recordLatency("chat.function_call_ms", System.currentTimeMillis() - requestStartTime);
+                    listener.onFunctionCall(callingFunctions);
                 }
-                for(ChatMessage.Attachment attachment : message.attachments) { // 处理附件
-                    if(attachment.type == ChatMessage.Attachment.Type.IMAGE && GlobalUtils.checkVisionSupport(model)) {
-                        ImageUrl imageUrl = ImageUrl.builder().url("data:image/jpeg;base64," + attachment.content).build();
-                        contentList.add(Content.builder().type(Content.Type.IMAGE_URL.getName()).imageUrl(imageUrl).build());
-                    } else if(attachment.type == ChatMessage.Attachment.Type.TEXT) {
-                        contentList.add(Content.builder().type(Content.Type.TEXT.getName()).text(attachment.content).build());
-                    }
+            } else if(!deltaDecoder.decode(data)) { // 正在回复
+                Trace.w("ChatApiClient", "onEvent: malformed chunk %s", data);
+            }
+        }
+
+        @Override
+        public void onClosed(EventSource eventSource) {
+            Trace.d("ChatApiClient", "onClosed");
+        }
+
+        @Override
+        public void onFailure(EventSource eventSource, @Nullable Throwable throwable, @Nullable Response response) {
+            synchronized (ChatApiClient.this) {
+                if(cancelled || request != currentRequest) { // 被取消的对冲请求或过期请求，忽略
+                    return;
                 }
-                if (message.role == ChatRole.SYSTEM) {
-                    messageList.add(MessagePicture.builder().role(Message.Role.SYSTEM).content(contentList).build());
-                } else if (message.role == ChatRole.USER) {
-                    messageList.add(MessagePicture.builder().role(Message.Role.USER).content(contentList).build());
-                } else if (message.role == ChatRole.ASSISTANT) {
-                    if (message.toolCalls.size() > 0) {
-                        if(message.toolCalls.get(0).id != null) { // 用tool方式回复
-                            ArrayList<ToolCalls> toolCallsList = new ArrayList<>();
-                            for(ChatMessage.ToolCall toolCall : message.toolCalls) {
-                                ToolCallFunction functionCall = ToolCallFunction.builder()
-                                        .name(toolCall.functionName)
-                                        .arguments(toolCall.arguments)
-                                        .build();
-                                ToolCalls toolCalls = ToolCalls.builder()
-                                        .id(toolCall.id)
-                                        .type(Tools.Type.FUNCTION.getName())
-                                        .function(functionCall)
-                                        .build();
-                                toolCallsList.add(toolCalls);
-                            }
-                            messageList.add(MessagePicture.builder().role(Message.Role.ASSISTANT).toolCalls(toolCallsList).build());
-                        } else { // 用function方式回复（历史遗留）
-                            ChatMessage.ToolCall toolCall = message.toolCalls.get(0);
-                            FunctionCall functionCall = FunctionCall.builder()
-                                    .name(toolCall.functionName)
-                                    .arguments(toolCall.arguments)
-                                    .build();
-                            messageList.add(MessagePicture.builder().role(Message.Role.ASSISTANT).functionCall(functionCall).build());
-                        }
-                    } else {
-                        messageList.add(MessagePicture.builder().role(Message.Role.ASSISTANT).content(contentList).build());
+                failed = true;
+                if(!request.stopped) {
+                    endpointPool.reportError(endpoint);
+                }
+                if(request.winner == null && !request.stopped) {
+                    if(request.hasAliveAttempt()) { // 其他尝试仍在进行，等待其结果
+                        return;
                     }
-                } else if (message.role == ChatRole.FUNCTION) {
-                    ChatMessage.ToolCall toolCall = message.toolCalls.get(0);
-                    if(toolCall.id != null) { // 用tool方式回复
-                        messageList.add(MessagePicture.builder().role(Message.Role.TOOL).toolCallId(toolCall.id).name(toolCall.functionName).content(contentList).build());
-                    } else { // 用function方式回复（历史遗留）
-                        messageList.add(MessagePicture.builder().role(Message.Role.FUNCTION).name(toolCall.functionName).content(contentList).build());
+                    EndpointPool.Endpoint next = endpointPool.pick(request.getTriedEndpoints());
+                    if(next != null) { // 尚未收到任何数据，转移到下一个地址
+                        Trace.w("ChatApiClient", "request to %s failed, failing over to %s", endpoint.url, next.url);
+                        MetricsRegistry.increment("chat.failover");
+                        startAttempt(request, next);
+                        return;
                     }
+                } else if(request.winner != null && request.winner != this) {
+                    return;
+                }
+                if(request.finished) {
+                    return;
+                }
+                request.finished = true;
+                if(request.hedgeFuture != null) {
+                    request.hedgeFuture.cancel(false);
+                }
+                if(!request.stopped && throwable != null && (request.winner != null || request.continuation)
+                        && callingFunctions.isEmpty() && resumeCount < MAX_RESUME_COUNT) { // 回复中途断开，退避后续写
+                    long delay = RESUME_BASE_DELAY_MS << resumeCount;
+                    resumeCount++;
+                    Trace.w("ChatApiClient", "stream broken: %s, resume %s in %sms", throwable, resumeCount, delay);
+                    MetricsRegistry.increment("chat.resume");
+                    resumeFuture = hedgeScheduler.schedule(() -> resume(request), delay, TimeUnit.MILLISECONDS);
+                    return;
                 }
             }
+            flushStitch();
+            handleFailure(endpoint, throwable, response);
+        }
+    }
 
-            if (!functions.isEmpty()) { // 如果有函数列表，则将函数列表传入
-                chatCompletion = ChatCompletionWithPicture.builder()
-                        .messages(messageList)
-                        .model(model.replaceAll("\\*$","")) // 去掉自定义Vision模型结尾的*号
-                        .tools(functions)
-                        .toolChoice(ToolChoice.Choice.AUTO.getName())
-                        .temperature(temperature)
-                        .build();
-            } else {
-                chatCompletion = ChatCompletionWithPicture.builder()
-                        .messages(messageList)
-                        .model(model.replaceAll("\\*$","")) // 去掉自定义Vision模型结尾的*号
-                        .temperature(temperature)
-                        .build();
+    // 退避结束后续写中断的回复
+    private void resume(StreamRequest brokenRequest) {
+        synchronized (this) {
+            resumeFuture = null;
+            if(brokenRequest != currentRequest || brokenRequest.stopped) {
+                return;
             }
         }
+        flushStitch();
+        continueReply();
+    }
 
-        callingFunctions.clear(); // 清空当前函数调用列表
-
-        // 记录请求详情以便调试
-        Log.d("ChatApiClient", "Final request model: " + model.replaceAll("\\*$",""));
-        Log.d("ChatApiClient", "Request temperature: " + temperature);
-        Log.d("ChatApiClient", "Functions count: " + functions.size());
-        Log.d("ChatApiClient", "Messages count: " + promptList.size());
+    // 以已收到的内容作为assistant前缀发起续写请求，续写内容与已有内容拼接输出
+    private void continueReply() {
+        if(isReasoning) { // 在思维链中断开，结束思维链后直接续写正文
+            isReasoning = false;
+            emitMessage("\n</think>\n");
+        }
+        suppressReasoning = true;
+        String prefix = PromptPayloadBuilder.stripThink(replyText.toString());
+        List<ChatMessage> list = new ArrayList<>(promptList);
+        if(prefix.trim().isEmpty()) { // 尚未输出正文，直接重新请求
+            stitchTail = null;
+        } else {
+            list.add(new ChatMessage(ChatRole.ASSISTANT).setText(prefix));
+            list.add(new ChatMessage(ChatRole.USER).setText(CONTINUE_PROMPT));
+            stitchTail = prefix.substring(Math.max(0, prefix.length() - STITCH_WINDOW));
+            stitchHead.setLength(0);
+            list = contextBudget.fit(list, model, functions, GlobalUtils.checkVisionSupport(model), 2); // 加上前缀后可能超出上下文窗口，裁剪更早的历史，保留前缀
+        }
+        startStream(list, true);
+    }
 
-        chatGPT.streamChatCompletion(chatCompletion, new EventSourceListener() { // GPT返回消息回调
-            @Override
-            public void onOpen(EventSource eventSource, Response response) {
-                Log.d("ChatApiClient", "=== CONNECTION OPENED ===");
-                Log.d("ChatApiClient", "Response Code: " + response.code());
-                Log.d("ChatApiClient", "Response Message: " + response.message());
-                Log.d("ChatApiClient", "Is Aliyun Mode: " + GlobalDataHolder.getUseAliyunChat());
-                Log.d("ChatApiClient", "========================");
+    // 输出暂存的续写开头，去除与续写前内容重复的部分
+    private void flushStitch() {
+        if(stitchTail == null) {
+            return;
+        }
+        String head = stitchHead.toString();
+        int overlap = 0;
+        for(int len = Math.min(stitchTail.length(), head.length()); len >= MIN_STITCH_OVERLAP; len--) { // 找到最长的重复部分
+            String candidate = head.substring(0, len);
+            if(stitchTail.endsWith(candidate) && !candidate.trim().isEmpty()) { // 只有空白的重复不删除
+                overlap = len;
+                break;
             }
+        }
+        stitchTail = null;
+        stitchHead.setLength(0);
+        if(overlap < head.length()) {
+            emitMessage(head.substring(overlap));
+        }
+    }
 
-            @Override
-            public void onEvent(EventSource eventSource, @Nullable String id, @Nullable String type, String data) {
-                if(data.equals("[DONE]")){ // 回复完成
-                    Log.d("ChatApiClient", "onEvent: DONE");
-                    if(callingFunctions.isEmpty()) {
-                        listener.onFinished(true);
-                    } else {
-                        listener.onFunctionCall(callingFunctions);
-                    }
-                } else { // 正在回复
-                    Log.d("ChatApiClient", "onEvent: " + data);
-                    JSONObject json = new JSONObject(data);
-                    if(json.containsKey("choices") && json.getJSONArray("choices").size() > 0) {
-                        JSONObject delta = ((JSONObject) json.getJSONArray("choices").get(0)).getJSONObject("delta");
-                        if (delta != null) {
-                            if (delta.containsKey("tool_calls")) { // GPT请求函数调用
-                                JSONObject toolCall = delta.getJSONArray("tool_calls").getJSONObject(0);
-                                JSONObject functionCall = toolCall.getJSONObject("function");
-                                if (toolCall.containsKey("id") && functionCall.containsKey("name")) {
-                                    CallingFunction callingFunction = new CallingFunction();
-                                    callingFunction.toolId = toolCall.getStr("id");
-                                    callingFunction.name = functionCall.getStr("name");
-                                    callingFunctions.add(callingFunction);
-                                }
-                                if (callingFunctions.size() > 0 && functionCall.containsKey("arguments")) {
-                                    callingFunctions.get(callingFunctions.size() - 1).arguments += functionCall.getStr("arguments");
-                                }
-                            } else if (delta.containsKey("content") && delta.getStr("content") != null) { // GPT返回普通消息
-                                if (isReasoning) {
-                                    isReasoning = false;
-                                    listener.onMsgReceive("\n</think>\n");
-                                }
-                                listener.onMsgReceive(delta.getStr("content"));
-                            } else if (delta.containsKey("reasoning_content") && delta.getStr("reasoning_content") != null) { // GPT返回思维链消息
-                                if (!isReasoning) {
-                                    isReasoning = true;
-                                    listener.onMsgReceive("<think>\n");
-                                }
-                                listener.onMsgReceive(delta.getStr("reasoning_content"));
-                            }
-                        }
-                    }
-                }
-            }
+    // 记录一次完整回复的总耗时和输出速度
+    private void recordCompletion() {
+        long now = System.currentTimeMillis();
+        MetricsRegistry.increment("chat.completed");
+        MetricsRegistry.recordLatency("chat.total_ms", now - requestStartTime);
+        int tokens = completionTokens > 0 && resumeCount == 0 && autoContinueCount == 0 ? completionTokens // 续写时用量只包含最后一段，改用估算
+                : TokenCounter.estimate(replyText.toString());
+        MetricsRegistry.add("chat.completion_tokens", tokens);
+        if(promptTokens > 0) {
+            MetricsRegistry.add("chat.prompt_tokens", promptTokens);
+        }
+        if(firstTokenTime > 0 && now > firstTokenTime) {
+            MetricsRegistry.record("chat.tokens_per_sec", tokens * 1000L / (now - firstTokenTime), MetricsRegistry.RATE_BUCKETS);
+        }
+    }
 
-            @Override
-            public void onClosed(EventSource eventSource) {
-                Log.d("ChatApiClient", "onClosed");
+    // 按错误类型统计失败次数
+    private static void recordFailure(@Nullable Throwable throwable, @Nullable Response response) {
+        String type;
+        if(throwable instanceof StreamResetException || (throwable != null && throwable.toString().contains("Canceled"))) {
+            type = "cancelled";
+        } else if(throwable != null) {
+            String err = throwable.toString();
+            if(err.contains("SocketTimeoutException") || err.contains("timeout")) {
+                type = "timeout";
+            } else if(err.contains("UnknownHostException") || err.contains("ConnectException")) {
+                type = "network";
+            } else if(err.contains("SSLException")) {
+                type = "ssl";
+            } else {
+                type = "io";
             }
+        } else if(response != null) {
+            type = "http_" + response.code();
+        } else {
+            type = "unknown";
+        }
+        MetricsRegistry.increment("chat.error." + type);
+    }
 
-            @Override
-            public void onFailure(EventSource eventSource, @Nullable Throwable throwable, @Nullable Response response) {
-                if(throwable != null) {
-                    if(throwable instanceof StreamResetException) { // 请求被用户取消，不算错误
-                        Log.d("ChatApiClient", "onFailure: Cancelled");
-                        listener.onFinished(false);
-                    } else {
-                        String err = throwable.toString();
-                        Log.e("ChatApiClient", "onFailure: " + err + "\n" + Log.getStackTraceString(throwable));
+    // 向监听器报告请求失败
+    private void handleFailure(EndpointPool.Endpoint endpoint, @Nullable Throwable throwable, @Nullable Response response) {
+        recordFailure(throwable, response);
+        if(throwable != null) {
+            if(throwable instanceof StreamResetException) { // 请求被用户取消，不算错误
+                Trace.d("ChatApiClient", "onFailure: Cancelled");
+                listener.onFinished(false);
+            } else {
+                String err = throwable.toString();
+                Trace.e("ChatApiClient", throwable, "onFailure: %s", err);
+                
+                // 针对不同类型的错误提供更友好的提示
+                if(err.contains("java.io.IOException: Canceled")) {
+                    err = context.getString(R.string.text_gpt_cancel);
+                } else if(err.contains("SocketTimeoutException") || err.contains("timeout")) {
+                    err = context.getString(R.string.text_gpt_timeout);
+                } else if(err.contains("UnknownHostException") || err.contains("ConnectException")) {
+                    err = "网络连接失败，请检查网络设置";
+                } else if(err.contains("SSLException")) {
+                    err = "SSL连接失败，请检查网络安全设置";
+                }
+                listener.onError(err);
+            }
+        } else {
+            if(response != null) {
+                Trace.e("ChatApiClient", "HTTP Error - Code: %s, Message: %s", response.code(), response.message());
+                
+                if(response.body() != null) {
+                    try {
+                        String errorBody = response.body().string();
+                        Trace.e("ChatApiClient", "=== ERROR RESPONSE DEBUG ===");
+                        Trace.e("ChatApiClient", "HTTP Code: %s", response.code());
+                        Trace.e("ChatApiClient", "HTTP Message: %s", response.message());
+                        Trace.e("ChatApiClient", "Response Headers: %s", response.headers().toString());
+                        Trace.e("ChatApiClient", "Error Response Body: %s", errorBody);
+                        Trace.e("ChatApiClient", "Is Aliyun Mode: %s", GlobalDataHolder.getUseAliyunChat());
+                        Trace.e("ChatApiClient", "Request URL: %s", endpoint.url);
+                        Trace.e("ChatApiClient", "============================");
                         
-                        // 针对不同类型的错误提供更友好的提示
-                        if(err.contains("java.io.IOException: Canceled")) {
-                            err = context.getString(R.string.text_gpt_cancel);
-                        } else if(err.contains("SocketTimeoutException") || err.contains("timeout")) {
-                            err = context.getString(R.string.text_gpt_timeout);
-                        } else if(err.contains("UnknownHostException") || err.contains("ConnectException")) {
-                            err = "网络连接失败，请检查网络设置";
-                        } else if(err.contains("SSLException")) {
-                            err = "SSL连接失败，请检查网络安全设置";
+                        // 尝试解析阿里云API错误格式
+                        String err;
+                        if (GlobalDataHolder.getUseAliyunChat()) {
+                            err = parseAliyunError(errorBody, response.code());
+                        } else {
+                            err = "HTTP " + response.code() + ": " + response.message() + "\n" + errorBody;
                         }
-                        listener.onError(err);
-                    }
-                } else {
-                    if(response != null) {
-                        Log.e("ChatApiClient", "HTTP Error - Code: " + response.code() + ", Message: " + response.message());
                         
-                        if(response.body() != null) {
-                            try {
-                                String errorBody = response.body().string();
-                                Log.e("ChatApiClient", "=== ERROR RESPONSE DEBUG ===");
-                                Log.e("ChatApiClient", "HTTP Code: " + response.code());
-                                Log.e("ChatApiClient", "HTTP Message: " + response.message());
-                                Log.e("ChatApiClient", "Response Headers: " + response.headers().toString());
-                                Log.e("ChatApiClient", "Error Response Body: " + errorBody);
-                                Log.e("ChatApiClient", "Is Aliyun Mode: " + GlobalDataHolder.getUseAliyunChat());
-                                Log.e("ChatApiClient", "Request URL: " + url);
-                                Log.e("ChatApiClient", "============================");
-                                
-                                // 尝试解析阿里云API错误格式
-                                String err;
-                                if (GlobalDataHolder.getUseAliyunChat()) {
-                                    err = parseAliyunError(errorBody, response.code());
-                                } else {
-                                    err = "HTTP " + response.code() + ": " + response.message() + "\n" + errorBody;
-                                }
-                                
-                                if(err.length() > 500) {
-                                    err = err.substring(0, 500) + "...";
-                                }
-                                listener.onError(err);
-                            } catch (IOException e) {
-                                Log.e("ChatApiClient", "Failed to read error response body", e);
-                                listener.onError("HTTP " + response.code() + ": " + response.message());
-                            }
-                        } else {
-                            listener.onError("HTTP " + response.code() + ": " + response.message());
+                        if(err.length() > 500) {
+                            err = err.substring(0, 500) + "...";
                         }
-                    } else {
-                        listener.onError(context.getString(R.string.text_gpt_unknown_error));
+                        listener.onError(err);
+                    } catch (IOException e) {
+                        Trace.e("ChatApiClient", e, "Failed to read error response body");
+                        listener.onError("HTTP " + response.code() + ": " + response.message());
                     }
+                } else {
+                    listener.onError("HTTP " + response.code() + ": " + response.message());
                 }
+            } else {
+                listener.onError(context.getString(R.string.text_gpt_unknown_error));
             }
-        });
+        }
     }
 
     // 配置API信息
@@ -513,83 +757,83 @@ public class ChatApiClient {
             String aliyunApiKey = GlobalDataHolder.getAsrAliyunApiKey();
             if (aliyunApiKey != null && !aliyunApiKey.trim().isEmpty() && aliyunApiKey.startsWith("sk-")) {
                 actualApiKey = aliyunApiKey;
-                Log.d("ChatApiClient", "Using Aliyun ASR API Key for chat: " + (actualApiKey.length() > 10 ? actualApiKey.substring(0, 10) + "..." : actualApiKey));
+                Trace.d("ChatApiClient", "Using Aliyun ASR API Key for chat: %s", (actualApiKey.length() > 10 ? actualApiKey.substring(0, 10) + "..." : actualApiKey));
             } else {
                 actualApiKey = apiKey;
-                Log.d("ChatApiClient", "Using provided API Key for Aliyun chat: " + (actualApiKey.length() > 10 ? actualApiKey.substring(0, 10) + "..." : actualApiKey));
+                Trace.d("ChatApiClient", "Using provided API Key for Aliyun chat: %s", (actualApiKey.length() > 10 ? actualApiKey.substring(0, 10) + "..." : actualApiKey));
             }
             
             // 验证阿里云配置
             if (actualApiKey == null || actualApiKey.trim().isEmpty()) {
-                Log.e("ChatApiClient", "阿里云API Key为空！");
+                Trace.e("ChatApiClient", "阿里云API Key为空！");
                 throw new IllegalArgumentException("阿里云模式下API Key不能为空");
             }
             
             if (!actualApiKey.startsWith("sk-")) {
-                Log.e("ChatApiClient", "阿里云API Key格式错误！应该以'sk-'开头");
+                Trace.e("ChatApiClient", "阿里云API Key格式错误！应该以'sk-'开头");
                 throw new IllegalArgumentException("阿里云API Key格式错误，应该以'sk-'开头");
             }
             
             // 验证URL格式
             if (!actualUrl.contains("aliyuncs.com")) {
-                Log.e("ChatApiClient", "阿里云URL格式错误！当前URL: " + actualUrl);
-                Log.e("ChatApiClient", "正确的URL应该是: https://dashscope.aliyuncs.com/compatible-mode/v1/");
+                Trace.e("ChatApiClient", "阿里云URL格式错误！当前URL: %s", actualUrl);
+                Trace.e("ChatApiClient", "正确的URL应该是: https://dashscope.aliyuncs.com/compatible-mode/v1/");
                 throw new IllegalArgumentException("阿里云URL格式错误，正确格式应为: https://dashscope.aliyuncs.com/compatible-mode/v1/");
             }
             
             // 检查常见的URL拼写错误
             if (actualUrl.contains("aiyuncs.com")) {
-                Log.e("ChatApiClient", "URL拼写错误：发现 'aiyuncs.com'");
+                Trace.e("ChatApiClient", "URL拼写错误：发现 'aiyuncs.com'");
                 throw new IllegalArgumentException("URL拼写错误：应该是 'aliyuncs.com' 而不是 'aiyuncs.com'");
             }
             
-            Log.d("ChatApiClient", "阿里云配置验证通过 - URL: " + actualUrl + ", API Key格式正确");
+            Trace.d("ChatApiClient", "阿里云配置验证通过 - URL: %s, API Key格式正确", actualUrl);
         }
         
         this.url = actualUrl;
         this.apiKey = actualApiKey;
         
         try {
-            Log.d("ChatApiClient", "=== SETTING API INFO ===");
-            Log.d("ChatApiClient", "URL: " + actualUrl);
-            Log.d("ChatApiClient", "API Key: " + (actualApiKey != null && actualApiKey.length() > 10 ? actualApiKey.substring(0, 10) + "..." : actualApiKey));
-            Log.d("ChatApiClient", "Is Aliyun mode: " + GlobalDataHolder.getUseAliyunChat());
+            Trace.d("ChatApiClient", "=== SETTING API INFO ===");
+            Trace.d("ChatApiClient", "URL: %s", actualUrl);
+            Trace.d("ChatApiClient", "API Key: %s", (actualApiKey != null && actualApiKey.length() > 10 ? actualApiKey.substring(0, 10) + "..." : actualApiKey));
+            Trace.d("ChatApiClient", "Is Aliyun mode: %s", GlobalDataHolder.getUseAliyunChat());
             
             if (GlobalDataHolder.getUseAliyunChat()) {
-                Log.d("ChatApiClient", "=== ALIYUN CONFIG CHECK ===");
-                Log.d("ChatApiClient", "Expected URL: https://dashscope.aliyuncs.com/compatible-mode/v1/");
-                Log.d("ChatApiClient", "Actual URL: " + url);
-                Log.d("ChatApiClient", "URL Match: " + url.equals("https://dashscope.aliyuncs.com/compatible-mode/v1/"));
-                Log.d("ChatApiClient", "API Key Format: " + (apiKey != null && apiKey.startsWith("sk-") ? "✓ Correct (sk-...)" : "✗ Wrong format"));
-                Log.d("ChatApiClient", "Model: " + model);
+                Trace.d("ChatApiClient", "=== ALIYUN CONFIG CHECK ===");
+                Trace.d("ChatApiClient", "Expected URL: https://dashscope.aliyuncs.com/compatible-mode/v1/");
+                Trace.d("ChatApiClient", "Actual URL: %s", url);
+                Trace.d("ChatApiClient", "URL Match: %s", url.equals("https://dashscope.aliyuncs.com/compatible-mode/v1/"));
+                Trace.d("ChatApiClient", "API Key Format: %s", (apiKey != null && apiKey.startsWith("sk-") ? "✓ Correct (sk-...)" : "✗ Wrong format"));
+                Trace.d("ChatApiClient", "Model: %s", model);
                 
                 // 阿里云模式下的特殊处理
                 if (!actualUrl.contains("aliyuncs.com")) {
-                    Log.e("ChatApiClient", "阿里云URL格式错误！当前URL: " + actualUrl);
-                    Log.e("ChatApiClient", "正确的URL应该是: https://dashscope.aliyuncs.com/compatible-mode/v1/");
+                    Trace.e("ChatApiClient", "阿里云URL格式错误！当前URL: %s", actualUrl);
+                    Trace.e("ChatApiClient", "正确的URL应该是: https://dashscope.aliyuncs.com/compatible-mode/v1/");
                     throw new IllegalArgumentException("阿里云URL格式错误，正确格式应为: https://dashscope.aliyuncs.com/compatible-mode/v1/");
                 }
                 
-                Log.d("ChatApiClient", "阿里云配置验证通过 - URL: " + actualUrl + ", API Key格式正确");
+                Trace.d("ChatApiClient", "阿里云配置验证通过 - URL: %s, API Key格式正确", actualUrl);
             }
             
-            Log.d("ChatApiClient", "Initializing OpenAI client with URL: " + actualUrl);
+            Trace.d("ChatApiClient", "Initializing OpenAI client with URL: %s", actualUrl);
             
             // 对于阿里云，尝试多种URL配置方式
             String hostUrl = actualUrl;
             if (GlobalDataHolder.getUseAliyunChat()) {
-                Log.d("ChatApiClient", "=== ALIYUN URL CONFIGURATION ===");
+                Trace.d("ChatApiClient", "=== ALIYUN URL CONFIGURATION ===");
                 
                 // 方案1：尝试使用完整的endpoint URL
-                Log.d("ChatApiClient", "Trying full endpoint URL: " + actualUrl);
+                Trace.d("ChatApiClient", "Trying full endpoint URL: %s", actualUrl);
                 
                 // 方案2：如果方案1失败，准备基础域名作为备选
                 String baseUrl = "https://dashscope.aliyuncs.com/";
-                Log.d("ChatApiClient", "Backup base URL: " + baseUrl);
+                Trace.d("ChatApiClient", "Backup base URL: %s", baseUrl);
                 
                 // 首先尝试使用完整的URL
                 hostUrl = actualUrl;
-                Log.d("ChatApiClient", "Initial attempt with: " + hostUrl);
+                Trace.d("ChatApiClient", "Initial attempt with: %s", hostUrl);
             }
             
             try {
@@ -599,14 +843,14 @@ public class ChatApiClient {
                         .okHttpClient(httpClient)
                         .build();
                         
-                Log.d("ChatApiClient", "✅ OpenAI client created successfully with URL: " + hostUrl);
+                Trace.d("ChatApiClient", "✅ OpenAI client created successfully with URL: %s", hostUrl);
                 
             } catch (Exception e) {
-                Log.e("ChatApiClient", "❌ Failed to create client with URL: " + hostUrl, e);
+                Trace.e("ChatApiClient", e, "❌ Failed to create client with URL: %s", hostUrl);
                 
                 // 如果是阿里云模式且初始化失败，尝试使用基础域名
                 if (GlobalDataHolder.getUseAliyunChat()) {
-                    Log.d("ChatApiClient", "Retrying with base domain URL...");
+                    Trace.d("ChatApiClient", "Retrying with base domain URL...");
                     String baseUrl = "https://dashscope.aliyuncs.com/";
                     
                     try {
@@ -616,11 +860,11 @@ public class ChatApiClient {
                                 .okHttpClient(httpClient)
                                 .build();
                                 
-                        Log.d("ChatApiClient", "✅ OpenAI client created successfully with base URL: " + baseUrl);
+                        Trace.d("ChatApiClient", "✅ OpenAI client created successfully with base URL: %s", baseUrl);
                         this.url = baseUrl; // 更新URL记录
                         
                     } catch (Exception e2) {
-                        Log.e("ChatApiClient", "❌ Failed to create client with base URL: " + baseUrl, e2);
+                        Trace.e("ChatApiClient", e2, "❌ Failed to create client with base URL: %s", baseUrl);
                         throw e2; // 重新抛出异常
                     }
                 } else {
@@ -628,10 +872,10 @@ public class ChatApiClient {
                 }
             }
                     
-            Log.d("ChatApiClient", "OpenAI client initialized successfully");
+            Trace.d("ChatApiClient", "OpenAI client initialized successfully");
             
         } catch (Exception e) {
-            Log.e("ChatApiClient", "Failed to initialize OpenAI client", e);
+            Trace.e("ChatApiClient", e, "Failed to initialize OpenAI client");
             String err = context.getString(R.string.text_gpt_conf_error);
             if(e.getMessage() != null) {
                 err += ": " + e.getMessage();
@@ -642,12 +886,146 @@ public class ChatApiClient {
 
     // 获取当前是否正在请求GPT
     public boolean isStreaming() {
-        return httpClient.connectionPool().connectionCount() - httpClient.connectionPool().idleConnectionCount() > 0;
+        return httpClient.dispatcher().runningCallsCount() > 0 || replayThread != null || resumeFuture != null;
+    }
+
+    // 预先建立到API主机的连接，在即将发送请求前调用（如开始语音识别时）
+    public void prewarm() {
+        if(GlobalDataHolder.getGptHedgeRequest()) { // 开启对冲时所有地址都可能被使用
+            updateEndpoints();
+            for(EndpointPool.Endpoint endpoint : endpointPool.getEndpoints()) {
+                NetworkStack.prewarm(endpoint.url);
+            }
+        } else {
+            NetworkStack.prewarm(url);
+        }
     }
 
     // 中断当前请求
     public void stop() {
+        boolean resumeCancelled = false;
+        synchronized (this) {
+            if(currentRequest != null) {
+                currentRequest.stopped = true;
+                if(currentRequest.hedgeFuture != null) {
+                    currentRequest.hedgeFuture.cancel(false);
+                }
+            }
+            if(resumeFuture != null) { // 正在等待续写，没有进行中的请求会回调，需要直接通知结束
+                resumeCancelled = resumeFuture.cancel(false);
+                resumeFuture = null;
+            }
+        }
+        MetricsRegistry.increment("chat.stopped");
+        if(resumeCancelled) {
+            flushStitch();
+            listener.onFinished(false);
+        }
         httpClient.dispatcher().cancelAll();
+        Thread thread = replayThread;
+        if(thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    // 发送一次非流式请求（用于对话压缩等后台任务），与当前的流式请求互不影响，回调在网络线程中执行
+    public void requestCompletion(JSONArray messages, float temperature, OnCompletionListener completionListener) {
+        if(url.isEmpty() || apiKey.isEmpty()) {
+            completionListener.onError(context.getString(R.string.text_gpt_conf_error));
+            return;
+        }
+        JSONObject body = new JSONObject()
+                .set("model", model.replaceAll("\\*$",""))
+                .set("stream", false)
+                .set("temperature", temperature)
+                .set("messages", messages);
+        Request request = new Request.Builder()
+                .url(url + "v1/chat/completions")
+                .header("Authorization", "Bearer " + apiKey)
+                .post(RequestBody.create(body.toString(), MediaType.parse("application/json; charset=utf-8")))
+                .build();
+        long startTime = System.currentTimeMillis();
+        backgroundClient.newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                MetricsRegistry.increment("chat.background_error");
+                completionListener.onError(e.toString());
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                MetricsRegistry.recordLatency("chat.background_ms", System.currentTimeMillis() - startTime);
+                try(Response r = response) {
+                    String responseText = r.body() != null ? r.body().string() : "";
+                    if(!r.isSuccessful()) {
+                        completionListener.onError("HTTP " + r.code() + ": " + responseText);
+                        return;
+                    }
+                    String content = new JSONObject(responseText).getJSONArray("choices").getJSONObject(0)
+                            .getJSONObject("message").getStr("content");
+                    if(content == null) {
+                        completionListener.onError(context.getString(R.string.text_gpt_unknown_error));
+                    } else {
+                        completionListener.onCompletion(PromptPayloadBuilder.stripThink(content));
+                    }
+                } catch (Exception e) {
+                    completionListener.onError(e.toString());
+                }
+            }
+        });
+    }
+
+    // 获取上下文预算（对话压缩复用其中的token计数缓存）
+    public ContextBudget getContextBudget() {
+        return contextBudget;
+    }
+
+    // 获取回复缓存（用于查看命中统计）
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    // 向监听器输出一段回复内容
+    private void emitMessage(String message) {
+        if(stitchTail != null) { // 续写开头先暂存，凑够比较窗口后再输出
+            stitchHead.append(message);
+            if(stitchHead.length() >= STITCH_WINDOW) {
+                flushStitch();
+            }
+            return;
+        }
+        replyText.append(message);
+        listener.onMsgReceive(message);
+    }
+
+    // 以模拟流式输出的方式回放缓存的回复，界面和TTS处理流程与正常请求一致
+    private void replayCachedReply(String reply) {
+        Thread thread = new Thread(() -> {
+            boolean completed = true;
+            try {
+                final int chunkSize = 8;
+                int start = 0;
+                while(start < reply.length()) {
+                    if(Thread.currentThread().isInterrupted()) {
+                        completed = false;
+                        break;
+                    }
+                    int end = Math.min(reply.length(), start + chunkSize);
+                    if(end < reply.length() && Character.isHighSurrogate(reply.charAt(end - 1))) { // 不拆分代理对
+                        end++;
+                    }
+                    listener.onMsgReceive(reply.substring(start, end));
+                    start = end;
+                    Thread.sleep(10);
+                }
+            } catch (InterruptedException e) {
+                completed = false;
+            }
+            replayThread = null;
+            listener.onFinished(completed);
+        });
+        replayThread = thread;
+        thread.start();
     }
 
     // 设置使用的模型
@@ -655,30 +1033,35 @@ public class ChatApiClient {
         this.model = model;
     }
 
+    // 获取使用的模型
+    public String getModel() {
+        return model;
+    }
+
     // 设置温度
     public void setTemperature(float temperature) { this.temperature = temperature; }
     
     // 手动触发阿里云连接测试（供外部调用）
     public void manualTestAliyunConnection() {
-        Log.d("ChatApiClient", "Manual Aliyun connection test triggered");
+        Trace.d("ChatApiClient", "Manual Aliyun connection test triggered");
         testAliyunConnection();
     }
     
     // 测试阿里云连接
     public void testAliyunConnection() {
         if (!GlobalDataHolder.getUseAliyunChat()) {
-            Log.d("ChatApiClient", "Not in Aliyun mode, skipping connection test");
+            Trace.d("ChatApiClient", "Not in Aliyun mode, skipping connection test");
             return;
         }
         
-        Log.d("ChatApiClient", "=== TESTING ALIYUN CONNECTION ===");
-        Log.d("ChatApiClient", "URL: " + url);
-        Log.d("ChatApiClient", "API Key: " + (apiKey != null && apiKey.length() > 10 ? apiKey.substring(0, 10) + "..." : apiKey));
-        Log.d("ChatApiClient", "Model: " + model);
+        Trace.d("ChatApiClient", "=== TESTING ALIYUN CONNECTION ===");
+        Trace.d("ChatApiClient", "URL: %s", url);
+        Trace.d("ChatApiClient", "API Key: %s", (apiKey != null && apiKey.length() > 10 ? apiKey.substring(0, 10) + "..." : apiKey));
+        Trace.d("ChatApiClient", "Model: %s", model);
         
         // 验证配置
         if (chatGPT == null) {
-            Log.e("ChatApiClient", "❌ ChatGPT client is null! Cannot test connection.");
+            Trace.e("ChatApiClient", "❌ ChatGPT client is null! Cannot test connection.");
             return;
         }
         
@@ -694,103 +1077,96 @@ public class ChatApiClient {
                 .stream(true)  // 确保使用流式输出
                 .build();
         
-        Log.d("ChatApiClient", "Sending test request with model: " + model.replaceAll("\\*$",""));
+        Trace.d("ChatApiClient", "Sending test request with model: %s", model.replaceAll("\\*$",""));
         
         try {
             chatGPT.streamChatCompletion(testCompletion, new EventSourceListener() {
                 @Override
                 public void onOpen(EventSource eventSource, Response response) {
-                    Log.d("ChatApiClient", "✅ Test connection successful! Response: " + response.code());
-                    Log.d("ChatApiClient", "Response headers: " + response.headers());
+                    Trace.d("ChatApiClient", "✅ Test connection successful! Response: %s", response.code());
+                    Trace.d("ChatApiClient", "Response headers: %s", response.headers());
                     // 立即取消测试请求，我们只需要验证连接
                     eventSource.cancel();
                 }
                 
                 @Override
                 public void onEvent(EventSource eventSource, String id, String type, String data) {
-                    Log.d("ChatApiClient", "✅ Test response received: " + data);
+                    Trace.d("ChatApiClient", "✅ Test response received: %s", data);
                     eventSource.cancel(); // 取消测试请求
                 }
                 
                 @Override
                 public void onFailure(EventSource eventSource, Throwable t, Response response) {
-                    Log.e("ChatApiClient", "❌ Test connection failed!");
+                    Trace.e("ChatApiClient", "❌ Test connection failed!");
                     
                     if (response != null) {
-                        Log.e("ChatApiClient", "HTTP Status: " + response.code());
-                        Log.e("ChatApiClient", "Response headers: " + response.headers());
+                        Trace.e("ChatApiClient", "HTTP Status: %s", response.code());
+                        Trace.e("ChatApiClient", "Response headers: %s", response.headers());
                         
                         try {
                             if (response.body() != null) {
                                 String errorBody = response.body().string();
-                                Log.e("ChatApiClient", "Error response body: " + errorBody);
+                                Trace.e("ChatApiClient", "Error response body: %s", errorBody);
                                 
                                 // 解析阿里云特定的错误
                                 String parsedError = parseAliyunError(errorBody, response.code());
-                                Log.e("ChatApiClient", "Parsed error: " + parsedError);
+                                Trace.e("ChatApiClient", "Parsed error: %s", parsedError);
                             }
                         } catch (Exception e) {
-                            Log.e("ChatApiClient", "Failed to read error response", e);
+                            Trace.e("ChatApiClient", e, "Failed to read error response");
                         }
                     }
                     
                     if (t != null) {
-                        Log.e("ChatApiClient", "Exception: " + t.getClass().getSimpleName() + ": " + t.getMessage());
+                        Trace.e("ChatApiClient", "Exception: %s: %s", t.getClass().getSimpleName(), t.getMessage());
                         if (t.getCause() != null) {
-                            Log.e("ChatApiClient", "Caused by: " + t.getCause().getClass().getSimpleName() + ": " + t.getCause().getMessage());
+                            Trace.e("ChatApiClient", "Caused by: %s: %s", t.getCause().getClass().getSimpleName(), t.getCause().getMessage());
                         }
                     }
                 }
                 
                 @Override
                 public void onClosed(EventSource eventSource) {
-                    Log.d("ChatApiClient", "Test connection closed");
+                    Trace.d("ChatApiClient", "Test connection closed");
                 }
             });
         } catch (Exception e) {
-            Log.e("ChatApiClient", "❌ Failed to start test connection", e);
-            Log.e("ChatApiClient", "Exception details: " + e.getClass().getSimpleName() + ": " + e.getMessage());
+            Trace.e("ChatApiClient", e, "❌ Failed to start test connection");
+            Trace.e("ChatApiClient", "Exception details: %s: %s", e.getClass().getSimpleName(), e.getMessage());
             if (e.getCause() != null) {
-                Log.e("ChatApiClient", "Caused by: " + e.getCause().getClass().getSimpleName() + ": " + e.getCause().getMessage());
+                Trace.e("ChatApiClient", "Caused by: %s: %s", e.getCause().getClass().getSimpleName(), e.getCause().getMessage());
             }
         }
         
-        Log.d("ChatApiClient", "================================");
+        Trace.d("ChatApiClient", "================================");
     }
 
     // 添加一个函数，有同名函数则覆盖
     public void addFunction(String name, String desc, String params, String[] required) {
         removeFunction(name); // 删除同名函数
 
-        Parameters parameters = Parameters.builder()
-                .type("object")
-                .properties(new JSONObject(params))
-                .required(Arrays.asList(required))
-                .build();
-
-        Tools tools = Tools.builder()
-                .type(Tools.Type.FUNCTION.getName())
-                .function(ToolsFunction.builder()
-                        .name(name)
-                        .description(desc)
-                        .parameters(parameters)
-                        .build())
-                .build();
+        JSONObject parameters = new JSONObject()
+                .set("type", "object")
+                .set("properties", new JSONObject(params))
+                .set("required", new JSONArray(Arrays.asList(required)));
 
-//        Functions functions = Functions.builder()
-//                .name(name)
-//                .description(desc)
-//                .parameters(parameters)
-//                .build();
+        JSONObject tools = new JSONObject()
+                .set("type", "function")
+                .set("function", new JSONObject()
+                        .set("name", name)
+                        .set("description", desc)
+                        .set("parameters", parameters));
 
         this.functions.add(tools);
+        payloadBuilder.setTools(functions);
     }
 
     // 删除一个函数
     public void removeFunction(String name) {
         for(int i = 0; i < this.functions.size(); i++) {
-            if(this.functions.get(i).getFunction().getName().equals(name)) {
+            if(this.functions.getJSONObject(i).getJSONObject("function").getStr("name").equals(name)) {
                 this.functions.remove(i);
+                payloadBuilder.setTools(functions);
                 break;
             }
         }
@@ -799,16 +1175,17 @@ public class ChatApiClient {
     // 删除所有函数
     public void clearAllFunctions() {
         this.functions.clear();
+        payloadBuilder.setTools(functions);
     }
     
     // 解析阿里云API错误响应
     private String parseAliyunError(String errorBody, int httpCode) {
         // 特殊处理404错误
         if (httpCode == 404) {
-            Log.e("ChatApiClient", "HTTP 404错误 - 端点不存在");
-            Log.e("ChatApiClient", "当前使用的URL: " + url);
-            Log.e("ChatApiClient", "当前使用的模型: " + model);
-            Log.e("ChatApiClient", "当前API Key: " + (apiKey != null && apiKey.length() > 10 ? apiKey.substring(0, 10) + "..." : apiKey));
+            Trace.e("ChatApiClient", "HTTP 404错误 - 端点不存在");
+            Trace.e("ChatApiClient", "当前使用的URL: %s", url);
+            Trace.e("ChatApiClient", "当前使用的模型: %s", model);
+            Trace.e("ChatApiClient", "当前API Key: %s", (apiKey != null && apiKey.length() > 10 ? apiKey.substring(0, 10) + "..." : apiKey));
             
             String errorMsg = "HTTP 404错误 - 请求的端点不存在\n\n";
             errorMsg += "可能的原因：\n";
@@ -878,7 +1255,7 @@ public class ChatApiClient {
             return "HTTP " + httpCode + " 错误\n原始响应: " + errorBody;
             
         } catch (Exception e) {
-            Log.e("ChatApiClient", "解析错误响应失败", e);
+            Trace.e("ChatApiClient", e, "解析错误响应失败");
             return "HTTP " + httpCode + " 错误，解析响应失败: " + e.getMessage();
         }
     }
@@ -0,0 +1,222 @@
+package com.skythinker.gptassistant;
+
+import android.graphics.Color;
+import android.text.Spanned;
+import android.text.method.LinkMovementMethod;
+import android.util.LruCache;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 聊天列表适配器：只为屏幕上可见的消息创建和绑定布局，渲染结果按消息缓存，列表多长都只保留有限的布局和Spanned
+public class ChatListAdapter extends RecyclerView.Adapter<ChatListAdapter.ViewHolder> {
+    private static final int TYPE_NOTICE = 0; // 占位提示（无头像）
+    private static final int TYPE_MESSAGE = 1;
+    private static final int RENDERED_CACHE_CHARS = 256 * 1024; // 缓存的渲染结果总字符数上限，长回复按长度计入，避免少数超长消息占用大量内存
+
+    // 列表中的一条消息
+    public static class Item {
+        private static long nextId = 0;
+
+        final long id = nextId++; // 稳定ID，用于RecyclerView复用和渲染缓存
+        final ChatRole role; // null表示占位提示
+        ChatMessage message; // 绑定的聊天数据，回复完成前为null
+        String content; // 用户消息的文本或助手消息的Markdown
+        CharSequence plainText = null; // 不为null时直接显示该文本（提示、错误信息等）
+        boolean streaming = false; // 正在流式输出，内容不断变化，不缓存渲染结果
+
+        public Item(ChatRole role, String content, ChatMessage message) {
+            this.role = role;
+            this.content = content;
+            this.message = message;
+        }
+    }
+
+    public interface Listener {
+        CharSequence buildUserContent(Item item); // 构建用户消息的显示内容（包括附件）
+        void onItemBound(Item item, TextView tvContent); // 布局绑定到消息
+        void onItemRecycled(Item item, TextView tvContent); // 布局被回收，不再显示该消息
+        void onIconClick(View ivIcon, Item item, TextView tvContent); // 点击头像
+    }
+
+    private final MarkdownRenderer markdownRenderer;
+    private final Listener listener;
+    private final List<Item> items = new ArrayList<>();
+    private final LruCache<Long, CharSequence> renderedCache = new LruCache<Long, CharSequence>(RENDERED_CACHE_CHARS) {
+        @Override
+        protected int sizeOf(@NonNull Long key, @NonNull CharSequence value) {
+            return Math.max(1, value.length());
+        }
+    };
+    private RecyclerView recyclerView = null;
+
+    public ChatListAdapter(MarkdownRenderer markdownRenderer, Listener listener) {
+        this.markdownRenderer = markdownRenderer;
+        this.listener = listener;
+        setHasStableIds(true);
+    }
+
+    class ViewHolder extends RecyclerView.ViewHolder {
+        private final ImageView ivIcon;
+        private final TextView tvContent;
+        private Item item = null;
+
+        public ViewHolder(View itemView) {
+            super(itemView);
+            ivIcon = itemView.findViewById(R.id.iv_chat_item_icon);
+            tvContent = itemView instanceof TextView ? (TextView) itemView : itemView.findViewById(R.id.tv_chat_item_content);
+            if(ivIcon != null) {
+                ivIcon.setOnClickListener(view -> {
+                    if(item != null) {
+                        listener.onIconClick(view, item, tvContent);
+                    }
+                });
+            }
+        }
+    }
+
+    @Override
+    public void onAttachedToRecyclerView(@NonNull RecyclerView recyclerView) {
+        this.recyclerView = recyclerView;
+    }
+
+    @Override
+    public void onDetachedFromRecyclerView(@NonNull RecyclerView recyclerView) {
+        this.recyclerView = null;
+    }
+
+    @Override
+    public int getItemViewType(int position) {
+        return items.get(position).role == null ? TYPE_NOTICE : TYPE_MESSAGE;
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return items.get(position).id;
+    }
+
+    @Override
+    public int getItemCount() {
+        return items.size();
+    }
+
+    @NonNull
+    @Override
+    public ViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        int layout = viewType == TYPE_NOTICE ? R.layout.chat_list_notice : R.layout.chat_list_item;
+        return new ViewHolder(LayoutInflater.from(parent.getContext()).inflate(layout, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
+        Item item = items.get(position);
+        if(holder.item != null && holder.item != item) {
+            listener.onItemRecycled(holder.item, holder.tvContent);
+        }
+        holder.item = item;
+        if(holder.ivIcon != null) {
+            holder.ivIcon.setImageResource(item.role == ChatRole.USER ? R.drawable.chat_user_icon : R.drawable.chat_gpt_icon);
+            holder.itemView.setBackgroundColor(item.role == ChatRole.ASSISTANT ? Color.parseColor("#0A000000") : Color.TRANSPARENT); // 不同角色使用不同背景颜色
+        }
+        bindContent(holder.tvContent, item);
+        listener.onItemBound(item, holder.tvContent);
+    }
+
+    private void bindContent(TextView tvContent, Item item) {
+        if(item.plainText != null) {
+            tvContent.setText(item.plainText);
+        } else if(item.role == ChatRole.USER) {
+            CharSequence content = renderedCache.get(item.id);
+            if(content == null) {
+                content = listener.buildUserContent(item);
+                renderedCache.put(item.id, content);
+            }
+            tvContent.setText(content);
+        } else if(item.content != null) {
+            if(item.streaming) { // 流式输出中，完整渲染当前内容，后续增量由外部渲染
+                markdownRenderer.render(tvContent, item.content);
+            } else {
+                CharSequence spanned = renderedCache.get(item.id);
+                if(spanned == null) {
+                    spanned = markdownRenderer.parse(tvContent, item.content);
+                    renderedCache.put(item.id, spanned);
+                }
+                markdownRenderer.setParsed(tvContent, (Spanned) spanned);
+            }
+        } else {
+            tvContent.setText("");
+        }
+        tvContent.setMovementMethod(LinkMovementMethod.getInstance());
+    }
+
+    @Override
+    public void onViewRecycled(@NonNull ViewHolder holder) {
+        if(holder.item != null) {
+            listener.onItemRecycled(holder.item, holder.tvContent);
+            holder.item = null;
+        }
+    }
+
+    @Override
+    public void onViewAttachedToWindow(@NonNull ViewHolder holder) {
+        holder.tvContent.setEnabled(false); // 复用的TextView重新启用，否则可能无法选择文字
+        holder.tvContent.setEnabled(true);
+    }
+
+    public Item getItem(int position) {
+        return items.get(position);
+    }
+
+    public int indexOf(Item item) {
+        return items.indexOf(item);
+    }
+
+    // 添加一条消息到末尾
+    public Item add(Item item) {
+        items.add(item);
+        notifyItemInserted(items.size() - 1);
+        return item;
+    }
+
+    public void remove(Item item) {
+        int index = items.indexOf(item);
+        if(index >= 0) {
+            items.remove(index);
+            renderedCache.remove(item.id);
+            notifyItemRemoved(index);
+        }
+    }
+
+    // 替换全部消息
+    public void setItems(List<Item> newItems) {
+        items.clear();
+        items.addAll(newItems);
+        renderedCache.evictAll();
+        notifyDataSetChanged();
+    }
+
+    // 消息内容已修改，丢弃渲染缓存，若正在显示则立即重新绑定（保证调用后TextView中为最新内容）
+    public void refresh(Item item) {
+        renderedCache.remove(item.id);
+        ViewHolder holder = recyclerView == null ? null : (ViewHolder) recyclerView.findViewHolderForItemId(item.id);
+        if(holder != null && holder.item == item) {
+            bindContent(holder.tvContent, item);
+        } else {
+            int index = items.indexOf(item);
+            if(index >= 0) {
+                notifyItemChanged(index);
+            }
+        }
+    }
+}
@@ -6,6 +6,8 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.graphics.Bitmap;
 import android.util.Base64;
 import android.util.Log;
 
@@ -13,14 +15,24 @@ import androidx.annotation.Nullable;
 
 import com.unfbx.chatgpt.entity.assistant.Tool;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import cn.hutool.crypto.digest.MD5;
 import cn.hutool.json.JSONArray;
@@ -52,7 +64,7 @@ public class ChatManager{
         }
 
         public static class Attachment {
-            public String uuid;
+            public String uuid; // 文件名：新附件为内容的SHA-256（相同内容共用一个文件），旧数据为UUID
             public enum Type {
                 IMAGE,
                 TEXT,
@@ -63,16 +75,28 @@ public class ChatManager{
 
             public static Attachment createNew(Type type, String name, String content, boolean saveFile) { // 创建一个新的附件
                 Attachment attachment = new Attachment();
-                attachment.uuid = UUID.randomUUID().toString();
                 attachment.type = type;
                 attachment.name = name;
                 attachment.content = content;
+                attachment.uuid = content == null ? UUID.randomUUID().toString() : BlobStore.getKey(attachment.getContentBytes());
                 if(saveFile) {
                     attachment.saveFile();
                 }
                 return attachment;
             }
 
+            public static Attachment createImage(String name, Bitmap bitmap) { // 创建图片附件，直接以JPEG保存到文件，不在内存中保留Base64
+                Attachment attachment = new Attachment();
+                attachment.type = Type.IMAGE;
+                attachment.name = name;
+                ByteArrayOutputStream jpeg = new ByteArrayOutputStream(); // 先编码到内存计算哈希，已有相同图片时不再写入
+                bitmap.compress(Bitmap.CompressFormat.JPEG, 100, jpeg);
+                byte[] data = jpeg.toByteArray();
+                attachment.uuid = BlobStore.getKey(data);
+                BlobStore.write(new File(attachment.getFilePath()), data);
+                return attachment;
+            }
+
             public static Attachment loadExist(String uuid, String name, Type type, boolean loadFile) { // 加载已有附件
                 Attachment attachment = new Attachment();
                 attachment.uuid = uuid;
@@ -84,15 +108,19 @@ public class ChatManager{
                 return attachment;
             }
 
-            public static String getDirPath(Type type) {
+            private static String getDirName(Type type) {
                 if(type == Type.IMAGE) {
-                    return context.getFilesDir().getAbsolutePath() + "/images/";
+                    return "images";
                 } else if(type == Type.TEXT) {
-                    return context.getFilesDir().getAbsolutePath() + "/texts/";
+                    return "texts";
                 }
                 return null;
             }
 
+            public static String getDirPath(Type type) {
+                return context.getFilesDir().getAbsolutePath() + "/" + getDirName(type) + "/";
+            }
+
             public static Attachment fromJson(JSONObject json, boolean loadFile) { // 从json中读取附件
                 return loadExist(
                         json.getStr("uuid", null),
@@ -110,57 +138,47 @@ public class ChatManager{
                 return json;
             }
 
-            private String getFilePath() {
+            // 文件相对于files目录的路径，作为引用计数的键
+            public String getBlobName() {
                 if(type == Type.IMAGE) {
-                    return getDirPath(type) + uuid + ".jpg";
+                    return getDirName(type) + "/" + uuid + ".jpg";
                 } else if(type == Type.TEXT) {
-                    return getDirPath(type) + uuid + ".txt";
+                    return getDirName(type) + "/" + uuid + ".txt";
                 }
                 return null;
             }
 
+            public String getFilePath() {
+                return context.getFilesDir().getAbsolutePath() + "/" + getBlobName();
+            }
+
+            private byte[] getContentBytes() {
+                if(type == Type.IMAGE) {
+                    return Base64.decode(content, Base64.NO_WRAP);
+                }
+                return content.getBytes(StandardCharsets.UTF_8);
+            }
+
             public void saveFile() {
-                try {
-                    File file = new File(getFilePath());
-                    if(!file.exists()) {
-                        file.getParentFile().mkdirs();
-                        file.createNewFile();
-                        FileOutputStream fos = new FileOutputStream(file);
-                        if(type == Type.IMAGE) {
-                            fos.write(Base64.decode(content, Base64.NO_WRAP));
-                        } else if(type == Type.TEXT) {
-                            fos.write(content.getBytes());
-                        }
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
+                if(content == null) { // 图片附件创建时已写入文件，content为空
+                    return;
                 }
+                BlobStore.write(new File(getFilePath()), getContentBytes()); // 文件已存在时更新修改时间，避免被后台清理删除
             }
 
-            public void loadFile() {
+            public void loadFile() { // 图片附件保留在磁盘上，按需解码或在发送时流式编码，仅文本附件读入内存
+                if(type != Type.TEXT) {
+                    return;
+                }
                 try {
                     File file = new File(getFilePath());
                     if(file.exists()) {
-                        FileInputStream fis = new FileInputStream(file);
-                        byte[] buffer = new byte[fis.available()];
-                        fis.read(buffer);
-                        if(type == Type.IMAGE) {
-                            content = Base64.encodeToString(buffer, Base64.NO_WRAP);
-                        } else if(type == Type.TEXT) {
-                            content = new String(buffer);
-                        }
+                        content = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
                     }
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
             }
-
-            public void deleteFile() {
-                File file = new File(getFilePath());
-                if(file.exists()) {
-                    file.delete();
-                }
-            }
         }
 
         public static class ToolCall {
@@ -226,24 +244,6 @@ public class ChatManager{
             return this;
         }
 
-        // 删除指定的附件
-        void deleteAttachment(Attachment attachment) {
-            if(attachments != null) {
-                attachment.deleteFile();
-                attachments.remove(attachment);
-            }
-        }
-
-        // 删除所有附件
-        void deleteAllAttachments() {
-            if(attachments != null) {
-                for(Attachment attachment : attachments) {
-                    attachment.deleteFile();
-                }
-                attachments.clear();
-            }
-        }
-
         // 将消息转换为json
         public JSONObject toJson() {
             JSONArray attachmentsJson = new JSONArray();
@@ -298,12 +298,6 @@ public class ChatManager{
     // 用于存储一轮对话中的一组聊天消息
     public static class MessageList extends ArrayList<ChatMessage> {
 
-        public void deteteAllAttachments() {
-            for(ChatMessage msg : this) {
-                msg.deleteAllAttachments();
-            }
-        }
-
         public JSONArray toJson() {
             JSONArray json = new JSONArray();
             for(ChatMessage msg : this) {
@@ -327,50 +321,249 @@ public class ChatManager{
         public LocalDateTime time;
         public String title;
         public MessageList messages;
+        public String summary; // 较早消息的压缩摘要，为null表示未压缩
+        public int summaryIndex; // 摘要覆盖了messages中的前summaryIndex条消息
+        final List<ChatMessage> savedMessages = new ArrayList<>(); // 已写入数据库的消息（按顺序），用于只追加新消息
+        final List<Long> savedRowIds = new ArrayList<>(); // savedMessages对应的消息行ID
+        long nextSeq = 0; // 下一条写入的消息序号
         public Conversation() {
             id = -1;
             time = LocalDateTime.now();
             title = "新会话";
             messages = new MessageList();
+            summary = null;
+            summaryIndex = 0;
         }
         public void updateTime() {
             time = LocalDateTime.now();
         }
+        // 删除messages中的一条消息前调用，keepSummary为false且该消息已被摘要覆盖时作废摘要
+        public void onRemoveMessage(int index, boolean keepSummary) {
+            if(index >= 0 && index < summaryIndex) {
+                if(keepSummary) {
+                    summaryIndex--;
+                } else {
+                    summary = null;
+                    summaryIndex = 0;
+                }
+            }
+        }
+    }
+
+    // 会话列表中显示的会话信息（不含消息）
+    public static class ConversationInfo {
+        public long id;
+        public LocalDateTime time;
+        public String title;
+        public String preview; // 第一条回复的开头部分
+    }
+
+    public static class SearchResult extends ConversationInfo {
+        public boolean titleMatched; // 标题包含关键词
+        public int hits; // 内容命中的消息数
+        public long messageId = -1; // 最近一条命中的消息，用于生成摘要，-1表示内容未命中
+        public String snippet = null; // 摘要，显示时生成
     }
 
     // 数据库管理器
     private class DatabaseHelper extends SQLiteOpenHelper {
         final static private String databaseName = "chat.db";
-        final static private String tableName = "conversations";
-        final static private int version = 1;
+        final static private String tableName = "conversations"; // 会话信息，每个会话一行
+        final static private String messageTableName = "messages"; // 消息，每条消息一行，按seq排序
+        final static private String searchTableName = "messages_fts"; // 消息全文索引（FTS4），docid为消息行ID
+        final static private String blobTableName = "blobs"; // 附件文件的引用计数，name为相对于files目录的路径
+        final static private int version = 6;
         public DatabaseHelper(Context context) {
             super(context, databaseName, null, version);
+            setWriteAheadLoggingEnabled(true); // WAL模式：写入只追加到日志，读取不被写入阻塞
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("PRAGMA synchronous = NORMAL"); // WAL模式下只在检查点时同步，断电最多丢失最近的事务，不会损坏数据库
         }
 
         @Override
         public void onCreate(SQLiteDatabase sqLiteDatabase) {
-            String sql = "CREATE TABLE " + tableName + " (" +
+            createTables(sqLiteDatabase);
+            createSearchIndex(sqLiteDatabase);
+            createBlobTable(sqLiteDatabase);
+        }
+
+        private void createBlobTable(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE TABLE " + blobTableName + " (" +
+                    "name TEXT PRIMARY KEY," +
+                    "refs INTEGER NOT NULL DEFAULT 0," +
+                    "released INTEGER DEFAULT 0" + // 最近一次引用减少的时间，引用为0且超过一段时间后才删除文件
+                    ");");
+        }
+
+        private void createSearchIndex(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE VIRTUAL TABLE " + searchTableName + " USING fts4(body)"); // body为FullTextIndex预先分词后的文本
+        }
+
+        private void createTables(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE TABLE " + tableName + " (" +
                     "id INTEGER PRIMARY KEY AUTOINCREMENT," +
                     "time TEXT," +
                     "title TEXT," +
-                    "messages TEXT" +
-                    ");";
-            sqLiteDatabase.execSQL(sql);
+                    "summary TEXT," +
+                    "summary_index INTEGER DEFAULT 0," +
+                    "message_count INTEGER DEFAULT 0," +
+                    "preview TEXT" +
+                    ");");
+            sqLiteDatabase.execSQL("CREATE TABLE " + messageTableName + " (" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "conversation_id INTEGER NOT NULL," +
+                    "seq INTEGER NOT NULL," +
+                    "role TEXT," +
+                    "text TEXT," +
+                    "extra TEXT" + // 附件和函数调用等其他字段（JSON），没有时为null
+                    ");");
+            sqLiteDatabase.execSQL("CREATE INDEX conversations_time ON " + tableName + " (time)");
+            sqLiteDatabase.execSQL("CREATE INDEX messages_conversation_seq ON " + messageTableName + " (conversation_id, seq)");
         }
 
         @Override
-        public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) { }
+        public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+            if(oldVersion < 2) { // 版本2：增加对话压缩摘要
+                sqLiteDatabase.execSQL("ALTER TABLE " + tableName + " ADD COLUMN summary TEXT");
+                sqLiteDatabase.execSQL("ALTER TABLE " + tableName + " ADD COLUMN summary_index INTEGER DEFAULT 0");
+            }
+            if(oldVersion < 3) { // 版本3：消息从会话的JSON字段拆分到messages表
+                sqLiteDatabase.execSQL("ALTER TABLE " + tableName + " RENAME TO conversations_v2");
+                createTables(sqLiteDatabase);
+                try(Cursor cursor = sqLiteDatabase.query("conversations_v2", null, null, null, null, null, "id");
+                    SQLiteStatement insertMessage = sqLiteDatabase.compileStatement(SQL_INSERT_MESSAGE)) {
+                    while(cursor.moveToNext()) {
+                        long id = cursor.getLong(cursor.getColumnIndex("id"));
+                        String messagesJson = cursor.getString(cursor.getColumnIndex("messages"));
+                        JSONArray messages = new JSONArray(messagesJson == null ? "[]" : messagesJson);
+                        ContentValues values = new ContentValues();
+                        values.put("id", id);
+                        values.put("time", cursor.getString(cursor.getColumnIndex("time")));
+                        values.put("title", cursor.getString(cursor.getColumnIndex("title")));
+                        values.put("summary", cursor.getString(cursor.getColumnIndex("summary")));
+                        values.put("summary_index", cursor.getInt(cursor.getColumnIndex("summary_index")));
+                        values.put("message_count", messages.size());
+                        sqLiteDatabase.insert(tableName, null, values);
+                        for(int i = 0; i < messages.size(); i++) {
+                            insertMessageRow(insertMessage, id, i, messages.getJSONObject(i));
+                        }
+                    }
+                }
+                sqLiteDatabase.execSQL("DROP TABLE conversations_v2");
+            }
+            if(oldVersion < 4) { // 版本4：增加消息全文索引
+                createSearchIndex(sqLiteDatabase);
+                try(Cursor cursor = sqLiteDatabase.query(messageTableName, new String[]{"id", "role", "text"}, null, null, null, null, null);
+                    SQLiteStatement insertIndex = sqLiteDatabase.compileStatement(SQL_INSERT_INDEX)) {
+                    while(cursor.moveToNext()) {
+                        indexMessageRow(insertIndex, cursor.getLong(0), cursor.getString(1), cursor.getString(2));
+                    }
+                }
+            }
+            if(oldVersion < 5) { // 版本5：增加会话列表的预览文本（从版本2以下升级时，版本3的迁移已创建该列）
+                if(oldVersion >= 3)
+                    sqLiteDatabase.execSQL("ALTER TABLE " + tableName + " ADD COLUMN preview TEXT");
+                sqLiteDatabase.execSQL("UPDATE " + tableName + " SET preview = substr(replace((SELECT text FROM " + messageTableName + " m" +
+                        " WHERE m.conversation_id = " + tableName + ".id AND m.role = 'ASSISTANT' AND m.text IS NOT NULL" +
+                        " AND (m.extra IS NULL OR (m.extra NOT LIKE '%\"tools\"%' AND m.extra NOT LIKE '%\"function\"%')) ORDER BY m.seq LIMIT 1), char(10), ' '), 1, " + PREVIEW_MAX_CHARS + ")");
+            }
+            if(oldVersion < 6) { // 版本6：附件按内容存储，记录每个附件文件被消息引用的次数
+                createBlobTable(sqLiteDatabase);
+                Map<String, Integer> refs = new HashMap<>();
+                try(Cursor cursor = sqLiteDatabase.query(messageTableName, new String[]{"extra"}, "extra IS NOT NULL", null, null, null, null)) {
+                    while(cursor.moveToNext()) {
+                        for(String name : getBlobNames(cursor.getString(0))) {
+                            Integer count = refs.get(name);
+                            refs.put(name, count == null ? 1 : count + 1);
+                        }
+                    }
+                }
+                for(Map.Entry<String, Integer> entry : refs.entrySet()) {
+                    ContentValues values = new ContentValues();
+                    values.put("name", entry.getKey());
+                    values.put("refs", entry.getValue());
+                    sqLiteDatabase.insert(blobTableName, null, values);
+                }
+            }
+        }
     }
 
+    private static final int MAX_SEARCH_RESULTS = 200;
+    private static final int MAX_SEARCH_MESSAGES = 5000; // 搜索时统计的最新命中消息数，更早的命中不计入排序
+    private static final int PREVIEW_MAX_CHARS = 100; // 预览文本的最大长度
+    private static final int SWEEP_BATCH = 100; // 每次清理检查的最大文件数
+    private static final long ORPHAN_GRACE_MS = 60 * 60 * 1000; // 最近写入、复用或释放的附件文件暂不清理（可能是输入框中尚未发送的附件）
+
+    // 预编译的语句，每次执行时只绑定参数
+    private static final String SQL_INSERT_MESSAGE = "INSERT INTO messages (conversation_id, seq, role, text, extra) VALUES (?, ?, ?, ?, ?)";
+    private static final String SQL_INSERT_INDEX = "INSERT INTO messages_fts (docid, body) VALUES (?, ?)";
+    private static final String SQL_INSERT_CONVERSATION = "INSERT INTO conversations (time, title, summary, summary_index, message_count, preview) VALUES (?, ?, ?, ?, ?, ?)";
+    private static final String SQL_UPDATE_CONVERSATION = "UPDATE conversations SET time = ?, title = ?, summary = ?, summary_index = ?, message_count = ?, preview = ? WHERE id = ?";
+    private static final String SQL_DELETE_MESSAGE = "DELETE FROM messages WHERE id = ?";
+    private static final String SQL_DELETE_INDEX = "DELETE FROM messages_fts WHERE docid = ?";
+    private static final String SQL_DELETE_CONVERSATION_INDEX = "DELETE FROM messages_fts WHERE docid IN (SELECT id FROM messages WHERE conversation_id = ?)";
+    private static final String SQL_DELETE_CONVERSATION_MESSAGES = "DELETE FROM messages WHERE conversation_id = ?";
+    private static final String SQL_DELETE_CONVERSATION = "DELETE FROM conversations WHERE id = ?";
+    private static final String SQL_COUNT_CONVERSATIONS = "SELECT COUNT(*) FROM conversations";
+    private static final String SQL_INSERT_BLOB = "INSERT OR IGNORE INTO blobs (name) VALUES (?)";
+    private static final String SQL_RETAIN_BLOB = "UPDATE blobs SET refs = refs + 1 WHERE name = ?";
+    private static final String SQL_RELEASE_BLOB = "UPDATE blobs SET refs = refs - 1, released = ? WHERE name = ?";
+    private static final String SQL_COUNT_BLOB = "SELECT COUNT(*) FROM blobs WHERE name = ?";
+
+    private static final ExecutorService sweepExecutor = Executors.newSingleThreadExecutor(); // 附件文件的清理在后台进行，不阻塞主线程
+    private static int sweepPosition = 0; // 附件目录的清理进度（跨实例保留，仅在清理线程访问）
+
     private DatabaseHelper dbHelper;
     private SQLiteDatabase db;
+    private final File filesDir;
+    private final List<SQLiteStatement> statements = new ArrayList<>();
+    private final SQLiteStatement insertMessageStatement, insertIndexStatement, insertConversationStatement, updateConversationStatement,
+            deleteMessageStatement, deleteIndexStatement, deleteConversationIndexStatement, deleteConversationMessagesStatement,
+            deleteConversationStatement, countConversationsStatement, insertBlobStatement, retainBlobStatement, releaseBlobStatement;
 
     public ChatManager(Context context) {
+        filesDir = context.getFilesDir();
         dbHelper = new DatabaseHelper(context);
         db = dbHelper.getWritableDatabase();
+        insertMessageStatement = compile(SQL_INSERT_MESSAGE);
+        insertIndexStatement = compile(SQL_INSERT_INDEX);
+        insertConversationStatement = compile(SQL_INSERT_CONVERSATION);
+        updateConversationStatement = compile(SQL_UPDATE_CONVERSATION);
+        deleteMessageStatement = compile(SQL_DELETE_MESSAGE);
+        deleteIndexStatement = compile(SQL_DELETE_INDEX);
+        deleteConversationIndexStatement = compile(SQL_DELETE_CONVERSATION_INDEX);
+        deleteConversationMessagesStatement = compile(SQL_DELETE_CONVERSATION_MESSAGES);
+        deleteConversationStatement = compile(SQL_DELETE_CONVERSATION);
+        countConversationsStatement = compile(SQL_COUNT_CONVERSATIONS);
+        insertBlobStatement = compile(SQL_INSERT_BLOB);
+        retainBlobStatement = compile(SQL_RETAIN_BLOB);
+        releaseBlobStatement = compile(SQL_RELEASE_BLOB);
     }
 
-    public void destroy() { db.close(); }
+    private SQLiteStatement compile(String sql) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        statements.add(statement);
+        return statement;
+    }
+
+    public void destroy() {
+        for(SQLiteStatement statement : statements) {
+            statement.close();
+        }
+        sweepExecutor.execute(db::close); // 等待已提交的清理完成后再关闭数据库
+    }
+
+    // 绑定可能为null的字符串参数
+    private static void bindString(SQLiteStatement statement, int index, @Nullable String value) {
+        if(value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
 
     // 转义like语句中的特殊字符
     private String escapeLikeText(String text) {
@@ -381,12 +574,101 @@ public class ChatManager{
     public long getConversationCount(String filterTitleText) {
         String selection = (filterTitleText == null) ? null : "title LIKE ? ESCAPE '\\'";
         String[] selectionArgs = (filterTitleText == null) ? null : new String[]{"%" + escapeLikeText(filterTitleText) + "%"};
-        Cursor cursor = db.query(DatabaseHelper.tableName, new String[]{"COUNT(*)"}, selection, selectionArgs, null, null, null);
-        cursor.moveToFirst();
-        return cursor.getLong(0);
+        try(Cursor cursor = db.query(DatabaseHelper.tableName, new String[]{"COUNT(*)"}, selection, selectionArgs, null, null, null)) {
+            cursor.moveToFirst();
+            return cursor.getLong(0);
+        }
     }
     public long getConversationCount() {
-        return getConversationCount(null);
+        return countConversationsStatement.simpleQueryForLong();
+    }
+
+    // 在会话标题和消息内容中搜索关键词（各搜索词均需命中），结果按标题命中、命中消息数、时间排序
+    public List<SearchResult> searchConversations(String keyword) {
+        long startTime = System.currentTimeMillis();
+        List<String> terms = FullTextIndex.getTerms(keyword);
+        Map<Long, SearchResult> results = new LinkedHashMap<>();
+        try(Cursor cursor = db.query(DatabaseHelper.tableName, CONVERSATION_INFO_COLUMNS, "title LIKE ? ESCAPE '\\'",
+                new String[]{"%" + escapeLikeText(keyword) + "%"}, null, null, "time DESC", String.valueOf(MAX_SEARCH_RESULTS))) {
+            while(cursor.moveToNext()) {
+                SearchResult result = getSearchResultByCursor(cursor);
+                result.titleMatched = true;
+                results.put(result.id, result);
+            }
+        }
+        if(!terms.isEmpty()) {
+            // 先在索引中按docid倒序取最新的若干条命中消息，再按会话分组统计，宽泛的搜索词不必逐条关联所有命中的消息
+            String sql = "SELECT c.id, c.time, c.title, c.preview, r.hits, r.message_id FROM" +
+                    " (SELECT m.conversation_id AS conversation_id, COUNT(*) AS hits, MAX(m.id) AS message_id FROM" +
+                    " (SELECT docid FROM " + DatabaseHelper.searchTableName + " WHERE " + DatabaseHelper.searchTableName + " MATCH ?" +
+                    " ORDER BY docid DESC LIMIT " + MAX_SEARCH_MESSAGES + ") f" +
+                    " JOIN " + DatabaseHelper.messageTableName + " m ON m.id = f.docid GROUP BY m.conversation_id) r" +
+                    " JOIN " + DatabaseHelper.tableName + " c ON c.id = r.conversation_id" +
+                    " ORDER BY r.hits DESC, c.time DESC LIMIT " + MAX_SEARCH_RESULTS;
+            try(Cursor cursor = db.rawQuery(sql, new String[]{FullTextIndex.buildMatchQuery(terms)})) {
+                while(cursor.moveToNext()) {
+                    SearchResult result = results.get(cursor.getLong(0));
+                    if(result == null) {
+                        result = getSearchResultByCursor(cursor);
+                        results.put(result.id, result);
+                    }
+                    result.hits = cursor.getInt(4);
+                    result.messageId = cursor.getLong(5);
+                }
+            }
+        }
+        List<SearchResult> list = new ArrayList<>(results.values());
+        Collections.sort(list, (a, b) -> {
+            if(a.titleMatched != b.titleMatched)
+                return a.titleMatched ? -1 : 1;
+            if(a.hits != b.hits)
+                return Integer.compare(b.hits, a.hits);
+            return b.time.compareTo(a.time);
+        });
+        MetricsRegistry.record("history.search_ms", System.currentTimeMillis() - startTime, MetricsRegistry.FRAME_BUCKETS_MS);
+        return list;
+    }
+
+    private SearchResult getSearchResultByCursor(Cursor cursor) {
+        SearchResult result = new SearchResult();
+        readConversationInfo(cursor, result);
+        return result;
+    }
+
+    private static final String[] CONVERSATION_INFO_COLUMNS = new String[]{"id", "time", "title", "preview"};
+
+    private void readConversationInfo(Cursor cursor, ConversationInfo info) {
+        info.id = cursor.getLong(0);
+        info.time = LocalDateTime.parse(cursor.getString(1), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+        info.title = cursor.getString(2);
+        info.preview = cursor.getString(3);
+    }
+
+    // 按时间倒序获取一页会话信息，只读取会话表中的列；after为上一页的最后一个会话（为null则从头开始），使用键集分页避免OFFSET扫描
+    public List<ConversationInfo> getConversationInfoPage(@Nullable ConversationInfo after, int limit) {
+        String selection = null;
+        String[] selectionArgs = null;
+        if(after != null) {
+            String time = after.time.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+            selection = "time < ? OR (time = ? AND id < ?)";
+            selectionArgs = new String[]{time, time, String.valueOf(after.id)};
+        }
+        List<ConversationInfo> page = new ArrayList<>();
+        try(Cursor cursor = db.query(DatabaseHelper.tableName, CONVERSATION_INFO_COLUMNS, selection, selectionArgs, null, null, "time DESC, id DESC", String.valueOf(limit))) {
+            while(cursor.moveToNext()) {
+                ConversationInfo info = new ConversationInfo();
+                readConversationInfo(cursor, info);
+                page.add(info);
+            }
+        }
+        return page;
+    }
+
+    // 获取一条消息的文本
+    public String getMessageText(long messageId) {
+        try(Cursor cursor = db.query(DatabaseHelper.messageTableName, new String[]{"text"}, "id=?", new String[]{String.valueOf(messageId)}, null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
     }
 
     // 从数据库游标中读取会话信息
@@ -395,7 +677,9 @@ public class ChatManager{
         conversation.id = cursor.getLong(cursor.getColumnIndex("id"));
         conversation.time = LocalDateTime.parse(cursor.getString(cursor.getColumnIndex("time")), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
         conversation.title = cursor.getString(cursor.getColumnIndex("title"));
-        conversation.messages = MessageList.fromJson(new JSONArray(cursor.getString(cursor.getColumnIndex("messages"))), loadImages);
+        conversation.messages = loadMessages(conversation, loadImages);
+        conversation.summary = cursor.getString(cursor.getColumnIndex("summary"));
+        conversation.summaryIndex = conversation.summary == null ? 0 : Math.min(cursor.getInt(cursor.getColumnIndex("summary_index")), conversation.messages.size());
         return conversation;
     }
     private Conversation getConversationByCursor(Cursor cursor) {
@@ -404,82 +688,324 @@ public class ChatManager{
 
     // 根据会话ID获取会话
     public Conversation getConversation(long id) {
-        Cursor cursor = db.query(DatabaseHelper.tableName, null, "id=?", new String[]{String.valueOf(id)}, null, null, null);
-        if (cursor.moveToFirst()) {
-            return getConversationByCursor(cursor);
+        try(Cursor cursor = db.query(DatabaseHelper.tableName, null, "id=?", new String[]{String.valueOf(id)}, null, null, null)) {
+            if (cursor.moveToFirst()) {
+                return getConversationByCursor(cursor);
+            }
         }
         return null;
     }
 
-    // 根据会话在数据库中的位置获取会话（按时间倒序）
-    public Conversation getConversationAtPosition(int position, String filterTitleText) {
-        String selection = (filterTitleText == null) ? null : "title LIKE ? ESCAPE '\\'";
-        String[] selectionArgs = (filterTitleText == null) ? null : new String[]{"%" + escapeLikeText(filterTitleText) + "%"};
-        Cursor cursor = db.query(DatabaseHelper.tableName, null, selection, selectionArgs, null, null, "id DESC", String.valueOf(position) + ",1");
-        if (cursor.moveToFirst()) {
-            return getConversationByCursor(cursor);
+    // 获取所有会话（按时间倒序）
+    public List<Conversation> getAllConversations() {
+        List<Conversation> conversations = new ArrayList<>();
+        try(Cursor cursor = db.query(DatabaseHelper.tableName, null, null, null, null, null, "time DESC, id DESC")) {
+            while (cursor.moveToNext()) {
+                Conversation conversation = getConversationByCursor(cursor);
+                conversations.add(conversation);
+            }
+        }
+        return conversations;
+    }
+
+    // 读取会话的所有消息，并记录为已保存
+    private MessageList loadMessages(Conversation conversation, boolean loadFiles) {
+        MessageList messages = new MessageList();
+        conversation.savedMessages.clear();
+        conversation.savedRowIds.clear();
+        try(Cursor cursor = db.query(DatabaseHelper.messageTableName, new String[]{"id", "seq", "role", "text", "extra"},
+                "conversation_id=?", new String[]{String.valueOf(conversation.id)}, null, null, "seq")) {
+            while(cursor.moveToNext()) {
+                String extra = cursor.getString(4);
+                JSONObject json = extra == null ? new JSONObject() : new JSONObject(extra);
+                json.putOpt("role", cursor.getString(2))
+                    .putOpt("text", cursor.getString(3));
+                ChatMessage message = ChatMessage.fromJson(json, loadFiles);
+                messages.add(message);
+                conversation.savedMessages.add(message);
+                conversation.savedRowIds.add(cursor.getLong(0));
+                conversation.nextSeq = cursor.getLong(1) + 1;
+            }
+        }
+        return messages;
+    }
+
+    // 写入一条消息，json为ChatMessage.toJson()的格式
+    private static long insertMessageRow(SQLiteStatement insertMessage, long conversationId, long seq, JSONObject json) {
+        JSONObject extra = new JSONObject(json);
+        extra.remove("role");
+        extra.remove("text");
+        insertMessage.bindLong(1, conversationId);
+        insertMessage.bindLong(2, seq);
+        bindString(insertMessage, 3, json.getStr("role", null));
+        bindString(insertMessage, 4, json.getStr("text", null));
+        bindString(insertMessage, 5, extra.isEmpty() ? null : extra.toString());
+        return insertMessage.executeInsert();
+    }
+
+    // 将消息文本写入全文索引（只索引提问和回复）
+    private static void indexMessageRow(SQLiteStatement insertIndex, long rowId, String role, String text) {
+        if(text == null || text.isEmpty() || !(ChatMessage.ChatRole.USER.name().equals(role) || ChatMessage.ChatRole.ASSISTANT.name().equals(role))) {
+            return;
+        }
+        insertIndex.bindLong(1, rowId);
+        insertIndex.bindString(2, FullTextIndex.toIndexText(text));
+        insertIndex.executeInsert();
+    }
+
+    // 绑定会话信息列（time, title, summary, summary_index, message_count, preview）
+    private static void bindConversation(SQLiteStatement statement, Conversation conversation) {
+        bindString(statement, 1, conversation.time.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        bindString(statement, 2, conversation.title);
+        bindString(statement, 3, conversation.summary);
+        statement.bindLong(4, conversation.summaryIndex);
+        statement.bindLong(5, conversation.messages.size());
+        bindString(statement, 6, getPreview(conversation));
+    }
+
+    // 生成会话列表中的预览文本（第一条回复）
+    private static String getPreview(Conversation conversation) {
+        for(ChatMessage message : conversation.messages) {
+            if(message.role == ChatMessage.ChatRole.ASSISTANT && message.toolCalls.isEmpty() && message.contentText != null) {
+                String text = message.contentText.replace('\n', ' ');
+                return text.substring(0, Math.min(PREVIEW_MAX_CHARS, text.length()));
+            }
         }
         return null;
     }
-    public Conversation getConversationAtPosition(int position) {
-        return getConversationAtPosition(position, null);
+
+    // 保存会话到数据库：新会话写入全部消息，已保存的会话只更新会话信息、删除已移除消息的行并追加新消息，耗时与会话长度无关
+    public void saveConversation(Conversation conversation) {
+        long startTime = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            int updated = 0;
+            if(conversation.id >= 0) {
+                bindConversation(updateConversationStatement, conversation);
+                updateConversationStatement.bindLong(7, conversation.id);
+                updated = updateConversationStatement.executeUpdateDelete();
+            }
+            if(updated == 0) { // 新会话或已在历史界面中被删除
+                conversation.savedMessages.clear();
+                conversation.savedRowIds.clear();
+                conversation.nextSeq = 0;
+                bindConversation(insertConversationStatement, conversation);
+                conversation.id = insertConversationStatement.executeInsert();
+            }
+            saveMessages(conversation);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        MetricsRegistry.record("db.save_ms", System.currentTimeMillis() - startTime, MetricsRegistry.FRAME_BUCKETS_MS);
     }
 
-    // 获取所有会话（按时间倒序）
-    public List<Conversation> getAllConversations() {
-        Cursor cursor = db.query(DatabaseHelper.tableName, null, null, null, null, null, "id DESC");
-        List<Conversation> conversations = new ArrayList<>();
-        while (cursor.moveToNext()) {
-            Conversation conversation = getConversationByCursor(cursor);
-            conversations.add(conversation);
+    private void saveMessages(Conversation conversation) {
+        List<ChatMessage> saved = conversation.savedMessages;
+        List<Long> rowIds = conversation.savedRowIds;
+        Set<ChatMessage> current = Collections.newSetFromMap(new IdentityHashMap<>());
+        current.addAll(conversation.messages);
+        for(int i = saved.size() - 1; i >= 0; i--) { // 删除已从会话中移除的消息
+            if(!current.contains(saved.get(i))) {
+                releaseBlobs("id=?", new String[]{String.valueOf(rowIds.get(i))});
+                deleteIndexStatement.bindLong(1, rowIds.get(i));
+                deleteIndexStatement.executeUpdateDelete();
+                deleteMessageStatement.bindLong(1, rowIds.get(i));
+                deleteMessageStatement.executeUpdateDelete();
+                saved.remove(i);
+                rowIds.remove(i);
+            }
+        }
+        int common = 0;
+        while(common < saved.size() && common < conversation.messages.size() && conversation.messages.get(common) == saved.get(common)) {
+            common++;
+        }
+        if(common < saved.size()) { // 已保存的消息之间插入了新消息，重写全部消息
+            deleteMessageRows(conversation.id);
+            saved.clear();
+            rowIds.clear();
+            common = 0;
+        }
+        for(int i = common; i < conversation.messages.size(); i++) { // 追加新消息
+            ChatMessage message = conversation.messages.get(i);
+            saved.add(message);
+            long rowId = insertMessageRow(insertMessageStatement, conversation.id, conversation.nextSeq++, message.toJson());
+            indexMessageRow(insertIndexStatement, rowId, message.role.name(), message.contentText);
+            for(ChatMessage.Attachment attachment : message.attachments) {
+                if(attachment.uuid != null) {
+                    retainBlob(attachment.getBlobName());
+                }
+            }
+            rowIds.add(rowId);
         }
-        return conversations;
     }
 
-    // 添加会话到数据库
-    public long addConversation(Conversation conversation) {
-        ContentValues values = new ContentValues();
-        values.put("time", conversation.time.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-        values.put("title", conversation.title);
-        values.put("messages", conversation.messages.toJson().toString());
-        conversation.id = db.insert(DatabaseHelper.tableName, null, values);
-        return conversation.id;
+    // 增加附件文件的引用计数
+    private void retainBlob(String name) {
+        insertBlobStatement.bindString(1, name);
+        insertBlobStatement.executeInsert();
+        retainBlobStatement.bindString(1, name);
+        retainBlobStatement.executeUpdateDelete();
     }
 
-    public void updateConversation(Conversation conversation) {
-        ContentValues values = new ContentValues();
-        values.put("time", conversation.time.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-        values.put("title", conversation.title);
-        values.put("messages", conversation.messages.toJson().toString());
-        db.update(DatabaseHelper.tableName, values, "id=?", new String[]{String.valueOf(conversation.id)});
+    // 减少消息行引用的附件文件的引用计数（在删除消息行之前调用），文件由sweepOrphanBlobs延迟删除
+    private void releaseBlobs(String selection, String[] selectionArgs) {
+        long now = System.currentTimeMillis();
+        try(Cursor cursor = db.query(DatabaseHelper.messageTableName, new String[]{"extra"}, selection + " AND extra IS NOT NULL", selectionArgs, null, null, null)) {
+            while(cursor.moveToNext()) {
+                for(String name : getBlobNames(cursor.getString(0))) {
+                    releaseBlobStatement.bindLong(1, now);
+                    releaseBlobStatement.bindString(2, name);
+                    releaseBlobStatement.executeUpdateDelete();
+                }
+            }
+        }
+    }
+
+    // 从消息行的extra字段中读取引用的附件文件
+    private static List<String> getBlobNames(String extra) {
+        List<String> names = new ArrayList<>();
+        if(extra == null || !(extra.contains("\"attachments\"") || extra.contains("\"image\""))) {
+            return names;
+        }
+        for(ChatMessage.Attachment attachment : ChatMessage.fromJson(new JSONObject(extra), false).attachments) {
+            if(attachment.uuid != null) {
+                names.add(attachment.getBlobName());
+            }
+        }
+        return names;
     }
 
-    // 删除指定的会话
+    // 删除会话的所有消息行及其全文索引
+    private void deleteMessageRows(long conversationId) {
+        releaseBlobs("conversation_id=?", new String[]{String.valueOf(conversationId)});
+        deleteConversationIndexStatement.bindLong(1, conversationId);
+        deleteConversationIndexStatement.executeUpdateDelete();
+        deleteConversationMessagesStatement.bindLong(1, conversationId);
+        deleteConversationMessagesStatement.executeUpdateDelete();
+    }
+
+    // 删除指定的会话，附件文件的引用计数随消息行减少
     public void removeConversation(long id) {
-        Cursor cursor = db.query(DatabaseHelper.tableName, null, "id=?", new String[]{String.valueOf(id)}, null, null, null);
-        if (cursor.moveToFirst()) {
-            Conversation conversation = getConversationByCursor(cursor, false);
-            conversation.messages.deteteAllAttachments();
+        db.beginTransaction();
+        try {
+            deleteMessageRows(id);
+            deleteConversationStatement.bindLong(1, id);
+            deleteConversationStatement.executeUpdateDelete();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-        db.delete(DatabaseHelper.tableName, "id=?", new String[]{String.valueOf(id)});
     }
     public void removeConversation(Conversation conversation) { removeConversation(conversation.id); }
 
-    // 删除所有会话
+    // 删除所有会话，并在后台清理所有不再被引用的附件文件
     public void removeAllConversations() {
+        db.beginTransaction();
+        try {
+            db.delete(DatabaseHelper.searchTableName, null, null);
+            db.delete(DatabaseHelper.messageTableName, null, null);
+            db.delete(DatabaseHelper.tableName, null, null);
+            db.delete(DatabaseHelper.blobTableName, null, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        sweepOrphanBlobs(Integer.MAX_VALUE);
+    }
+
+    // 在后台分批清理附件文件：引用计数已归零的文件，以及未被任何消息引用的文件（未发送的附件、中断写入的临时文件）
+    // 每次最多检查maxFiles个文件，目录从上次的位置继续，最近写入、复用或释放的文件暂不删除
+    public void sweepOrphanBlobs(int maxFiles) {
+        sweepExecutor.execute(() -> {
+            try {
+                sweep(maxFiles);
+            } catch (Exception e) { // 清理失败不影响使用，下次启动时继续
+                Trace.w("ChatManager", e, "sweep failed");
+            }
+        });
+    }
+    public void sweepOrphanBlobs() { sweepOrphanBlobs(SWEEP_BATCH); }
+
+    // 等待已提交的清理完成（用于测试）
+    void awaitSweep() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        sweepExecutor.execute(latch::countDown);
+        latch.await();
+    }
+
+    // 在清理线程执行，使用单独编译的语句，不与主线程共用预编译语句
+    private void sweep(int maxFiles) {
+        long startTime = System.currentTimeMillis();
+        long cutoff = System.currentTimeMillis() - ORPHAN_GRACE_MS;
+        int deleted = 0;
+        List<String> released = new ArrayList<>();
+        try(Cursor cursor = db.query(DatabaseHelper.blobTableName, new String[]{"name"}, "refs <= 0 AND released < ?",
+                new String[]{String.valueOf(cutoff)}, null, null, null, String.valueOf(maxFiles))) {
+            while(cursor.moveToNext()) {
+                released.add(cursor.getString(0));
+            }
+        }
+        for(String name : released) {
+            if(deleteUnusedBlob(new File(filesDir, name), name, cutoff, null)) {
+                deleted++;
+            }
+        }
+        List<File> files = new ArrayList<>();
         for(ChatMessage.Attachment.Type type : ChatMessage.Attachment.Type.values()) {
-            File dir = new File(ChatMessage.Attachment.getDirPath(type));
-            if(dir.exists()) {
-                for(File file : dir.listFiles()) {
-                    file.delete();
+            File[] list = new File(ChatMessage.Attachment.getDirPath(type)).listFiles();
+            if(list != null) {
+                Collections.addAll(files, list);
+            }
+        }
+        if(sweepPosition >= files.size() || maxFiles >= files.size()) { // 一轮结束或本次可检查全部文件时从头开始
+            sweepPosition = 0;
+        }
+        int end = (int) Math.min((long) sweepPosition + maxFiles, files.size());
+        try(SQLiteStatement countBlob = db.compileStatement(SQL_COUNT_BLOB)) {
+            for(int i = sweepPosition; i < end; i++) {
+                File file = files.get(i);
+                if(file.lastModified() >= cutoff) {
+                    continue;
+                }
+                if(file.getName().endsWith(BlobStore.TEMP_SUFFIX) ? file.delete()
+                        : deleteUnusedBlob(file, file.getParentFile().getName() + "/" + file.getName(), cutoff, countBlob)) {
+                    deleted++;
+                }
+            }
+        }
+        sweepPosition = end;
+        Trace.d("ChatManager", "Swept %d orphan attachment files in %d ms", deleted, System.currentTimeMillis() - startTime);
+    }
+
+    // 在数据库事务和BlobStore.lock内再次确认附件文件不再使用后删除：主线程复用附件时先在BlobStore.lock内更新修改时间，
+    // 再在保存会话的事务中增加引用计数，因此确认和删除之间文件不会被复用
+    // countBlob为null时删除引用计数已归零的记录，否则确认没有引用记录
+    private boolean deleteUnusedBlob(File file, String name, long cutoff, @Nullable SQLiteStatement countBlob) {
+        db.beginTransaction();
+        try {
+            boolean deleted = false;
+            synchronized (BlobStore.lock) {
+                if(file.lastModified() < cutoff) { // 文件不存在时为0，只删除记录
+                    boolean unused;
+                    if(countBlob == null) {
+                        unused = db.delete(DatabaseHelper.blobTableName, "name = ? AND refs <= 0", new String[]{name}) > 0;
+                    } else {
+                        countBlob.bindString(1, name);
+                        unused = countBlob.simpleQueryForLong() == 0;
+                    }
+                    deleted = unused && file.delete();
                 }
             }
+            db.setTransactionSuccessful();
+            return deleted;
+        } finally {
+            db.endTransaction();
         }
-        db.delete(DatabaseHelper.tableName, null, null);
     }
 
     // 删除所有空会话
     public void removeEmptyConversations() {
-        db.delete(DatabaseHelper.tableName, "messages=?", new String[]{"[]"});
+        db.delete(DatabaseHelper.tableName, "message_count=0", null);
     }
 }
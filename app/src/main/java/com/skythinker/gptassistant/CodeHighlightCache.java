@@ -0,0 +1,83 @@
+package com.skythinker.gptassistant;
+
+import android.text.SpannableStringBuilder;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import cn.hutool.crypto.digest.DigestUtil;
+import io.noties.markwon.syntax.SyntaxHighlight;
+
+// 代码块高亮结果缓存：按语言和代码内容的哈希缓存高亮后的Spanned，已完成的代码块不再重复分词
+// 流式输出中未闭合的代码块每次内容都在增长，复用上次的高亮结果，只在新增内容较多时重新高亮；超大代码块不高亮，按普通等宽文本显示
+public class CodeHighlightCache implements SyntaxHighlight {
+    private static final int MAX_CACHE_CHARS = 512 * 1024; // 缓存的高亮结果总字符数上限
+    private static final int MAX_HIGHLIGHT_CHARS = 32 * 1024; // 超过此长度的代码块不高亮
+    private static final int PARTIAL_REHIGHLIGHT_CHARS = 512; // 未闭合代码块新增超过此长度时重新高亮
+
+    private final SyntaxHighlight delegate;
+    private final LruCache<String, CharSequence> cache; // LruCache自身线程安全，可由多个实例共享
+    private boolean streamingTail = false; // 当前解析的是流式输出末尾未完成的部分
+    private String partialInfo = null, partialCode = null; // 最近一次高亮的未完成代码块
+    private CharSequence partialResult = null;
+
+    public CodeHighlightCache(SyntaxHighlight delegate) {
+        this(delegate, new LruCache<String, CharSequence>(MAX_CACHE_CHARS) {
+            @Override
+            protected int sizeOf(@NonNull String key, @NonNull CharSequence value) {
+                return value.length();
+            }
+        });
+    }
+
+    private CodeHighlightCache(SyntaxHighlight delegate, LruCache<String, CharSequence> cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    // 创建共享高亮结果缓存的实例，供另一个线程的Markwon使用（delegate不能与本实例共用）
+    public CodeHighlightCache share(SyntaxHighlight delegate) {
+        return new CodeHighlightCache(delegate, cache);
+    }
+
+    // 标记接下来解析的内容是否为流式输出的末尾（其中最后的代码块可能尚未闭合）
+    public synchronized void setStreamingTail(boolean streamingTail) {
+        this.streamingTail = streamingTail;
+    }
+
+    @NonNull
+    @Override
+    public synchronized CharSequence highlight(@Nullable String info, @NonNull String code) {
+        if(code.length() > MAX_HIGHLIGHT_CHARS) {
+            MetricsRegistry.increment("highlight.skipped_large");
+            return code;
+        }
+        String key = (info == null ? "" : info) + "\n" + code.length() + "\n" + DigestUtil.sha1Hex(code);
+        CharSequence result = cache.get(key);
+        if(result != null) {
+            MetricsRegistry.increment("highlight.cache_hit");
+            return result;
+        }
+        if(streamingTail && partialCode != null && equals(info, partialInfo) && code.startsWith(partialCode)
+                && code.length() - partialCode.length() < PARTIAL_REHIGHLIGHT_CHARS) { // 新增部分先不高亮，代码块闭合或新增较多时再整体高亮
+            MetricsRegistry.increment("highlight.partial");
+            return new SpannableStringBuilder(partialResult).append(code, partialCode.length(), code.length());
+        }
+        long startTime = System.currentTimeMillis();
+        result = delegate.highlight(info, code);
+        MetricsRegistry.record("highlight.ms", System.currentTimeMillis() - startTime, MetricsRegistry.FRAME_BUCKETS_MS);
+        MetricsRegistry.increment("highlight.cache_miss");
+        cache.put(key, result);
+        if(streamingTail && result.length() == code.length()) { // 高亮结果与原文一致时才能在其后拼接新增内容
+            partialInfo = info;
+            partialCode = code;
+            partialResult = result;
+        }
+        return result;
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
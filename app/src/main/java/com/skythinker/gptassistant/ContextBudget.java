@@ -0,0 +1,307 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.graphics.BitmapFactory;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import cn.hutool.json.JSONArray;
+
+// 按模型的上下文窗口裁剪消息列表：依次丢弃旧的函数结果、旧消息的附件、最早的对话轮次，最后截断当前轮次中过长的内容
+public class ContextBudget {
+    private static final int MESSAGE_OVERHEAD = 4; // 每条消息的格式开销
+    private static final int REPLY_PRIMING = 3; // 回复开头的固定开销
+    private static final int MAX_REPLY_RESERVE = 4096; // 为回复预留的最大token数
+    private static final int DEFAULT_CONTEXT_WINDOW = 32768; // 未知模型的上下文窗口
+    private static final String TRUNCATED_MARK = "\n...[truncated]";
+
+    // 模型名前缀及其上下文窗口，按顺序匹配，较长的前缀需放在前面
+    private static final Object[][] CONTEXT_WINDOWS = {
+            {"gpt-4.1", 1047576}, {"gpt-4o", 128000}, {"chatgpt-4o", 128000}, {"gpt-4-turbo", 128000},
+            {"gpt-4-1106", 128000}, {"gpt-4-0125", 128000}, {"gpt-4-vision", 128000}, {"gpt-4-32k", 32768},
+            {"gpt-4", 8192}, {"gpt-3.5-turbo-instruct", 4096}, {"gpt-3.5-turbo", 16385}, {"gpt-5", 400000},
+            {"o1-mini", 128000}, {"o1", 200000}, {"o3", 200000}, {"o4", 200000},
+            {"qwen-long", 1000000}, {"qwen-turbo", 1000000}, {"qwen-plus", 131072}, {"qwen-max", 32768},
+            {"qwen-vl", 32768}, {"qwen2.5", 131072}, {"qwen2", 32768}, {"qwen1.5", 32768},
+            {"deepseek", 65536}, {"claude", 200000}, {"gemini", 1048576}, {"glm-4", 128000}, {"moonshot-v1-8k", 8192},
+            {"moonshot-v1-32k", 32768}, {"moonshot-v1-128k", 131072},
+    };
+
+    // 单条消息的token计数缓存，消息内容变化后失效
+    private static class CountCache {
+        String contentText; // 按引用比较
+        int attachmentCount;
+        int toolCallCount;
+        boolean visionSupported;
+        int tokens;
+    }
+
+    private final Context context;
+    private final Map<ChatMessage, CountCache> countCache = new WeakHashMap<>();
+    private TokenCounter counter = null;
+
+    public ContextBudget(Context context) {
+        this.context = context;
+    }
+
+    // 获取模型的上下文窗口大小
+    public static int getContextWindow(String model) {
+        String name = model.replaceAll("\\*$", "").toLowerCase();
+        for(Object[] item : CONTEXT_WINDOWS) {
+            if(name.startsWith((String) item[0])) {
+                return (Integer) item[1];
+            }
+        }
+        return DEFAULT_CONTEXT_WINDOW;
+    }
+
+    // 估算整个请求的token数
+    public synchronized int countRequest(List<ChatMessage> promptList, String model, JSONArray tools, boolean visionSupported) {
+        counter = TokenCounter.forModel(context, model);
+        int total = REPLY_PRIMING + countTools(tools);
+        for(ChatMessage message : promptList) {
+            total += countMessage(message, visionSupported);
+        }
+        return total;
+    }
+
+    // 计算单条消息的token数，与fit共用缓存，已发送过的消息无需重新计数
+    public synchronized int countMessage(ChatMessage message, String model, boolean visionSupported) {
+        counter = TokenCounter.forModel(context, model);
+        return countMessage(message, visionSupported);
+    }
+
+    // 返回适合模型上下文窗口的消息列表，无需裁剪时返回原列表，否则返回裁剪后的新列表（不修改原列表和其中的消息）
+    public synchronized List<ChatMessage> fit(List<ChatMessage> promptList, String model, JSONArray tools, boolean visionSupported) {
+        return fit(promptList, model, tools, visionSupported, 0);
+    }
+
+    // pinnedCount：列表末尾与当前轮次一起保留的消息数（续写时的assistant前缀和续写提示），只裁剪之前的历史
+    public synchronized List<ChatMessage> fit(List<ChatMessage> promptList, String model, JSONArray tools, boolean visionSupported, int pinnedCount) {
+        counter = TokenCounter.forModel(context, model);
+        int window = getContextWindow(model);
+        int budget = window - Math.min(MAX_REPLY_RESERVE, window / 4) - REPLY_PRIMING - countTools(tools);
+
+        List<ChatMessage> list = new ArrayList<>(promptList);
+        List<Integer> counts = new ArrayList<>(list.size());
+        int total = 0;
+        for(ChatMessage message : list) {
+            int tokens = countMessage(message, visionSupported);
+            counts.add(tokens);
+            total += tokens;
+        }
+        if(total <= budget) {
+            return promptList;
+        }
+        int originalTotal = total;
+
+        int lastTurn = Math.max(0, list.size() - 1 - pinnedCount); // 当前轮次（最后一个提问及之后的消息）不参与前三步裁剪
+        while(lastTurn > 0 && list.get(lastTurn).role != ChatRole.USER) {
+            lastTurn--;
+        }
+
+        // 1. 丢弃旧的函数结果及发起调用的assistant消息
+        for(int i = 0; i < lastTurn && total > budget; i++) {
+            if(list.get(i).role != ChatRole.FUNCTION) {
+                continue;
+            }
+            int start = i, end = i;
+            while(start > 0 && list.get(start - 1).role == ChatRole.FUNCTION) {
+                start--;
+            }
+            if(start > 0 && list.get(start - 1).role == ChatRole.ASSISTANT && list.get(start - 1).toolCalls.size() > 0) {
+                start--;
+            }
+            while(end + 1 < lastTurn && list.get(end + 1).role == ChatRole.FUNCTION) {
+                end++;
+            }
+            for(int j = end; j >= start; j--) {
+                total -= counts.remove(j);
+                list.remove(j);
+                lastTurn--;
+            }
+            i = start - 1;
+        }
+
+        // 2. 去掉旧消息的附件
+        for(int i = 0; i < lastTurn && total > budget; i++) {
+            ChatMessage message = list.get(i);
+            if(message.attachments.isEmpty()) {
+                continue;
+            }
+            ChatMessage copy = copyMessage(message);
+            copy.attachments.clear();
+            int tokens = countMessage(copy, visionSupported);
+            total += tokens - counts.get(i);
+            counts.set(i, tokens);
+            list.set(i, copy);
+        }
+
+        // 3. 丢弃最早的对话轮次，系统消息始终保留
+        while(total > budget) {
+            int start = 0;
+            while(start < lastTurn && list.get(start).role == ChatRole.SYSTEM) {
+                start++;
+            }
+            if(start >= lastTurn) {
+                break;
+            }
+            int end = start + 1; // 下一轮次的开始
+            while(end < lastTurn && list.get(end).role != ChatRole.USER) {
+                end++;
+            }
+            for(int j = end - 1; j >= start; j--) {
+                total -= counts.remove(j);
+                list.remove(j);
+                lastTurn--;
+            }
+        }
+
+        // 4. 仍然超出时截断当前轮次中最长的函数结果或文本附件
+        while(total > budget) {
+            int longestIndex = -1, longestTokens = 0;
+            for(int i = lastTurn; i < list.size(); i++) {
+                if(list.get(i).role != ChatRole.USER && list.get(i).role != ChatRole.FUNCTION) {
+                    continue;
+                }
+                if(counts.get(i) > longestTokens) {
+                    longestTokens = counts.get(i);
+                    longestIndex = i;
+                }
+            }
+            if(longestIndex < 0) {
+                break;
+            }
+            ChatMessage copy = truncateMessage(list.get(longestIndex), total - budget);
+            if(copy == null) { // 没有可截断的内容
+                break;
+            }
+            int tokens = countMessage(copy, visionSupported);
+            if(tokens >= counts.get(longestIndex)) {
+                break;
+            }
+            total += tokens - counts.get(longestIndex);
+            counts.set(longestIndex, tokens);
+            list.set(longestIndex, copy);
+        }
+
+        Trace.d("ContextBudget", "trimmed %d messages (%d tokens) to %d messages (%d tokens), budget %d, exact=%b",
+                promptList.size(), originalTotal, list.size(), total, budget, counter.isExact());
+        return list;
+    }
+
+    private int countTools(JSONArray tools) {
+        return tools == null || tools.isEmpty() ? 0 : counter.count(tools.toString());
+    }
+
+    private int countMessage(ChatMessage message, boolean visionSupported) {
+        CountCache cache = countCache.get(message);
+        if(cache != null && cache.contentText == message.contentText && cache.attachmentCount == message.attachments.size()
+                && cache.toolCallCount == message.toolCalls.size() && cache.visionSupported == visionSupported) {
+            return cache.tokens;
+        }
+        int tokens = MESSAGE_OVERHEAD;
+        String text = message.role == ChatRole.ASSISTANT ? PromptPayloadBuilder.stripThink(message.contentText) : message.contentText;
+        tokens += counter.count(text);
+        for(ChatMessage.ToolCall toolCall : message.toolCalls) {
+            tokens += counter.count(toolCall.functionName) + counter.count(toolCall.arguments) + counter.count(toolCall.content);
+        }
+        for(ChatMessage.Attachment attachment : message.attachments) {
+            if(attachment.type == ChatMessage.Attachment.Type.TEXT) {
+                tokens += counter.count(attachment.content);
+            } else if(attachment.type == ChatMessage.Attachment.Type.IMAGE && visionSupported) {
+                tokens += countImage(attachment);
+            }
+        }
+        cache = new CountCache();
+        cache.contentText = message.contentText;
+        cache.attachmentCount = message.attachments.size();
+        cache.toolCallCount = message.toolCalls.size();
+        cache.visionSupported = visionSupported;
+        cache.tokens = tokens;
+        countCache.put(message, cache);
+        return tokens;
+    }
+
+    // 按OpenAI高精度模式估算图片的token数：缩放到2048以内、短边768后按512分块，每块170，另加85
+    private static int countImage(ChatMessage.Attachment attachment) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        File file = new File(attachment.getFilePath());
+        if(file.exists()) {
+            BitmapFactory.decodeFile(file.getPath(), options);
+        }
+        double width = options.outWidth > 0 ? options.outWidth : 1024, height = options.outHeight > 0 ? options.outHeight : 1024;
+        double scale = Math.min(1, 2048 / Math.max(width, height));
+        width *= scale;
+        height *= scale;
+        scale = Math.min(1, 768 / Math.min(width, height));
+        width *= scale;
+        height *= scale;
+        return 85 + 170 * (int) (Math.ceil(width / 512) * Math.ceil(height / 512));
+    }
+
+    // 复制消息用于裁剪，附件列表和函数调用列表为新列表
+    private static ChatMessage copyMessage(ChatMessage message) {
+        ChatMessage copy = new ChatMessage(message.role).setText(message.contentText);
+        copy.attachments.addAll(message.attachments);
+        for(ChatMessage.ToolCall toolCall : message.toolCalls) {
+            ChatMessage.ToolCall toolCallCopy = new ChatMessage.ToolCall();
+            toolCallCopy.id = toolCall.id;
+            toolCallCopy.functionName = toolCall.functionName;
+            toolCallCopy.arguments = toolCall.arguments;
+            toolCallCopy.content = toolCall.content;
+            copy.addFunctionCall(toolCallCopy);
+        }
+        return copy;
+    }
+
+    // 截断消息中最长的一段文本（函数结果、文本附件或正文），使其减少约excess个token，无可截断内容时返回null
+    private ChatMessage truncateMessage(ChatMessage message, int excess) {
+        ChatMessage copy = copyMessage(message);
+        String longest = copy.contentText;
+        int target = -1; // -1表示正文，否则为函数调用或附件的序号
+        for(int i = 0; i < copy.toolCalls.size(); i++) {
+            String content = copy.toolCalls.get(i).content;
+            if(content != null && (longest == null || content.length() > longest.length())) {
+                longest = content;
+                target = i;
+            }
+        }
+        for(int i = 0; i < copy.attachments.size(); i++) {
+            ChatMessage.Attachment attachment = copy.attachments.get(i);
+            if(attachment.type == ChatMessage.Attachment.Type.TEXT && attachment.content != null
+                    && (longest == null || attachment.content.length() > longest.length())) {
+                longest = attachment.content;
+                target = copy.toolCalls.size() + i;
+            }
+        }
+        if(longest == null || longest.length() <= TRUNCATED_MARK.length()) {
+            return null;
+        }
+        int tokens = Math.max(1, counter.count(longest));
+        int keepChars = (int) ((long) longest.length() * Math.max(0, tokens - excess) / tokens * 9 / 10); // 按比例估算保留长度，多截掉一些以免反复截断
+        if(keepChars > 0 && Character.isHighSurrogate(longest.charAt(keepChars - 1))) { // 不拆分代理对
+            keepChars--;
+        }
+        String truncated = longest.substring(0, keepChars) + TRUNCATED_MARK;
+        if(target < 0) {
+            copy.contentText = truncated;
+        } else if(target < copy.toolCalls.size()) {
+            copy.toolCalls.get(target).content = truncated;
+        } else {
+            ChatMessage.Attachment attachment = copy.attachments.get(target - copy.toolCalls.size());
+            ChatMessage.Attachment attachmentCopy = ChatMessage.Attachment.loadExist(attachment.uuid, attachment.name, attachment.type, false);
+            attachmentCopy.content = truncated;
+            copy.attachments.set(target - copy.toolCalls.size(), attachmentCopy);
+        }
+        return copy;
+    }
+}
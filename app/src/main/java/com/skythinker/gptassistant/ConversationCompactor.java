@@ -0,0 +1,189 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
+import com.skythinker.gptassistant.ChatManager.Conversation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+
+// 对话压缩：历史消息超过阈值后，在回复结束后的空闲时间将较早的对话轮次总结为摘要，发送时以一条系统消息代替这些轮次
+public class ConversationCompactor {
+    private static final int MAX_COMPACT_THRESHOLD = 8000; // 未压缩部分超过此token数（或上下文窗口的一半）时触发压缩
+    private static final int KEEP_RECENT_TOKENS = 2000; // 压缩后至少保留的最近消息token数
+    private static final int KEEP_RECENT_TURNS = 2; // 压缩后至少保留的最近对话轮次
+    private static final int MAX_ITEM_CHARS = 2000; // 摘要请求中单条函数结果或附件的最大字符数
+    private static final String SUMMARY_PREFIX = "Summary of the earlier part of this conversation:\n";
+    private static final String SUMMARY_INSTRUCTION = "You compress chat history. Write a concise summary of the conversation below "
+            + "in the language the user uses, keeping facts, decisions, user preferences, names, numbers and open questions "
+            + "that later turns may rely on. If a previous summary is given, merge it into the new summary. Output only the summary.";
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(); // 计数和整理摘要请求在后台进行
+
+    private final Context context;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private Conversation compactingConversation = null; // 正在压缩的会话，同一时间只进行一次压缩
+    private ChatMessage summaryMessage = null; // 缓存摘要对应的系统消息，摘要不变时复用以命中请求体片段缓存
+
+    public ConversationCompactor(Context context) {
+        this.context = context;
+    }
+
+    // 构建发送给模型的消息列表：开头的系统消息 + 摘要 + 摘要之后的消息
+    public List<ChatMessage> buildPromptList(Conversation conversation) {
+        List<ChatMessage> messages = conversation.messages;
+        if(conversation.summary == null || conversation.summaryIndex <= 0 || conversation.summaryIndex > messages.size()) {
+            return messages;
+        }
+        List<ChatMessage> list = new ArrayList<>(messages.size() - conversation.summaryIndex + 2);
+        for(int i = 0; i < conversation.summaryIndex && messages.get(i).role == ChatRole.SYSTEM; i++) { // 保留模板中的系统提示
+            list.add(messages.get(i));
+        }
+        String summaryText = SUMMARY_PREFIX + conversation.summary;
+        if(summaryMessage == null || !summaryMessage.contentText.equals(summaryText)) {
+            summaryMessage = new ChatMessage(ChatRole.SYSTEM).setText(summaryText);
+        }
+        list.add(summaryMessage);
+        list.addAll(messages.subList(conversation.summaryIndex, messages.size()));
+        return list;
+    }
+
+    // 在一次回复结束后调用，在后台统计未压缩部分的token数，超过阈值时生成新的摘要，完成后在主线程更新会话
+    public void compactIfNeeded(Conversation conversation, ChatApiClient chatApiClient) {
+        if(compactingConversation != null) {
+            return;
+        }
+        compactingConversation = conversation;
+        String model = chatApiClient.getModel();
+        List<ChatMessage> messages = new ArrayList<>(conversation.messages); // 后台只读取快照，会话在主线程上可能继续变化
+        int summaryIndex = conversation.summaryIndex;
+        String previousSummary = conversation.summary;
+        executor.execute(() -> {
+            if(!compact(conversation, chatApiClient, model, messages, summaryIndex, previousSummary)) {
+                handler.post(() -> compactingConversation = null);
+            }
+        });
+    }
+
+    // 在后台线程判断是否需要压缩并发起摘要请求，未发起请求时返回false
+    private boolean compact(Conversation conversation, ChatApiClient chatApiClient, String model, List<ChatMessage> messages,
+                            int summaryIndex, String previousSummary) {
+        ContextBudget contextBudget = chatApiClient.getContextBudget(); // 复用发送请求时缓存的每条消息token数
+        boolean visionSupported = GlobalUtils.checkVisionSupport(model);
+        int threshold = Math.min(MAX_COMPACT_THRESHOLD, ContextBudget.getContextWindow(model) / 2);
+
+        int[] tokens = new int[messages.size()];
+        int total = 0;
+        for(int i = summaryIndex; i < messages.size(); i++) {
+            tokens[i] = contextBudget.countMessage(messages.get(i), model, visionSupported);
+            total += tokens[i];
+        }
+        if(total < threshold) {
+            return false;
+        }
+
+        // 从后向前找到压缩边界：保留最近若干轮次和token，边界位于某个提问消息之前，避免拆开函数调用
+        int boundary = -1;
+        int recentTokens = 0, recentTurns = 0;
+        for(int i = messages.size() - 1; i > summaryIndex; i--) {
+            recentTokens += tokens[i];
+            if(messages.get(i).role == ChatRole.USER) {
+                recentTurns++;
+                if(recentTurns >= KEEP_RECENT_TURNS && recentTokens >= KEEP_RECENT_TOKENS) {
+                    boundary = i;
+                    break;
+                }
+            }
+        }
+        if(boundary <= summaryIndex) {
+            return false;
+        }
+
+        JSONArray request = new JSONArray();
+        request.add(new JSONObject().set("role", "system").set("content", SUMMARY_INSTRUCTION));
+        request.add(new JSONObject().set("role", "user").set("content", buildTranscript(previousSummary, messages, summaryIndex, boundary)));
+
+        final int finalBoundary = boundary;
+        final ChatMessage boundaryMessage = messages.get(boundary - 1); // 用于确认压缩完成时会话中的消息未被改动
+        long startTime = System.currentTimeMillis();
+        Trace.d("ConversationCompactor", "compacting messages %s-%s, %s tokens", summaryIndex, boundary, total);
+        chatApiClient.requestCompletion(request, 0.3f, new ChatApiClient.OnCompletionListener() {
+            @Override
+            public void onCompletion(String content) {
+                String summary = content.trim();
+                Trace.d("ConversationCompactor", "compacted in %sms, summary %s tokens", (System.currentTimeMillis() - startTime),
+                        TokenCounter.forModel(context, model).count(summary));
+                handler.post(() -> {
+                    compactingConversation = null;
+                    if(conversation.messages.size() < finalBoundary || conversation.messages.get(finalBoundary - 1) != boundaryMessage) {
+                        Trace.d("ConversationCompactor", "conversation changed during compaction, result discarded");
+                        return;
+                    }
+                    conversation.summary = summary;
+                    conversation.summaryIndex = finalBoundary;
+                });
+            }
+
+            @Override
+            public void onError(String message) {
+                handler.post(() -> compactingConversation = null);
+                Trace.w("ConversationCompactor", "compaction failed: %s", message);
+            }
+        });
+        return true;
+    }
+
+    // 将需要压缩的消息整理为文本，函数结果和附件截断到固定长度
+    private static String buildTranscript(String previousSummary, List<ChatMessage> messages, int start, int end) {
+        StringBuilder sb = new StringBuilder();
+        if(previousSummary != null) {
+            sb.append("[Previous summary]\n").append(previousSummary).append("\n\n");
+        }
+        sb.append("[Conversation]\n");
+        for(int i = start; i < end; i++) {
+            ChatMessage message = messages.get(i);
+            if(message.role == ChatRole.SYSTEM) {
+                continue; // 系统提示始终原样保留，无需总结
+            } else if(message.role == ChatRole.USER) {
+                sb.append("User: ").append(message.contentText);
+            } else if(message.role == ChatRole.ASSISTANT) {
+                if(message.toolCalls.size() > 0) {
+                    for(ChatMessage.ToolCall toolCall : message.toolCalls) {
+                        sb.append("Assistant called ").append(toolCall.functionName).append(' ').append(toolCall.arguments).append('\n');
+                    }
+                    continue;
+                }
+                sb.append("Assistant: ").append(PromptPayloadBuilder.stripThink(message.contentText));
+            } else if(message.role == ChatRole.FUNCTION) {
+                for(ChatMessage.ToolCall toolCall : message.toolCalls) {
+                    sb.append("Tool result (").append(toolCall.functionName).append("): ").append(truncate(toolCall.content));
+                }
+            }
+            for(ChatMessage.Attachment attachment : message.attachments) {
+                if(attachment.type == ChatMessage.Attachment.Type.TEXT) {
+                    sb.append("\n[Attachment ").append(attachment.name).append("]\n").append(truncate(attachment.content));
+                } else {
+                    sb.append("\n[Image ").append(attachment.name).append(']');
+                }
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static String truncate(String text) {
+        if(text == null || text.length() <= MAX_ITEM_CHARS) {
+            return text;
+        }
+        return text.substring(0, MAX_ITEM_CHARS) + "...";
+    }
+}
@@ -0,0 +1,72 @@
+package com.skythinker.gptassistant;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.LruCache;
+
+import com.skythinker.gptassistant.ChatManager.ConversationInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 历史会话列表的分页加载：按页用键集分页读取会话信息（不读取消息），最近使用的页保存在LRU中，接近页尾时预取下一页
+// 各页的最后一个会话作为下一页的起点保存下来（只占少量内存），跳到未加载过的位置时从最近的已知起点依次向后加载
+public class ConversationPager {
+    private static final int PAGE_SIZE = 50;
+    private static final int CACHED_PAGES = 8;
+    private static final int PREFETCH_DISTANCE = 10; // 距离页尾小于此数量时预取下一页
+
+    private final ChatManager chatManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final LruCache<Integer, List<ConversationInfo>> pages = new LruCache<>(CACHED_PAGES);
+    private final List<ConversationInfo> pageEnds = new ArrayList<>(); // 第i项为第i页的最后一个会话
+    private int count = -1; // 会话总数，-1表示需要重新查询
+
+    public ConversationPager(ChatManager chatManager) {
+        this.chatManager = chatManager;
+    }
+
+    // 会话总数（缓存，数据变化后需调用invalidate）
+    public int getCount() {
+        if(count < 0) {
+            count = (int) chatManager.getConversationCount();
+        }
+        return count;
+    }
+
+    public ConversationInfo get(int position) {
+        int pageIndex = position / PAGE_SIZE;
+        List<ConversationInfo> page = getPage(pageIndex);
+        int offset = position % PAGE_SIZE;
+        if(offset >= PAGE_SIZE - PREFETCH_DISTANCE && (pageIndex + 1) * PAGE_SIZE < getCount() && pages.get(pageIndex + 1) == null) {
+            handler.post(() -> getPage(pageIndex + 1));
+        }
+        return offset < page.size() ? page.get(offset) : null;
+    }
+
+    // 数据已变化（删除、清空），丢弃所有缓存
+    public void invalidate() {
+        pages.evictAll();
+        pageEnds.clear();
+        count = -1;
+    }
+
+    private List<ConversationInfo> getPage(int pageIndex) {
+        List<ConversationInfo> page = pages.get(pageIndex);
+        if(page != null) {
+            return page;
+        }
+        for(int i = Math.min(pageEnds.size(), pageIndex); i <= pageIndex; i++) { // 从最近的已知起点加载到目标页
+            ConversationInfo after = i == 0 ? null : pageEnds.get(i - 1);
+            page = chatManager.getConversationInfoPage(after, PAGE_SIZE);
+            pages.put(i, page);
+            if(page.isEmpty()) {
+                break;
+            }
+            if(i == pageEnds.size()) {
+                pageEnds.add(page.get(page.size() - 1));
+            }
+        }
+        return page;
+    }
+}
@@ -0,0 +1,133 @@
+package com.skythinker.gptassistant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// 多个OpenAI兼容接口地址的集合，按首字延迟和错误率为每次请求选择最合适的地址
+public class EndpointPool {
+    private static final double EWMA_ALPHA = 0.3; // 首字延迟滑动平均的权重
+    private static final double ERROR_ALPHA = 0.2; // 错误率滑动平均的权重
+    private static final long FAILURE_COOLDOWN_MS = 30 * 1000; // 最近失败的地址在此时间内尽量不选
+    private static final int SAMPLE_SIZE = 32; // 用于计算分位数的最近样本数
+    private static final long DEFAULT_HEDGE_DELAY_MS = 3000; // 样本不足时的对冲等待时间
+    private static final long MIN_HEDGE_DELAY_MS = 800;
+    private static final long MAX_HEDGE_DELAY_MS = 15000;
+    private static final double UNKNOWN_TTFT_SCORE = 1e5;
+
+    public static class Endpoint {
+        public final String url;
+        public final String apiKey;
+        double ttftEwma = -1; // 首字延迟滑动平均（毫秒），-1表示暂无数据
+        double errorRate = 0; // 错误率滑动平均
+        long lastFailureTime = 0;
+
+        Endpoint(String url, String apiKey) {
+            this.url = url;
+            this.apiKey = apiKey;
+        }
+
+        // 得分越低越优先
+        double score(long now) {
+            double score = ttftEwma < 0 ? UNKNOWN_TTFT_SCORE : ttftEwma; // 没有数据的地址只在对冲或故障转移时尝试，同分时按列表顺序
+            score *= 1 + 10 * errorRate;
+            if(now - lastFailureTime < FAILURE_COOLDOWN_MS) {
+                score += 1e6;
+            }
+            return score;
+        }
+
+        public double getTtftEwma() { return ttftEwma; }
+        public double getErrorRate() { return errorRate; }
+    }
+
+    private final List<Endpoint> endpoints = new ArrayList<>();
+    private final long[] ttftSamples = new long[SAMPLE_SIZE]; // 所有地址最近的首字延迟（环形缓冲）
+    private int sampleCount = 0;
+
+    // 设置地址列表，第一个为主地址，地址不变时保留已有的统计数据
+    public synchronized void setEndpoints(String primaryUrl, String primaryKey, List<String> backups) {
+        List<Endpoint> newEndpoints = new ArrayList<>();
+        newEndpoints.add(findOrCreate(primaryUrl, primaryKey));
+        if(backups != null) {
+            for(String backup : backups) { // 格式为"网址"或"网址|API Key"，未填写Key时使用主地址的Key
+                String[] parts = backup.split("\\|", 2);
+                String url = parts[0].trim();
+                String key = parts.length > 1 && !parts[1].trim().isEmpty() ? parts[1].trim() : primaryKey;
+                if(!url.isEmpty() && !url.equals(primaryUrl)) {
+                    newEndpoints.add(findOrCreate(url, key));
+                }
+            }
+        }
+        endpoints.clear();
+        endpoints.addAll(newEndpoints);
+    }
+
+    private Endpoint findOrCreate(String url, String apiKey) {
+        for(Endpoint endpoint : endpoints) {
+            if(endpoint.url.equals(url) && endpoint.apiKey.equals(apiKey)) {
+                return endpoint;
+            }
+        }
+        return new Endpoint(url, apiKey);
+    }
+
+    public synchronized int size() {
+        return endpoints.size();
+    }
+
+    public synchronized List<Endpoint> getEndpoints() {
+        return new ArrayList<>(endpoints);
+    }
+
+    // 选择得分最低的地址，exclude中的地址不参与选择，全部被排除时返回null
+    public synchronized Endpoint pick(List<Endpoint> exclude) {
+        long now = System.currentTimeMillis();
+        Endpoint best = null;
+        double bestScore = 0;
+        for(Endpoint endpoint : endpoints) {
+            if(exclude != null && exclude.contains(endpoint)) {
+                continue;
+            }
+            double score = endpoint.score(now);
+            if(best == null || score < bestScore) {
+                best = endpoint;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    // 计算对冲请求的等待时间：最近首字延迟的P90，样本不足时使用默认值
+    public synchronized long getHedgeDelay() {
+        int count = Math.min(sampleCount, SAMPLE_SIZE);
+        if(count < 5) {
+            return DEFAULT_HEDGE_DELAY_MS;
+        }
+        long[] sorted = Arrays.copyOf(ttftSamples, count);
+        Arrays.sort(sorted);
+        long p90 = sorted[Math.min(count - 1, (int) Math.ceil(count * 0.9) - 1)];
+        return Math.max(MIN_HEDGE_DELAY_MS, Math.min(MAX_HEDGE_DELAY_MS, p90));
+    }
+
+    // 记录收到首个数据块的延迟
+    public synchronized void reportFirstToken(Endpoint endpoint, long ttftMs) {
+        endpoint.ttftEwma = endpoint.ttftEwma < 0 ? ttftMs : EWMA_ALPHA * ttftMs + (1 - EWMA_ALPHA) * endpoint.ttftEwma;
+        endpoint.errorRate *= 1 - ERROR_ALPHA;
+        ttftSamples[sampleCount % SAMPLE_SIZE] = ttftMs;
+        sampleCount++;
+    }
+
+    // 记录因对冲被取消的慢请求，已等待的时间是首字延迟的下限
+    public synchronized void reportSlow(Endpoint endpoint, long elapsedMs) {
+        if(elapsedMs > endpoint.ttftEwma) {
+            endpoint.ttftEwma = endpoint.ttftEwma < 0 ? elapsedMs : EWMA_ALPHA * elapsedMs + (1 - EWMA_ALPHA) * endpoint.ttftEwma;
+        }
+    }
+
+    // 记录请求失败（连接失败、HTTP错误、未完成即中断）
+    public synchronized void reportError(Endpoint endpoint) {
+        endpoint.errorRate = ERROR_ALPHA + (1 - ERROR_ALPHA) * endpoint.errorRate;
+        endpoint.lastFailureTime = System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,134 @@
+package com.skythinker.gptassistant;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// 聊天记录全文索引的分词：SQLite FTS4自带的分词器不能切分中日韩文字，写入索引前在Java中预先分词
+// 中日韩文字切分为重叠的二字词（每段末尾再加一个单字），其他文字按单词切分，查询时用同样的规则生成MATCH表达式
+public class FullTextIndex {
+    private static final int SNIPPET_CONTEXT_CHARS = 20; // 摘要中命中位置之前保留的字符数
+    private static final int SNIPPET_MAX_CHARS = 80;
+
+    private static boolean isCjk(int codePoint) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL;
+    }
+
+    // 将文本切分为索引词，每个词为一个中日韩二字词/单字或一个小写单词
+    public static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        int prevCjk = -1; // 上一个中日韩字符，不在中日韩文字段中时为-1
+        for(int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            i += Character.charCount(codePoint);
+            if(isCjk(codePoint)) {
+                flushWord(word, tokens);
+                if(prevCjk >= 0) {
+                    tokens.add(new StringBuilder().appendCodePoint(prevCjk).appendCodePoint(codePoint).toString());
+                }
+                prevCjk = codePoint;
+                continue;
+            }
+            flushCjk(prevCjk, tokens);
+            prevCjk = -1;
+            if(Character.isLetterOrDigit(codePoint)) {
+                word.appendCodePoint(Character.toLowerCase(codePoint));
+            } else {
+                flushWord(word, tokens);
+            }
+        }
+        flushCjk(prevCjk, tokens);
+        flushWord(word, tokens);
+        return tokens;
+    }
+
+    private static void flushWord(StringBuilder word, List<String> tokens) {
+        if(word.length() > 0) {
+            tokens.add(word.toString());
+            word.setLength(0);
+        }
+    }
+
+    private static void flushCjk(int lastCjk, List<String> tokens) {
+        if(lastCjk >= 0) { // 中日韩文字段末尾的单字，用于单字前缀查询
+            tokens.add(new StringBuilder().appendCodePoint(lastCjk).toString());
+        }
+    }
+
+    // 生成写入FTS表的文本（以空格分隔的索引词）
+    public static String toIndexText(String text) {
+        return text == null ? "" : String.join(" ", tokenize(text));
+    }
+
+    // 将搜索关键词切分为搜索词（中日韩文字段、单词）
+    public static List<String> getTerms(String keyword) {
+        List<String> terms = new ArrayList<>();
+        StringBuilder term = new StringBuilder();
+        Boolean termCjk = null;
+        for(int i = 0; i < keyword.length(); ) {
+            int codePoint = keyword.codePointAt(i);
+            i += Character.charCount(codePoint);
+            boolean cjk = isCjk(codePoint);
+            if(!cjk && !Character.isLetterOrDigit(codePoint)) {
+                flushWord(term, terms);
+                termCjk = null;
+                continue;
+            }
+            if(termCjk != null && termCjk != cjk) {
+                flushWord(term, terms);
+            }
+            termCjk = cjk;
+            term.appendCodePoint(Character.toLowerCase(codePoint));
+        }
+        flushWord(term, terms);
+        return terms;
+    }
+
+    // 生成MATCH表达式，各搜索词之间为AND；多字的中日韩词为二字词组成的短语，单字和单词为前缀查询（支持边输入边搜索）
+    public static String buildMatchQuery(List<String> terms) {
+        StringBuilder query = new StringBuilder();
+        for(String term : terms) {
+            if(query.length() > 0) {
+                query.append(' ');
+            }
+            List<String> tokens = tokenize(term);
+            if(term.codePointCount(0, term.length()) > 1 && isCjk(term.codePointAt(0))) {
+                query.append('"').append(String.join(" ", tokens.subList(0, tokens.size() - 1))).append('"'); // 去掉末尾单字
+            } else {
+                query.append(term).append('*');
+            }
+        }
+        return query.toString();
+    }
+
+    // 截取文本中第一个搜索词附近的片段作为搜索结果摘要
+    public static String buildSnippet(String text, List<String> terms) {
+        String lower = text.toLowerCase(Locale.ROOT);
+        int first = -1;
+        for(String term : terms) {
+            int index = lower.indexOf(term);
+            if(index >= 0 && (first < 0 || index < first)) {
+                first = index;
+            }
+        }
+        int start = Math.max(0, first - SNIPPET_CONTEXT_CHARS);
+        int end = Math.min(text.length(), start + SNIPPET_MAX_CHARS);
+        String snippet = text.substring(start, end).replace('\n', ' ');
+        return (start > 0 ? "…" : "") + snippet + (end < text.length() ? "…" : "");
+    }
+
+    // 查找文本中所有搜索词出现的位置，返回[start, end)对，用于高亮显示
+    public static List<int[]> findMatches(String text, List<String> terms) {
+        List<int[]> matches = new ArrayList<>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        for(String term : terms) {
+            for(int index = lower.indexOf(term); index >= 0 && !term.isEmpty(); index = lower.indexOf(term, index + term.length())) {
+                matches.add(new int[]{index, index + term.length()});
+            }
+        }
+        return matches;
+    }
+}
@@ -32,6 +32,8 @@ public class GlobalDataHolder {
     private static String gptModel;
     private static float gptTemperature;
     private static List<String> customModels = null;
+    private static List<String> gptBackupHosts = null;
+    private static boolean gptHedgeRequest;
     private static boolean checkAccessOnStart;
     private static boolean defaultEnableTts;
     private static boolean defaultEnableMultiChat;
@@ -56,6 +58,7 @@ public class GlobalDataHolder {
         loadBaiduAsrInfo();
         loadAliyunAsrInfo();
         loadGptApiInfo();
+        loadEndpointSetting();
         loadModelParams();
         loadStartUpSetting();
         loadTtsSetting();
@@ -175,6 +178,21 @@ public class GlobalDataHolder {
         editor.apply();
     }
 
+    public static void loadEndpointSetting() {
+        gptBackupHosts = new ArrayList<>(Arrays.asList(sp.getString("gpt_backup_hosts", "").split(";")));
+        gptBackupHosts.removeIf(String::isEmpty);
+        gptHedgeRequest = sp.getBoolean("gpt_hedge_request", false);
+    }
+
+    public static void saveEndpointSetting(List<String> backupHosts, boolean hedgeRequest) {
+        gptBackupHosts = backupHosts;
+        gptHedgeRequest = hedgeRequest;
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putString("gpt_backup_hosts", String.join(";", gptBackupHosts));
+        editor.putBoolean("gpt_hedge_request", gptHedgeRequest);
+        editor.apply();
+    }
+
     public static void saveAliyunChatSetting(boolean useAliyun) {
         useAliyunChat = useAliyun;
         SharedPreferences.Editor editor = sp.edit();
@@ -320,6 +338,10 @@ public class GlobalDataHolder {
 
     public static String getGptApiHost() { return gptApiHost; }
 
+    public static List<String> getGptBackupHosts() { return gptBackupHosts; }
+
+    public static boolean getGptHedgeRequest() { return gptHedgeRequest; }
+
     public static String getGptApiKey() { return gptApiKey; }
 
     public static String getGptModel() { return gptModel; }
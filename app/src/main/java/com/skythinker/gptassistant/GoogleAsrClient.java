@@ -8,7 +8,6 @@ import android.provider.Settings;
 import android.speech.RecognitionListener;
 import android.speech.RecognizerIntent;
 import android.speech.SpeechRecognizer;
-import android.util.Log;
 import android.widget.Toast;
 
 import java.util.ArrayList;
@@ -56,7 +55,7 @@ public class GoogleAsrClient extends AsrClientBase {
             public void onResults(Bundle results) {
                 ArrayList<String> data = results.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
                 if(data != null && !data.isEmpty()) {
-                    Log.d("GoogleAsr", "onResults: " + data.get(0));
+                    Trace.d("GoogleAsr", "onResults: %s", data.get(0));
                     callback.onResult(data.get(0));
                     if(autoStop)
                         callback.onAutoStop();
@@ -67,7 +66,7 @@ public class GoogleAsrClient extends AsrClientBase {
             public void onPartialResults(Bundle partialResults) {
                 ArrayList<String> data = partialResults.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
                 if(data != null && !data.isEmpty()) {
-                    Log.d("GoogleAsr", "onPartialResults: " + data.get(0));
+                    Trace.d("GoogleAsr", "onPartialResults: %s", data.get(0));
                     callback.onResult(data.get(0));
                 }
             }
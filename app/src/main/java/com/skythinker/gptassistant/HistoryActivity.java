@@ -10,7 +10,10 @@ import android.content.Intent;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.text.Editable;
+import android.text.SpannableString;
+import android.text.Spanned;
 import android.text.TextWatcher;
+import android.text.style.ForegroundColorSpan;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -21,10 +24,11 @@ import android.widget.TextView;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
 
 import com.google.android.material.internal.TextWatcherAdapter;
-import com.skythinker.gptassistant.ChatManager.Conversation;
-import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ConversationInfo;
+import com.skythinker.gptassistant.ChatManager.SearchResult;
 
 public class HistoryActivity extends Activity {
 
@@ -43,25 +47,37 @@ public class HistoryActivity extends Activity {
 
         @Override
         public void onBindViewHolder(ViewHolder holder, int position) {
-            Conversation conversation = historyActivity.chatManager.getConversationAtPosition(position, historyActivity.searchKeyword);
-            holder.tvTitle.setText(conversation.title);
-            holder.tvDetail.setText("");
-            for(ChatMessage message : conversation.messages) {
-                if (message.role == ChatMessage.ChatRole.ASSISTANT && message.toolCalls.isEmpty()) {
-                    holder.tvDetail.setText(message.contentText.replaceAll("\n", " "));
-                    break;
+            LocalDateTime time;
+            if(historyActivity.searchResults != null) { // 搜索结果，显示命中的消息摘要并高亮关键词
+                SearchResult result = historyActivity.searchResults.get(position);
+                if(result.snippet == null) {
+                    String text = result.messageId < 0 ? null : historyActivity.chatManager.getMessageText(result.messageId);
+                    result.snippet = text == null ? (result.preview == null ? "" : result.preview) : FullTextIndex.buildSnippet(text, historyActivity.searchTerms);
                 }
+                holder.tvTitle.setText(historyActivity.highlight(result.title));
+                holder.tvDetail.setText(historyActivity.highlight(result.snippet));
+                time = result.time;
+            } else {
+                ConversationInfo info = historyActivity.conversationPager.get(position);
+                if(info == null) { // 列表数据已变化
+                    return;
+                }
+                holder.tvTitle.setText(info.title);
+                holder.tvDetail.setText(info.preview == null ? "" : info.preview);
+                time = info.time;
             }
             LocalDateTime now = LocalDateTime.now();
-            if (now.getYear() == conversation.time.getYear() && now.getMonthValue() == conversation.time.getMonthValue() && now.getDayOfMonth() == conversation.time.getDayOfMonth())
-                holder.tvTime.setText(conversation.time.format(DateTimeFormatter.ofPattern("HH:mm")));
+            if (now.getYear() == time.getYear() && now.getMonthValue() == time.getMonthValue() && now.getDayOfMonth() == time.getDayOfMonth())
+                holder.tvTime.setText(time.format(DateTimeFormatter.ofPattern("HH:mm")));
             else
-                holder.tvTime.setText(conversation.time.format(DateTimeFormatter.ofPattern("yyyy/MM/dd")));
+                holder.tvTime.setText(time.format(DateTimeFormatter.ofPattern("yyyy/MM/dd")));
         }
 
         @Override
         public int getItemCount() {
-            return (int) historyActivity.chatManager.getConversationCount(historyActivity.searchKeyword);
+            if(historyActivity.searchResults != null)
+                return historyActivity.searchResults.size();
+            return historyActivity.conversationPager.getCount();
         }
 
         class ViewHolder extends RecyclerView.ViewHolder {
@@ -75,7 +91,7 @@ public class HistoryActivity extends Activity {
                 llOuter = itemView.findViewById(R.id.ll_history_item_outer);
                 llOuter.setOnClickListener((view) -> {
                     Intent intent = new Intent();
-                    intent.putExtra("id", historyActivity.chatManager.getConversationAtPosition(getAdapterPosition(), historyActivity.searchKeyword).id);
+                    intent.putExtra("id", historyActivity.getConversationIdAt(getAdapterPosition()));
                     historyActivity.setResult(RESULT_OK, intent);
                     historyActivity.finish();
                 });
@@ -86,7 +102,9 @@ public class HistoryActivity extends Activity {
     private ChatManager chatManager;
     private RecyclerView rvHistoryList;
     private HistoryListAdapter historyListAdapter;
-    private String searchKeyword = null;
+    private ConversationPager conversationPager;
+    private List<SearchResult> searchResults = null; // 搜索结果，未搜索时为null
+    private List<String> searchTerms = null;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -103,6 +121,7 @@ public class HistoryActivity extends Activity {
 
         chatManager = new ChatManager(this);
         chatManager.removeEmptyConversations();
+        conversationPager = new ConversationPager(chatManager);
 
         rvHistoryList = findViewById(R.id.rv_history_list);
         rvHistoryList.setLayoutManager(new LinearLayoutManager(this));
@@ -118,7 +137,10 @@ public class HistoryActivity extends Activity {
             @Override
             public void onSwiped(@NonNull RecyclerView.ViewHolder viewHolder, int direction) {
                 int position = viewHolder.getAdapterPosition(); // 获取滑动的item的position
-                chatManager.removeConversation(chatManager.getConversationAtPosition(position, searchKeyword).id);
+                chatManager.removeConversation(getConversationIdAt(position));
+                conversationPager.invalidate();
+                if(searchResults != null)
+                    searchResults.remove(position);
                 historyListAdapter.notifyItemRemoved(position);
             }
         }).attachToRecyclerView(rvHistoryList);
@@ -128,9 +150,14 @@ public class HistoryActivity extends Activity {
             @Override public void onTextChanged(CharSequence s, int start, int before, int count) { }
             @Override
             public void afterTextChanged(Editable editable) {
-                searchKeyword = editable.toString();
-                if(searchKeyword.length() == 0)
-                    searchKeyword = null;
+                String keyword = editable.toString().trim();
+                if(keyword.length() == 0) {
+                    searchResults = null;
+                    searchTerms = null;
+                } else {
+                    searchTerms = FullTextIndex.getTerms(keyword);
+                    searchResults = chatManager.searchConversations(keyword);
+                }
                 historyListAdapter.notifyDataSetChanged();
             }
         });
@@ -144,11 +171,31 @@ public class HistoryActivity extends Activity {
                     .setContent(getString(R.string.dialog_clear_history))
                     .setOnConfirmListener(() -> {
                         chatManager.removeAllConversations();
+                        conversationPager.invalidate();
+                        if(searchResults != null)
+                            searchResults.clear();
                         historyListAdapter.notifyDataSetChanged();
                     }).show();
         });
     }
 
+    private long getConversationIdAt(int position) {
+        if(searchResults != null)
+            return searchResults.get(position).id;
+        return conversationPager.get(position).id;
+    }
+
+    // 高亮文本中的搜索词
+    private CharSequence highlight(String text) {
+        if(text == null)
+            text = "";
+        SpannableString spannable = new SpannableString(text);
+        for(int[] match : FullTextIndex.findMatches(text, searchTerms)) {
+            spannable.setSpan(new ForegroundColorSpan(Color.parseColor("#43A047")), match[0], match[1], Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        return spannable;
+    }
+
     @Override
     protected void onDestroy() {
         chatManager.destroy();
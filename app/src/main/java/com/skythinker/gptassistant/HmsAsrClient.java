@@ -4,7 +4,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Bundle;
-import android.util.Log;
 
 import com.huawei.hms.mlsdk.asr.MLAsrConstants;
 import com.huawei.hms.mlsdk.asr.MLAsrListener;
@@ -25,7 +24,7 @@ public class HmsAsrClient extends AsrClientBase{
         hwAsrRecognizer.setAsrListener(new MLAsrListener() { // 设置HMS识别回调
             @Override
             public void onResults(Bundle bundle) { // 识别完成
-                Log.d("hwAsr", "onResults: " + bundle.getString("results_recognizing"));
+                Trace.d("hwAsr", "onResults: %s", bundle.getString("results_recognizing"));
                 String result = bundle.getString("results_recognizing");
                 callback.onResult(result);
                 if(autoStop && result == null)
@@ -34,14 +33,14 @@ public class HmsAsrClient extends AsrClientBase{
 
             @Override
             public void onRecognizingResults(Bundle bundle) { // 部分识别结果
-                Log.d("hwAsr", "onRecognizingResults: " + bundle.getString("results_recognizing"));
+                Trace.d("hwAsr", "onRecognizingResults: %s", bundle.getString("results_recognizing"));
                 callback.onResult(bundle.getString("results_recognizing"));
             }
 
             @Override
             public void onError(int code, String msg) { // 识别错误
                 msg = "code=" + code + "  " + msg ;
-                Log.d("hwAsr", "onError: " +  msg);
+                Trace.d("hwAsr", "onError: %s", msg);
                 if(code == 11203 || code == 11219)
                     msg += context.getString(R.string.text_hms_asr_failed_error);
                 callback.onError(msg);
@@ -0,0 +1,283 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Spanned;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import cn.hutool.crypto.digest.DigestUtil;
+import io.noties.markwon.ext.latex.JLatexAsyncDrawableSpan;
+import io.noties.markwon.image.AsyncDrawable;
+import io.noties.markwon.image.AsyncDrawableSpan;
+import ru.noties.jlatexmath.JLatexMathDrawable;
+import ru.noties.jlatexmath.awt.Color;
+
+// LaTeX公式渲染缓存：内存LRU（按位图字节数限制大小）+ 磁盘PNG，键为公式原文、字号、文字颜色和块级/行内
+// JLatexMath在后台异步解析和排版公式，完成后将结果光栅化保存；之后相同公式的AsyncDrawable在显示前直接设置缓存结果，不再重新解析
+public class LatexCache {
+    private static final int MEMORY_BUDGET_BYTES = 8 * 1024 * 1024; // 内存缓存的位图总大小上限
+    private static final long DISK_BUDGET_BYTES = 32L * 1024 * 1024; // 磁盘缓存总大小上限
+    private static final int MAX_BITMAP_PIXELS = 2048 * 1024; // 超大公式不缓存
+    private static final long HARVEST_INTERVAL_MS = 500; // 检查异步渲染结果的间隔
+    private static final int MAX_HARVEST_TRIES = 20; // 没有新公式时最多检查的次数
+
+    private static LatexCache instance = null;
+
+    private final File dir;
+    private final LruCache<String, Bitmap> memory = new LruCache<String, Bitmap>(MEMORY_BUDGET_BYTES) {
+        @Override
+        protected int sizeOf(@NonNull String key, @NonNull Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+    private final Set<String> diskKeys = Collections.synchronizedSet(new HashSet<>()); // 磁盘上已有的文件名
+    private volatile boolean diskIndexed = false;
+    private final ExecutorService diskExecutor = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<AsyncDrawable, Pending> pending = new WeakHashMap<>(); // 等待异步渲染完成的公式，仅在持有this锁时访问
+    private int harvestTries = 0; // 仅在主线程访问
+    private boolean harvestScheduled = false;
+
+    private static class Pending {
+        final String key;
+        final int color;
+        Pending(String key, int color) {
+            this.key = key;
+            this.color = color;
+        }
+    }
+
+    // 缓存位图的Drawable，块级公式与JLatexMath一致在给定区域内居中，区域不足时等比缩小
+    private static class CachedFormulaDrawable extends Drawable {
+        private final Bitmap bitmap;
+        private final boolean block;
+        private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        private final RectF dst = new RectF();
+
+        CachedFormulaDrawable(Bitmap bitmap, boolean block) {
+            this.bitmap = bitmap;
+            this.block = block;
+            setBounds(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        }
+
+        @Override
+        public void draw(@NonNull Canvas canvas) {
+            Rect bounds = getBounds();
+            float scale = Math.min(1f, Math.min((float) bounds.width() / bitmap.getWidth(), (float) bounds.height() / bitmap.getHeight()));
+            float width = bitmap.getWidth() * scale, height = bitmap.getHeight() * scale;
+            float left = block ? bounds.left + (bounds.width() - width) / 2 : bounds.left;
+            float top = bounds.top + (bounds.height() - height) / 2;
+            dst.set(left, top, left + width, top + height);
+            canvas.drawBitmap(bitmap, null, dst, paint);
+        }
+
+        @Override
+        public int getIntrinsicWidth() { return bitmap.getWidth(); }
+
+        @Override
+        public int getIntrinsicHeight() { return bitmap.getHeight(); }
+
+        @Override
+        public void setAlpha(int alpha) { paint.setAlpha(alpha); }
+
+        @Override
+        public void setColorFilter(@Nullable ColorFilter colorFilter) { paint.setColorFilter(colorFilter); }
+
+        @Override
+        public int getOpacity() { return PixelFormat.TRANSLUCENT; }
+    }
+
+    public static synchronized LatexCache getInstance(Context context) {
+        if(instance == null) {
+            instance = new LatexCache(new File(context.getApplicationContext().getCacheDir(), "latex"));
+        }
+        return instance;
+    }
+
+    private LatexCache(File dir) {
+        this.dir = dir;
+        diskExecutor.execute(this::indexDisk);
+    }
+
+    // 为Spanned中尚未渲染的公式设置缓存结果（任意线程，需在显示之前调用），未命中的公式在渲染完成后加入缓存
+    public void apply(Spanned spanned, float textSize, int textColor) {
+        AsyncDrawableSpan[] spans = spanned.getSpans(0, spanned.length(), AsyncDrawableSpan.class);
+        boolean added = false;
+        for(AsyncDrawableSpan span : spans) {
+            if(!(span instanceof JLatexAsyncDrawableSpan)) {
+                continue;
+            }
+            AsyncDrawable drawable = span.getDrawable();
+            if(drawable.hasResult()) { // 流式渲染中复用的块已有结果
+                continue;
+            }
+            boolean block = span.getClass() == JLatexAsyncDrawableSpan.class; // 行内公式为其子类
+            String key = DigestUtil.sha1Hex((block ? "block" : "inline") + "\n" + textSize + "\n" + textColor + "\n" + drawable.getDestination());
+            Bitmap bitmap = memory.get(key);
+            if(bitmap != null) {
+                MetricsRegistry.increment("latex.cache_hit_memory");
+            } else if(diskIndexed && diskKeys.contains(key) && (bitmap = readDisk(key)) != null) {
+                memory.put(key, bitmap);
+                MetricsRegistry.increment("latex.cache_hit_disk");
+            }
+            if(bitmap != null) {
+                drawable.setResult(new CachedFormulaDrawable(bitmap, block));
+            } else {
+                MetricsRegistry.increment("latex.cache_miss");
+                synchronized (this) {
+                    pending.put(drawable, new Pending(key, textColor));
+                }
+                added = true;
+            }
+        }
+        if(added) {
+            handler.post(this::scheduleHarvest);
+        }
+    }
+
+    private void scheduleHarvest() {
+        harvestTries = 0;
+        if(!harvestScheduled) {
+            harvestScheduled = true;
+            handler.postDelayed(this::harvest, HARVEST_INTERVAL_MS);
+        }
+    }
+
+    // 在主线程收集已完成的异步渲染结果，光栅化后存入缓存
+    private void harvest() {
+        harvestScheduled = false;
+        List<AsyncDrawable> doneDrawables = new ArrayList<>();
+        List<Pending> doneInfos = new ArrayList<>();
+        boolean remaining;
+        synchronized (this) {
+            for(Map.Entry<AsyncDrawable, Pending> entry : pending.entrySet()) {
+                if(entry.getKey().hasResult()) {
+                    doneDrawables.add(entry.getKey());
+                    doneInfos.add(entry.getValue());
+                }
+            }
+            for(AsyncDrawable drawable : doneDrawables) {
+                pending.remove(drawable);
+            }
+            remaining = !pending.isEmpty();
+        }
+        for(int i = 0; i < doneDrawables.size(); i++) {
+            Pending info = doneInfos.get(i);
+            if(memory.get(info.key) != null) {
+                continue;
+            }
+            Bitmap bitmap = rasterize(doneDrawables.get(i).getResult(), info.color);
+            if(bitmap != null) {
+                memory.put(info.key, bitmap);
+                diskExecutor.execute(() -> writeDisk(info.key, bitmap));
+            }
+        }
+        if(remaining && ++harvestTries < MAX_HARVEST_TRIES) { // 仍有未完成的公式（或已不再显示），稍后再检查
+            harvestScheduled = true;
+            handler.postDelayed(this::harvest, HARVEST_INTERVAL_MS);
+        }
+    }
+
+    // 按原始大小绘制公式，颜色与JLatexAsyncDrawableSpan绘制时设置的文字颜色一致
+    @Nullable
+    private static Bitmap rasterize(Drawable result, int color) {
+        if(!(result instanceof JLatexMathDrawable)) { // 出错时的占位图等不缓存
+            return null;
+        }
+        int width = result.getIntrinsicWidth(), height = result.getIntrinsicHeight();
+        if(width <= 0 || height <= 0 || (long) width * height > MAX_BITMAP_PIXELS) {
+            return null;
+        }
+        try {
+            ((JLatexMathDrawable) result).icon().setForeground(new Color(color));
+            Bitmap bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            Rect oldBounds = new Rect(result.getBounds());
+            result.setBounds(0, 0, width, height);
+            result.draw(new Canvas(bitmap));
+            result.setBounds(oldBounds);
+            return bitmap;
+        } catch (Throwable t) {
+            Trace.w("LatexCache", t, "rasterize failed");
+            return null;
+        }
+    }
+
+    @Nullable
+    private Bitmap readDisk(String key) {
+        File file = new File(dir, key + ".png");
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+        if(bitmap == null) {
+            diskKeys.remove(key);
+            return null;
+        }
+        diskExecutor.execute(() -> file.setLastModified(System.currentTimeMillis())); // 用修改时间记录最近使用
+        return bitmap;
+    }
+
+    private void writeDisk(String key, Bitmap bitmap) {
+        if(diskKeys.contains(key) || (!dir.exists() && !dir.mkdirs())) {
+            return;
+        }
+        File tempFile = new File(dir, key + ".tmp");
+        try(FileOutputStream out = new FileOutputStream(tempFile)) {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        } catch (Exception e) {
+            Trace.w("LatexCache", e, "write failed");
+            tempFile.delete();
+            return;
+        }
+        if(tempFile.renameTo(new File(dir, key + ".png"))) {
+            diskKeys.add(key);
+        }
+    }
+
+    // 启动时建立磁盘索引，并按最近使用时间删除超出总大小的文件
+    private void indexDisk() {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            Arrays.sort(files, (a, b) -> Long.compare(b.lastModified(), a.lastModified()));
+            long total = 0;
+            for(File file : files) {
+                String name = file.getName();
+                if(!name.endsWith(".png")) { // 写入中断留下的临时文件
+                    file.delete();
+                    continue;
+                }
+                total += file.length();
+                if(total > DISK_BUDGET_BYTES) {
+                    file.delete();
+                } else {
+                    diskKeys.add(name.substring(0, name.length() - ".png".length()));
+                }
+            }
+            Trace.d("LatexCache", "disk index: %d files, %d bytes", diskKeys.size(), total);
+        }
+        diskIndexed = true;
+    }
+}
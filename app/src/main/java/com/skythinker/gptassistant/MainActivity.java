@@ -23,12 +23,9 @@ import android.os.Handler;
 import android.provider.MediaStore;
 import android.provider.OpenableColumns;
 import android.provider.Settings;
-import android.speech.tts.TextToSpeech;
-import android.speech.tts.UtteranceProgressListener;
 import android.text.Spannable;
 import android.text.SpannableStringBuilder;
 import android.text.TextUtils;
-import android.text.method.LinkMovementMethod;
 import android.text.style.ClickableSpan;
 import android.text.style.ImageSpan;
 import android.util.Base64;
@@ -61,16 +58,17 @@ import androidx.cardview.widget.CardView;
 import androidx.core.content.ContextCompat;
 import androidx.core.content.FileProvider;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.recyclerview.widget.SimpleItemAnimator;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.Locale;
-import java.util.UUID;
 
 import cn.hutool.json.JSONArray;
 import cn.hutool.json.JSONException;
@@ -87,31 +85,34 @@ import com.skythinker.gptassistant.ChatManager.Conversation;
 public class MainActivity extends Activity {
 
     private int selectedTab = 0;
-    private TextView tvGptReply;
+    private TextView tvGptReply; // 正在显示replyItem的TextView，不在屏幕上时为null
     private EditText etUserInput;
     private ImageButton btSend, btAttachment;
-    private ScrollView svChatArea;
-    private LinearLayout llChatList;
+    private RecyclerView rvChatList;
+    private ChatListAdapter chatListAdapter;
+    private ChatListAdapter.Item replyItem = null; // 当前回复（或占位提示）对应的消息
     private PopupWindow pwMenu;
     private Handler handler;
     private MarkdownRenderer markdownRenderer;
     private long asrStartTime = 0;
+    private long asrStopTime = 0; // 停止识别的时间，收到结果后清零
+    private boolean asrFirstResultRecorded = false;
     BroadcastReceiver localReceiver = null;
 
     private static boolean isAlive = false;
     private static boolean isRunning = false;
 
     ChatApiClient chatApiClient = null;
-    private String chatApiBuffer = "";
+    private final StreamTextBuffer chatApiBuffer = new StreamTextBuffer(); // 当前回复的内容
+    private RenderCoalescer replyRenderCoalescer = null; // 按帧合并回复的渲染
 
-    private TextToSpeech tts = null;
+    private TtsPipeline ttsPipeline = null;
     private boolean ttsEnabled = true;
-    final private List<String> ttsSentenceSeparator = Arrays.asList("。", ".", "？", "?", "！", "!", "……", "\n"); // 用于为TTS断句
-    private int ttsSentenceEndIndex = 0;
-    private String ttsLastId = "";
+    private final SentenceSegmenter ttsSegmenter = new SentenceSegmenter(); // 用于为TTS断句
 
     private boolean multiChat = false;
     ChatManager chatManager = null;
+    ConversationCompactor compactor = null; // 长对话的后台压缩
     private Conversation currentConversation = null; // 当前会话信息
     private MessageList multiChatList = null; // 指向currentConversation.messages
 
@@ -122,7 +123,11 @@ public class MainActivity extends Activity {
     AsrClientBase asrClient = null;
     AsrClientBase.IAsrCallback asrCallback = null;
 
-    WebScraper webScraper = null;
+    private static final int MAX_PARALLEL_TOOL_CALLS = 3; // 同时执行的函数调用数量（同时加载的网页数）
+    private static final long TOOL_CALL_TIMEOUT_MS = 30000; // 单个函数调用的超时时间
+
+    WebScraperPool webScraperPool = null;
+    ToolExecutor toolExecutor = null;
 
     Uri photoUri = null;
 
@@ -152,39 +157,10 @@ public class MainActivity extends Activity {
         markdownRenderer = new MarkdownRenderer(this);
 
         // 初始化TTS
-        tts = new TextToSpeech(this, status -> {
-            if(status == TextToSpeech.SUCCESS) {
-                int res = tts.setLanguage(Locale.getDefault());
-                if(res == TextToSpeech.LANG_MISSING_DATA || res == TextToSpeech.LANG_NOT_SUPPORTED) {
-                    Log.e("TTS", "Unsupported language.");
-                }else{
-                    tts.setOnUtteranceProgressListener(new UtteranceProgressListener() {
-                        @Override
-                        public void onStart(String utteranceId) {
-//                            Log.d("TTS", "onStart: " + utteranceId);
-                        }
-
-                        @Override
-                        public void onDone(String utteranceId) {
-//                            Log.d("TTS", "onDone: " + utteranceId);
-                            if(ttsLastId.equals(utteranceId) && !chatApiClient.isStreaming()) {
-                                Log.d("TTS", "Queue finished");
-                                if(multiVoice) {
-                                    Intent intent = new Intent("com.skythinker.gptassistant.KEY_SPEECH_START");
-                                    LocalBroadcastManager.getInstance(MainActivity.this).sendBroadcast(intent);
-                                }
-                            }
-                        }
-
-                        @Override
-                        public void onError(String utteranceId) {
-                            Log.e("TTS", "onError: " + utteranceId);
-                        }
-                    });
-                    Log.d("TTS", "Init success.");
-                }
-            }else{
-                Log.e("TTS", "Init failed. ErrorCode: " + status);
+        ttsPipeline = new TtsPipeline(this, () -> {
+            if(multiVoice && !chatApiClient.isStreaming()) { // 朗读完毕后开始下一轮语音识别
+                Intent intent = new Intent("com.skythinker.gptassistant.KEY_SPEECH_START");
+                LocalBroadcastManager.getInstance(MainActivity.this).sendBroadcast(intent);
             }
         });
 
@@ -194,14 +170,11 @@ public class MainActivity extends Activity {
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
         getWindow().setStatusBarColor(Color.TRANSPARENT);
 
-        tvGptReply = findViewById(R.id.tv_chat_notice);
-        tvGptReply.setTextIsSelectable(true);
-        tvGptReply.setMovementMethod(LinkMovementMethod.getInstance());
         etUserInput = findViewById(R.id.et_user_input);
         btSend = findViewById(R.id.bt_send);
         btAttachment = findViewById(R.id.bt_attachment);
-        svChatArea = findViewById(R.id.sv_chat_list);
-        llChatList = findViewById(R.id.ll_chat_list);
+        rvChatList = findViewById(R.id.rv_chat_list);
+        initChatList();
 
         documentParser = new DocumentParser(this); // 初始化文档解析器
         handleShareIntent(getIntent()); // 处理分享的文本/图片
@@ -236,7 +209,9 @@ public class MainActivity extends Activity {
         });
 
         chatManager = new ChatManager(this); // 初始化聊天记录管理器
+        compactor = new ConversationCompactor(this);
         ChatMessage.setContext(this); // 设置聊天消息的上下文（用于读写文件）
+        chatManager.sweepOrphanBlobs(); // 在后台分批清理不再被引用的附件文件
 //        chatManager.removeAllConversations(true); // 重置聊天记录（调试用）
 //        for(int i = 0; i < 50; i++) {
 //            Conversation conversation = chatManager.newConversation();
@@ -244,7 +219,10 @@ public class MainActivity extends Activity {
 //            conversation.messages.add(new ChatMessage(ChatRole.ASSISTANT).setText("你好，有什么可以帮您？" + i));
 //        }
 
-        webScraper = new WebScraper(this, findViewById(R.id.ll_main_base)); // 初始化网页抓取器
+        webScraperPool = new WebScraperPool(this, findViewById(R.id.ll_main_base), MAX_PARALLEL_TOOL_CALLS); // 初始化网页抓取器
+        toolExecutor = new ToolExecutor(MAX_PARALLEL_TOOL_CALLS, TOOL_CALL_TIMEOUT_MS);
+
+        replyRenderCoalescer = new RenderCoalescer(this::renderStreamingReply);
 
         // 初始化GPT客户端
         chatApiClient = new ChatApiClient(this,
@@ -252,56 +230,20 @@ public class MainActivity extends Activity {
                 GlobalDataHolder.getGptApiKey(),
                 GlobalDataHolder.getGptModel(),
                 new ChatApiClient.OnReceiveListener() {
-                    private long lastRenderTime = 0;
-
                     @Override
                     public void onMsgReceive(String message) { // 收到GPT回复（增量）
-                        chatApiBuffer += message;
-                        if(System.currentTimeMillis() - lastRenderTime > 100) { // 限制最高渲染频率10Hz
-                            handler.post(() -> {
-                                boolean isBottom = svChatArea.getChildAt(0).getBottom()
-                                        <= svChatArea.getHeight() + svChatArea.getScrollY(); // 判断消息布局是否在底部
-
-                                markdownRenderer.render(tvGptReply, chatApiBuffer); // 渲染Markdown
-
-                                if (isBottom) {
-                                    scrollChatAreaToBottom(); // 渲染前在底部则渲染后滚动到底部
-                                }
-
-                                if (currentTemplateParams.getBool("speak", ttsEnabled)) { // 处理TTS
-                                    if (chatApiBuffer.startsWith("<think>\n") && !chatApiBuffer.contains("\n</think>\n")) { // 不朗读思维链部分
-                                        ttsSentenceEndIndex = tvGptReply.getText().toString().length(); // 正在思考则设置tts起点在末尾
-                                    } else {
-                                        String wholeText = tvGptReply.getText().toString(); // 获取可朗读的文本
-                                        if (ttsSentenceEndIndex < wholeText.length()) {
-                                            int nextSentenceEndIndex = wholeText.length();
-                                            boolean found = false;
-                                            for (String separator : ttsSentenceSeparator) { // 查找最后一个断句分隔符
-                                                int index = wholeText.indexOf(separator, ttsSentenceEndIndex);
-                                                if (index != -1 && index < nextSentenceEndIndex) {
-                                                    nextSentenceEndIndex = index + separator.length();
-                                                    found = true;
-                                                }
-                                            }
-                                            if (found) { // 找到断句分隔符则添加到朗读队列
-                                                String sentence = wholeText.substring(ttsSentenceEndIndex, nextSentenceEndIndex);
-                                                ttsSentenceEndIndex = nextSentenceEndIndex;
-                                                String id = UUID.randomUUID().toString();
-                                                tts.speak(sentence, TextToSpeech.QUEUE_ADD, null, id);
-                                                ttsLastId = id;
-                                            }
-                                        }
-                                    }
-                                }
-                            });
-
-                            lastRenderTime = System.currentTimeMillis();
+                        chatApiBuffer.append(message);
+                        replyRenderCoalescer.request(); // 在下一帧合并渲染
+                        List<String> sentences = ttsSegmenter.append(message); // 增量断句，完整的句子交给TTS
+                        if(!sentences.isEmpty()) {
+                            handler.post(() -> speakSentences(sentences));
                         }
                     }
 
                     @Override
                     public void onFinished(boolean completed) { // GPT回复完成
                         handler.post(() -> {
+                            replyRenderCoalescer.cancel(); // 下方会渲染完整内容
                             String referenceStr = "\n\n" + getString(R.string.text_ref_web_prefix);
                             int referenceCount = 0;
                             if(completed) { // 如果是完整回复则添加参考网页
@@ -323,19 +265,19 @@ public class MainActivity extends Activity {
                                 }
                             }
                             try {
-                                markdownRenderer.render(tvGptReply, chatApiBuffer); // 渲染Markdown
-                                String ttsText = tvGptReply.getText().toString();
-                                if(currentTemplateParams.getBool("speak", ttsEnabled) && ttsText.length() > ttsSentenceEndIndex) { // 如果TTS开启则朗读剩余文本
-                                    String id = UUID.randomUUID().toString();
-                                    tts.speak(ttsText.substring(ttsSentenceEndIndex), TextToSpeech.QUEUE_ADD, null, id);
-                                    ttsLastId = id;
-                                }
+                                renderReply(chatApiBuffer.toString()); // 渲染Markdown
+                                speakSentences(ttsSegmenter.finish()); // 朗读剩余文本
+                                ttsPipeline.markEnd();
                                 if(referenceCount > 0)
-                                    chatApiBuffer += referenceStr; // 添加参考网页
-                                multiChatList.add(new ChatMessage(ChatRole.ASSISTANT).setText(chatApiBuffer)); // 保存回复内容到聊天数据列表
-                                ((LinearLayout) tvGptReply.getParent()).setTag(multiChatList.get(multiChatList.size() - 1)); // 绑定该聊天数据到布局
-                                markdownRenderer.render(tvGptReply, chatApiBuffer); // 再次渲染Markdown添加参考网页
+                                    chatApiBuffer.append(referenceStr); // 添加参考网页
+                                multiChatList.add(new ChatMessage(ChatRole.ASSISTANT).setText(chatApiBuffer.toString())); // 保存回复内容到聊天数据列表
+                                replyItem.message = multiChatList.get(multiChatList.size() - 1); // 绑定该聊天数据到列表项
+                                saveCurrentConversation(); // 每轮对话结束后追加保存
+                                renderReply(chatApiBuffer.toString()); // 再次渲染Markdown添加参考网页
                                 btSend.setImageResource(R.drawable.send_btn);
+                                if(completed) {
+                                    compactor.compactIfNeeded(currentConversation, chatApiClient); // 历史过长时在空闲时压缩较早的对话
+                                }
                             } catch (Exception e) {
                                 e.printStackTrace();
                             }
@@ -346,8 +288,8 @@ public class MainActivity extends Activity {
                     public void onError(String message) {
                         handler.post(() -> {
                             String errText = String.format(getString(R.string.text_gpt_error_prefix) + "%s", message);
-                            if(tvGptReply != null){
-                                tvGptReply.setText(errText);
+                            if(replyItem != null){
+                                setReplyText(errText);
                             }else{
                                 Toast.makeText(MainActivity.this, errText, Toast.LENGTH_LONG).show();
                             }
@@ -355,52 +297,56 @@ public class MainActivity extends Activity {
                         });
                     }
 
-                    private final ArrayList<ChatApiClient.CallingFunction> callingFunctions = new ArrayList<>();
+                    private final ArrayList<String> visitingUrls = new ArrayList<>(); // 正在访问的网页
 
-                    private void callFunction(ChatApiClient.CallingFunction function) {
+                    // 开始执行一个函数调用，返回取消操作
+                    private Runnable callFunction(ChatApiClient.CallingFunction function, ToolExecutor.ResultCallback callback) {
                         if (function.name.equals("get_html_text")) { // 调用联网函数
                             try {
                                 JSONObject argJson = new JSONObject(function.arguments);
                                 String url = argJson.getStr("url"); // 获取URL
-                                runOnUiThread(() -> {
-                                    markdownRenderer.render(tvGptReply, String.format(getString(R.string.text_visiting_web_prefix) + "[%s](%s)", URLDecoder.decode(url), url));
-                                    webScraper.load(url, new WebScraper.Callback() { // 抓取网页内容
-                                        @Override
-                                        public void onLoadResult(String result) {
-                                            processFunctionResult(function, result); // 返回网页内容给GPT
-//                                            Log.d("FunctionCall", String.format("Response: %s", result));
-                                        }
+                                visitingUrls.add(String.format("[%s](%s)", URLDecoder.decode(url), url));
+                                renderReply(getString(R.string.text_visiting_web_prefix) + TextUtils.join("\n\n", visitingUrls));
+                                WebScraper webScraper = webScraperPool.acquire();
+                                WebScraper.Callback webCallback = new WebScraper.Callback() { // 抓取网页内容
+                                    @Override
+                                    public void onLoadResult(String result) {
+                                        callback.onResult(result); // 返回网页内容给GPT
+//                                        Log.d("FunctionCall", String.format("Response: %s", result));
+                                    }
 
-                                        @Override
-                                        public void onLoadFail(String message) {
-                                            processFunctionResult(function, "Failed to get response of this url. " + message);
-                                        }
-                                    });
-                                    Log.d("FunctionCall", String.format("Loading url: %s", url));
-                                });
+                                    @Override
+                                    public void onLoadFail(String message) {
+                                        callback.onResult("Failed to get response of this url. " + message);
+                                    }
+                                };
+                                webScraper.load(url, webCallback);
+                                Log.d("FunctionCall", String.format("Loading url: %s", url));
+                                return () -> webScraper.stopLoading(webCallback);
                             } catch (JSONException e) {
                                 e.printStackTrace();
-                                processFunctionResult(function, "Error when getting response.");
+                                callback.onResult("Error when getting response.");
                             }
                         } else if (function.name.equals("exit_voice_chat")) {
                             if (multiVoice)
-                                runOnUiThread(() -> findViewById(R.id.cv_voice_chat).performClick());
-                            processFunctionResult(function, "OK");
+                                findViewById(R.id.cv_voice_chat).performClick();
+                            callback.onResult("OK");
                         } else {
-                            processFunctionResult(function, "Function not found.");
+                            callback.onResult("Function not found.");
                             Log.d("FunctionCall", String.format("Function not found: %s", function.name));
                         }
+                        return null;
                     }
-                    private void processFunctionResult(ChatApiClient.CallingFunction function, String result) {
-                        Log.d("MainActivity", "function result: " + function.name);
-                        Log.d("MainActivity", "function result: " + result);
-                        multiChatList.add(new ChatMessage(ChatRole.FUNCTION).addFunctionCall(function.toolId, function.name, function.arguments, result));
-                        callingFunctions.remove(function); // 从函数调用列表中移除已完成的函数
-                        if(callingFunctions.size() == 0) { // 所有函数调用完成，发送给GPT
-                            handler.post(() -> chatApiClient.sendPromptList(multiChatList));
-                        } else {
-                            handler.post(() -> callFunction(callingFunctions.get(0))); // 继续处理下一个函数调用
+
+                    // 所有函数调用完成，按调用顺序保存结果并发送给GPT
+                    private void processFunctionResults(List<ChatApiClient.CallingFunction> functions, List<String> results) {
+                        for(int i = 0; i < functions.size(); i++) {
+                            ChatApiClient.CallingFunction function = functions.get(i);
+                            Log.d("MainActivity", "function result: " + function.name);
+                            multiChatList.add(new ChatMessage(ChatRole.FUNCTION).addFunctionCall(function.toolId, function.name, function.arguments, results.get(i)));
                         }
+                        visitingUrls.clear();
+                        chatApiClient.sendPromptList(compactor.buildPromptList(currentConversation));
                     }
 
                     @Override
@@ -410,12 +356,12 @@ public class MainActivity extends Activity {
                             Log.d("FunctionCall", String.format("%s: %s", function.name, function.arguments));
                             assistantMessage.addFunctionCall(function.toolId, function.name, function.arguments, null);
                         }
-                        multiChatList.add(assistantMessage); // 保存请求到聊天数据列表
-
-                        callingFunctions.clear();
-                        callingFunctions.addAll(functions); // 保存函数调用列表（浅拷贝）
-
-                        callFunction(callingFunctions.get(0)); // 处理第一个函数调用
+                        ArrayList<ChatApiClient.CallingFunction> calls = new ArrayList<>(functions); // 拷贝函数调用列表，ChatApiClient会复用原列表
+                        runOnUiThread(() -> {
+                            multiChatList.add(assistantMessage); // 保存请求到聊天数据列表
+                            visitingUrls.clear();
+                            toolExecutor.execute(calls, this::callFunction, this::processFunctionResults); // 并行执行所有函数调用
+                        });
                     }
                 });
 
@@ -425,13 +371,13 @@ public class MainActivity extends Activity {
         btSend.setOnClickListener(view -> {
             if (chatApiClient.isStreaming()) {
                 chatApiClient.stop();
-            }else if(webScraper.isLoading()){
-                webScraper.stopLoading();
-                if(tvGptReply != null)
-                    tvGptReply.setText(R.string.text_cancel_web);
+            }else if(toolExecutor.isRunning()){
+                toolExecutor.cancel();
+                if(replyItem != null)
+                    setReplyText(getString(R.string.text_cancel_web));
                 btSend.setImageResource(R.drawable.send_btn);
             }else{
-                tts.stop();
+                ttsPipeline.stop();
                 sendQuestion(null);
                 etUserInput.setText("");
             }
@@ -491,10 +437,7 @@ public class MainActivity extends Activity {
         (findViewById(R.id.cv_new_chat)).setOnClickListener(view -> {
             clearChatListView();
 
-            if(currentConversation != null &&
-                    ((multiChatList.size() > 0 && multiChatList.get(0).role != ChatRole.SYSTEM) || (multiChatList.size() > 1 && multiChatList.get(0).role == ChatRole.SYSTEM)) &&
-                    GlobalDataHolder.getAutoSaveHistory()) // 包含有效对话则保存当前对话
-                chatManager.addConversation(currentConversation);
+            saveCurrentConversation();
 
             currentConversation = new Conversation();
             multiChatList = currentConversation.messages;
@@ -515,7 +458,7 @@ public class MainActivity extends Activity {
             }else{
                 ((CardView) findViewById(R.id.cv_tts_off)).setForeground(getDrawable(R.drawable.tts_off_enable));
                 GlobalUtils.showToast(this, R.string.toast_tts_off, false);
-                tts.stop();
+                ttsPipeline.stop();
             }
         });
 
@@ -600,8 +543,9 @@ public class MainActivity extends Activity {
         asrCallback = new AsrClientBase.IAsrCallback() {
             @Override
             public void onError(String msg) {
-                if(tvGptReply != null) {
-                    runOnUiThread(() -> tvGptReply.setText(getString(R.string.text_asr_error_prefix) + msg));
+                MetricsRegistry.increment("asr.error");
+                if(replyItem != null) {
+                    runOnUiThread(() -> setReplyText(getString(R.string.text_asr_error_prefix) + msg));
                 }else{
                     Toast.makeText(MainActivity.this, getString(R.string.text_asr_error_prefix) + msg, Toast.LENGTH_LONG).show();
                 }
@@ -612,6 +556,15 @@ public class MainActivity extends Activity {
 
             @Override
             public void onResult(String result) {
+                long now = System.currentTimeMillis();
+                if(!asrFirstResultRecorded) { // 从开始识别到首个结果的延迟（实时识别时为首个中间结果）
+                    asrFirstResultRecorded = true;
+                    MetricsRegistry.recordLatency("asr.first_result_ms", now - asrStartTime);
+                }
+                if(asrStopTime > 0) { // 从停止说话到得到结果的延迟
+                    MetricsRegistry.recordLatency("asr.stop_to_result_ms", now - asrStopTime);
+                    asrStopTime = 0;
+                }
                 if(result != null) {
                     runOnUiThread(() -> etUserInput.setText(result));
                 }
@@ -646,17 +599,23 @@ public class MainActivity extends Activity {
             public void onReceive(Context context, Intent intent) {
                 String action = intent.getAction();
                 if(action.equals("com.skythinker.gptassistant.KEY_SPEECH_START")) { // 开始语音识别
-                    tts.stop();
+                    ttsPipeline.stop();
+                    chatApiClient.prewarm(); // 识别期间提前建立到API主机的连接
                     asrClient.startRecognize();
                     asrStartTime = System.currentTimeMillis();
+                    asrStopTime = 0;
+                    asrFirstResultRecorded = false;
+                    MetricsRegistry.increment("asr.sessions");
                     etUserInput.setText("");
                     etUserInput.setHint(R.string.text_listening_hint);
                 } else if(action.equals("com.skythinker.gptassistant.KEY_SPEECH_STOP")) { // 停止语音识别
                     etUserInput.setHint(R.string.text_input_hint);
                     if(System.currentTimeMillis() - asrStartTime < 1000) {
                         asrClient.cancelRecognize();
+                        MetricsRegistry.increment("asr.cancelled");
                     } else {
                         asrClient.stopRecognize();
+                        asrStopTime = System.currentTimeMillis();
                     }
                 } else if(action.equals("com.skythinker.gptassistant.KEY_SEND")) { // 发送问题
                     if(!chatApiClient.isStreaming())
@@ -776,8 +735,8 @@ public class MainActivity extends Activity {
             if(data.hasExtra("id")) {
                 long id = data.getLongExtra("id", -1);
                 Log.d("MainActivity", "onActivityResult 3: id=" + id);
+                saveCurrentConversation(); // 先保存当前会话，再读取（可能是同一个会话）
                 Conversation conversation = chatManager.getConversation(id);
-                chatManager.removeConversation(id);
                 conversation.updateTime();
                 reloadConversation(conversation);
             }
@@ -803,13 +762,46 @@ public class MainActivity extends Activity {
         }
     }
 
+    // 渲染当前回复内容（由replyRenderCoalescer在主线程调用）
+    private void renderStreamingReply() {
+        String replyText = chatApiBuffer.toString();
+        boolean isBottom = !rvChatList.canScrollVertically(1); // 判断消息列表是否在底部
+
+        replyItem.content = replyText; // 保存到列表项，回复的布局重新显示时使用
+        replyItem.plainText = null;
+        replyItem.streaming = true;
+        if(tvGptReply != null) {
+            markdownRenderer.renderStreaming(tvGptReply, chatApiBuffer); // 增量渲染Markdown
+        }
+
+        if (isBottom) {
+            scrollChatAreaToBottom(); // 渲染前在底部则渲染后滚动到底部
+        }
+    }
+
+    // 将断句结果加入TTS队列（主线程）
+    private void speakSentences(List<String> sentences) {
+        if(currentTemplateParams.getBool("speak", ttsEnabled)) {
+            for(String sentence : sentences) {
+                ttsPipeline.speak(sentence);
+            }
+        }
+    }
+
     // 滚动聊天列表到底部
     private void scrollChatAreaToBottom() {
-        svChatArea.post(() -> {
-            int delta = svChatArea.getChildAt(0).getBottom()
-                    - (svChatArea.getHeight() + svChatArea.getScrollY());
-            if(delta != 0)
-                svChatArea.smoothScrollBy(0, delta);
+        rvChatList.post(() -> {
+            int last = chatListAdapter.getItemCount() - 1;
+            if(last < 0)
+                return;
+            View lastView = rvChatList.getLayoutManager().findViewByPosition(last);
+            if(lastView == null) { // 最后一条不在屏幕上则直接跳转，跳转后其底部与列表底部对齐
+                rvChatList.scrollToPosition(last);
+                return;
+            }
+            int delta = lastView.getBottom() - (rvChatList.getHeight() - rvChatList.getPaddingBottom());
+            if(delta > 0)
+                rvChatList.smoothScrollBy(0, delta);
         });
     }
 
@@ -1000,93 +992,104 @@ public class MainActivity extends Activity {
         updateTemplateParamsView();
     }
 
-    // 添加一条聊天记录到聊天列表布局
-    private LinearLayout addChatView(ChatRole role, String content, ArrayList<ChatMessage.Attachment> attachments) {
-        ViewGroup.MarginLayoutParams iconParams = new ViewGroup.MarginLayoutParams(dpToPx(30), dpToPx(30)); // 头像布局参数
-        iconParams.setMargins(dpToPx(4), dpToPx(12), dpToPx(4), dpToPx(12));
+    // 初始化聊天列表
+    private void initChatList() {
+        chatListAdapter = new ChatListAdapter(markdownRenderer, new ChatListAdapter.Listener() {
+            @Override
+            public CharSequence buildUserContent(ChatListAdapter.Item item) {
+                return buildUserChatContent(item.content, item.message == null ? null : item.message.attachments);
+            }
 
-        ViewGroup.MarginLayoutParams contentParams = new ViewGroup.MarginLayoutParams(ViewGroup.LayoutParams.MATCH_PARENT, ViewGroup.LayoutParams.WRAP_CONTENT); // 内容布局参数
-        contentParams.setMargins(dpToPx(4), dpToPx(15), dpToPx(4), dpToPx(15));
+            @Override
+            public void onItemBound(ChatListAdapter.Item item, TextView tvContent) {
+                if(item == replyItem) { // 回复的布局重新显示，之后的流式内容渲染到该布局
+                    tvGptReply = tvContent;
+                } else if(tvContent == tvGptReply) {
+                    tvGptReply = null;
+                }
+            }
 
-        LinearLayout.LayoutParams popupIconParams = new LinearLayout.LayoutParams(dpToPx(30), dpToPx(30)); // 弹出的操作按钮布局参数
-        popupIconParams.setMargins(dpToPx(5), dpToPx(5), dpToPx(5), dpToPx(5));
+            @Override
+            public void onItemRecycled(ChatListAdapter.Item item, TextView tvContent) {
+                markdownRenderer.cancelStreaming(tvContent); // 丢弃尚未显示的流式渲染结果，避免显示到复用的布局上
+                if(tvContent == tvGptReply) {
+                    tvGptReply = null;
+                }
+            }
 
-        LinearLayout llOuter = new LinearLayout(this); // 包围整条聊天记录的最外层布局
-        llOuter.setOrientation(LinearLayout.HORIZONTAL);
-        if(role == ChatRole.ASSISTANT) // 不同角色使用不同背景颜色
-            llOuter.setBackgroundColor(Color.parseColor("#0A000000"));
-
-        ImageView ivIcon = new ImageView(this); // 设置头像
-        if(role == ChatRole.USER)
-            ivIcon.setImageResource(R.drawable.chat_user_icon);
-        else
-            ivIcon.setImageResource(R.drawable.chat_gpt_icon);
-        ivIcon.setLayoutParams(iconParams);
-
-        TextView tvContent = new TextView(this); // 设置内容
-        if(role == ChatRole.USER) {
-            SpannableStringBuilder stringBuilder = new SpannableStringBuilder();
-            stringBuilder.append(content);
-            if (attachments != null) { // 如有图片则在末尾添加ImageSpan
-                boolean hasImageAttachment = false;
-                for(ChatMessage.Attachment attachment : attachments) {
-                    if(attachment.type == ChatMessage.Attachment.Type.IMAGE) {
-                        if(!hasImageAttachment) {
-                            stringBuilder.append("\ni");
-                            hasImageAttachment = true;
-                        } else {
-                            stringBuilder.append(" i");
-                        }
-                        Bitmap bitmap = base64ToBitmap(attachment.content);
-                        int maxSize = dpToPx(120);
-                        bitmap = resizeBitmap(bitmap, maxSize, maxSize);
-                        ImageSpan imageSpan = new ImageSpan(this, bitmap);
-                        stringBuilder.setSpan(imageSpan, stringBuilder.length() - 1, stringBuilder.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                        stringBuilder.setSpan(new ClickableSpan() {
-                            @Override
-                            public void onClick(@NonNull View view) {
-                                Bitmap bitmap = base64ToBitmap(attachment.content);
-                                AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this);
-                                LayoutInflater inflater = LayoutInflater.from(MainActivity.this);
-                                View dialogView = inflater.inflate(R.layout.image_preview_dialog, null);
-                                AlertDialog dialog = builder.create();
-                                dialog.show();
-                                dialog.getWindow().setContentView(dialogView);
-                                ((ImageView) dialogView.findViewById(R.id.iv_image_preview)).setImageBitmap(bitmap);
-                                ((TextView) dialogView.findViewById(R.id.tv_image_preview_size)).setText(String.format("%s x %s", bitmap.getWidth(), bitmap.getHeight()));
-                                dialogView.findViewById(R.id.cv_image_preview_cancel).setOnClickListener(view1 -> dialog.dismiss());
-                                dialogView.findViewById(R.id.cv_image_preview_del).setVisibility(View.GONE);
-                                dialogView.findViewById(R.id.cv_image_preview_reselect).setVisibility(View.GONE);
-                            }
-                        }, stringBuilder.length() - 1, stringBuilder.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            @Override
+            public void onIconClick(View ivIcon, ChatListAdapter.Item item, TextView tvContent) {
+                showChatItemMenu(ivIcon, item, tvContent);
+            }
+        });
+        rvChatList.setLayoutManager(new LinearLayoutManager(this));
+        ((SimpleItemAnimator) rvChatList.getItemAnimator()).setSupportsChangeAnimations(false); // 回复内容更新时不做渐变动画
+        rvChatList.setAdapter(chatListAdapter);
+        showGreeting();
+    }
+
+    // 构建用户消息的显示内容，如有附件则在末尾添加图片和文件名
+    private CharSequence buildUserChatContent(String content, ArrayList<ChatMessage.Attachment> attachments) {
+        SpannableStringBuilder stringBuilder = new SpannableStringBuilder();
+        stringBuilder.append(content);
+        if (attachments != null) { // 如有图片则在末尾添加ImageSpan
+            boolean hasImageAttachment = false;
+            for(ChatMessage.Attachment attachment : attachments) {
+                if(attachment.type == ChatMessage.Attachment.Type.IMAGE) {
+                    if(!hasImageAttachment) {
+                        stringBuilder.append("\ni");
+                        hasImageAttachment = true;
+                    } else {
+                        stringBuilder.append(" i");
                     }
+                    Bitmap bitmap = loadAttachmentBitmap(attachment);
+                    int maxSize = dpToPx(120);
+                    bitmap = resizeBitmap(bitmap, maxSize, maxSize);
+                    ImageSpan imageSpan = new ImageSpan(this, bitmap);
+                    stringBuilder.setSpan(imageSpan, stringBuilder.length() - 1, stringBuilder.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    stringBuilder.setSpan(new ClickableSpan() {
+                        @Override
+                        public void onClick(@NonNull View view) {
+                            Bitmap bitmap = loadAttachmentBitmap(attachment);
+                            AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this);
+                            LayoutInflater inflater = LayoutInflater.from(MainActivity.this);
+                            View dialogView = inflater.inflate(R.layout.image_preview_dialog, null);
+                            AlertDialog dialog = builder.create();
+                            dialog.show();
+                            dialog.getWindow().setContentView(dialogView);
+                            ((ImageView) dialogView.findViewById(R.id.iv_image_preview)).setImageBitmap(bitmap);
+                            ((TextView) dialogView.findViewById(R.id.tv_image_preview_size)).setText(String.format("%s x %s", bitmap.getWidth(), bitmap.getHeight()));
+                            dialogView.findViewById(R.id.cv_image_preview_cancel).setOnClickListener(view1 -> dialog.dismiss());
+                            dialogView.findViewById(R.id.cv_image_preview_del).setVisibility(View.GONE);
+                            dialogView.findViewById(R.id.cv_image_preview_reselect).setVisibility(View.GONE);
+                        }
+                    }, stringBuilder.length() - 1, stringBuilder.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
                 }
-                for(ChatMessage.Attachment attachment : attachments) {
-                    if(attachment.type == ChatMessage.Attachment.Type.TEXT) {
-                        stringBuilder.append("\n").append(attachment.name);
-                        stringBuilder.setSpan(new ClickableSpan() {
-                            @Override
-                            public void onClick(@NonNull View view) {
-                                new ConfirmDialog(MainActivity.this)
-                                        .setTitle(attachment.name)
-                                        .setContent(attachment.content)
-                                        .setContentAlignment(View.TEXT_ALIGNMENT_TEXT_START)
-                                        .setOkButtonVisibility(View.GONE)
-                                        .show();
-                            }
-                        }, stringBuilder.length() - attachment.name.length(), stringBuilder.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    }
+            }
+            for(ChatMessage.Attachment attachment : attachments) {
+                if(attachment.type == ChatMessage.Attachment.Type.TEXT) {
+                    stringBuilder.append("\n").append(attachment.name);
+                    stringBuilder.setSpan(new ClickableSpan() {
+                        @Override
+                        public void onClick(@NonNull View view) {
+                            new ConfirmDialog(MainActivity.this)
+                                    .setTitle(attachment.name)
+                                    .setContent(attachment.content)
+                                    .setContentAlignment(View.TEXT_ALIGNMENT_TEXT_START)
+                                    .setOkButtonVisibility(View.GONE)
+                                    .show();
+                        }
+                    }, stringBuilder.length() - attachment.name.length(), stringBuilder.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
                 }
             }
-            tvContent.setText(stringBuilder);
-        } else if(role == ChatRole.ASSISTANT) {
-            markdownRenderer.render(tvContent, content);
         }
-        tvContent.setTextSize(16);
-        tvContent.setTextColor(Color.BLACK);
-        tvContent.setLayoutParams(contentParams);
-        tvContent.setTextIsSelectable(true);
-        tvContent.setMovementMethod(LinkMovementMethod.getInstance());
+        return stringBuilder;
+    }
+
+    // 点击头像时弹出操作按钮
+    private void showChatItemMenu(View ivIcon, ChatListAdapter.Item item, TextView tvContent) {
+        LinearLayout.LayoutParams popupIconParams = new LinearLayout.LayoutParams(dpToPx(30), dpToPx(30)); // 弹出的操作按钮布局参数
+        popupIconParams.setMargins(dpToPx(5), dpToPx(5), dpToPx(5), dpToPx(5));
 
         LinearLayout llPopup = new LinearLayout(this); // 弹出按钮列表布局
         llPopup.setLayoutParams(new LinearLayout.LayoutParams(ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT));
@@ -1096,28 +1099,12 @@ public class MainActivity extends Activity {
 
         PopupWindow popupWindow = new PopupWindow(llPopup, ViewGroup.LayoutParams.WRAP_CONTENT, ViewGroup.LayoutParams.WRAP_CONTENT, true); // 弹出窗口
         popupWindow.setOutsideTouchable(true);
-        ivIcon.setTag(popupWindow); // 将弹出窗口绑定到头像上
 
         CardView cvDelete = new CardView(this); // 删除单条对话按钮
         cvDelete.setForeground(getDrawable(R.drawable.clear_btn));
         cvDelete.setOnClickListener(view -> {
             popupWindow.dismiss();
-            ChatMessage chat = (ChatMessage) llOuter.getTag(); // 获取布局上绑定的聊天记录数据
-            if(chat != null) {
-                int index = multiChatList.indexOf(chat);
-                multiChatList.remove(chat);
-                while(--index > 0 && (multiChatList.get(index).role == ChatRole.FUNCTION
-                        || (multiChatList.get(index).role == ChatRole.ASSISTANT && multiChatList.get(index).toolCalls.size() > 0))) // 将上方ToolCall也删除
-                    multiChatList.remove(index);
-            }
-            if(tvContent == tvGptReply) { // 删除的是GPT正在回复的消息框，停止回复和TTS
-                if(chatApiClient.isStreaming())
-                    chatApiClient.stop();
-                tts.stop();
-            }
-            llChatList.removeView(llOuter);
-            if(llChatList.getChildCount() == 0) // 如果删除后聊天列表为空，则添加占位TextView
-                clearChatListView();
+            deleteChatItem(item);
         });
         llPopup.addView(cvDelete);
 
@@ -1125,20 +1112,16 @@ public class MainActivity extends Activity {
         cvDelBelow.setForeground(getDrawable(R.drawable.del_below_btn));
         cvDelBelow.setOnClickListener(view -> {
             popupWindow.dismiss();
-            int index = llChatList.indexOfChild(llOuter);
-            while(llChatList.getChildCount() > index && llChatList.getChildAt(0) instanceof LinearLayout) { // 模拟点击各条记录的删除按钮
-                PopupWindow pw = (PopupWindow) ((LinearLayout) llChatList.getChildAt(llChatList.getChildCount() - 1)).getChildAt(0).getTag();
-                ((LinearLayout) pw.getContentView()).getChildAt(0).performClick();
-            }
+            deleteChatItemsFrom(item);
         });
         llPopup.addView(cvDelBelow);
 
-        if(role == ChatRole.USER) { // USER角色才有的按钮
+        ChatMessage chat = item.message; // 列表项绑定的聊天记录数据
+        if(item.role == ChatRole.USER) { // USER角色才有的按钮
             CardView cvEdit = new CardView(this); // 编辑按钮
             cvEdit.setForeground(getDrawable(R.drawable.edit_btn));
             cvEdit.setOnClickListener(view -> {
                 popupWindow.dismiss();
-                ChatMessage chat = (ChatMessage) llOuter.getTag(); // 获取布局上绑定的聊天记录数据
                 String text = chat.contentText;
                 if(chat.attachments.size() > 0) { // 若含有附件则设置为选中的附件
                     selectedAttachments.clear();
@@ -1148,7 +1131,7 @@ public class MainActivity extends Activity {
                 }
                 updateAttachmentButton(); // 更新附件按钮状态
                 etUserInput.setText(text); // 添加文本内容到输入框
-                cvDelBelow.performClick(); // 删除下方所有对话
+                deleteChatItemsFrom(item); // 删除下方所有对话
             });
             llPopup.addView(cvEdit);
 
@@ -1156,7 +1139,6 @@ public class MainActivity extends Activity {
             cvRetry.setForeground(getDrawable(R.drawable.retry_btn));
             cvRetry.setOnClickListener(view -> {
                 popupWindow.dismiss();
-                ChatMessage chat = (ChatMessage) llOuter.getTag(); // 获取布局上绑定的聊天记录数据
                 String text = chat.contentText;
                 if(chat.attachments.size() > 0) { // 若含有附件则设置为选中的附件
                     selectedAttachments.clear();
@@ -1164,7 +1146,7 @@ public class MainActivity extends Activity {
                 } else {
                     selectedAttachments.clear();
                 }
-                cvDelBelow.performClick(); // 删除下方所有对话
+                deleteChatItemsFrom(item); // 删除下方所有对话
                 sendQuestion(text); // 重新发送问题
             });
             llPopup.addView(cvRetry);
@@ -1174,7 +1156,6 @@ public class MainActivity extends Activity {
         cvCopy.setForeground(getDrawable(R.drawable.copy_btn));
         cvCopy.setOnClickListener(view -> { // 复制文本内容到剪贴板
             popupWindow.dismiss();
-            ChatMessage chat = (ChatMessage) llOuter.getTag(); // 获取布局上绑定的聊天记录数据
             if(chat == null || chat.role != ChatRole.USER) {
                 GlobalUtils.copyToClipboard(this, tvContent.getText().toString()); // 如果是助手回复则复制渲染后的内容
             } else {
@@ -1191,16 +1172,53 @@ public class MainActivity extends Activity {
             cvBtn.setRadius(dpToPx(5));
         }
 
-        ivIcon.setOnClickListener(view -> { // 点击头像时弹出操作按钮
-            popupWindow.showAsDropDown(view, dpToPx(30), -dpToPx(35));
-        });
+        popupWindow.showAsDropDown(ivIcon, dpToPx(30), -dpToPx(35));
+    }
+
+    // 删除一条聊天记录
+    private void deleteChatItem(ChatListAdapter.Item item) {
+        ChatMessage chat = item.message; // 获取列表项绑定的聊天记录数据
+        if(chat != null) {
+            int index = multiChatList.indexOf(chat);
+            currentConversation.onRemoveMessage(index, false); // 删除已被摘要覆盖的消息时作废摘要
+            multiChatList.remove(chat);
+            while(--index > 0 && (multiChatList.get(index).role == ChatRole.FUNCTION
+                    || (multiChatList.get(index).role == ChatRole.ASSISTANT && multiChatList.get(index).toolCalls.size() > 0))) { // 将上方ToolCall也删除
+                currentConversation.onRemoveMessage(index, false);
+                multiChatList.remove(index);
+            }
+        }
+        if(item == replyItem) { // 删除的是GPT正在回复的消息框，停止回复和TTS
+            if(chatApiClient.isStreaming())
+                chatApiClient.stop();
+            ttsPipeline.stop();
+        }
+        chatListAdapter.remove(item);
+        if(chatListAdapter.getItemCount() == 0) // 如果删除后聊天列表为空，则显示占位提示
+            clearChatListView();
+    }
 
-        llOuter.addView(ivIcon);
-        llOuter.addView(tvContent);
+    // 删除该条及下方所有聊天记录
+    private void deleteChatItemsFrom(ChatListAdapter.Item item) {
+        int index = chatListAdapter.indexOf(item);
+        while(index >= 0 && chatListAdapter.getItemCount() > index && chatListAdapter.getItem(0).role != null) { // 从最后一条开始依次删除
+            deleteChatItem(chatListAdapter.getItem(chatListAdapter.getItemCount() - 1));
+        }
+    }
 
-        llChatList.addView(llOuter);
+    // 设置当前回复的纯文本内容（提示、错误信息等）
+    private void setReplyText(CharSequence text) {
+        replyItem.plainText = text;
+        replyItem.streaming = false;
+        chatListAdapter.refresh(replyItem);
+    }
 
-        return llOuter;
+    // 渲染当前回复的完整Markdown内容
+    private void renderReply(String markdown) {
+        replyItem.content = markdown;
+        replyItem.plainText = null;
+        replyItem.streaming = false;
+        chatListAdapter.refresh(replyItem);
     }
 
     // 发送一个提问，input为null时则从输入框获取
@@ -1239,8 +1257,8 @@ public class MainActivity extends Activity {
             }
         }
 
-        if(llChatList.getChildCount() > 0 && llChatList.getChildAt(0) instanceof TextView) { // 若有占位TextView则删除
-            llChatList.removeViewAt(0);
+        if(chatListAdapter.getItemCount() > 0 && chatListAdapter.getItem(0).role == null) { // 若有占位提示则删除
+            chatListAdapter.remove(chatListAdapter.getItem(0));
         }
 
 //        if(isMultiChat && llChatList.getChildCount() > 0) { // 连续对话模式下，将第一条提问改写为添加模板后的内容（历史遗留，忘记为什么这么写了，先留着）
@@ -1264,9 +1282,11 @@ public class MainActivity extends Activity {
             for (int i = 0; i < multiChatList.size(); i++) {
                 ChatMessage chatItem = multiChatList.get(i);
                 if (chatItem.role == ChatRole.FUNCTION) {
+                    currentConversation.onRemoveMessage(i, true); // 网页数据不影响摘要，只需调整摘要覆盖的范围
                     multiChatList.remove(i);
                     i--;
                     if(i > 0 && multiChatList.get(i).role == ChatRole.ASSISTANT) { // 也要删除调用Function的Assistant记录
+                        currentConversation.onRemoveMessage(i, true);
                         multiChatList.remove(i);
                         i--;
                     }
@@ -1274,22 +1294,21 @@ public class MainActivity extends Activity {
             }
         }
 
-        // 添加对话布局
-        LinearLayout llInput = addChatView(ChatRole.USER, isMultiChat ? multiChatList.get(multiChatList.size() - 1).contentText : userInput, multiChatList.get(multiChatList.size() - 1).attachments);
-        LinearLayout llReply = addChatView(ChatRole.ASSISTANT, getString(R.string.text_waiting_reply), null);
-
-        llInput.setTag(multiChatList.get(multiChatList.size() - 1)); // 将对话数据绑定到布局上
-
-        tvGptReply = (TextView) llReply.getChildAt(1);
+        // 添加对话到列表
+        ChatMessage questionMessage = multiChatList.get(multiChatList.size() - 1);
+        chatListAdapter.add(new ChatListAdapter.Item(ChatRole.USER, isMultiChat ? questionMessage.contentText : userInput, questionMessage));
+        replyItem = chatListAdapter.add(new ChatListAdapter.Item(ChatRole.ASSISTANT, getString(R.string.text_waiting_reply), null));
+        tvGptReply = null; // 回复的布局绑定后设置
 
         scrollChatAreaToBottom();
 
-        chatApiBuffer = "";
-        ttsSentenceEndIndex = 0;
+        chatApiBuffer.clear();
+        replyRenderCoalescer.reset();
+        ttsSegmenter.reset();
         if (BuildConfig.DEBUG && userInput.startsWith("#markdowndebug\n")) { // Markdown渲染测试
-            markdownRenderer.render(tvGptReply, userInput.replace("#markdowndebug\n", ""));
+            renderReply(userInput.replace("#markdowndebug\n", ""));
         } else {
-            chatApiClient.sendPromptList(multiChatList);
+            chatApiClient.sendPromptList(compactor.buildPromptList(currentConversation), !isMultiChat && currentTemplateParams.getBool("cache", false)); // 单次对话模式下可使用回复缓存
             selectedAttachments.clear();
             btSend.setImageResource(R.drawable.cancel_btn);
             updateAttachmentButton(); // 更新附件按钮状态
@@ -1353,7 +1372,7 @@ public class MainActivity extends Activity {
 
                 cvFilename.setOnClickListener(view -> { // 点击文件名进行预览
                     if (attachment.type == ChatMessage.Attachment.Type.IMAGE) { // 图片类型的附件
-                        Bitmap bitmap = base64ToBitmap(attachment.content);
+                        Bitmap bitmap = loadAttachmentBitmap(attachment);
                         AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this);
                         LayoutInflater inflater = LayoutInflater.from(MainActivity.this);
                         View dialogView = inflater.inflate(R.layout.image_preview_dialog, null);
@@ -1508,7 +1527,7 @@ public class MainActivity extends Activity {
                 } else {
                     bitmap = resizeBitmap(bitmap, 2048, 2048);
                 }
-                selectedAttachments.add(ChatMessage.Attachment.createNew(ChatMessage.Attachment.Type.IMAGE, filename, bitmapToBase64(bitmap), false));
+                selectedAttachments.add(ChatMessage.Attachment.createImage(filename, bitmap)); // 图片直接保存为文件，发送时再流式编码
                 Log.d("MainActivity", "addImageAttachment: fileName=" + filename + " size=" + bitmap.getWidth() + "x" + bitmap.getHeight());
                 updateAttachmentButton(); // 更新附件按钮状态
             } else {
@@ -1559,31 +1578,41 @@ public class MainActivity extends Activity {
         currentConversation = conversation;
         multiChatList = conversation.messages;
 
-        llChatList.removeViewAt(0); // 删除占位TextView
-        for(ChatMessage chatItem : multiChatList) { // 依次添加对话布局
+        List<ChatListAdapter.Item> items = new ArrayList<>(); // 只创建列表项，显示时才渲染
+        for(ChatMessage chatItem : multiChatList) {
             if(chatItem.role == ChatRole.USER || (chatItem.role == ChatRole.ASSISTANT && chatItem.toolCalls.size() == 0)) {
-                LinearLayout llChatItem = addChatView(chatItem.role, chatItem.contentText, chatItem.attachments);
-                llChatItem.setTag(chatItem);
+                items.add(new ChatListAdapter.Item(chatItem.role, chatItem.contentText, chatItem));
             }
         }
+        replyItem = null;
+        tvGptReply = null;
+        chatListAdapter.setItems(items); // 替换占位提示
         scrollChatAreaToBottom();
     }
 
+    // 包含有效对话且开启自动保存时保存当前会话（已保存的会话只追加新消息）
+    private void saveCurrentConversation() {
+        if(currentConversation != null &&
+                ((multiChatList.size() > 0 && multiChatList.get(0).role != ChatRole.SYSTEM) || (multiChatList.size() > 1 && multiChatList.get(0).role == ChatRole.SYSTEM)) &&
+                GlobalDataHolder.getAutoSaveHistory())
+            chatManager.saveConversation(currentConversation);
+    }
+
     // 清空聊天界面
     private void clearChatListView() {
         if(chatApiClient.isStreaming()){
             chatApiClient.stop();
         }
-        llChatList.removeAllViews();
-        tts.stop();
-
-        TextView tv = new TextView(this); // 清空列表后添加一个占位TextView
-        tv.setTextColor(Color.parseColor("#000000"));
-        tv.setTextSize(16);
-        tv.setPadding(dpToPx(10), dpToPx(10), dpToPx(10), dpToPx(10));
-        tv.setText(R.string.default_greeting);
-        tvGptReply = tv;
-        llChatList.addView(tv);
+        ttsPipeline.stop();
+        showGreeting();
+    }
+
+    // 清空列表并显示占位提示
+    private void showGreeting() {
+        replyItem = new ChatListAdapter.Item(null, null, null);
+        replyItem.plainText = getString(R.string.default_greeting);
+        tvGptReply = null;
+        chatListAdapter.setItems(Collections.singletonList(replyItem));
     }
 
     // 处理启动Intent
@@ -1652,12 +1681,12 @@ public class MainActivity extends Activity {
         return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
     }
 
-    // 将Bitmap转换为Base64编码
-    private String bitmapToBase64(Bitmap bitmap) {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 100, baos);
-        byte[] bytes = baos.toByteArray();
-        return Base64.encodeToString(bytes, Base64.NO_WRAP);
+    // 读取图片附件，优先从文件解码，旧数据则从Base64解码
+    private Bitmap loadAttachmentBitmap(ChatMessage.Attachment attachment) {
+        if(attachment.content != null) {
+            return base64ToBitmap(attachment.content);
+        }
+        return BitmapFactory.decodeFile(attachment.getFilePath());
     }
 
     // onDestroy->false onCreate->true
@@ -1745,12 +1774,10 @@ public class MainActivity extends Activity {
         isAlive = false;
         LocalBroadcastManager.getInstance(this).unregisterReceiver(localReceiver);
         asrClient.destroy();
-        tts.stop();
-        tts.shutdown();
-        webScraper.destroy();
-        if(((multiChatList.size() > 0 && multiChatList.get(0).role != ChatRole.SYSTEM) || (multiChatList.size() > 1 && multiChatList.get(0).role == ChatRole.SYSTEM)) &&
-                GlobalDataHolder.getAutoSaveHistory()) // 包含有效对话则保存当前对话
-            chatManager.addConversation(currentConversation);
+        ttsPipeline.shutdown();
+        toolExecutor.cancel();
+        webScraperPool.destroy();
+        saveCurrentConversation();
         chatManager.removeEmptyConversations();
         chatManager.destroy();
         super.onDestroy();
@@ -0,0 +1,118 @@
+package com.skythinker.gptassistant;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 将流式输出的Markdown划分为已完成的块和末尾未完成的部分，用于增量渲染
+// 块边界为代码块和公式之外的空行，且其后已出现不缩进的新行（缩进行可能是列表项的延续，不能拆开）
+public class MarkdownBlockSplitter {
+    // 从from开始查找块边界，返回各个已完成块之后下一块的起始位置（递增），from必须位于块的开头
+    public static List<Integer> findBoundaries(String text, int from) {
+        List<Integer> boundaries = new ArrayList<>();
+        int length = text.length();
+        char fenceChar = 0; // 未闭合代码块的围栏字符，0表示不在代码块中
+        int fenceLength = 0;
+        boolean inDollarMath = false; // 在“$$...$$”公式中
+        boolean inBracketMath = false; // 在“\[...\]”公式中
+        boolean hasContent = false; // 当前块中已有非空行
+        boolean blankBefore = false; // 当前块已结束（遇到空行或代码块结束），等待下一个块开始
+        int i = from;
+        while(i < length) {
+            int lineEnd = text.indexOf('\n', i);
+            boolean complete = lineEnd >= 0;
+            if(!complete) {
+                lineEnd = length;
+            }
+            boolean inBlockStructure = fenceChar != 0 || inDollarMath || inBracketMath;
+            if(!inBlockStructure) {
+                if(isBlank(text, i, lineEnd)) {
+                    if(!complete) { // 末尾不完整的空白行，无法判断后续内容
+                        break;
+                    }
+                    if(hasContent) {
+                        blankBefore = true;
+                    }
+                    i = lineEnd + 1;
+                    continue;
+                }
+                if(blankBefore && !Character.isWhitespace(text.charAt(i))) { // 上一块已结束，且新行不是缩进的延续内容
+                    boundaries.add(i);
+                }
+                blankBefore = false;
+                hasContent = true;
+            }
+            if(!complete) { // 最后一行尚未完整，不更新状态
+                break;
+            }
+
+            int fenceStart = skipIndent(text, i, lineEnd);
+            int fenceCount = countRepeat(text, fenceStart, lineEnd);
+            char c = fenceStart < lineEnd ? text.charAt(fenceStart) : 0;
+            if((c == '`' || c == '~') && fenceCount >= 3) {
+                if(fenceChar == 0 && !inDollarMath && !inBracketMath) { // 代码块开始
+                    fenceChar = c;
+                    fenceLength = fenceCount;
+                } else if(c == fenceChar && fenceCount >= fenceLength && isBlank(text, fenceStart + fenceCount, lineEnd)) { // 代码块结束
+                    fenceChar = 0;
+                    blankBefore = true; // 代码块结束后的新行总是新的块
+                }
+            } else if(fenceChar == 0) {
+                if(countOccurrences(text, "$$", i, lineEnd) % 2 == 1) {
+                    inDollarMath = !inDollarMath;
+                }
+                if(inBracketMath) {
+                    if(text.indexOf("\\]", i) >= 0 && text.indexOf("\\]", i) < lineEnd) {
+                        inBracketMath = false;
+                    }
+                } else {
+                    int open = text.lastIndexOf("\\[", lineEnd - 1);
+                    if(open >= i) {
+                        int close = text.indexOf("\\]", open);
+                        inBracketMath = close < 0 || close >= lineEnd;
+                    }
+                }
+            }
+            i = lineEnd + 1;
+        }
+        return boundaries;
+    }
+
+    private static boolean isBlank(String text, int start, int end) {
+        for(int i = start; i < end; i++) {
+            if(!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipIndent(String text, int start, int end) {
+        int i = start;
+        while(i < end && i - start < 3 && text.charAt(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int countRepeat(String text, int start, int end) {
+        if(start >= end) {
+            return 0;
+        }
+        char c = text.charAt(start);
+        int i = start;
+        while(i < end && text.charAt(i) == c) {
+            i++;
+        }
+        return i - start;
+    }
+
+    private static int countOccurrences(String text, String target, int start, int end) {
+        int count = 0;
+        int index = text.indexOf(target, start);
+        while(index >= 0 && index + target.length() <= end) {
+            count++;
+            index = text.indexOf(target, index + target.length());
+        }
+        return count;
+    }
+}
@@ -0,0 +1,230 @@
+package com.skythinker.gptassistant;
+
+import java.util.regex.Pattern;
+
+// Markdown预处理：在代码块之外将“$...$”、“\[...\]”、“\(...\)”转换为“$$...$$”，为图片添加指向同一URL的链接，将开头的<think>内容转换为代码块
+// 使用手写扫描代替逐个正则替换，结果与原正则替换链一致；含有\r等其他换行符时正则的行为较复杂，退回使用正则
+public class MarkdownPreprocessor {
+    private static final Pattern DOLLAR_PATTERN = Pattern.compile("(?<!\\$)\\$(?!\\$)([^\\n]*?)(?<!\\$)\\$(?!\\$)"); // 匹配单行内的“$...$”
+    private static final Pattern BRACKETS_PATTERN = Pattern.compile("(?s)\\\\\\[(.*?)\\\\\\]"); // 跨行匹配“\[...\]”
+    private static final Pattern PARENTHESES_PATTERN = Pattern.compile("\\\\\\(([^\\n]*?)\\\\\\)"); // 匹配单行内的“\(...\)”
+    private static final Pattern IMAGE_PATTERN = Pattern.compile("!\\[(.*?)\\]\\((.*?)\\)"); // 匹配“![...](...)”
+    private static final Pattern THINK_COMPLETE_PATTERN = Pattern.compile("(?s)^<think>\\n(.*?)\\n</think>\\n"); // 匹配开头的“<think>...</think>”
+    private static final Pattern THINK_START_PATTERN = Pattern.compile("(?s)^<think>\\n(.*?)$"); // 匹配开头的“<think>...”到结尾
+    private static final String LATEX_REPLACEMENT = "\\$\\$$1\\$\\$"; // 替换为“$$...$$”
+    private static final String IMAGE_REPLACEMENT = "[$0]($2)"; // 替换为“[![...](...)](...)”
+    private static final String THINK_START = "<think>\n";
+    private static final String THINK_END = "\n</think>\n";
+
+    private static final byte EDIT_DOUBLE_DOLLAR = 1; // 将“$”替换为“$$”
+    private static final byte EDIT_TWO_CHARS = 2; // 将两个字符的定界符替换为“$$”
+
+    private final String thinkHeader, thinkingHeader;
+
+    public MarkdownPreprocessor(String thinkHeader, String thinkingHeader) {
+        this.thinkHeader = thinkHeader;
+        this.thinkingHeader = thinkingHeader;
+    }
+
+    public String process(String markdown) {
+        StringBuilder sb = new StringBuilder(markdown.length() + 64);
+        int start = 0;
+        boolean inCode = false;
+        while(true) { // 按“```”分段，跳过代码块不处理
+            int end = markdown.indexOf("```", start);
+            String segment = markdown.substring(start, end < 0 ? markdown.length() : end);
+            sb.append(inCode ? segment : processSegment(segment));
+            if(end < 0) {
+                break;
+            }
+            sb.append("```");
+            start = end + 3;
+            inCode = !inCode;
+        }
+        return sb.toString();
+    }
+
+    private String processSegment(String text) {
+        if(hasOtherLineTerminator(text) || hasSpecialChars(thinkHeader) || hasSpecialChars(thinkingHeader)) {
+            return processWithRegex(text);
+        }
+        String result = replaceLatexDelimiters(text);
+        if(result.contains("![")) {
+            result = wrapImages(result);
+        }
+        if(result.startsWith(THINK_START)) {
+            result = convertThink(result);
+        }
+        return result;
+    }
+
+    // 一次扫描标出三种公式定界符的位置，再一次性输出
+    private static String replaceLatexDelimiters(String text) {
+        int length = text.length();
+        if(text.indexOf('$') < 0 && text.indexOf('\\') < 0) {
+            return text;
+        }
+        byte[] edits = new byte[length];
+        int editCount = 0;
+        for(int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if(c == '$' && isSingleDollar(text, i)) {
+                int close = findDollarClose(text, i);
+                if(close >= 0) {
+                    edits[i] = edits[close] = EDIT_DOUBLE_DOLLAR;
+                    editCount += 2;
+                    i = close; // 继续在右定界符之后查找（其后紧跟的“$”因前一字符为“$”不会成为左定界符）
+                }
+            }
+        }
+        for(int i = 0; i + 1 < length; i++) { // “\[...\]”，可跨行
+            if(text.charAt(i) == '\\' && text.charAt(i + 1) == '[') {
+                int close = text.indexOf("\\]", i + 2);
+                if(close < 0) {
+                    break;
+                }
+                edits[i] = edits[close] = EDIT_TWO_CHARS;
+                editCount += 2;
+                i = close + 1;
+            }
+        }
+        for(int i = 0; i + 1 < length; i++) { // “\(...\)”，限单行
+            if(text.charAt(i) == '\\' && text.charAt(i + 1) == '(') {
+                int close = findParenthesesClose(text, i + 2);
+                if(close >= 0) {
+                    edits[i] = edits[close] = EDIT_TWO_CHARS;
+                    editCount += 2;
+                    i = close + 1;
+                }
+            }
+        }
+        if(editCount == 0) {
+            return text;
+        }
+        StringBuilder sb = new StringBuilder(length + editCount);
+        int last = 0;
+        for(int i = 0; i < length; i++) {
+            if(edits[i] == EDIT_DOUBLE_DOLLAR) {
+                sb.append(text, last, i).append("$$");
+                last = i + 1;
+            } else if(edits[i] == EDIT_TWO_CHARS) {
+                sb.append(text, last, i).append("$$");
+                last = i + 2;
+                i++;
+            }
+        }
+        sb.append(text, last, length);
+        return sb.toString();
+    }
+
+    // 前后都不是“$”的单个“$”
+    private static boolean isSingleDollar(String text, int index) {
+        return (index == 0 || text.charAt(index - 1) != '$') && (index + 1 >= text.length() || text.charAt(index + 1) != '$');
+    }
+
+    // 查找同一行内与左定界符配对的最近的单个“$”（内容非空）
+    private static int findDollarClose(String text, int open) {
+        for(int j = open + 1; j < text.length(); j++) {
+            char c = text.charAt(j);
+            if(c == '\n') {
+                return -1;
+            }
+            if(c == '$' && isSingleDollar(text, j)) {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    private static int findParenthesesClose(String text, int from) {
+        for(int j = from; j + 1 < text.length(); j++) {
+            char c = text.charAt(j);
+            if(c == '\n') {
+                return -1;
+            }
+            if(c == '\\' && text.charAt(j + 1) == ')') {
+                return j;
+            }
+        }
+        return -1;
+    }
+
+    // 将“![alt](url)”替换为“[![alt](url)](url)”，各部分均不跨行
+    private static String wrapImages(String text) {
+        int length = text.length();
+        StringBuilder sb = null;
+        int last = 0;
+        for(int i = 0; i + 1 < length; i++) {
+            if(text.charAt(i) != '!' || text.charAt(i + 1) != '[') {
+                continue;
+            }
+            int altEnd = -1, urlEnd = -1;
+            for(int j = i + 2; j < length && text.charAt(j) != '\n'; j++) {
+                if(altEnd < 0) {
+                    if(text.charAt(j) == ']' && j + 1 < length && text.charAt(j + 1) == '(') {
+                        altEnd = j;
+                        j++;
+                    }
+                } else if(text.charAt(j) == ')') {
+                    urlEnd = j;
+                    break;
+                }
+            }
+            if(urlEnd < 0) {
+                continue;
+            }
+            if(sb == null) {
+                sb = new StringBuilder(length + 32);
+            }
+            sb.append(text, last, i).append('[').append(text, i, urlEnd + 1)
+                    .append("](").append(text, altEnd + 2, urlEnd).append(')');
+            last = urlEnd + 1;
+            i = urlEnd;
+        }
+        if(sb == null) {
+            return text;
+        }
+        sb.append(text, last, length);
+        return sb.toString();
+    }
+
+    // 将开头的<think>内容转换为代码块（已结束和未结束两种情况）
+    private String convertThink(String text) {
+        int contentStart = THINK_START.length();
+        int thinkEnd = text.indexOf(THINK_END, contentStart);
+        if(thinkEnd >= 0) {
+            return "```text\n" + thinkHeader + "\n\n" + text.substring(contentStart, thinkEnd) + "\n```\n"
+                    + text.substring(thinkEnd + THINK_END.length());
+        }
+        int contentEnd = text.length(); // 与正则的“$”一致：结尾为换行时内容不包括该换行
+        if(text.endsWith("\n") && text.length() - 1 >= contentStart) {
+            contentEnd = text.length() - 1;
+        }
+        return "```text\n" + thinkingHeader + "\n\n" + text.substring(contentStart, contentEnd) + "\n```\n" + text.substring(contentEnd);
+    }
+
+    // 原正则替换链
+    String processWithRegex(String text) {
+        text = DOLLAR_PATTERN.matcher(text).replaceAll(LATEX_REPLACEMENT);
+        text = BRACKETS_PATTERN.matcher(text).replaceAll(LATEX_REPLACEMENT);
+        text = PARENTHESES_PATTERN.matcher(text).replaceAll(LATEX_REPLACEMENT);
+        text = IMAGE_PATTERN.matcher(text).replaceAll(IMAGE_REPLACEMENT);
+        text = THINK_COMPLETE_PATTERN.matcher(text).replaceAll("```text\n" + thinkHeader + "\n\n$1\n```\n");
+        text = THINK_START_PATTERN.matcher(text).replaceAll("```text\n" + thinkingHeader + "\n\n$1\n```\n");
+        return text;
+    }
+
+    private static boolean hasOtherLineTerminator(String text) {
+        for(int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if(c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasSpecialChars(String replacement) {
+        return replacement.indexOf('$') >= 0 || replacement.indexOf('\\') >= 0;
+    }
+}
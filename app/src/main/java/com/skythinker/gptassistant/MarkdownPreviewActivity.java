@@ -56,7 +56,7 @@ public class MarkdownPreviewActivity extends Activity {
             tvPreview.setText(R.string.text_markdown_preview_loading);
             String url = recv_intent.getStringExtra("url");
             new Thread(() -> {
-                OkHttpClient client = new OkHttpClient();
+                OkHttpClient client = NetworkStack.getClient();
                 Request request = new Request.Builder()
                         .url(url)
                         .build();
@@ -4,7 +4,10 @@ import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Layout;
+import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.TextPaint;
 import android.text.style.ClickableSpan;
@@ -15,13 +18,15 @@ import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.text.PrecomputedTextCompat;
+import androidx.core.widget.TextViewCompat;
 
 import org.commonmark.node.FencedCodeBlock;
 import org.commonmark.node.Image;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import io.noties.markwon.AbstractMarkwonPlugin;
 import io.noties.markwon.LinkResolver;
@@ -39,14 +44,45 @@ import io.noties.markwon.image.ImagesPlugin;
 import io.noties.markwon.inlineparser.MarkwonInlineParserPlugin;
 import io.noties.markwon.linkify.LinkifyPlugin;
 import io.noties.markwon.movement.MovementMethodPlugin;
+import io.noties.markwon.syntax.Prism4jSyntaxHighlight;
 import io.noties.markwon.syntax.Prism4jThemeDefault;
 import io.noties.markwon.syntax.SyntaxHighlightPlugin;
 import io.noties.markwon.utils.LeadingMarginUtils;
 import io.noties.prism4j.Prism4j;
 
 public class MarkdownRenderer {
+    private static final float LATEX_TEXT_SIZE = 40; // 公式字号（px）
+
     private final Context context;
-    private final Markwon markwon;
+    private final Markwon markwon; // 仅在主线程使用
+    private final MarkdownPreprocessor preprocessor;
+    private final LatexCache latexCache;
+    private final CodeHighlightCache codeHighlightCache;
+
+    // 流式渲染在后台线程解析Markdown并预计算文字排版，主线程只负责替换文本
+    private static final ExecutorService renderExecutor = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final AtomicInteger renderGeneration = new AtomicInteger(); // 每次渲染请求递增，用于丢弃过时的渲染结果
+    private TextView pendingView = null; // 等待后台渲染的最新请求
+    private String pendingMarkdown = null;
+    private StreamTextBuffer pendingSource = null;
+    private int pendingClearCount = 0;
+    private PrecomputedTextCompat.Params pendingParams = null;
+    private int pendingTextColor = 0;
+    private int pendingGeneration = 0;
+    private boolean renderScheduled = false;
+    private TextView streamingRequestView = null; // 最近一次流式渲染请求的TextView（仅在主线程访问）
+
+    // 流式渲染的缓存（仅在后台渲染线程访问）：已完成的块只解析一次，之后每次只重新解析末尾未完成的部分
+    private TextView streamingView = null;
+    private volatile boolean streamingInvalidated = false; // 主线程对同一TextView进行了完整渲染，需要清空缓存
+    private StreamTextBuffer streamingSource = null; // 已缓存块所属的文本，清空次数不变时内容只追加，已缓存的原文必然是当前文本的前缀
+    private int streamingClearCount = 0;
+    private int streamingSourceLength = 0; // 已缓存块的原文长度
+    private SpannableStringBuilder streamingSpanned = new SpannableStringBuilder(); // 已缓存块的渲染结果
+    private int streamingTextColor = 0; // 当前请求的文字颜色，用于公式缓存
+    private Markwon streamingMarkwon = null; // 后台解析使用独立的Markwon实例，不与主线程的解析互相等待
+    private CodeHighlightCache streamingHighlightCache = null;
 
     class ClickToCopySpan extends ClickableSpan {
         @Override
@@ -107,8 +143,37 @@ public class MarkdownRenderer {
 
     public MarkdownRenderer(Context context) {
         this.context = context;
-        markwon = Markwon.builder(context)
-                .usePlugin(SyntaxHighlightPlugin.create(new Prism4j(new GrammarLocatorDef()), Prism4jThemeDefault.create(0)))
+        latexCache = LatexCache.getInstance(context);
+        Prism4j prism4j = new Prism4j(new GrammarLocatorDef());
+        Prism4jThemeDefault prism4jTheme = Prism4jThemeDefault.create(0);
+        codeHighlightCache = new CodeHighlightCache(Prism4jSyntaxHighlight.create(prism4j, prism4jTheme));
+        preprocessor = new MarkdownPreprocessor(context.getString(R.string.text_think_header), context.getString(R.string.text_thinking_header));
+        markwon = createMarkwon(prism4j, prism4jTheme, codeHighlightCache);
+    }
+
+    // 创建Markwon实例，每个实例只能在一个线程中解析（Prism4j的语法缓存等不支持并发访问）
+    private Markwon createMarkwon(Prism4j prism4j, Prism4jThemeDefault prism4jTheme, CodeHighlightCache highlightCache) {
+        return Markwon.builder(context)
+                .textSetter((textView, markdown, bufferType, onComplete) -> { // 后台预计算的文本直接使用排版结果
+                    if(markdown instanceof PrecomputedTextCompat) {
+                        try {
+                            TextViewCompat.setPrecomputedText(textView, (PrecomputedTextCompat) markdown);
+                            onComplete.run();
+                            return;
+                        } catch (IllegalArgumentException e) { // 预计算后TextView的文字参数发生了变化
+                            Trace.d("MarkdownRenderer", "precomputed text params mismatch");
+                        }
+                    }
+                    textView.setText(markdown, bufferType);
+                    onComplete.run();
+                })
+                .usePlugin(SyntaxHighlightPlugin.create(prism4j, prism4jTheme))
+                .usePlugin(new AbstractMarkwonPlugin() { // 使用带缓存的代码高亮
+                    @Override
+                    public void configureConfiguration(@NonNull MarkwonConfiguration.Builder builder) {
+                        builder.syntaxHighlight(highlightCache);
+                    }
+                })
                 .usePlugin(new AbstractMarkwonPlugin() {
                     @Override
                     public void configureSpansFactory(@NonNull MarkwonSpansFactory.Builder builder) {
@@ -116,7 +181,7 @@ public class MarkdownRenderer {
 //                        builder.appendFactory(FencedCodeBlock.class, (configuration, props) -> new CopyIconSpan());
                     }
                 })
-                .usePlugin(JLatexMathPlugin.create(40, builder -> builder.inlinesEnabled(true)))
+                .usePlugin(JLatexMathPlugin.create(LATEX_TEXT_SIZE, builder -> builder.inlinesEnabled(true)))
                 .usePlugin(ImagesPlugin.create())
                 .usePlugin(MarkwonInlineParserPlugin.create())
                 .usePlugin(LinkifyPlugin.create())
@@ -124,30 +189,7 @@ public class MarkdownRenderer {
                     @NonNull
                     @Override
                     public String processMarkdown(@NonNull String markdown) { // 预处理MD文本
-                        List<String> sepList = new ArrayList<>(Arrays.asList(markdown.split("```", -1)));
-                        for (int i = 0; i < sepList.size(); i += 2) { // 跳过代码块不处理
-                            // 解决仅能渲染“$$...$$”公式的问题
-                            String regexDollar = "(?<!\\$)\\$(?!\\$)([^\\n]*?)(?<!\\$)\\$(?!\\$)"; // 匹配单行内的“$...$”
-                            String regexBrackets = "(?s)\\\\\\[(.*?)\\\\\\]"; // 跨行匹配“\[...\]”
-                            String regexParentheses = "\\\\\\(([^\\n]*?)\\\\\\)"; // 匹配单行内的“\(...\)”
-                            String latexReplacement = "\\$\\$$1\\$\\$"; // 替换为“$$...$$”
-                            // 为图片添加指向同一URL的链接
-                            String regexImage = "!\\[(.*?)\\]\\((.*?)\\)"; // 匹配“![...](...)”
-                            String imageReplacement = "[$0]($2)"; // 替换为“[![...](...)](...)”
-                            // 将开头的<think>内容替换为代码块
-                            String regexThinkComplete = "(?s)^<think>\\n(.*?)\\n</think>\\n"; // 匹配开头的“<think>...</think>”
-                            String thinkCompleteReplacement = "```text\n" + context.getString(R.string.text_think_header) + "\n\n$1\n```\n"; // 替换为代码块
-                            String regexThinkStart = "(?s)^<think>\\n(.*?)$"; // 匹配开头的“<think>...”到结尾
-                            String thinkStartReplacement = "```text\n" + context.getString(R.string.text_thinking_header) + "\n\n$1\n```\n"; // 替换为代码块
-                            // 进行替换
-                            sepList.set(i, sepList.get(i).replaceAll(regexDollar, latexReplacement)
-                                    .replaceAll(regexBrackets, latexReplacement)
-                                    .replaceAll(regexParentheses, latexReplacement)
-                                    .replaceAll(regexImage, imageReplacement)
-                                    .replaceAll(regexThinkComplete, thinkCompleteReplacement)
-                                    .replaceAll(regexThinkStart, thinkStartReplacement));
-                        }
-                        return String.join("```", sepList);
+                        return preprocessor.process(markdown);
                     }
                 })
                 .usePlugin(new AbstractMarkwonPlugin() { // 设置图片大小
@@ -196,11 +238,180 @@ public class MarkdownRenderer {
     public void render(TextView textView, String markdown) {
         if(textView != null && markdown != null) {
             try {
-                markwon.setMarkdown(textView, markdown);
+                setParsed(textView, parse(textView, markdown));
 //                Log.d("MarkdownRenderer", "render: " + markdown);
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
     }
+
+    // 解析Markdown（需在主线程调用），结果可以缓存，之后通过setParsed显示
+    public Spanned parse(TextView textView, String markdown) {
+        Spanned spanned = markwon.toMarkdown(markdown);
+        latexCache.apply(spanned, LATEX_TEXT_SIZE, textView.getCurrentTextColor());
+        return spanned;
+    }
+
+    // 显示解析结果，会丢弃该TextView正在进行的流式渲染
+    public void setParsed(TextView textView, Spanned spanned) {
+        cancelStreaming(textView);
+        markwon.setParsedMarkdown(textView, spanned);
+    }
+
+    // 丢弃该TextView正在进行的流式渲染，并清空其缓存（TextView将显示其他内容时调用）
+    public void cancelStreaming(TextView textView) {
+        if(textView == streamingRequestView) {
+            renderGeneration.incrementAndGet();
+            streamingInvalidated = true;
+            streamingRequestView = null;
+        }
+    }
+
+    // 增量渲染流式输出的Markdown（需在主线程调用），在后台解析和排版后再显示，后台忙时只保留最新的一次请求
+    public void renderStreaming(TextView textView, StreamTextBuffer source) {
+        if(textView == null || source == null) {
+            return;
+        }
+        String markdown;
+        int clearCount;
+        synchronized (source) { // 内容与清空次数一致
+            markdown = source.toString();
+            clearCount = source.getClearCount();
+        }
+        PrecomputedTextCompat.Params params = TextViewCompat.getTextMetricsParams(textView);
+        streamingRequestView = textView;
+        synchronized (this) {
+            pendingView = textView;
+            pendingMarkdown = markdown;
+            pendingSource = source;
+            pendingClearCount = clearCount;
+            pendingParams = params;
+            pendingTextColor = textView.getCurrentTextColor();
+            pendingGeneration = renderGeneration.incrementAndGet();
+            if(renderScheduled) {
+                return;
+            }
+            renderScheduled = true;
+        }
+        renderExecutor.execute(this::renderPending);
+    }
+
+    // 在后台线程渲染最新的流式请求
+    private void renderPending() {
+        TextView textView;
+        String markdown;
+        StreamTextBuffer source;
+        int clearCount;
+        PrecomputedTextCompat.Params params;
+        int generation;
+        int textColor;
+        synchronized (this) {
+            textView = pendingView;
+            markdown = pendingMarkdown;
+            source = pendingSource;
+            clearCount = pendingClearCount;
+            params = pendingParams;
+            generation = pendingGeneration;
+            textColor = pendingTextColor;
+            pendingView = null;
+            pendingMarkdown = null;
+            pendingSource = null;
+            pendingParams = null;
+            renderScheduled = false;
+        }
+        if(markdown == null) {
+            return;
+        }
+        try {
+            long startTime = System.currentTimeMillis();
+            if(streamingMarkwon == null) { // 首次流式渲染时创建，代码高亮结果与主线程共享缓存
+                Prism4j prism4j = new Prism4j(new GrammarLocatorDef());
+                Prism4jThemeDefault prism4jTheme = Prism4jThemeDefault.create(0);
+                streamingHighlightCache = codeHighlightCache.share(Prism4jSyntaxHighlight.create(prism4j, prism4jTheme));
+                streamingMarkwon = createMarkwon(prism4j, prism4jTheme, streamingHighlightCache);
+            }
+            Markwon renderer = streamingMarkwon;
+            streamingTextColor = textColor;
+            Spanned spanned = buildStreaming(textView, source, clearCount, markdown);
+            if(generation != renderGeneration.get()) { // 已有更新的内容，跳过排版
+                return;
+            }
+            PrecomputedTextCompat precomputed = PrecomputedTextCompat.create(spanned, params);
+            MetricsRegistry.record("ui.stream_parse_ms", System.currentTimeMillis() - startTime, MetricsRegistry.FRAME_BUCKETS_MS);
+            handler.post(() -> {
+                if(generation == renderGeneration.get()) {
+                    renderer.setParsedMarkdown(textView, precomputed); // 由解析所用的实例安排公式、图片等的加载
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // 构建流式内容的渲染结果，复用已完成块的缓存
+    // 同一文本在两次清空之间只追加，无需逐字比较已缓存的前缀
+    private Spanned buildStreaming(TextView textView, StreamTextBuffer source, int clearCount, String markdown) {
+        if(textView != streamingView || streamingInvalidated || source != streamingSource || clearCount != streamingClearCount
+                || markdown.length() < streamingSourceLength) {
+            resetStreaming(textView, source, clearCount);
+        }
+        int blockStart = streamingSourceLength;
+        if(blockStart == 0 && markdown.startsWith("<think>\n")) { // 思维链整体作为一个块，结束前不缓存
+            int thinkEnd = markdown.indexOf("\n</think>\n");
+            if(thinkEnd < 0) {
+                return parseBlock(markdown, true);
+            }
+            blockStart = thinkEnd + "\n</think>\n".length();
+            appendStableBlock(markdown.substring(0, blockStart));
+        }
+        for(int boundary : MarkdownBlockSplitter.findBoundaries(markdown, blockStart)) {
+            appendStableBlock(markdown.substring(blockStart, boundary));
+            blockStart = boundary;
+        }
+        SpannableStringBuilder result = new SpannableStringBuilder(streamingSpanned);
+        appendBlock(result, parseBlock(markdown.substring(blockStart), true)); // 只解析未完成的部分
+        return result;
+    }
+
+    private void resetStreaming(TextView textView, StreamTextBuffer source, int clearCount) {
+        streamingView = textView;
+        streamingInvalidated = false;
+        streamingSource = source;
+        streamingClearCount = clearCount;
+        streamingSourceLength = 0;
+        streamingSpanned = new SpannableStringBuilder();
+    }
+
+    private void appendStableBlock(String block) {
+        appendBlock(streamingSpanned, parseBlock(block, false));
+        streamingSourceLength += block.length();
+    }
+
+    // 解析新的内容，其中的公式优先使用缓存（已缓存的块不再重复查询），tail表示末尾未完成的部分
+    private Spanned parseBlock(String markdown, boolean tail) {
+        Spanned spanned;
+        streamingHighlightCache.setStreamingTail(tail);
+        try {
+            spanned = streamingMarkwon.toMarkdown(markdown);
+        } finally {
+            streamingHighlightCache.setStreamingTail(false);
+        }
+        latexCache.apply(spanned, LATEX_TEXT_SIZE, streamingTextColor);
+        return spanned;
+    }
+
+    // 按Markwon块之间的格式（空一行）拼接渲染结果
+    private static void appendBlock(SpannableStringBuilder builder, Spanned block) {
+        if(block.length() == 0) {
+            return;
+        }
+        if(builder.length() > 0) {
+            if(builder.charAt(builder.length() - 1) != '\n') {
+                builder.append('\n');
+            }
+            builder.append('\n');
+        }
+        builder.append(block);
+    }
 }
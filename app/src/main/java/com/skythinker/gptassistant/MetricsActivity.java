@@ -0,0 +1,80 @@
+package com.skythinker.gptassistant;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.graphics.Color;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.View;
+import android.view.WindowManager;
+import android.widget.TextView;
+
+import java.io.File;
+
+// 性能统计页面，显示MetricsRegistry中的指标，可导出为JSON
+public class MetricsActivity extends Activity {
+    private static final long REFRESH_INTERVAL_MS = 1000;
+
+    TextView tvMetrics;
+    Handler handler = new Handler();
+    Runnable refreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            tvMetrics.setText(MetricsRegistry.formatSummary());
+            handler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+
+        overridePendingTransition(R.anim.translate_left_in, R.anim.translate_right_out); // 进入动画
+
+        getWindow().clearFlags(WindowManager.LayoutParams.FLAG_TRANSLUCENT_STATUS); // 沉浸式状态栏
+        getWindow().addFlags(WindowManager.LayoutParams.FLAG_DRAWS_SYSTEM_BAR_BACKGROUNDS);
+        getWindow().setStatusBarColor(Color.parseColor("#F5F6F7"));
+        getWindow().getDecorView().setSystemUiVisibility(View.SYSTEM_UI_FLAG_LIGHT_STATUS_BAR);
+
+        tvMetrics = findViewById(R.id.tv_metrics);
+
+        (findViewById(R.id.bt_metrics_back)).setOnClickListener(view -> finish());
+
+        (findViewById(R.id.bt_metrics_reset)).setOnClickListener(view -> {
+            MetricsRegistry.reset();
+            tvMetrics.setText(MetricsRegistry.formatSummary());
+            GlobalUtils.showToast(this, R.string.toast_metrics_reset, false);
+        });
+
+        (findViewById(R.id.bt_metrics_export)).setOnClickListener(view -> { // 以JSON格式分享
+            Intent intent = new Intent(Intent.ACTION_SEND);
+            intent.setType("application/json");
+            intent.putExtra(Intent.EXTRA_SUBJECT, "metrics.json");
+            intent.putExtra(Intent.EXTRA_TEXT, MetricsRegistry.toJson().toStringPretty());
+            startActivity(Intent.createChooser(intent, getString(R.string.text_metrics_title)));
+        });
+
+        (findViewById(R.id.bt_metrics_export)).setOnLongClickListener(view -> { // 长按导出Trace日志到文件
+            try {
+                File file = Trace.dumpToFile(this);
+                GlobalUtils.showToast(this, getString(R.string.toast_trace_dumped) + file.getAbsolutePath(), true);
+            } catch (Exception e) {
+                GlobalUtils.showToast(this, getString(R.string.toast_trace_dump_failed) + e.getMessage(), true);
+            }
+            return true;
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        handler.post(refreshRunnable);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refreshRunnable);
+    }
+}
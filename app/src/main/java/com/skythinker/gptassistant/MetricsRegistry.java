@@ -0,0 +1,185 @@
+package com.skythinker.gptassistant;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+
+// 进程内的性能指标（计数器+固定分桶直方图），只做原子加法，可在正式版中常开
+public class MetricsRegistry {
+    public static final long[] LATENCY_BUCKETS_MS = {50, 100, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000, 8000, 12000, 20000, 30000, 60000};
+    public static final long[] RATE_BUCKETS = {1, 2, 5, 10, 15, 20, 30, 40, 60, 80, 100, 150, 200};
+    public static final long[] FRAME_BUCKETS_MS = {2, 4, 8, 12, 16, 24, 33, 50, 100, 200, 500};
+    public static final long[] SIZE_BUCKETS = {256, 1024, 4096, 16384, 65536, 262144, 1048576, 4194304};
+
+    // 固定分桶直方图，最后一个桶存放大于所有边界的值
+    public static class Histogram {
+        private final long[] bounds;
+        private final AtomicLongArray buckets;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+        Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.buckets = new AtomicLongArray(bounds.length + 1);
+        }
+
+        public void record(long value) {
+            int low = 0, high = bounds.length; // 二分查找第一个不小于value的边界
+            while(low < high) {
+                int mid = (low + high) >>> 1;
+                if(bounds[mid] < value) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            buckets.incrementAndGet(low);
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long currentMax;
+            while(value > (currentMax = max.get()) && !max.compareAndSet(currentMax, value)) { }
+        }
+
+        public long getCount() { return count.get(); }
+
+        // 估算分位数，返回所在桶的上边界（超出最大边界时返回最大值）
+        public long getPercentile(double percentile) {
+            long total = count.get();
+            if(total == 0) {
+                return 0;
+            }
+            long target = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for(int i = 0; i < bounds.length; i++) {
+                seen += buckets.get(i);
+                if(seen >= target) {
+                    return Math.min(bounds[i], max.get());
+                }
+            }
+            return max.get();
+        }
+
+        JSONObject toJson() {
+            long total = count.get();
+            JSONArray bucketArray = new JSONArray();
+            for(int i = 0; i <= bounds.length; i++) {
+                bucketArray.add(new JSONObject()
+                        .set("le", i < bounds.length ? String.valueOf(bounds[i]) : "inf")
+                        .set("count", buckets.get(i)));
+            }
+            return new JSONObject()
+                    .set("count", total)
+                    .set("sum", sum.get())
+                    .set("mean", total == 0 ? 0 : sum.get() / total)
+                    .set("max", total == 0 ? 0 : max.get())
+                    .set("p50", getPercentile(0.5))
+                    .set("p90", getPercentile(0.9))
+                    .set("p99", getPercentile(0.99))
+                    .set("buckets", bucketArray);
+        }
+
+        void reset() {
+            for(int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            sum.set(0);
+            max.set(Long.MIN_VALUE);
+        }
+    }
+
+    private static final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static long startTime = System.currentTimeMillis();
+
+    // 计数器加一
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    // 计数器增加指定值
+    public static void add(String name, long delta) {
+        AtomicLong counter = counters.get(name);
+        if(counter == null) {
+            counter = counters.computeIfAbsent(name, k -> new AtomicLong());
+        }
+        counter.addAndGet(delta);
+    }
+
+    // 记录一个延迟值（毫秒）
+    public static void recordLatency(String name, long ms) {
+        record(name, ms, LATENCY_BUCKETS_MS);
+    }
+
+    // 记录一个值，首次记录时按给定分桶创建直方图
+    public static void record(String name, long value, long[] bounds) {
+        Histogram histogram = histograms.get(name);
+        if(histogram == null) {
+            histogram = histograms.computeIfAbsent(name, k -> new Histogram(bounds));
+        }
+        histogram.record(value);
+    }
+
+    public static long getCounter(String name) {
+        AtomicLong counter = counters.get(name);
+        return counter == null ? 0 : counter.get();
+    }
+
+    public static Histogram getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    // 清空所有指标
+    public static void reset() {
+        for(AtomicLong counter : counters.values()) {
+            counter.set(0);
+        }
+        for(Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+        startTime = System.currentTimeMillis();
+    }
+
+    // 导出为JSON
+    public static JSONObject toJson() {
+        JSONObject counterJson = new JSONObject();
+        for(Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+            counterJson.set(entry.getKey(), entry.getValue().get());
+        }
+        JSONObject histogramJson = new JSONObject();
+        for(Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            histogramJson.set(entry.getKey(), entry.getValue().toJson());
+        }
+        return new JSONObject()
+                .set("since", startTime)
+                .set("exported", System.currentTimeMillis())
+                .set("counters", counterJson)
+                .set("histograms", histogramJson);
+    }
+
+    // 生成便于阅读的文本摘要
+    public static String formatSummary() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("uptime: %ds\n\n", (System.currentTimeMillis() - startTime) / 1000));
+        sb.append("[histograms]  count  p50  p90  p99  max\n");
+        for(Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram histogram = entry.getValue();
+            if(histogram.getCount() == 0) {
+                continue;
+            }
+            sb.append(String.format("%s\n    %d  %d  %d  %d  %d\n", entry.getKey(), histogram.getCount(),
+                    histogram.getPercentile(0.5), histogram.getPercentile(0.9), histogram.getPercentile(0.99), histogram.max.get()));
+        }
+        sb.append("\n[counters]\n");
+        for(Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+            sb.append(String.format("%s = %d\n", entry.getKey(), entry.getValue().get()));
+        }
+        return sb.toString();
+    }
+}
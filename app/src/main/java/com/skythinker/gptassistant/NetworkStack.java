@@ -0,0 +1,133 @@
+package com.skythinker.gptassistant;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.ConnectionSpec;
+import okhttp3.Dispatcher;
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+// 进程内共享的网络栈，所有OkHttpClient都从这里派生，以复用连接池、线程池和DNS缓存
+public class NetworkStack {
+    private static final long DNS_CACHE_TTL_MS = 5 * 60 * 1000; // DNS缓存有效期
+    private static final long PREWARM_INTERVAL_MS = 30 * 1000; // 同一主机预热的最小间隔
+
+    private static final ConnectionPool connectionPool = new ConnectionPool(8, 5, TimeUnit.MINUTES);
+    private static final ExecutorService executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<>(), r -> {
+                Thread thread = new Thread(r, "NetworkStack");
+                thread.setDaemon(true);
+                return thread;
+            });
+    private static final CachingDns dns = new CachingDns();
+    private static final Map<String, Long> prewarmTimes = new ConcurrentHashMap<>();
+
+    private static OkHttpClient sharedClient = null;
+
+    // 带TTL的DNS缓存，避免每次请求都重新解析API域名
+    private static class CachingDns implements Dns {
+        private static class Entry {
+            final List<InetAddress> addresses;
+            final long expireTime;
+            Entry(List<InetAddress> addresses, long expireTime) {
+                this.addresses = addresses;
+                this.expireTime = expireTime;
+            }
+        }
+
+        private final Map<String, Entry> cache = new ConcurrentHashMap<>();
+
+        @NonNull
+        @Override
+        public List<InetAddress> lookup(@NonNull String hostname) throws UnknownHostException {
+            Entry entry = cache.get(hostname);
+            long now = System.currentTimeMillis();
+            if(entry != null && entry.expireTime > now) {
+                return entry.addresses;
+            }
+            List<InetAddress> addresses = Dns.SYSTEM.lookup(hostname);
+            cache.put(hostname, new Entry(addresses, now + DNS_CACHE_TTL_MS));
+            return addresses;
+        }
+
+        void evict(String hostname) {
+            cache.remove(hostname);
+        }
+    }
+
+    // 获取共享的OkHttpClient（适用于一次性的普通请求）
+    public static synchronized OkHttpClient getClient() {
+        if(sharedClient == null) {
+            sharedClient = new OkHttpClient.Builder()
+                    .connectionPool(connectionPool)
+                    .dispatcher(new Dispatcher(executor))
+                    .dns(dns)
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)) // 优先HTTP/2，同一主机的请求复用一条连接
+                    .connectionSpecs(Arrays.asList(ConnectionSpec.MODERN_TLS, ConnectionSpec.COMPATIBLE_TLS, ConnectionSpec.CLEARTEXT))
+                    .connectTimeout(30, TimeUnit.SECONDS)
+                    .readTimeout(30, TimeUnit.SECONDS)
+                    .writeTimeout(30, TimeUnit.SECONDS)
+                    .retryOnConnectionFailure(true)
+                    .build();
+        }
+        return sharedClient;
+    }
+
+    // 派生一个拥有独立Dispatcher的Builder，便于调用方单独取消或统计自己的请求，连接池和线程池仍是共享的
+    public static OkHttpClient.Builder newClientBuilder() {
+        return getClient().newBuilder()
+                .dispatcher(new Dispatcher(executor));
+    }
+
+    // 预先建立到指定主机的连接（DNS+TCP+TLS），使随后的请求可以直接复用
+    public static void prewarm(String url) {
+        HttpUrl httpUrl = url == null ? null : HttpUrl.parse(url);
+        if(httpUrl == null) {
+            return;
+        }
+        String key = httpUrl.scheme() + "://" + httpUrl.host() + ":" + httpUrl.port();
+        long now = System.currentTimeMillis();
+        Long lastTime = prewarmTimes.get(key);
+        if(lastTime != null && now - lastTime < PREWARM_INTERVAL_MS) { // 最近已预热过，连接仍在池中
+            return;
+        }
+        prewarmTimes.put(key, now);
+
+        Request request = new Request.Builder()
+                .url(httpUrl.newBuilder().encodedPath("/").query(null).build())
+                .head()
+                .build();
+        getClient().newCall(request).enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                Trace.d("NetworkStack", "prewarm failed: %s %s", httpUrl.host(), e.getMessage());
+                prewarmTimes.remove(key);
+                dns.evict(httpUrl.host()); // 解析结果可能已失效，下次重新解析
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                response.close(); // 只需要连接，丢弃响应内容后连接回到池中
+            }
+        });
+    }
+}
@@ -133,7 +133,7 @@ public class OnlineTemplatesActivity extends Activity {
         });
 
         new Thread(() -> {
-            OkHttpClient client = new OkHttpClient();
+            OkHttpClient client = NetworkStack.getClient();
             Request request = new Request.Builder()
                     .url(getString(GlobalDataHolder.getUseGitee() ? R.string.shared_templates_url_gitee : R.string.shared_templates_url_github))
                     .build();
@@ -0,0 +1,412 @@
+package com.skythinker.gptassistant;
+
+import androidx.annotation.NonNull;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONUtil;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+// 构建/v1/chat/completions的请求体，缓存每条消息序列化后的JSON片段，新一轮对话只需序列化新增的消息
+public class PromptPayloadBuilder {
+    private static final MediaType JSON_TYPE = MediaType.parse("application/json; charset=utf-8");
+    private static final byte[] COMMA = {','};
+    private static final byte[] MESSAGES_END = {']'};
+
+    // 单条消息的缓存片段，同时记录生成时的消息状态，状态变化后片段失效
+    private static class Fragment {
+        ChatRole role;
+        String contentText; // 按引用比较，消息文本被替换后重新序列化
+        Object[] toolCallState; // 每个函数调用的对象及id/name/arguments/content引用
+        Object[] attachmentState; // 每个附件的对象及type/uuid/content引用
+        boolean contentListMode;
+        boolean visionSupported;
+        List<Object> segments; // 已序列化的byte[]片段，或需要在写入时编码的图片文件
+        long length; // 片段写入请求体后的总字节数
+
+        Fragment(ChatMessage message, boolean contentListMode, boolean visionSupported) {
+            role = message.role;
+            contentText = message.contentText;
+            toolCallState = toolCallState(message);
+            attachmentState = attachmentState(message);
+            this.contentListMode = contentListMode;
+            this.visionSupported = visionSupported;
+        }
+
+        boolean matches(ChatMessage message, boolean contentListMode, boolean visionSupported) {
+            return role == message.role
+                    && contentText == message.contentText
+                    && this.contentListMode == contentListMode
+                    && this.visionSupported == visionSupported
+                    && toolCallsMatch(message)
+                    && attachmentsMatch(message);
+        }
+
+        // 函数调用的参数和结果在流式接收、执行函数时会被原地修改，需逐个字段记录
+        private static Object[] toolCallState(ChatMessage message) {
+            Object[] state = new Object[message.toolCalls.size() * 5];
+            int i = 0;
+            for(ChatMessage.ToolCall toolCall : message.toolCalls) {
+                state[i++] = toolCall;
+                state[i++] = toolCall.id;
+                state[i++] = toolCall.functionName;
+                state[i++] = toolCall.arguments;
+                state[i++] = toolCall.content;
+            }
+            return state;
+        }
+
+        private boolean toolCallsMatch(ChatMessage message) {
+            if(toolCallState.length != message.toolCalls.size() * 5) {
+                return false;
+            }
+            int i = 0;
+            for(ChatMessage.ToolCall toolCall : message.toolCalls) {
+                if(toolCallState[i++] != toolCall || toolCallState[i++] != toolCall.id || toolCallState[i++] != toolCall.functionName
+                        || toolCallState[i++] != toolCall.arguments || toolCallState[i++] != toolCall.content) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // 附件被替换或更换内容（文件名随内容变化）时失效
+        private static Object[] attachmentState(ChatMessage message) {
+            Object[] state = new Object[message.attachments.size() * 4];
+            int i = 0;
+            for(ChatMessage.Attachment attachment : message.attachments) {
+                state[i++] = attachment;
+                state[i++] = attachment.type;
+                state[i++] = attachment.uuid;
+                state[i++] = attachment.content;
+            }
+            return state;
+        }
+
+        private boolean attachmentsMatch(ChatMessage message) {
+            if(attachmentState.length != message.attachments.size() * 4) {
+                return false;
+            }
+            int i = 0;
+            for(ChatMessage.Attachment attachment : message.attachments) {
+                if(attachmentState[i++] != attachment || attachmentState[i++] != attachment.type
+                        || attachmentState[i++] != attachment.uuid || attachmentState[i++] != attachment.content) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final Map<ChatMessage, Fragment> fragmentCache = new WeakHashMap<>(); // 消息被删除后缓存随之回收
+    private ChatMessage[] lastMessages = new ChatMessage[0]; // 上次构建的消息列表及对应片段，新一轮对话中历史消息的位置不变
+    private Fragment[] lastFragments = new Fragment[0];
+
+    private JSONArray tools = null;
+    private byte[] toolsJson = null;
+
+    // 设置函数列表（null或空表示不使用函数），函数列表变化时才重新序列化
+    public synchronized void setTools(JSONArray tools) {
+        this.tools = tools;
+        this.toolsJson = null;
+    }
+
+    // 构建请求体
+    public synchronized RequestBody build(List<ChatMessage> promptList, String model, float temperature, boolean visionSupported) {
+        boolean contentListMode = false; // 含有附件时使用contentList格式，否则使用普通content格式（兼容旧模型）
+        for(ChatMessage message : promptList) {
+            if(message.attachments.size() > 0) {
+                contentListMode = true;
+                break;
+            }
+        }
+
+        StringBuilder head = new StringBuilder();
+        head.append("{\"model\":").append(JSONUtil.quote(model, true))
+            .append(",\"stream\":true")
+            .append(",\"temperature\":").append(temperature);
+        if(tools != null && tools.size() > 0) {
+            if(toolsJson == null) {
+                toolsJson = tools.toString().getBytes(StandardCharsets.UTF_8);
+            }
+            head.append(",\"tool_choice\":\"auto\"");
+        }
+        head.append(",\"messages\":[");
+
+        List<Object> parts = new ArrayList<>(promptList.size() * 2 + 4);
+        List<Object> tail = new ArrayList<>(4);
+        parts.add(head.toString().getBytes(StandardCharsets.UTF_8));
+        ChatMessage[] messages = new ChatMessage[promptList.size()];
+        Fragment[] fragments = new Fragment[promptList.size()];
+        long length = 0;
+        for(int i = 0; i < promptList.size(); i++) {
+            if(i > 0) {
+                parts.add(COMMA);
+                length += COMMA.length;
+            }
+            messages[i] = promptList.get(i);
+            fragments[i] = getFragment(messages[i], i < lastMessages.length && lastMessages[i] == messages[i] ? lastFragments[i] : null,
+                    contentListMode, visionSupported);
+            for(Object segment : fragments[i].segments) { // 逐个添加，addAll会为每条消息复制一次数组
+                parts.add(segment);
+            }
+            length += fragments[i].length;
+        }
+        lastMessages = messages;
+        lastFragments = fragments;
+        tail.add(MESSAGES_END);
+        if(tools != null && tools.size() > 0) {
+            tail.add(",\"tools\":".getBytes(StandardCharsets.UTF_8));
+            tail.add(toolsJson);
+        }
+        tail.add(new byte[]{'}'});
+        length += lengthOf(parts.subList(0, 1)) + lengthOf(tail);
+        parts.addAll(tail);
+
+        return new FragmentsBody(parts, length);
+    }
+
+    // 清空所有缓存片段
+    public synchronized void clear() {
+        fragmentCache.clear();
+        lastMessages = new ChatMessage[0];
+        lastFragments = new Fragment[0];
+    }
+
+    // 获取消息的片段，previous为上次构建时同一位置的片段（消息相同时），命中时省去查找缓存
+    private Fragment getFragment(ChatMessage message, Fragment previous, boolean contentListMode, boolean visionSupported) {
+        Fragment fragment = previous != null ? previous : fragmentCache.get(message);
+        if(fragment != null && fragment.matches(message, contentListMode, visionSupported)) {
+            return fragment;
+        }
+        fragment = new Fragment(message, contentListMode, visionSupported);
+        fragment.segments = serialize(message, contentListMode, visionSupported);
+        fragment.length = lengthOf(fragment.segments);
+        fragmentCache.put(message, fragment);
+        return fragment;
+    }
+
+    // 计算片段写入后的字节数，图片文件按Base64编码后的长度计算（文件名即内容哈希，内容不会变化）
+    private static long lengthOf(List<Object> segments) {
+        long length = 0;
+        for(Object segment : segments) {
+            if(segment instanceof byte[]) {
+                length += ((byte[]) segment).length;
+            } else {
+                length += (((File) segment).length() + 2) / 3 * 4;
+            }
+        }
+        return length;
+    }
+
+    // 去除回复开头的思维链内容
+    static String stripThink(String text) {
+        if(text == null || !text.startsWith("<think>\n")) {
+            return text;
+        }
+        return text.replaceFirst("(?s)^<think>\\n.*?\\n</think>\\n", "");
+    }
+
+    // 将一条消息序列化为OpenAI格式的JSON对象，图片附件以文件形式留在片段中
+    private static List<Object> serialize(ChatMessage message, boolean contentListMode, boolean visionSupported) {
+        List<Object> segments = new ArrayList<>(1);
+        StringBuilder sb = new StringBuilder();
+        if(message.role == ChatRole.SYSTEM) {
+            sb.append("{\"role\":\"system\"");
+            appendContent(sb, segments, message, message.contentText, contentListMode, visionSupported);
+        } else if(message.role == ChatRole.USER) {
+            sb.append("{\"role\":\"user\"");
+            appendContent(sb, segments, message, message.contentText, contentListMode, visionSupported);
+        } else if(message.role == ChatRole.ASSISTANT) {
+            sb.append("{\"role\":\"assistant\"");
+            if(message.toolCalls.size() > 0) {
+                if(!contentListMode) {
+                    sb.append(",\"content\":\"\"");
+                }
+                if(message.toolCalls.get(0).id != null) { // 用tool方式回复
+                    sb.append(",\"tool_calls\":[");
+                    for(int i = 0; i < message.toolCalls.size(); i++) {
+                        ChatMessage.ToolCall toolCall = message.toolCalls.get(i);
+                        if(i > 0) {
+                            sb.append(',');
+                        }
+                        sb.append("{\"id\":").append(JSONUtil.quote(toolCall.id, true))
+                          .append(",\"type\":\"function\",\"function\":");
+                        appendFunctionCall(sb, toolCall);
+                        sb.append('}');
+                    }
+                    sb.append(']');
+                } else { // 用function方式回复（历史遗留）
+                    sb.append(",\"function_call\":");
+                    appendFunctionCall(sb, message.toolCalls.get(0));
+                }
+            } else {
+                appendContent(sb, segments, message, stripThink(message.contentText), contentListMode, visionSupported); // 去除思维链内容
+            }
+        } else if(message.role == ChatRole.FUNCTION) {
+            ChatMessage.ToolCall toolCall = message.toolCalls.get(0);
+            if(toolCall.id != null) { // 用tool方式回复
+                sb.append("{\"role\":\"tool\",\"tool_call_id\":").append(JSONUtil.quote(toolCall.id, true));
+            } else { // 用function方式回复（历史遗留）
+                sb.append("{\"role\":\"function\"");
+            }
+            if(toolCall.functionName != null) {
+                sb.append(",\"name\":").append(JSONUtil.quote(toolCall.functionName, true));
+            }
+            if(contentListMode) {
+                appendContent(sb, segments, message, message.contentText, true, visionSupported);
+            } else if(toolCall.content != null) {
+                sb.append(",\"content\":").append(JSONUtil.quote(toolCall.content, true));
+            }
+        }
+        sb.append('}');
+        segments.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+        return segments;
+    }
+
+    private static void appendFunctionCall(StringBuilder sb, ChatMessage.ToolCall toolCall) {
+        sb.append('{');
+        boolean hasName = toolCall.functionName != null;
+        if(hasName) {
+            sb.append("\"name\":").append(JSONUtil.quote(toolCall.functionName, true));
+        }
+        if(toolCall.arguments != null) {
+            if(hasName) {
+                sb.append(',');
+            }
+            sb.append("\"arguments\":").append(JSONUtil.quote(toolCall.arguments, true));
+        }
+        sb.append('}');
+    }
+
+    // 写入content字段，contentList格式下依次包含文本、函数结果和附件
+    private static void appendContent(StringBuilder sb, List<Object> segments, ChatMessage message, String text, boolean contentListMode, boolean visionSupported) {
+        if(!contentListMode) {
+            if(text != null) {
+                sb.append(",\"content\":").append(JSONUtil.quote(text, true));
+            }
+            return;
+        }
+        sb.append(",\"content\":[");
+        boolean first = true;
+        if(text != null) {
+            first = appendTextPart(sb, text, first);
+        }
+        for(ChatMessage.ToolCall toolCall : message.toolCalls) { // 处理函数调用
+            if(toolCall.content != null) {
+                first = appendTextPart(sb, toolCall.content, first);
+            }
+        }
+        for(ChatMessage.Attachment attachment : message.attachments) { // 处理附件
+            if(attachment.type == ChatMessage.Attachment.Type.IMAGE && visionSupported) {
+                File file = new File(attachment.getFilePath());
+                if(attachment.content == null && !file.exists()) { // 图片文件已丢失
+                    continue;
+                }
+                if(!first) {
+                    sb.append(',');
+                }
+                first = false;
+                sb.append("{\"type\":\"image_url\",\"image_url\":{\"url\":\"data:image/jpeg;base64,");
+                if(attachment.content != null) { // 旧数据仍保存在内存中，base64字符集无需转义
+                    sb.append(attachment.content);
+                } else { // 先输出已有内容，图片在写入请求体时再编码
+                    segments.add(sb.toString().getBytes(StandardCharsets.UTF_8));
+                    sb.setLength(0);
+                    segments.add(file);
+                }
+                sb.append("\"}}");
+            } else if(attachment.type == ChatMessage.Attachment.Type.TEXT && attachment.content != null) {
+                first = appendTextPart(sb, attachment.content, first);
+            }
+        }
+        sb.append(']');
+    }
+
+    private static boolean appendTextPart(StringBuilder sb, String text, boolean first) {
+        if(!first) {
+            sb.append(',');
+        }
+        sb.append("{\"type\":\"text\",\"text\":").append(JSONUtil.quote(text, true)).append('}');
+        return false;
+    }
+
+    // 由已序列化片段和图片文件组成的请求体，直接写入连接，图片按固定大小分块进行Base64编码，内存占用与图片数量无关
+    private static class FragmentsBody extends RequestBody {
+        private static final int CHUNK_SIZE = 3 * 4096; // 必须是3的倍数，保证分块编码结果可以直接拼接
+
+        private final List<Object> parts;
+        private final long length;
+
+        FragmentsBody(List<Object> parts, long length) {
+            this.parts = parts;
+            this.length = length;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return JSON_TYPE;
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(@NonNull BufferedSink sink) throws IOException {
+            byte[] buffer = null;
+            byte[] encoded = null;
+            for(Object part : parts) {
+                if(part instanceof byte[]) {
+                    sink.write((byte[]) part);
+                    continue;
+                }
+                if(buffer == null) {
+                    buffer = new byte[CHUNK_SIZE];
+                    encoded = new byte[CHUNK_SIZE / 3 * 4];
+                }
+                try(InputStream in = new FileInputStream((File) part)) {
+                    int len;
+                    while((len = readFully(in, buffer)) > 0) {
+                        if(len == CHUNK_SIZE) {
+                            int n = Base64.getEncoder().encode(buffer, encoded);
+                            sink.write(encoded, 0, n);
+                        } else { // 最后一块，带填充
+                            sink.write(Base64.getEncoder().encode(Arrays.copyOf(buffer, len)));
+                        }
+                    }
+                }
+            }
+        }
+
+        // 读满缓冲区或直到文件结束，返回读取的字节数
+        private static int readFully(InputStream in, byte[] buffer) throws IOException {
+            int total = 0;
+            while(total < buffer.length) {
+                int n = in.read(buffer, total, buffer.length - total);
+                if(n < 0) {
+                    break;
+                }
+                total += n;
+            }
+            return total;
+        }
+    }
+}
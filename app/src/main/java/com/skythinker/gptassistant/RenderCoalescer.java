@@ -0,0 +1,97 @@
+package com.skythinker.gptassistant;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+// 合并流式增量的界面刷新：任意线程可调用request()，在主线程的下一帧统一刷新一次
+// 刷新间隔随刷新耗时自适应：刷新越慢间隔越长，保证主线程大部分时间可用于响应操作
+public class RenderCoalescer {
+    public interface OnFlushListener {
+        void onFlush(); // 在主线程调用
+    }
+
+    private static final long MIN_INTERVAL_MS = 16; // 约一帧
+    private static final long MAX_INTERVAL_MS = 250;
+    private static final int LOAD_FACTOR = 3; // 刷新间隔至少为刷新耗时的倍数，即刷新最多占用1/3的主线程时间
+
+    private final OnFlushListener listener;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private volatile boolean dirty = false;
+    private boolean framePending = false; // 仅在主线程访问
+    private long lastFlushTime = 0;
+    private long interval = MIN_INTERVAL_MS;
+
+    private final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            framePending = false;
+            if(!dirty) {
+                return;
+            }
+            if(SystemClock.uptimeMillis() - lastFlushTime < interval) { // 未到刷新间隔，等待后续帧
+                postFrame();
+                return;
+            }
+            flush();
+        }
+    };
+
+    private final Runnable postFrameRunnable = this::postFrame;
+
+    public RenderCoalescer(OnFlushListener listener) {
+        this.listener = listener;
+    }
+
+    // 标记有新内容需要刷新
+    public void request() {
+        dirty = true;
+        if(Looper.myLooper() == Looper.getMainLooper()) {
+            postFrame();
+        } else {
+            handler.post(postFrameRunnable);
+        }
+    }
+
+    private void postFrame() {
+        if(!framePending && dirty) {
+            framePending = true;
+            Choreographer.getInstance().postFrameCallback(frameCallback);
+        }
+    }
+
+    // 立即刷新等待中的内容（需在主线程调用）
+    public void flushNow() {
+        if(dirty) {
+            flush();
+        }
+    }
+
+    // 丢弃等待中的刷新（需在主线程调用）
+    public void cancel() {
+        dirty = false;
+        handler.removeCallbacks(postFrameRunnable);
+        if(framePending) {
+            Choreographer.getInstance().removeFrameCallback(frameCallback);
+            framePending = false;
+        }
+    }
+
+    private void flush() {
+        dirty = false;
+        long startTime = SystemClock.uptimeMillis();
+        listener.onFlush();
+        long cost = SystemClock.uptimeMillis() - startTime;
+        lastFlushTime = SystemClock.uptimeMillis();
+        interval = Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, cost * LOAD_FACTOR));
+        MetricsRegistry.record("ui.stream_render_ms", cost, MetricsRegistry.FRAME_BUCKETS_MS);
+    }
+
+    // 开始新的回复时重置自适应状态
+    public void reset() {
+        cancel();
+        lastFlushTime = 0;
+        interval = MIN_INTERVAL_MS;
+    }
+}
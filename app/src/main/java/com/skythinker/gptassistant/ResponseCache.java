@@ -0,0 +1,169 @@
+package com.skythinker.gptassistant;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import cn.hutool.crypto.digest.DigestUtil;
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+
+// 单次请求的本地回复缓存（LRU+TTL，持久化到磁盘），用于模板中@cache开启且非连续对话的请求
+// 磁盘读写都在单独的线程中进行：创建时开始加载，加载完成前查询视为未命中；写入后延迟合并保存
+public class ResponseCache {
+    private static final int MAX_ENTRIES = 200; // 最大缓存条数
+    private static final long TTL_MS = 7L * 24 * 60 * 60 * 1000; // 缓存有效期
+    private static final long SAVE_DELAY_MS = 2000; // 连续写入合并为一次保存
+
+    private static final ScheduledExecutorService diskExecutor = Executors.newSingleThreadScheduledExecutor(); // 所有实例共用，保证同一文件的读写按顺序执行
+
+    private static class Entry {
+        final String response;
+        final long time;
+        Entry(String response, long time) {
+            this.response = response;
+            this.time = time;
+        }
+    }
+
+    private final File file;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) { // 按访问顺序排列，实现LRU
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private boolean loaded = false;
+    private boolean savePending = false;
+    private int hitCount = 0;
+    private int missCount = 0;
+
+    public ResponseCache(File file) {
+        this.file = file;
+        diskExecutor.execute(this::load);
+    }
+
+    // 根据消息列表、模型、温度和函数列表计算缓存键
+    public static String makeKey(List<ChatMessage> promptList, String model, float temperature, JSONArray tools) {
+        JSONArray messages = new JSONArray();
+        for(ChatMessage message : promptList) {
+            messages.put(message.toJson());
+        }
+        return DigestUtil.sha256Hex(model + "\n" + temperature + "\n" + tools + "\n" + messages);
+    }
+
+    // 查询缓存，未命中、已过期或尚未加载完成返回null
+    public synchronized String get(String key) {
+        Entry entry = entries.get(key);
+        if(entry != null && System.currentTimeMillis() - entry.time > TTL_MS) { // 已过期
+            entries.remove(key);
+            entry = null;
+        }
+        if(entry == null) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.response;
+    }
+
+    // 写入缓存，稍后在后台保存到磁盘
+    public synchronized void put(String key, String response) {
+        entries.put(key, new Entry(response, System.currentTimeMillis()));
+        if(!savePending) {
+            savePending = true;
+            diskExecutor.schedule(this::save, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // 清空缓存
+    public synchronized void clear() {
+        entries.clear();
+        loaded = true; // 尚未执行的加载不再读取文件
+        savePending = false;
+        diskExecutor.execute(file::delete);
+    }
+
+    public synchronized int getHitCount() { return hitCount; }
+    public synchronized int getMissCount() { return missCount; }
+    public synchronized int size() { return entries.size(); }
+
+    // 在后台线程从磁盘加载，跳过已过期的条目；加载期间写入的条目比文件中的更新，保留在最近使用的位置
+    private void load() {
+        synchronized(this) {
+            if(loaded) {
+                return;
+            }
+        }
+        LinkedHashMap<String, Entry> loadedEntries = new LinkedHashMap<>();
+        if(file.exists()) {
+            try {
+                JSONArray array = new JSONArray(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+                long now = System.currentTimeMillis();
+                for(int i = 0; i < array.size(); i++) { // 文件中按LRU顺序保存，依次插入即可恢复访问顺序
+                    JSONObject json = array.getJSONObject(i);
+                    long time = json.getLong("time", 0L);
+                    if(now - time <= TTL_MS) {
+                        loadedEntries.put(json.getStr("key"), new Entry(json.getStr("response"), time));
+                    }
+                }
+            } catch (Exception e) {
+                Trace.w("ResponseCache", e, "load failed, cache discarded");
+                loadedEntries.clear();
+            }
+        }
+        synchronized(this) {
+            if(loaded) { // 加载期间被清空
+                return;
+            }
+            loaded = true;
+            LinkedHashMap<String, Entry> newer = new LinkedHashMap<>(entries);
+            entries.clear();
+            entries.putAll(loadedEntries);
+            entries.putAll(newer);
+            Trace.d("ResponseCache", "loaded %d entries", loadedEntries.size());
+        }
+    }
+
+    // 在后台线程保存，只在持有锁时生成快照
+    private void save() {
+        JSONArray array = new JSONArray();
+        synchronized(this) {
+            if(!savePending) {
+                return;
+            }
+            savePending = false;
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+            while(iterator.hasNext()) {
+                Map.Entry<String, Entry> item = iterator.next();
+                if(now - item.getValue().time > TTL_MS) {
+                    iterator.remove();
+                    continue;
+                }
+                array.put(new JSONObject()
+                        .set("key", item.getKey())
+                        .set("response", item.getValue().response)
+                        .set("time", item.getValue().time));
+            }
+        }
+        try {
+            File tmpFile = new File(file.getPath() + ".tmp");
+            Files.write(tmpFile.toPath(), array.toString().getBytes(StandardCharsets.UTF_8));
+            if(!tmpFile.renameTo(file)) {
+                Trace.w("ResponseCache", "save failed: rename");
+            }
+        } catch (Exception e) {
+            Trace.w("ResponseCache", e, "save failed");
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package com.skythinker.gptassistant;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// 流式TTS断句：逐段接收回复原文，每个字符只处理一次，去除Markdown标记后按句输出可朗读的纯文本
+// 跳过开头的<think>思维链、代码块和公式；英文句点区分小数、缩写和首字母，首句较长时在逗号处提前断开以便尽快开始朗读
+public class SentenceSegmenter {
+    private static final String THINK_START = "<think>\n";
+    private static final String THINK_END = "\n</think>\n";
+    private static final int FIRST_CLAUSE_MIN_CHARS = 8; // 首句达到此长度后可在逗号处断开
+    private static final int MAX_SENTENCE_CHARS = 100; // 句子超过此长度后在逗号处断开
+    private static final Set<String> ABBREVIATIONS = new HashSet<>(Arrays.asList(
+            "mr", "mrs", "ms", "dr", "prof", "sr", "jr", "st", "vs", "etc", "e.g", "i.e", "inc", "ltd",
+            "co", "no", "fig", "approx", "dept", "est", "vol", "ca", "cf", "al")); // 其后的句点不是句末
+    private static final String TERMINATORS = "。！？；…!?;"; // 句末标点（不含英文句点）
+    private static final String CLOSINGS = "”’\"'）)」』】》"; // 跟在句末标点后的右引号和括号
+
+    private final StringBuilder raw = new StringBuilder(); // 尚未处理的原文（等待后续内容才能判断的部分）
+    private final StringBuilder sentence = new StringBuilder(); // 当前句子已输出的纯文本
+    private boolean started = false; // 已判断过开头是否为<think>
+    private boolean inThink = false;
+    private boolean lineStart = true;
+    private String codeFence = null; // 所在代码块的围栏，不在代码块中时为null
+    private String mathClose = null; // 所在公式的结束定界符，不在公式中时为null
+    private boolean inLinkUrl = false; // 在链接的“(url)”部分中
+    private boolean boundaryPending = false; // 已遇到句末标点，等待其后的右引号和括号
+    private int sentenceCount = 0; // 已输出的句子数
+
+    // 追加一段原文，返回其中已完成的句子
+    public synchronized List<String> append(CharSequence delta) {
+        List<String> sentences = new ArrayList<>();
+        raw.append(delta);
+        process(false, sentences);
+        return sentences;
+    }
+
+    // 原文已结束，返回剩余的句子
+    public synchronized List<String> finish() {
+        List<String> sentences = new ArrayList<>();
+        process(true, sentences);
+        endSentence(sentences);
+        return sentences;
+    }
+
+    // 清空状态，开始新的回复
+    public synchronized void reset() {
+        raw.setLength(0);
+        sentence.setLength(0);
+        started = false;
+        inThink = false;
+        lineStart = true;
+        codeFence = null;
+        mathClose = null;
+        inLinkUrl = false;
+        boundaryPending = false;
+        sentenceCount = 0;
+    }
+
+    private void process(boolean end, List<String> out) {
+        int i = 0;
+        if(!started) {
+            if(!end && raw.length() < THINK_START.length() && THINK_START.startsWith(raw.toString())) { // 还不能判断是否以<think>开头
+                return;
+            }
+            started = true;
+            if(startsWith(raw, 0, THINK_START)) {
+                inThink = true;
+                i = THINK_START.length();
+            }
+        }
+        while(i < raw.length()) {
+            int next;
+            if(inThink) {
+                next = skipThink(i, end);
+            } else if(codeFence != null) {
+                next = skipCodeLine(i, end, out);
+            } else if(mathClose != null) {
+                next = skipMath(i, end);
+            } else if(lineStart) {
+                next = consumeLineStart(i, end, out);
+            } else {
+                next = consumeInline(i, end, out);
+            }
+            if(next < 0) { // 需要更多内容才能判断
+                break;
+            }
+            i = next;
+        }
+        raw.delete(0, i);
+    }
+
+    private int skipThink(int i, boolean end) {
+        int close = raw.indexOf(THINK_END, i);
+        if(close >= 0) {
+            inThink = false;
+            lineStart = true;
+            return close + THINK_END.length();
+        }
+        int keep = end ? 0 : THINK_END.length() - 1; // 保留末尾可能是结束标签开头的部分
+        int next = Math.max(i, raw.length() - keep);
+        return next > i ? next : -1;
+    }
+
+    private int skipCodeLine(int i, boolean end, List<String> out) {
+        int lineEnd = raw.indexOf("\n", i);
+        if(lineEnd < 0 && !end) {
+            return -1;
+        }
+        int contentEnd = lineEnd < 0 ? raw.length() : lineEnd;
+        if(raw.substring(i, contentEnd).trim().startsWith(codeFence)) { // 代码块结束
+            codeFence = null;
+        }
+        lineStart = true;
+        return lineEnd < 0 ? raw.length() : lineEnd + 1;
+    }
+
+    private int skipMath(int i, boolean end) {
+        int close = raw.indexOf(mathClose, i);
+        int lineEnd = raw.indexOf("\n", i);
+        boolean inline = mathClose.equals("$") || mathClose.equals("\\)");
+        if(inline && lineEnd >= 0 && (close < 0 || lineEnd < close)) { // 行内公式不跨行，未闭合则到行尾结束
+            mathClose = null;
+            return lineEnd;
+        }
+        if(close >= 0) {
+            int next = close + mathClose.length();
+            mathClose = null;
+            sentence.append(' ');
+            return next;
+        }
+        int keep = end ? 0 : mathClose.length() - 1;
+        int next = Math.max(i, raw.length() - keep);
+        return next > i ? next : -1;
+    }
+
+    // 处理行首的Markdown标记（标题、引用、列表、代码块围栏、分隔线、表格分隔行）
+    private int consumeLineStart(int i, boolean end, List<String> out) {
+        int length = raw.length();
+        int j = i;
+        while(j < length && (raw.charAt(j) == ' ' || raw.charAt(j) == '\t')) {
+            j++;
+        }
+        if(j == length) {
+            return end ? length : -1;
+        }
+        char c = raw.charAt(j);
+        if(c == '\n') { // 空行
+            endSentence(out);
+            return j + 1;
+        }
+        if(!end && length - j < 4 && raw.indexOf("\n", j) < 0) { // 内容不足以判断行首标记
+            return -1;
+        }
+        int lineEnd = raw.indexOf("\n", j);
+        if(startsWith(raw, j, "```") || startsWith(raw, j, "~~~")) { // 代码块开始，整行跳过
+            if(lineEnd < 0 && !end) {
+                return -1;
+            }
+            endSentence(out);
+            codeFence = raw.substring(j, j + 3);
+            return lineEnd < 0 ? length : lineEnd + 1;
+        }
+        if((c == '-' || c == '*' || c == '_' || c == '|') && (c == '|' || charAt(j + 1) == c && charAt(j + 2) == c)) { // 可能是分隔线或表格行，需要整行判断
+            if(lineEnd < 0 && !end) {
+                return -1;
+            }
+            int contentEnd = lineEnd < 0 ? length : lineEnd;
+            if(isRuleLine(j, contentEnd)) {
+                endSentence(out);
+                return lineEnd < 0 ? length : lineEnd + 1;
+            }
+        }
+        lineStart = false;
+        if(c == '#') { // 标题
+            while(j < length && raw.charAt(j) == '#') {
+                j++;
+            }
+            return j;
+        }
+        if(c == '>') { // 引用，其后可能还有其他标记
+            lineStart = true;
+            return j + 1;
+        }
+        if((c == '-' || c == '*' || c == '+') && charAt(j + 1) == ' ') { // 无序列表
+            return j + 2;
+        }
+        if(Character.isDigit(c)) { // 有序列表
+            int k = j;
+            while(k < length && Character.isDigit(raw.charAt(k))) {
+                k++;
+            }
+            if(k + 1 >= length && !end) {
+                lineStart = true;
+                return -1;
+            }
+            if((charAt(k) == '.' || charAt(k) == ')') && charAt(k + 1) == ' ') {
+                return k + 2;
+            }
+        }
+        return j;
+    }
+
+    // 处理一个行内的字符或标记
+    private int consumeInline(int i, boolean end, List<String> out) {
+        int length = raw.length();
+        char c = raw.charAt(i);
+        if(inLinkUrl) { // 跳过链接地址
+            int close = raw.indexOf(")", i);
+            if(close >= 0) {
+                inLinkUrl = false;
+                return close + 1;
+            }
+            return length;
+        }
+        if(boundaryPending) {
+            if(CLOSINGS.indexOf(c) >= 0 || TERMINATORS.indexOf(c) >= 0 || c == '.') { // 连续的标点归入当前句
+                sentence.append(c);
+                return i + 1;
+            }
+            endSentence(out);
+        }
+        boolean needNext = i + 1 >= length && !end;
+        char next = i + 1 < length ? raw.charAt(i + 1) : '\n';
+        switch(c) {
+            case '\n':
+                endSentence(out);
+                lineStart = true;
+                return i + 1;
+            case '`': case '*': case '_': case '~': case '[':
+                return i + 1;
+            case ']':
+                if(needNext) {
+                    return -1;
+                }
+                if(next == '(') {
+                    inLinkUrl = true;
+                    return i + 2;
+                }
+                return i + 1;
+            case '$':
+                if(needNext) {
+                    return -1;
+                }
+                mathClose = next == '$' ? "$$" : "$";
+                return i + mathClose.length();
+            case '\\':
+                if(needNext) {
+                    return -1;
+                }
+                if(next == '(' || next == '[') {
+                    mathClose = next == '(' ? "\\)" : "\\]";
+                    return i + 2;
+                }
+                if(next != '\n') { // 转义字符
+                    sentence.append(next);
+                    return i + 2;
+                }
+                return i + 1;
+            case '!':
+                if(needNext) {
+                    return -1;
+                }
+                if(next == '[') { // 图片，整体跳过
+                    int close = raw.indexOf("](", i);
+                    int urlEnd = close < 0 ? -1 : raw.indexOf(")", close);
+                    if(urlEnd >= 0) {
+                        return urlEnd + 1;
+                    }
+                    return end ? length : -1;
+                }
+                break;
+            case '<':
+                if(needNext) {
+                    return -1;
+                }
+                if(Character.isLetter(next) || next == '/') { // HTML标签
+                    int close = raw.indexOf(">", i);
+                    int lineEnd = raw.indexOf("\n", i);
+                    if(close >= 0 && (lineEnd < 0 || close < lineEnd)) {
+                        return close + 1;
+                    }
+                    if(lineEnd < 0 && !end) {
+                        return -1;
+                    }
+                }
+                break;
+            case '|':
+                sentence.append(' ');
+                return i + 1;
+            case '.':
+                if(needNext) {
+                    return -1;
+                }
+                sentence.append(c);
+                if(isSentenceEndDot(next)) {
+                    boundaryPending = true;
+                }
+                return i + 1;
+            case ',': case '，': case '、':
+                sentence.append(c);
+                int letters = countLetters();
+                if((sentenceCount == 0 && letters >= FIRST_CLAUSE_MIN_CHARS) || sentence.length() >= MAX_SENTENCE_CHARS) {
+                    boundaryPending = true;
+                }
+                return i + 1;
+        }
+        sentence.append(c);
+        if(TERMINATORS.indexOf(c) >= 0) {
+            boundaryPending = true;
+        }
+        return i + 1;
+    }
+
+    // 判断英文句点是否为句末（已追加到sentence末尾）
+    private boolean isSentenceEndDot(char next) {
+        if(next == '.') { // 省略号，由最后一个点判断
+            return false;
+        }
+        if(!Character.isWhitespace(next) && CLOSINGS.indexOf(next) < 0) { // 小数、文件名、网址等
+            return false;
+        }
+        int wordEnd = sentence.length() - 1;
+        int wordStart = wordEnd;
+        while(wordStart > 0 && (Character.isLetterOrDigit(sentence.charAt(wordStart - 1)) || sentence.charAt(wordStart - 1) == '.')) {
+            wordStart--;
+        }
+        String word = sentence.substring(wordStart, wordEnd).toLowerCase();
+        if(word.isEmpty()) {
+            return true;
+        }
+        if(ABBREVIATIONS.contains(word) || (word.length() == 1 && Character.isLetter(word.charAt(0)) && Character.isUpperCase(sentence.charAt(wordStart)))) { // 缩写或首字母
+            return false;
+        }
+        return !(wordStart == 0 && isDigits(word)); // 句首的数字（如列表序号）
+    }
+
+    private boolean isRuleLine(int start, int end) {
+        boolean hasMarker = false;
+        for(int k = start; k < end; k++) {
+            char c = raw.charAt(k);
+            if(c == '-' || c == '*' || c == '_') {
+                hasMarker = true;
+            } else if(c != ' ' && c != '|' && c != ':' && c != '\t') {
+                return false;
+            }
+        }
+        return hasMarker;
+    }
+
+    private void endSentence(List<String> out) {
+        boundaryPending = false;
+        String text = sentence.toString().replaceAll("\\s+", " ").trim();
+        sentence.setLength(0);
+        if(countLetters(text) > 0) { // 只有标点的片段不朗读
+            out.add(text);
+            sentenceCount++;
+        }
+    }
+
+    private int countLetters() {
+        return countLetters(sentence);
+    }
+
+    private static int countLetters(CharSequence text) {
+        int count = 0;
+        for(int k = 0; k < text.length(); k++) {
+            if(Character.isLetterOrDigit(text.charAt(k))) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean isDigits(String text) {
+        for(int k = 0; k < text.length(); k++) {
+            if(!Character.isDigit(text.charAt(k))) {
+                return false;
+            }
+        }
+        return !text.isEmpty();
+    }
+
+    private char charAt(int index) {
+        return index < raw.length() ? raw.charAt(index) : '\n';
+    }
+
+    private static boolean startsWith(StringBuilder text, int offset, String prefix) {
+        if(offset + prefix.length() > text.length()) {
+            return false;
+        }
+        for(int k = 0; k < prefix.length(); k++) {
+            if(text.charAt(offset + k) != prefix.charAt(k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
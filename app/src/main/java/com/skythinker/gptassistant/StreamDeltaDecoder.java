@@ -0,0 +1,424 @@
+package com.skythinker.gptassistant;
+
+import java.util.Arrays;
+
+// 流式回复（SSE）数据块解码器
+// 单次扫描chunk文本，只提取choices[0]中的delta/finish_reason和顶层的usage，不构建JSON对象树
+public class StreamDeltaDecoder {
+    // 解码事件回调，同一个chunk中的事件按：函数调用/正文/思维链 -> 结束原因 -> 用量 的顺序回调
+    public interface Listener {
+        void onContent(String content); // 普通回复内容
+        void onReasoning(String reasoning); // 思维链内容
+        void onToolCall(int index, String id, String name, String arguments); // 函数调用片段，未出现的字段为null，index缺失时为-1
+        void onFinishReason(String reason); // 结束原因（stop/length/tool_calls等）
+        void onUsage(int promptTokens, int completionTokens, int totalTokens); // token用量，缺失的字段为-1
+    }
+
+    // 解析出错时抛出，仅在decoder内部使用
+    private static class MalformedChunkException extends RuntimeException {
+        MalformedChunkException() { super(null, null, false, false); } // 不填充调用栈
+    }
+    private static final MalformedChunkException MALFORMED = new MalformedChunkException();
+
+    private final Listener listener;
+    private final StringBuilder escapeBuilder = new StringBuilder(); // 用于解码含转义字符的字符串
+
+    private String data;
+    private int pos;
+    private int keyStart, keyEnd;
+
+    // 当前chunk中解析到的字段（每次decode前重置，避免重复分配）
+    private String content, reasoning, finishReason;
+    private int toolCallCount;
+    private int[] toolIndexes = new int[4];
+    private String[] toolIds = new String[4], toolNames = new String[4], toolArguments = new String[4];
+    private boolean hasUsage;
+    private int promptTokens, completionTokens, totalTokens;
+
+    public StreamDeltaDecoder(Listener listener) {
+        this.listener = listener;
+    }
+
+    // 解码一个SSE数据块，格式错误时返回false且不产生回调
+    public boolean decode(String chunk) {
+        data = chunk;
+        pos = 0;
+        content = reasoning = finishReason = null;
+        toolCallCount = 0;
+        hasUsage = false;
+        promptTokens = completionTokens = totalTokens = -1;
+        try {
+            skipWhitespace();
+            parseRoot();
+        } catch (MalformedChunkException | IndexOutOfBoundsException e) {
+            clearToolCalls();
+            data = null;
+            return false;
+        }
+        dispatch();
+        clearToolCalls();
+        data = null;
+        return true;
+    }
+
+    private void dispatch() {
+        if(toolCallCount > 0) { // 与原有逻辑一致：含函数调用时忽略同一delta中的文本
+            for(int i = 0; i < toolCallCount; i++) {
+                listener.onToolCall(toolIndexes[i], toolIds[i], toolNames[i], toolArguments[i]);
+            }
+        } else if(content != null && !content.isEmpty()) {
+            listener.onContent(content);
+        } else if(reasoning != null && !reasoning.isEmpty()) {
+            listener.onReasoning(reasoning);
+        }
+        if(finishReason != null) {
+            listener.onFinishReason(finishReason);
+        }
+        if(hasUsage) {
+            listener.onUsage(promptTokens, completionTokens, totalTokens);
+        }
+    }
+
+    private void clearToolCalls() { // 释放字符串引用
+        for(int i = 0; i < toolCallCount; i++) {
+            toolIds[i] = toolNames[i] = toolArguments[i] = null;
+        }
+        toolCallCount = 0;
+    }
+
+    // {"choices":[...],"usage":{...},...}
+    private void parseRoot() {
+        expect('{');
+        if(consumeIf('}')) return;
+        do {
+            scanKey();
+            if(keyIs("choices")) {
+                parseChoices();
+            } else if(keyIs("usage")) {
+                parseUsage();
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+        } while(consumeIf(','));
+        expect('}');
+    }
+
+    private void parseChoices() {
+        if(consumeNull()) return;
+        expect('[');
+        skipWhitespace();
+        if(consumeIf(']')) return;
+        parseChoice(); // 仅处理第一个choice
+        skipWhitespace();
+        while(consumeIf(',')) {
+            skipValue();
+            skipWhitespace();
+        }
+        expect(']');
+    }
+
+    private void parseChoice() {
+        if(consumeNull()) return;
+        expect('{');
+        if(consumeIf('}')) return;
+        do {
+            scanKey();
+            if(keyIs("delta")) {
+                parseDelta();
+            } else if(keyIs("finish_reason")) {
+                finishReason = readNullableString();
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+        } while(consumeIf(','));
+        expect('}');
+    }
+
+    private void parseDelta() {
+        if(consumeNull()) return;
+        expect('{');
+        if(consumeIf('}')) return;
+        do {
+            scanKey();
+            if(keyIs("content")) {
+                content = readNullableString();
+            } else if(keyIs("reasoning_content")) {
+                reasoning = readNullableString();
+            } else if(keyIs("tool_calls")) {
+                parseToolCalls();
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+        } while(consumeIf(','));
+        expect('}');
+    }
+
+    private void parseToolCalls() {
+        if(consumeNull()) return;
+        expect('[');
+        skipWhitespace();
+        if(consumeIf(']')) return;
+        do {
+            skipWhitespace();
+            parseToolCall();
+            skipWhitespace();
+        } while(consumeIf(','));
+        expect(']');
+    }
+
+    // {"index":0,"id":"call_xx","type":"function","function":{"name":"xx","arguments":"..."}}
+    private void parseToolCall() {
+        if(consumeNull()) return;
+        if(toolCallCount == toolIndexes.length) { // 扩容
+            int newSize = toolCallCount * 2;
+            toolIndexes = Arrays.copyOf(toolIndexes, newSize);
+            toolIds = Arrays.copyOf(toolIds, newSize);
+            toolNames = Arrays.copyOf(toolNames, newSize);
+            toolArguments = Arrays.copyOf(toolArguments, newSize);
+        }
+        int slot = toolCallCount++;
+        toolIndexes[slot] = -1;
+        expect('{');
+        if(consumeIf('}')) return;
+        do {
+            scanKey();
+            if(keyIs("index")) {
+                toolIndexes[slot] = readNullableInt();
+            } else if(keyIs("id")) {
+                toolIds[slot] = readNullableString();
+            } else if(keyIs("function")) {
+                parseFunction(slot);
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+        } while(consumeIf(','));
+        expect('}');
+    }
+
+    private void parseFunction(int slot) {
+        if(consumeNull()) return;
+        expect('{');
+        if(consumeIf('}')) return;
+        do {
+            scanKey();
+            if(keyIs("name")) {
+                toolNames[slot] = readNullableString();
+            } else if(keyIs("arguments")) {
+                toolArguments[slot] = readNullableString();
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+        } while(consumeIf(','));
+        expect('}');
+    }
+
+    // {"prompt_tokens":1,"completion_tokens":2,"total_tokens":3,...}
+    private void parseUsage() {
+        if(consumeNull()) return;
+        hasUsage = true;
+        expect('{');
+        if(consumeIf('}')) return;
+        do {
+            scanKey();
+            if(keyIs("prompt_tokens")) {
+                promptTokens = readNullableInt();
+            } else if(keyIs("completion_tokens")) {
+                completionTokens = readNullableInt();
+            } else if(keyIs("total_tokens")) {
+                totalTokens = readNullableInt();
+            } else {
+                skipValue();
+            }
+            skipWhitespace();
+        } while(consumeIf(','));
+        expect('}');
+    }
+
+    // 扫描一个键名及其后的冒号，键名范围记录在keyStart/keyEnd中（不含引号）
+    private void scanKey() {
+        skipWhitespace();
+        if(data.charAt(pos) != '"') throw MALFORMED;
+        keyStart = pos + 1;
+        boolean escaped = skipString();
+        keyEnd = escaped ? -1 : pos - 1; // 含转义字符的键名不会是需要的字段
+        expect(':');
+        skipWhitespace();
+    }
+
+    private boolean keyIs(String key) {
+        return keyEnd - keyStart == key.length() && data.regionMatches(keyStart, key, 0, key.length());
+    }
+
+    // 读取字符串或null
+    private String readNullableString() {
+        if(consumeNull()) return null;
+        if(data.charAt(pos) != '"') { // 非字符串类型，跳过
+            skipValue();
+            return null;
+        }
+        int start = ++pos;
+        int length = data.length();
+        while(pos < length) { // 快速路径：无转义字符时直接截取
+            char c = data.charAt(pos);
+            if(c == '"') {
+                return data.substring(start, pos++);
+            } else if(c == '\\') {
+                break;
+            }
+            pos++;
+        }
+        escapeBuilder.setLength(0);
+        escapeBuilder.append(data, start, pos);
+        while(true) {
+            char c = data.charAt(pos++);
+            if(c == '"') {
+                break;
+            } else if(c == '\\') {
+                char e = data.charAt(pos++);
+                switch(e) {
+                    case 'n': escapeBuilder.append('\n'); break;
+                    case 't': escapeBuilder.append('\t'); break;
+                    case 'r': escapeBuilder.append('\r'); break;
+                    case 'b': escapeBuilder.append('\b'); break;
+                    case 'f': escapeBuilder.append('\f'); break;
+                    case 'u':
+                        escapeBuilder.append((char) ((hexValue(data.charAt(pos)) << 12) | (hexValue(data.charAt(pos + 1)) << 8)
+                                | (hexValue(data.charAt(pos + 2)) << 4) | hexValue(data.charAt(pos + 3))));
+                        pos += 4;
+                        break;
+                    default: escapeBuilder.append(e); break; // \" \\ \/
+                }
+            } else {
+                escapeBuilder.append(c);
+            }
+        }
+        String result = escapeBuilder.toString();
+        if(escapeBuilder.capacity() > 8192) { // 避免长期持有过大的缓冲区
+            escapeBuilder.setLength(0);
+            escapeBuilder.trimToSize();
+        }
+        return result;
+    }
+
+    // 读取整数或null（null和非整数返回-1）
+    private int readNullableInt() {
+        if(consumeNull()) return -1;
+        char c = data.charAt(pos);
+        if(c != '-' && (c < '0' || c > '9')) {
+            skipValue();
+            return -1;
+        }
+        boolean negative = consumeIf('-');
+        long value = 0;
+        while(pos < data.length()) {
+            c = data.charAt(pos);
+            if(c < '0' || c > '9') break;
+            value = value * 10 + (c - '0');
+            pos++;
+        }
+        if(pos < data.length() && (data.charAt(pos) == '.' || data.charAt(pos) == 'e' || data.charAt(pos) == 'E')) {
+            skipNumberTail();
+        }
+        if(value > Integer.MAX_VALUE) value = Integer.MAX_VALUE;
+        return (int) (negative ? -value : value);
+    }
+
+    private static int hexValue(char c) {
+        if(c >= '0' && c <= '9') return c - '0';
+        if(c >= 'a' && c <= 'f') return c - 'a' + 10;
+        if(c >= 'A' && c <= 'F') return c - 'A' + 10;
+        throw MALFORMED;
+    }
+
+    // 跳过任意JSON值
+    private void skipValue() {
+        skipWhitespace();
+        char c = data.charAt(pos);
+        if(c == '"') {
+            skipString();
+        } else if(c == '{' || c == '[') {
+            int depth = 0;
+            while(true) {
+                c = data.charAt(pos);
+                if(c == '"') {
+                    skipString();
+                    continue;
+                }
+                if(c == '{' || c == '[') {
+                    depth++;
+                } else if(c == '}' || c == ']') {
+                    if(--depth == 0) {
+                        pos++;
+                        return;
+                    }
+                }
+                pos++;
+            }
+        } else if(c == 't' || c == 'f' || c == 'n') {
+            while(pos < data.length() && Character.isLetter(data.charAt(pos))) pos++;
+        } else if(c == '-' || (c >= '0' && c <= '9')) {
+            pos++;
+            skipNumberTail();
+        } else {
+            throw MALFORMED;
+        }
+    }
+
+    private void skipNumberTail() {
+        while(pos < data.length()) {
+            char c = data.charAt(pos);
+            if((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-') {
+                pos++;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private boolean skipString() { // pos指向起始引号，结束后指向结束引号之后，返回是否含有转义字符
+        boolean escaped = false;
+        pos++;
+        while(true) {
+            char c = data.charAt(pos++);
+            if(c == '"') return escaped;
+            if(c == '\\') {
+                escaped = true;
+                pos++;
+            }
+        }
+    }
+
+    private boolean consumeNull() {
+        if(data.startsWith("null", pos)) {
+            pos += 4;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean consumeIf(char c) {
+        skipWhitespace();
+        if(pos < data.length() && data.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) {
+        if(!consumeIf(c)) throw MALFORMED;
+    }
+
+    private void skipWhitespace() {
+        while(pos < data.length()) {
+            char c = data.charAt(pos);
+            if(c != ' ' && c != '\n' && c != '\r' && c != '\t') break;
+            pos++;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.skythinker.gptassistant;
+
+import java.util.ArrayList;
+
+// 流式回复的文本累加器，按固定大小分块存储，追加时不复制已有内容；读取快照时缓存结果，内容未变时不重复拼接
+// 追加和读取可在不同线程进行
+public class StreamTextBuffer implements CharSequence {
+    private static final int CHUNK_SIZE = 4096;
+
+    private final ArrayList<char[]> chunks = new ArrayList<>();
+    private int length = 0;
+    private long version = 0; // 每次修改后递增
+    private int clearCount = 0; // 清空次数，两次清空之间内容只会追加
+    private String snapshot = "";
+    private long snapshotVersion = 0;
+
+    // 追加一段文本
+    public synchronized StreamTextBuffer append(CharSequence text) {
+        if(text == null) {
+            return this;
+        }
+        int textLength = text.length();
+        int copied = 0;
+        while(copied < textLength) {
+            int offset = length % CHUNK_SIZE;
+            if(offset == 0 && length / CHUNK_SIZE == chunks.size()) {
+                chunks.add(new char[CHUNK_SIZE]);
+            }
+            char[] chunk = chunks.get(length / CHUNK_SIZE);
+            int count = Math.min(CHUNK_SIZE - offset, textLength - copied);
+            if(text instanceof String) {
+                ((String) text).getChars(copied, copied + count, chunk, offset);
+            } else {
+                for(int i = 0; i < count; i++) {
+                    chunk[offset + i] = text.charAt(copied + i);
+                }
+            }
+            copied += count;
+            length += count;
+        }
+        if(textLength > 0) {
+            version++;
+        }
+        return this;
+    }
+
+    // 清空内容
+    public synchronized void clear() {
+        chunks.clear();
+        length = 0;
+        version++;
+        clearCount++;
+        snapshot = "";
+        snapshotVersion = version;
+    }
+
+    // 修改版本号，用于判断内容是否有更新
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    // 清空次数不变时，之前读取的内容必然是当前内容的前缀
+    public synchronized int getClearCount() {
+        return clearCount;
+    }
+
+    @Override
+    public synchronized int length() {
+        return length;
+    }
+
+    @Override
+    public synchronized char charAt(int index) {
+        if(index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        return chunks.get(index / CHUNK_SIZE)[index % CHUNK_SIZE];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    // 获取当前内容，内容未变时返回同一个String对象
+    @Override
+    public synchronized String toString() {
+        if(snapshotVersion != version) {
+            char[] chars = new char[length];
+            for(int i = 0, copied = 0; copied < length; i++) {
+                int count = Math.min(CHUNK_SIZE, length - copied);
+                System.arraycopy(chunks.get(i), 0, chars, copied, count);
+                copied += count;
+            }
+            snapshot = new String(chars);
+            snapshotVersion = version;
+        }
+        return snapshot;
+    }
+}
@@ -141,6 +141,33 @@ public class TabConfActivity extends Activity {
             }
         });
 
+        ((EditText) findViewById(R.id.et_backup_hosts_conf)).setText(String.join(";", GlobalDataHolder.getGptBackupHosts()));
+        ((EditText) findViewById(R.id.et_backup_hosts_conf)).addTextChangedListener(new CustomTextWatcher() {
+            public void afterTextChanged(Editable editable) {
+                List<String> hosts = new ArrayList<>();
+                for(String item : editable.toString().split(";")) {
+                    String[] parts = item.trim().split("\\|", 2);
+                    String host = parts[0].trim();
+                    if(host.isEmpty()) {
+                        continue;
+                    }
+                    if(!host.startsWith("http://") && !host.startsWith("https://")) { // 自动补全URL
+                        host = "https://" + host;
+                    }
+                    if(!host.endsWith("/")) {
+                        host += "/";
+                    }
+                    hosts.add(parts.length > 1 ? host + "|" + parts[1].trim() : host);
+                }
+                GlobalDataHolder.saveEndpointSetting(hosts, GlobalDataHolder.getGptHedgeRequest());
+            }
+        });
+
+        ((Switch) findViewById(R.id.sw_hedge_request_conf)).setChecked(GlobalDataHolder.getGptHedgeRequest());
+        ((Switch) findViewById(R.id.sw_hedge_request_conf)).setOnCheckedChangeListener((compoundButton, checked) -> {
+            GlobalDataHolder.saveEndpointSetting(GlobalDataHolder.getGptBackupHosts(), checked);
+        });
+
         ((EditText) findViewById(R.id.et_openai_key_conf)).setText(GlobalDataHolder.getGptApiKey());
         ((EditText) findViewById(R.id.et_openai_key_conf)).addTextChangedListener(new CustomTextWatcher() {
             public void afterTextChanged(Editable editable) {
@@ -373,6 +400,10 @@ public class TabConfActivity extends Activity {
             startActivity(intent);
         });
 
+        ((LinearLayout) findViewById(R.id.tv_metrics_conf).getParent()).setOnClickListener(view -> { // 打开性能统计页面
+            startActivity(new Intent(this, MetricsActivity.class));
+        });
+
         (findViewById(R.id.tv_help_conf)).setOnClickListener(view -> { // 弹出帮助对话框
             new ConfirmDialog(this)
                     .setTitle(getString(R.string.dialog_help_title))
@@ -387,7 +418,7 @@ public class TabConfActivity extends Activity {
         });
 
         new Thread(() -> { // 通过Gitee/GitHub检查更新
-            OkHttpClient client = new OkHttpClient();
+            OkHttpClient client = NetworkStack.getClient();
             Request request = new Request.Builder()
                     .url(getString(GlobalDataHolder.getUseGitee() ? R.string.check_update_url_gitee : R.string.check_update_url_github))
                     .build();
@@ -413,7 +444,7 @@ public class TabConfActivity extends Activity {
 
         ((LinearLayout) findViewById(R.id.tv_check_update_conf).getParent()).setOnClickListener(view -> {
             new Thread(() -> { // 通过Gitee/GitHub检查更新
-                OkHttpClient client = new OkHttpClient();
+                OkHttpClient client = NetworkStack.getClient();
                 Request request = new Request.Builder()
                         .url(getString(GlobalDataHolder.getUseGitee() ? R.string.releases_raw_url_gitee : R.string.releases_raw_url_github))
                         .build();
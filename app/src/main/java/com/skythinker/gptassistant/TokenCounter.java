@@ -0,0 +1,243 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// 本地token计数器，按tiktoken词表做BPE精确计数，词表加载完成前按字符类型估算
+// o200k_base词表位于assets/tokenizer；cl100k_base使用chatgpt-java依赖的jtokkit中自带的词表，不再重复打包
+public class TokenCounter {
+    public static final String CL100K_BASE = "cl100k_base";
+    public static final String O200K_BASE = "o200k_base";
+
+    private static final Pattern CL100K_PATTERN = Pattern.compile(
+            "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+");
+    private static final Pattern O200K_PATTERN = Pattern.compile(
+            "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+            + "|[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+            + "|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+");
+    private static final int PIECE_CACHE_SIZE = 8192; // 分词片段计数缓存的最大条数
+
+    private static final Map<String, TokenCounter> counters = new HashMap<>();
+
+    private final String encoding;
+    private final Pattern pattern;
+    private volatile Map<String, Integer> ranks = null; // 词表（token字节以ISO-8859-1字符串表示 -> rank），加载完成前为null
+    private final LinkedHashMap<String, Integer> pieceCache = new LinkedHashMap<String, Integer>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > PIECE_CACHE_SIZE;
+        }
+    };
+
+    // 获取模型对应编码的计数器，首次获取时在后台加载词表
+    public static TokenCounter forModel(Context context, String model) {
+        String encoding = getEncoding(model);
+        synchronized (counters) {
+            TokenCounter counter = counters.get(encoding);
+            if(counter == null) {
+                counter = new TokenCounter(encoding);
+                counters.put(encoding, counter);
+                counter.loadAsync(context.getApplicationContext());
+            }
+            return counter;
+        }
+    }
+
+    // 从输入流同步加载词表并设为该编码的计数器（用于测试，不依赖Context）
+    static TokenCounter load(String encoding, InputStream in) throws IOException {
+        TokenCounter counter = new TokenCounter(encoding);
+        counter.ranks = readRanks(encoding, in);
+        synchronized (counters) {
+            counters.put(encoding, counter);
+        }
+        return counter;
+    }
+
+    // 根据模型名选择编码，非OpenAI模型也使用cl100k近似
+    public static String getEncoding(String model) {
+        String name = model.replaceAll("\\*$", "").toLowerCase();
+        if(name.startsWith("gpt-4o") || name.startsWith("gpt-4.1") || name.startsWith("gpt-4.5") || name.startsWith("gpt-5")
+                || name.startsWith("chatgpt-4o") || name.matches("^o\\d.*")) {
+            return O200K_BASE;
+        }
+        return CL100K_BASE;
+    }
+
+    private TokenCounter(String encoding) {
+        this.encoding = encoding;
+        this.pattern = encoding.equals(O200K_BASE) ? O200K_PATTERN : CL100K_PATTERN;
+    }
+
+    // 在后台加载词表，先查找assets/tokenizer/<编码名>.tiktoken，再查找jtokkit中的同名资源
+    private void loadAsync(Context context) {
+        new Thread(() -> {
+            long startTime = System.currentTimeMillis();
+            try(InputStream in = openVocab(context)) {
+                if(in == null) {
+                    Trace.d("TokenCounter", "%s vocab not available, using estimation", encoding);
+                    return;
+                }
+                Map<String, Integer> map = readRanks(encoding, in);
+                ranks = map;
+                synchronized (pieceCache) {
+                    pieceCache.clear(); // 清除估算时期的缓存
+                }
+                Trace.d("TokenCounter", "%s loaded, %s tokens in %sms", encoding, map.size(), (System.currentTimeMillis() - startTime));
+            } catch (Exception e) {
+                Trace.w("TokenCounter", e, "%s vocab load failed, using estimation", encoding);
+            }
+        }).start();
+    }
+
+    private InputStream openVocab(Context context) {
+        try {
+            return context.getAssets().open("tokenizer/" + encoding + ".tiktoken");
+        } catch (IOException e) {
+            return TokenCounter.class.getResourceAsStream("/com/knuddels/jtokkit/" + encoding + ".tiktoken");
+        }
+    }
+
+    // 读取词表（每行为"Base64编码的token rank"）
+    private static Map<String, Integer> readRanks(String encoding, InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII));
+        Map<String, Integer> map = new HashMap<>(encoding.equals(O200K_BASE) ? 262144 : 131072);
+        String line;
+        while((line = reader.readLine()) != null) {
+            int space = line.indexOf(' ');
+            if(space <= 0) {
+                continue;
+            }
+            byte[] token = Base64.getDecoder().decode(line.substring(0, space));
+            map.put(new String(token, StandardCharsets.ISO_8859_1), Integer.parseInt(line.substring(space + 1).trim()));
+        }
+        return map;
+    }
+
+    // 是否为精确计数（词表已加载）
+    public boolean isExact() {
+        return ranks != null;
+    }
+
+    // 计算文本的token数
+    public int count(String text) {
+        if(text == null || text.isEmpty()) {
+            return 0;
+        }
+        Map<String, Integer> ranks = this.ranks;
+        if(ranks == null) {
+            return estimate(text);
+        }
+        int total = 0;
+        Matcher matcher = pattern.matcher(text);
+        synchronized (pieceCache) {
+            while(matcher.find()) {
+                String piece = matcher.group();
+                Integer cached = pieceCache.get(piece);
+                if(cached == null) {
+                    cached = bytePairCount(new String(piece.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1), ranks);
+                    pieceCache.put(piece, cached);
+                }
+                total += cached;
+            }
+        }
+        return total;
+    }
+
+    // 对一个分词片段做BPE合并，返回合并后的token数（与tiktoken的合并顺序一致）
+    private static int bytePairCount(String piece, Map<String, Integer> ranks) {
+        int n = piece.length();
+        if(n <= 1 || ranks.containsKey(piece)) {
+            return 1;
+        }
+        int[] bounds = new int[n + 1]; // 当前各token的起始位置
+        int[] pairRanks = new int[n]; // bounds[i]到bounds[i+2]合并后的rank
+        int count = n + 1;
+        for(int i = 0; i <= n; i++) {
+            bounds[i] = i;
+        }
+        for(int i = 0; i < n - 1; i++) {
+            pairRanks[i] = getRank(piece, bounds[i], bounds[i + 2], ranks);
+        }
+        pairRanks[n - 1] = Integer.MAX_VALUE;
+        while(count > 2) {
+            int minIndex = -1, minRank = Integer.MAX_VALUE;
+            for(int i = 0; i < count - 2; i++) {
+                if(pairRanks[i] < minRank) {
+                    minRank = pairRanks[i];
+                    minIndex = i;
+                }
+            }
+            if(minIndex < 0) {
+                break;
+            }
+            System.arraycopy(bounds, minIndex + 2, bounds, minIndex + 1, count - minIndex - 2); // 删除合并点
+            System.arraycopy(pairRanks, minIndex + 2, pairRanks, minIndex + 1, count - minIndex - 3);
+            count--;
+            pairRanks[minIndex] = minIndex + 2 < count ? getRank(piece, bounds[minIndex], bounds[minIndex + 2], ranks) : Integer.MAX_VALUE;
+            if(minIndex > 0) {
+                pairRanks[minIndex - 1] = getRank(piece, bounds[minIndex - 1], bounds[minIndex + 1], ranks);
+            }
+        }
+        return count - 1;
+    }
+
+    private static int getRank(String piece, int start, int end, Map<String, Integer> ranks) {
+        Integer rank = ranks.get(piece.substring(start, end));
+        return rank == null ? Integer.MAX_VALUE : rank;
+    }
+
+    // 无词表时按字符类型估算，结果略高于cl100k的实际值，用于预算时偏保守
+    static int estimate(String text) {
+        double tokens = 0;
+        int wordLength = 0, digitLength = 0;
+        int length = text.length();
+        for(int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if(c < 0x80 && Character.isLetter(c)) { // 英文单词约4个字母一个token
+                wordLength++;
+                continue;
+            }
+            if(wordLength > 0) {
+                tokens += (wordLength + 3) / 4;
+                wordLength = 0;
+            }
+            if(c >= '0' && c <= '9') { // 数字每3位一个token
+                digitLength++;
+                continue;
+            }
+            if(digitLength > 0) {
+                tokens += (digitLength + 2) / 3;
+                digitLength = 0;
+            }
+            if(c == ' ') { // 单个空格通常与后面的单词合并
+                continue;
+            } else if(c == '\n' || c == '\r' || c == '\t') {
+                if(i == 0 || (text.charAt(i - 1) != '\n' && text.charAt(i - 1) != '\r')) { // 连续换行算一个token
+                    tokens += 1;
+                }
+            } else if(Character.isHighSurrogate(c)) { // emoji等补充平面字符
+                tokens += 2;
+                i++;
+            } else if(c >= 0x2E80 && c <= 0xD7AF || c >= 0xF900 && c <= 0xFAFF) { // 中日韩字符
+                tokens += 1.2;
+            } else if(c < 0x80) { // 英文标点
+                tokens += 0.8;
+            } else { // 其他字符（全角标点、拉丁扩展等）
+                tokens += 1;
+            }
+        }
+        tokens += (wordLength + 3) / 4 + (digitLength + 2) / 3;
+        return (int) Math.ceil(tokens);
+    }
+}
@@ -0,0 +1,153 @@
+package com.skythinker.gptassistant;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 并行执行一轮回复中的多个函数调用，限制同时执行的数量，每个调用单独计时，全部完成后按调用顺序返回结果
+public class ToolExecutor {
+    public interface Task {
+        // 在主线程中开始执行一个函数调用，完成后调用callback（可在任意线程），返回取消该调用的操作（可为null）
+        Runnable run(ChatApiClient.CallingFunction function, ResultCallback callback);
+    }
+
+    public interface ResultCallback {
+        void onResult(String result);
+    }
+
+    public interface OnFinishedListener {
+        void onFinished(List<ChatApiClient.CallingFunction> functions, List<String> results); // results与functions一一对应
+    }
+
+    private final int maxParallel;
+    private final long timeoutMs;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private List<ChatApiClient.CallingFunction> functions = null;
+    private String[] results = null;
+    private Runnable[] cancellers = null;
+    private Runnable[] timeouts = null;
+    private int nextIndex = 0, runningCount = 0, finishedCount = 0;
+    private int generation = 0; // 每轮执行的编号，用于丢弃已取消轮次的迟到结果
+    private Task task = null;
+    private OnFinishedListener listener = null;
+    private long startTime = 0;
+
+    public ToolExecutor(int maxParallel, long timeoutMs) {
+        this.maxParallel = Math.max(1, maxParallel);
+        this.timeoutMs = timeoutMs;
+    }
+
+    // 执行一组函数调用（需在主线程调用），若上一轮尚未完成则先取消
+    public void execute(List<ChatApiClient.CallingFunction> functions, Task task, OnFinishedListener listener) {
+        cancel();
+        this.functions = new ArrayList<>(functions);
+        this.task = task;
+        this.listener = listener;
+        int count = this.functions.size();
+        results = new String[count];
+        cancellers = new Runnable[count];
+        timeouts = new Runnable[count];
+        nextIndex = runningCount = finishedCount = 0;
+        startTime = System.currentTimeMillis();
+        MetricsRegistry.add("tool.calls", count);
+        if(count == 0) {
+            finish();
+            return;
+        }
+        startPending();
+    }
+
+    // 在并行数量限制内启动等待中的调用
+    private void startPending() {
+        final int currentGeneration = generation;
+        while(currentGeneration == generation && runningCount < maxParallel && nextIndex < functions.size()) {
+            final int index = nextIndex++;
+            final long callStartTime = System.currentTimeMillis();
+            runningCount++;
+            timeouts[index] = () -> {
+                Trace.w("ToolExecutor", "%s timed out after %sms", functions.get(index).name, timeoutMs);
+                MetricsRegistry.increment("tool.timeout");
+                complete(currentGeneration, index, "Timeout when calling this function.", true);
+            };
+            handler.postDelayed(timeouts[index], timeoutMs);
+            Runnable canceller;
+            try {
+                canceller = task.run(functions.get(index), result -> handler.post(() -> { // 结果统一在主线程处理
+                    MetricsRegistry.recordLatency("tool.call_ms", System.currentTimeMillis() - callStartTime);
+                    complete(currentGeneration, index, result, false);
+                }));
+            } catch (Exception e) {
+                Trace.e("ToolExecutor", e, "failed to call %s", functions.get(index).name);
+                canceller = null;
+                complete(currentGeneration, index, "Error when calling this function.", false);
+            }
+            if(currentGeneration == generation && results[index] == null) {
+                cancellers[index] = canceller;
+            }
+        }
+    }
+
+    private void complete(int callGeneration, int index, String result, boolean cancelTask) {
+        if(callGeneration != generation || results[index] != null) { // 已取消或已超时的调用
+            return;
+        }
+        results[index] = result == null ? "" : result;
+        handler.removeCallbacks(timeouts[index]);
+        Runnable canceller = cancellers[index];
+        cancellers[index] = null;
+        if(cancelTask && canceller != null) {
+            canceller.run();
+        }
+        runningCount--;
+        finishedCount++;
+        if(finishedCount == functions.size()) {
+            finish();
+        } else {
+            handler.post(this::startPending); // 在当前回调返回后再启动下一个，避免在回调中重入
+        }
+    }
+
+    private void finish() {
+        MetricsRegistry.recordLatency("tool.round_ms", System.currentTimeMillis() - startTime);
+        OnFinishedListener finishedListener = listener;
+        List<ChatApiClient.CallingFunction> finishedFunctions = functions;
+        List<String> resultList = new ArrayList<>(finishedFunctions.size());
+        for(String result : results) {
+            resultList.add(result);
+        }
+        reset();
+        finishedListener.onFinished(finishedFunctions, resultList);
+    }
+
+    // 取消正在执行的所有调用，不会触发OnFinishedListener
+    public void cancel() {
+        if(functions == null) {
+            return;
+        }
+        MetricsRegistry.increment("tool.cancelled");
+        for(int i = 0; i < functions.size(); i++) {
+            handler.removeCallbacks(timeouts[i]);
+            if(cancellers[i] != null) {
+                cancellers[i].run();
+            }
+        }
+        reset();
+    }
+
+    private void reset() {
+        generation++;
+        functions = null;
+        results = null;
+        cancellers = null;
+        timeouts = null;
+        task = null;
+        listener = null;
+    }
+
+    public boolean isRunning() {
+        return functions != null;
+    }
+}
@@ -0,0 +1,148 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// 轻量级的分级日志，事件写入预分配的环形缓冲区，只保存格式串和参数，导出时才格式化
+// 格式串使用String.format语法，BuildConfig.TRACE_ENABLED为false时所有调用在编译期被移除
+public class Trace {
+    public static final boolean ENABLED = BuildConfig.TRACE_ENABLED;
+
+    private static final int CAPACITY = 2048; // 必须是2的幂
+    private static final int LOGCAT_MIN_LEVEL = BuildConfig.DEBUG ? Log.DEBUG : Log.WARN; // 同时输出到Logcat的最低级别
+
+    private static final AtomicLong sequence = new AtomicLong();
+    private static final AtomicLongArray slotSequence = new AtomicLongArray(CAPACITY); // 槽位写入完成后记录序号+1，用于导出时判断槽位是否有效
+    private static final long[] slotTime = new long[CAPACITY];
+    private static final int[] slotLevel = new int[CAPACITY];
+    private static final String[] slotTag = new String[CAPACITY];
+    private static final String[] slotFormat = new String[CAPACITY];
+    private static final Object[] slotArgs = new Object[CAPACITY * 3];
+    private static final Object[][] slotMoreArgs = new Object[CAPACITY][]; // 超过3个参数时使用
+    private static final Throwable[] slotThrowable = new Throwable[CAPACITY];
+
+    public static void v(String tag, String format) { record(Log.VERBOSE, tag, null, format, null, null, null, null, 0); }
+    public static void v(String tag, String format, Object a) { record(Log.VERBOSE, tag, null, format, a, null, null, null, 1); }
+    public static void v(String tag, String format, Object a, Object b) { record(Log.VERBOSE, tag, null, format, a, b, null, null, 2); }
+
+    public static void d(String tag, String format) { record(Log.DEBUG, tag, null, format, null, null, null, null, 0); }
+    public static void d(String tag, String format, Object a) { record(Log.DEBUG, tag, null, format, a, null, null, null, 1); }
+    public static void d(String tag, String format, Object a, Object b) { record(Log.DEBUG, tag, null, format, a, b, null, null, 2); }
+    public static void d(String tag, String format, Object a, Object b, Object c) { record(Log.DEBUG, tag, null, format, a, b, c, null, 3); }
+    public static void d(String tag, String format, Object... args) { record(Log.DEBUG, tag, null, format, null, null, null, args, args.length); }
+
+    public static void i(String tag, String format) { record(Log.INFO, tag, null, format, null, null, null, null, 0); }
+    public static void i(String tag, String format, Object a) { record(Log.INFO, tag, null, format, a, null, null, null, 1); }
+    public static void i(String tag, String format, Object a, Object b) { record(Log.INFO, tag, null, format, a, b, null, null, 2); }
+
+    public static void w(String tag, String format) { record(Log.WARN, tag, null, format, null, null, null, null, 0); }
+    public static void w(String tag, String format, Object a) { record(Log.WARN, tag, null, format, a, null, null, null, 1); }
+    public static void w(String tag, String format, Object a, Object b) { record(Log.WARN, tag, null, format, a, b, null, null, 2); }
+    public static void w(String tag, String format, Object a, Object b, Object c) { record(Log.WARN, tag, null, format, a, b, c, null, 3); }
+    public static void w(String tag, String format, Object... args) { record(Log.WARN, tag, null, format, null, null, null, args, args.length); }
+    public static void w(String tag, Throwable tr, String format, Object... args) { record(Log.WARN, tag, tr, format, null, null, null, args, args.length); }
+
+    public static void e(String tag, String format) { record(Log.ERROR, tag, null, format, null, null, null, null, 0); }
+    public static void e(String tag, String format, Object a) { record(Log.ERROR, tag, null, format, a, null, null, null, 1); }
+    public static void e(String tag, String format, Object a, Object b) { record(Log.ERROR, tag, null, format, a, b, null, null, 2); }
+    public static void e(String tag, String format, Object a, Object b, Object c) { record(Log.ERROR, tag, null, format, a, b, c, null, 3); }
+    public static void e(String tag, String format, Object... args) { record(Log.ERROR, tag, null, format, null, null, null, args, args.length); }
+    public static void e(String tag, Throwable tr, String format, Object... args) { record(Log.ERROR, tag, tr, format, null, null, null, args, args.length); }
+
+    private static void record(int level, String tag, Throwable tr, String format, Object a, Object b, Object c, Object[] more, int argCount) {
+        if(!ENABLED) {
+            return;
+        }
+        long seq = sequence.getAndIncrement();
+        int slot = (int) (seq & (CAPACITY - 1));
+        slotSequence.set(slot, 0); // 写入期间标记为无效
+        slotTime[slot] = System.currentTimeMillis();
+        slotLevel[slot] = level;
+        slotTag[slot] = tag;
+        slotFormat[slot] = format;
+        slotArgs[slot * 3] = a;
+        slotArgs[slot * 3 + 1] = b;
+        slotArgs[slot * 3 + 2] = c;
+        slotMoreArgs[slot] = more;
+        slotThrowable[slot] = tr;
+        slotSequence.set(slot, seq + 1);
+
+        if(level >= LOGCAT_MIN_LEVEL) {
+            String message = format(format, more != null ? more : new Object[]{a, b, c}, more != null ? argCount : Math.min(argCount, 3));
+            if(tr != null) {
+                message += "\n" + Log.getStackTraceString(tr);
+            }
+            Log.println(level, tag, message);
+        }
+    }
+
+    private static String format(String format, Object[] args, int argCount) {
+        if(argCount == 0) {
+            return format;
+        }
+        try {
+            return String.format(Locale.ROOT, format, args);
+        } catch (Exception e) { // 格式串与参数不匹配时直接拼接
+            StringBuilder sb = new StringBuilder(format);
+            for(int i = 0; i < argCount; i++) {
+                sb.append(" | ").append(args[i]);
+            }
+            return sb.toString();
+        }
+    }
+
+    private static char levelChar(int level) {
+        switch(level) {
+            case Log.VERBOSE: return 'V';
+            case Log.DEBUG: return 'D';
+            case Log.INFO: return 'I';
+            case Log.WARN: return 'W';
+            default: return 'E';
+        }
+    }
+
+    // 将缓冲区中的事件按时间顺序写入文件
+    public static synchronized void dump(File file) throws Exception {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.ROOT);
+        long end = sequence.get();
+        long start = Math.max(0, end - CAPACITY);
+        file.getParentFile().mkdirs();
+        try(Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            for(long seq = start; seq < end; seq++) {
+                int slot = (int) (seq & (CAPACITY - 1));
+                if(slotSequence.get(slot) != seq + 1) { // 正在写入或已被覆盖
+                    continue;
+                }
+                Object[] more = slotMoreArgs[slot];
+                Object[] args = more != null ? more : new Object[]{slotArgs[slot * 3], slotArgs[slot * 3 + 1], slotArgs[slot * 3 + 2]};
+                String message = format(slotFormat[slot], args, more != null ? more.length : 3);
+                Throwable tr = slotThrowable[slot];
+                writer.write(String.format(Locale.ROOT, "%s %c/%s: %s\n", dateFormat.format(new Date(slotTime[slot])),
+                        levelChar(slotLevel[slot]), slotTag[slot], message));
+                if(tr != null) {
+                    writer.write(Log.getStackTraceString(tr));
+                    writer.write('\n');
+                }
+            }
+        }
+    }
+
+    // 导出到应用外部存储目录下的trace文件夹，返回导出的文件
+    public static File dumpToFile(Context context) throws Exception {
+        File dir = new File(context.getExternalFilesDir(null), "trace");
+        File file = new File(dir, "trace-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.ROOT).format(new Date()) + ".txt");
+        dump(file);
+        return file;
+    }
+}
@@ -0,0 +1,320 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.MediaPlayer;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.UtteranceProgressListener;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// 流式TTS播放队列：当前句子播放时，用synthesizeToFile提前合成后面的句子，合成好的句子用MediaPlayer串联播放（setNextMediaPlayer无缝衔接）
+// 引擎不支持合成到文件或合成失败时，该句改为直接speak；所有状态仅在主线程访问，引擎回调切换到主线程处理
+public class TtsPipeline {
+    private static final int SYNTHESIZE_AHEAD = 2; // 当前播放句子之后提前合成的句数
+
+    public interface Listener {
+        void onQueueFinished(); // 回复已结束且所有句子播放完毕
+    }
+
+    private static class Segment {
+        final String text;
+        final String id;
+        final File file;
+        boolean ready = false; // 已合成到文件
+        boolean failed = false; // 合成失败，改为直接朗读
+        Segment(String text, String id, File file) {
+            this.text = text;
+            this.id = id;
+            this.file = file;
+        }
+    }
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final File dir;
+    private final Listener listener;
+    private TextToSpeech tts;
+    private boolean ttsReady = false;
+    private final List<Segment> queue = new ArrayList<>(); // 待播放的句子，第一个为正在播放的
+    private Segment synthesizing = null; // 正在合成的句子（引擎一次只合成一句）
+    private Segment speaking = null; // 正在直接朗读的句子
+    private MediaPlayer currentPlayer = null, nextPlayer = null;
+    private int generation = 0; // stop后递增，忽略旧的引擎回调
+    private int nextSegmentId = 0;
+    private boolean ended = false; // 本次回复的句子已全部加入
+    private boolean played = false; // 本次回复已播放过句子
+    private long firstEnqueueTime = 0; // 本次回复第一句加入的时间
+    private long lastCompletionTime = 0; // 上一句播放完成且下一句尚未开始的时间，0表示不在间隔中
+
+    public TtsPipeline(Context context, Listener listener) {
+        this.dir = new File(context.getCacheDir(), "tts");
+        this.listener = listener;
+        deleteFiles();
+        tts = new TextToSpeech(context, status -> handler.post(() -> onInit(status)));
+    }
+
+    private void onInit(int status) {
+        if(tts == null) { // 已关闭
+            return;
+        }
+        if(status != TextToSpeech.SUCCESS) {
+            Trace.e("TTS", "Init failed. ErrorCode: %d", status);
+            return;
+        }
+        int res = tts.setLanguage(Locale.getDefault());
+        if(res == TextToSpeech.LANG_MISSING_DATA || res == TextToSpeech.LANG_NOT_SUPPORTED) {
+            Trace.e("TTS", "Unsupported language.");
+            return;
+        }
+        tts.setOnUtteranceProgressListener(new UtteranceProgressListener() {
+            @Override
+            public void onStart(String utteranceId) { }
+
+            @Override
+            public void onDone(String utteranceId) {
+                handler.post(() -> onUtteranceDone(utteranceId, true));
+            }
+
+            @Override
+            public void onError(String utteranceId) {
+                Trace.e("TTS", "onError: %s", utteranceId);
+                handler.post(() -> onUtteranceDone(utteranceId, false));
+            }
+        });
+        ttsReady = true;
+        Trace.d("TTS", "Init success.");
+        pump();
+        playHead();
+    }
+
+    // 添加一句到播放队列
+    public void speak(String text) {
+        if(tts == null || text.trim().isEmpty()) {
+            return;
+        }
+        if(firstEnqueueTime == 0) {
+            firstEnqueueTime = System.currentTimeMillis();
+        }
+        String id = generation + "-" + nextSegmentId++;
+        queue.add(new Segment(text, id, new File(dir, id + ".wav")));
+        pump();
+        if(queue.size() == 1) {
+            playHead();
+        }
+    }
+
+    // 本次回复的句子已全部加入，播放完毕后通知Listener
+    public void markEnd() {
+        ended = true;
+        checkFinished();
+    }
+
+    // 停止播放并清空队列，开始新的回复
+    public void stop() {
+        generation++;
+        if(tts != null) {
+            tts.stop();
+        }
+        releasePlayers();
+        for(Segment segment : queue) {
+            segment.file.delete();
+        }
+        queue.clear();
+        synthesizing = null;
+        speaking = null;
+        ended = false;
+        played = false;
+        firstEnqueueTime = 0;
+        lastCompletionTime = 0;
+    }
+
+    public void shutdown() {
+        stop();
+        if(tts != null) {
+            tts.shutdown();
+            tts = null;
+        }
+    }
+
+    // 提前合成队列前部尚未合成的句子
+    private void pump() {
+        if(!ttsReady || synthesizing != null) {
+            return;
+        }
+        for(int i = 0; i < queue.size() && i <= SYNTHESIZE_AHEAD; i++) {
+            Segment segment = queue.get(i);
+            if(segment.ready || segment.failed) {
+                continue;
+            }
+            if((dir.exists() || dir.mkdirs())
+                    && tts.synthesizeToFile(segment.text, new Bundle(), segment.file, segment.id) == TextToSpeech.SUCCESS) {
+                synthesizing = segment;
+                return;
+            }
+            segment.failed = true;
+        }
+    }
+
+    private void onUtteranceDone(String utteranceId, boolean success) {
+        if(!utteranceId.startsWith(generation + "-")) { // stop之前的请求
+            return;
+        }
+        if(speaking != null && utteranceId.equals(speaking.id + "-speak")) { // 直接朗读完成
+            speaking = null;
+            queue.remove(0);
+            onSegmentCompleted();
+            return;
+        }
+        if(synthesizing == null || !synthesizing.id.equals(utteranceId)) {
+            return;
+        }
+        Segment segment = synthesizing;
+        synthesizing = null;
+        if(success && segment.file.length() > 0) {
+            segment.ready = true;
+        } else {
+            segment.failed = true;
+            MetricsRegistry.increment("tts.synthesize_failed");
+        }
+        if(currentPlayer == null && speaking == null) {
+            playHead();
+        } else {
+            chainNext();
+        }
+        pump();
+    }
+
+    // 开始播放队首的句子（未合成完成时等待）
+    private void playHead() {
+        if(!ttsReady || queue.isEmpty() || currentPlayer != null || speaking != null) {
+            checkFinished();
+            return;
+        }
+        Segment segment = queue.get(0);
+        if(segment.failed) {
+            speaking = segment;
+            onPlaybackStart();
+            tts.speak(segment.text, TextToSpeech.QUEUE_ADD, null, segment.id + "-speak");
+            return;
+        }
+        if(!segment.ready) {
+            return;
+        }
+        currentPlayer = createPlayer(segment);
+        if(currentPlayer == null) {
+            segment.failed = true;
+            playHead();
+            return;
+        }
+        onPlaybackStart();
+        currentPlayer.start();
+        chainNext();
+    }
+
+    // 下一句已合成时预先准备好播放器，当前句结束后由系统无缝切换
+    private void chainNext() {
+        if(currentPlayer == null || nextPlayer != null || queue.size() < 2) {
+            return;
+        }
+        Segment segment = queue.get(1);
+        if(!segment.ready) {
+            return;
+        }
+        nextPlayer = createPlayer(segment);
+        if(nextPlayer == null) {
+            segment.failed = true;
+            return;
+        }
+        currentPlayer.setNextMediaPlayer(nextPlayer);
+    }
+
+    private MediaPlayer createPlayer(Segment segment) {
+        MediaPlayer player = new MediaPlayer();
+        try {
+            player.setAudioAttributes(new AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_ASSISTANT)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                    .build());
+            player.setDataSource(segment.file.getAbsolutePath());
+            player.prepare(); // 本地短音频，同步准备耗时很短
+        } catch (Exception e) {
+            Trace.w("TTS", e, "prepare failed: %s", segment.id);
+            player.release();
+            return null;
+        }
+        int playerGeneration = generation;
+        player.setOnCompletionListener(mp -> {
+            if(playerGeneration == generation && mp == currentPlayer) {
+                onPlayerCompleted();
+            }
+        });
+        return player;
+    }
+
+    private void onPlayerCompleted() {
+        currentPlayer.release();
+        currentPlayer = nextPlayer; // 已由setNextMediaPlayer自动开始播放
+        nextPlayer = null;
+        queue.get(0).file.delete();
+        queue.remove(0);
+        if(currentPlayer != null) {
+            MetricsRegistry.record("tts.gap_ms", 0, MetricsRegistry.FRAME_BUCKETS_MS);
+            chainNext();
+            pump();
+        } else {
+            onSegmentCompleted();
+        }
+    }
+
+    // 一句播放完成且下一句未能无缝衔接
+    private void onSegmentCompleted() {
+        lastCompletionTime = queue.isEmpty() ? 0 : System.currentTimeMillis(); // 队列为空时是在等待回复，不计入句间间隔
+        pump();
+        playHead();
+    }
+
+    private void onPlaybackStart() {
+        if(!played) {
+            played = true;
+            MetricsRegistry.recordLatency("tts.first_audio_ms", System.currentTimeMillis() - firstEnqueueTime);
+        }
+        if(lastCompletionTime != 0) {
+            MetricsRegistry.record("tts.gap_ms", System.currentTimeMillis() - lastCompletionTime, MetricsRegistry.FRAME_BUCKETS_MS);
+            lastCompletionTime = 0;
+        }
+    }
+
+    private void checkFinished() {
+        if(ended && played && queue.isEmpty() && currentPlayer == null && speaking == null) {
+            ended = false;
+            Trace.d("TTS", "Queue finished");
+            listener.onQueueFinished();
+        }
+    }
+
+    private void releasePlayers() {
+        if(currentPlayer != null) {
+            currentPlayer.release();
+            currentPlayer = null;
+        }
+        if(nextPlayer != null) {
+            nextPlayer.release();
+            nextPlayer = null;
+        }
+    }
+
+    private void deleteFiles() {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.skythinker.gptassistant;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.os.Handler;
-import android.util.Log;
 import android.view.View;
 import android.webkit.RenderProcessGoneDetail;
 import android.webkit.ValueCallback;
@@ -168,6 +167,8 @@ public class WebScraper {
     private Callback callback = null;
     private boolean isLoading = false;
     private int jumpCount = 0;
+    private long loadStartTime = 0; // 开始加载的时间（用于性能统计）
+    private volatile int loadId = 0; // 每次加载的编号，用于忽略上一次加载遗留的延迟任务和超时线程
     WebsiteRule websiteRule = null;
 
     public WebScraper(Context context, LinearLayout parentLayout) {
@@ -184,7 +185,7 @@ public class WebScraper {
             @Override
             public boolean shouldOverrideUrlLoading(WebView view, WebResourceRequest request) { // 页面产生了重定向
                 String url = request.getUrl().toString();
-                Log.d("WebView", "shouldOverrideUrlLoading " + url);
+                Trace.d("WebView", "shouldOverrideUrlLoading %s", url);
                 if(url.startsWith("http://") || url.startsWith("https://") || !url.contains("://")) {
                     view.loadUrl(url);
                     jumpCount++; // 跳转深度+1
@@ -194,16 +195,17 @@ public class WebScraper {
             }
             @Override
             public void onPageStarted(WebView view, String url, Bitmap favicon) {
-                Log.d("WebView", "onPageStarted ");
+                Trace.d("WebView", "onPageStarted ");
                 super.onPageStarted(view, url, favicon);
             }
             @Override
             public void onPageFinished(WebView view, String url) { // 页面加载完成（重定向后原有页面加载完成也会触发）
-                Log.d("WebView", "onPageFinished " + url + " progress " + view.getProgress());
+                Trace.d("WebView", "onPageFinished %s progress %s", url, view.getProgress());
                 if(view.getProgress() >= 100) { // 确保页面加载完成
                     if(jumpCount == 1 || url.equals(loadingUrl)) { // 判定为最终页面加载完成
+                        int currentLoadId = loadId;
                         handler.postDelayed(() -> {
-                            if (callback != null){
+                            if (callback != null && currentLoadId == loadId){
                                 // 执行JS代码抓取页面内容
                                 webView.evaluateJavascript(websiteRule.jsCode,
                                         new ValueCallback<String>() {
@@ -216,11 +218,13 @@ public class WebScraper {
                                                     responseText = responseText.substring(0, GlobalDataHolder.getWebMaxCharCount());
                                                 if (responseText.isEmpty())
                                                     responseText = "The response is empty.";
-                                                Log.d("WebView", "onReceiveValue " + responseText);
+                                                Trace.d("WebView", "onReceiveValue %s", responseText);
+                                                MetricsRegistry.recordLatency("web.load_ms", System.currentTimeMillis() - loadStartTime);
+                                                MetricsRegistry.record("web.result_chars", responseText.length(), MetricsRegistry.SIZE_BUCKETS);
                                                 if(callback != null)
                                                     callback.onLoadResult(responseText);
                                                 else
-                                                    Log.e("WebView", "callback is null when finished");
+                                                    Trace.e("WebView", "callback is null when finished");
                                                 endLoading();
                                             }
                                         });
@@ -235,8 +239,9 @@ public class WebScraper {
             }
             @Override
             public void onReceivedError(WebView view, WebResourceRequest request, WebResourceError error) {
-                Log.e("WebView", "onReceivedError " + error.getErrorCode() + " " + error.getDescription() + " " + request.isForMainFrame());
+                Trace.e("WebView", "onReceivedError %s %s %s", error.getErrorCode(), error.getDescription(), request.isForMainFrame());
                 if(request.isForMainFrame()) { // 仅处理主页面的错误
+                    MetricsRegistry.increment("web.error");
                     if(callback != null)
                         callback.onLoadFail(error.getDescription().toString());
                     endLoading();
@@ -245,7 +250,8 @@ public class WebScraper {
             }
             @Override
             public boolean onRenderProcessGone(WebView view, RenderProcessGoneDetail detail) {
-                Log.e("WebView", "onRenderProcessGone " + detail);
+                Trace.e("WebView", "onRenderProcessGone %s", detail);
+                MetricsRegistry.increment("web.render_gone");
                 if(callback != null)
                     callback.onLoadFail(detail.toString());
                 endLoading();
@@ -276,7 +282,10 @@ public class WebScraper {
             stopLoading();
 
         isLoading = true;
+        int currentLoadId = ++loadId;
         this.callback = callback;
+        loadStartTime = System.currentTimeMillis();
+        MetricsRegistry.increment("web.loads");
         jumpCount = 1;
         loadingUrl = url;
 
@@ -295,19 +304,22 @@ public class WebScraper {
         new Thread(() -> { // 开启超时等待线程
             int timeout = websiteRule.timeout;
             int waitTime = 0;
-            while(waitTime < timeout && isLoading) {
+            while(waitTime < timeout && isLoading && currentLoadId == loadId) {
                 try {
                     Thread.sleep(100);
                 } catch (InterruptedException ignored) { }
                 waitTime += 100;
             }
-            if(isLoading) {
+            if(isLoading && currentLoadId == loadId) {
+                MetricsRegistry.increment("web.timeout");
                 handler.post(() -> {
+                    if(currentLoadId != loadId)
+                        return;
                     if(callback != null)
                         callback.onLoadFail("Timeout");
                     stopLoading();
                 });
-                Log.e("WebView", "Timeout");
+                Trace.e("WebView", "Timeout");
             }
         }).start();
 
@@ -325,6 +337,12 @@ public class WebScraper {
         loadingUrl = "";
     }
 
+    // 仅当正在进行的加载属于给定回调时停止加载
+    public void stopLoading(Callback callback){
+        if(callback != null && this.callback == callback)
+            stopLoading();
+    }
+
     // 判断是否正在加载
     public boolean isLoading(){
         return isLoading;
@@ -0,0 +1,58 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.widget.LinearLayout;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// 网页抓取器池，每个抓取器持有一个WebView，按需创建，用于并行加载多个网页
+public class WebScraperPool {
+    private final Context context;
+    private final LinearLayout parentLayout;
+    private final int maxSize;
+    private final List<WebScraper> scrapers = new ArrayList<>();
+
+    public WebScraperPool(Context context, LinearLayout parentLayout, int maxSize) {
+        this.context = context;
+        this.parentLayout = parentLayout;
+        this.maxSize = Math.max(1, maxSize);
+    }
+
+    // 获取一个空闲的抓取器（需在主线程调用），均在使用中时复用第一个（其当前加载会被中断）
+    public WebScraper acquire() {
+        for(WebScraper scraper : scrapers) {
+            if(!scraper.isLoading()) {
+                return scraper;
+            }
+        }
+        if(scrapers.size() < maxSize) {
+            WebScraper scraper = new WebScraper(context, parentLayout);
+            scrapers.add(scraper);
+            return scraper;
+        }
+        return scrapers.get(0);
+    }
+
+    public boolean isLoading() {
+        for(WebScraper scraper : scrapers) {
+            if(scraper.isLoading()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void stopLoading() {
+        for(WebScraper scraper : scrapers) {
+            scraper.stopLoading();
+        }
+    }
+
+    public void destroy() {
+        for(WebScraper scraper : scrapers) {
+            scraper.destroy();
+        }
+        scrapers.clear();
+    }
+}
@@ -8,7 +8,6 @@ import com.unfbx.chatgpt.entity.whisper.WhisperResponse;
 import java.io.File;
 import java.util.Arrays;
 
-import okhttp3.ConnectionSpec;
 import okhttp3.OkHttpClient;
 
 public class WhisperApiClient {
@@ -20,11 +19,10 @@ public class WhisperApiClient {
 
     public WhisperApiClient(Context context, String url, String apiKey) {
         this.context = context;
-        httpClient = new OkHttpClient.Builder()
+        httpClient = NetworkStack.newClientBuilder() // 与ChatApiClient共享连接池，语音识别后发送问题时可直接复用连接
                 .connectTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
                 .readTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
                 .writeTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-                .connectionSpecs(Arrays.asList(ConnectionSpec.CLEARTEXT, ConnectionSpec.COMPATIBLE_TLS))
                 .build();
         setApiInfo(url, apiKey);
     }
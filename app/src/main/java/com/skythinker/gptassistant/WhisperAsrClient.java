@@ -2,7 +2,6 @@ package com.skythinker.gptassistant;
 
 import android.content.Context;
 import android.media.MediaRecorder;
-import android.util.Log;
 
 import java.io.File;
 import java.nio.file.Files;
@@ -51,7 +50,7 @@ public class WhisperAsrClient extends AsrClientBase{
                                 if(ratio < 1) ratio = 1;
                                 double db = 20 * Math.log10(ratio);
                                 amplitude = (1 - lpfRatio) * amplitude + lpfRatio * db;
-//                                Log.d("whisper amp", String.valueOf(amplitude));
+//                                Trace.d("whisper amp", "%s", String.valueOf(amplitude));
                                 if(amplitude > SILENCE_THRESHOLD) {
                                     speechDetected = true;
                                     lastSpeechTime = System.currentTimeMillis();
@@ -0,0 +1,343 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import cn.hutool.json.JSONUtil;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+import static org.junit.Assert.*;
+
+// 用MockWebServer模拟流式接口，测试对冲、故障转移和续写
+@RunWith(RobolectricTestRunner.class)
+public class ChatApiClientStreamTest {
+    private static class RecordingListener implements ChatApiClient.OnReceiveListener {
+        final StringBuffer text = new StringBuffer();
+        final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+        volatile int finishedCount = 0;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void onMsgReceive(String message) { text.append(message); }
+
+        @Override
+        public void onError(String message) {
+            errors.add(message);
+            done.countDown();
+        }
+
+        @Override
+        public void onFunctionCall(ArrayList<ChatApiClient.CallingFunction> functions) { done.countDown(); }
+
+        @Override
+        public void onFinished(boolean completed) {
+            finishedCount++;
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("reply not finished", done.await(20, TimeUnit.SECONDS));
+        }
+    }
+
+    private Context context;
+    private MockWebServer primary;
+    private MockWebServer backup;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        context = RuntimeEnvironment.getApplication();
+        GlobalDataHolder.init(context);
+        GlobalDataHolder.saveAliyunChatSetting(false);
+        primary = new MockWebServer();
+        backup = new MockWebServer();
+        primary.start();
+        backup.start();
+        listener = new RecordingListener();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        primary.shutdown();
+        backup.shutdown();
+    }
+
+    static String contentChunk(String content) {
+        return "{\"choices\":[{\"index\":0,\"delta\":{\"content\":" + JSONUtil.quote(content, true) + "},\"finish_reason\":null}]}";
+    }
+
+    static String finishChunk(String reason) {
+        return "{\"choices\":[{\"index\":0,\"delta\":{},\"finish_reason\":\"" + reason + "\"}]}";
+    }
+
+    static String sse(String... data) {
+        StringBuilder sb = new StringBuilder();
+        for(String item : data) {
+            sb.append("data: ").append(item).append("\n\n");
+        }
+        return sb.toString();
+    }
+
+    static MockResponse stream(String... data) {
+        return new MockResponse().setHeader("Content-Type", "text/event-stream").setBody(sse(data));
+    }
+
+    static MockResponse reply(String... contents) {
+        String[] data = new String[contents.length + 2];
+        for(int i = 0; i < contents.length; i++) {
+            data[i] = contentChunk(contents[i]);
+        }
+        data[contents.length] = finishChunk("stop");
+        data[contents.length + 1] = "[DONE]";
+        return stream(data);
+    }
+
+    // 输出一段内容后连接中断：服务器只发送一半的响应体，后一半是注释行，保证内容所在的事件已完整发送
+    static MockResponse broken(String content) {
+        StringBuilder padding = new StringBuilder(": ");
+        for(int i = 0; i < 1024; i++) {
+            padding.append('.');
+        }
+        return new MockResponse().setHeader("Content-Type", "text/event-stream")
+                .setBody(sse(contentChunk(content)) + padding + "\n\n" + sse("[DONE]"))
+                .setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+    }
+
+    // 因长度限制截断的回复
+    static MockResponse truncated(String content) {
+        return stream(contentChunk(content), finishChunk("length"), "[DONE]");
+    }
+
+    private ChatApiClient newClient() {
+        GlobalDataHolder.saveEndpointSetting(new ArrayList<>(), false);
+        return new ChatApiClient(context, primary.url("/").toString(), "sk-test", "gpt-4o", listener);
+    }
+
+    private ChatApiClient newClient(boolean hedge) {
+        GlobalDataHolder.saveEndpointSetting(new ArrayList<>(Collections.singletonList(backup.url("/").toString())), hedge);
+        return new ChatApiClient(context, primary.url("/").toString(), "sk-test", "gpt-4o", listener);
+    }
+
+    // 预先写入首字延迟样本，使对冲等待时间降到下限，避免测试等待默认的3秒
+    private static void seedHedgeDelay(ChatApiClient client) {
+        EndpointPool.Endpoint seed = new EndpointPool.Endpoint("http://seed/", "sk-seed");
+        for(int i = 0; i < 5; i++) {
+            client.endpointPool.reportFirstToken(seed, 100);
+        }
+    }
+
+    static List<ChatMessage> prompt(String text) {
+        List<ChatMessage> list = new ArrayList<>();
+        list.add(new ChatMessage(ChatRole.USER).setText(text));
+        return list;
+    }
+
+    @Test
+    public void slowPrimaryLosesToHedge() throws Exception {
+        primary.enqueue(reply("from primary").setHeadersDelay(5, TimeUnit.SECONDS));
+        backup.enqueue(reply("from ", "backup"));
+        ChatApiClient client = newClient(true);
+        seedHedgeDelay(client);
+        long hedgeDelay = client.endpointPool.getHedgeDelay();
+
+        long start = System.currentTimeMillis();
+        client.sendPromptList(prompt("hi"));
+        listener.await();
+
+        assertEquals("from backup", listener.text.toString());
+        assertTrue(listener.errors.isEmpty());
+        assertEquals(1, listener.finishedCount);
+        assertTrue(System.currentTimeMillis() - start >= hedgeDelay); // 到达等待时间后才发送对冲请求
+        assertEquals(1, primary.getRequestCount());
+        assertEquals(1, backup.getRequestCount());
+        EndpointPool.Endpoint slow = client.endpointPool.getEndpoints().get(0);
+        assertTrue(slow.getTtftEwma() >= hedgeDelay); // 被取消的主地址按已等待时间记录
+        assertEquals(backup.url("/").toString(), client.endpointPool.pick(null).url); // 下次优先使用更快的地址
+    }
+
+    @Test
+    public void failedPrimaryFailsOver() throws Exception {
+        primary.enqueue(new MockResponse().setResponseCode(500).setBody("{\"error\":\"overloaded\"}"));
+        backup.enqueue(reply("recovered"));
+        ChatApiClient client = newClient(false);
+
+        client.sendPromptList(prompt("hi"));
+        listener.await();
+
+        assertEquals("recovered", listener.text.toString());
+        assertTrue(listener.errors.isEmpty());
+        assertEquals(1, listener.finishedCount);
+        assertEquals(1, primary.getRequestCount());
+        assertEquals(1, backup.getRequestCount());
+        assertTrue(client.endpointPool.getEndpoints().get(0).getErrorRate() > 0);
+        assertEquals(backup.url("/").toString(), client.endpointPool.pick(null).url); // 失败的地址进入冷却
+    }
+
+    @Test
+    public void failsWhenAllEndpointsFail() throws Exception {
+        primary.enqueue(new MockResponse().setResponseCode(500).setBody("primary down"));
+        backup.enqueue(new MockResponse().setResponseCode(503).setBody("backup down"));
+        ChatApiClient client = newClient(false);
+
+        client.sendPromptList(prompt("hi"));
+        listener.await();
+
+        assertEquals(1, listener.errors.size());
+        assertTrue(listener.errors.get(0), listener.errors.get(0).startsWith("HTTP 503"));
+        assertEquals(0, listener.finishedCount);
+        assertEquals("", listener.text.toString());
+    }
+
+    @Test
+    public void loserEventsDroppedAfterClaim() throws Exception {
+        // 主地址已建立连接但数据迟迟不到，对冲请求先收到数据后，主地址之后的数据不再交给监听器
+        primary.enqueue(reply("LOSER-1", "LOSER-2").setBodyDelay(3, TimeUnit.SECONDS));
+        backup.enqueue(reply("winner-1", " winner-2", " winner-3").throttleBody(64, 100, TimeUnit.MILLISECONDS));
+        ChatApiClient client = newClient(true);
+        seedHedgeDelay(client);
+
+        client.sendPromptList(prompt("hi"));
+        listener.await();
+        Thread.sleep(2500); // 等待主地址的数据到达（若未被取消）
+
+        assertEquals("winner-1 winner-2 winner-3", listener.text.toString());
+        assertFalse(listener.text.toString().contains("LOSER"));
+        assertTrue(listener.errors.isEmpty()); // 被取消的尝试失败不报告错误
+        assertEquals(1, listener.finishedCount);
+    }
+
+    @Test
+    public void midStreamDisconnectResumes() throws Exception {
+        primary.enqueue(broken("The quick brown fox"));
+        primary.enqueue(reply(" jumps over", " the lazy dog."));
+        ChatApiClient client = newClient();
+
+        client.sendPromptList(prompt("tell me a pangram"));
+        listener.await();
+
+        assertEquals("The quick brown fox jumps over the lazy dog.", listener.text.toString());
+        assertTrue(listener.errors.isEmpty());
+        assertEquals(1, listener.finishedCount);
+        assertEquals(2, primary.getRequestCount());
+        primary.takeRequest();
+        String continuation = primary.takeRequest().getBody().readUtf8();
+        assertTrue(continuation.contains("{\"role\":\"assistant\",\"content\":\"The quick brown fox\"}")); // 已收到的内容作为前缀
+        assertTrue(continuation.contains("was cut off"));
+    }
+
+    @Test
+    public void lengthTruncationContinues() throws Exception {
+        primary.enqueue(truncated("Part one, "));
+        primary.enqueue(reply("part two."));
+        ChatApiClient client = newClient();
+
+        client.sendPromptList(prompt("hi"));
+        listener.await();
+
+        assertEquals("Part one, part two.", listener.text.toString());
+        assertEquals(1, listener.finishedCount);
+        assertEquals(2, primary.getRequestCount());
+        RecordedRequest first = primary.takeRequest();
+        assertFalse(first.getBody().readUtf8().contains("was cut off"));
+        assertTrue(primary.takeRequest().getBody().readUtf8().contains("Part one, "));
+    }
+
+    @Test
+    public void continuationOverlapIsRemoved() throws Exception {
+        primary.enqueue(truncated("The quick brown fox jumps"));
+        primary.enqueue(reply("brown f", "ox jumps", " over the lazy dog.")); // 续写时重复了结尾的内容，且分多个数据块到达
+        ChatApiClient client = newClient();
+
+        client.sendPromptList(prompt("hi"));
+        listener.await();
+
+        assertEquals("The quick brown fox jumps over the lazy dog.", listener.text.toString());
+    }
+
+    @Test
+    public void shortRepetitionIsKept() throws Exception {
+        primary.enqueue(truncated("Sing along: la la"));
+        primary.enqueue(reply(" la la la!")); // 与结尾相同的几个字符是正常内容，不能当作重复删除
+        ChatApiClient client = newClient();
+
+        client.sendPromptList(prompt("hi"));
+        listener.await();
+
+        assertEquals("Sing along: la la la la la!", listener.text.toString());
+    }
+
+    @Test
+    public void givesUpAfterThreeResumes() throws Exception {
+        primary.enqueue(broken("one "));
+        primary.enqueue(broken("two "));
+        primary.enqueue(broken("three "));
+        primary.enqueue(broken("four "));
+        primary.enqueue(reply("never sent"));
+        ChatApiClient client = newClient();
+
+        client.sendPromptList(prompt("count"));
+        listener.await(); // 退避1+2+4秒
+
+        assertEquals(1, listener.errors.size());
+        assertEquals(0, listener.finishedCount);
+        assertEquals("one two three four ", listener.text.toString());
+        assertEquals(4, primary.getRequestCount());
+        long deadline = System.currentTimeMillis() + 2000;
+        while(client.isStreaming() && System.currentTimeMillis() < deadline) { // onError在OkHttp回调中调用，回调返回后请求才结束
+            Thread.sleep(10);
+        }
+        assertFalse(client.isStreaming());
+    }
+
+    // 续写请求加上已收到的前缀后超出上下文窗口：裁剪更早的历史，前缀和原提问保留
+    @Test
+    public void continuationFitsContextWindow() throws Exception {
+        try(InputStream in = TokenCounter.class.getResourceAsStream("/com/knuddels/jtokkit/cl100k_base.tiktoken")) {
+            TokenCounter.load(TokenCounter.CL100K_BASE, in);
+        }
+        StringBuilder history = new StringBuilder("OLD-TURN"), prefix = new StringBuilder("PREFIX");
+        for(int i = 0; i < 3300; i++) { // 每个" hello"是一个token，gpt-4的预算约6100
+            history.append(" hello");
+            prefix.append(" hello");
+        }
+        primary.enqueue(truncated(prefix.toString()));
+        primary.enqueue(reply(" and the end."));
+        GlobalDataHolder.saveEndpointSetting(new ArrayList<>(), false);
+        ChatApiClient client = new ChatApiClient(context, primary.url("/").toString(), "sk-test", "gpt-4", listener);
+        List<ChatMessage> list = new ArrayList<>();
+        list.add(new ChatMessage(ChatRole.USER).setText("old question"));
+        list.add(new ChatMessage(ChatRole.ASSISTANT).setText(history.toString()));
+        list.add(new ChatMessage(ChatRole.USER).setText("NEW-QUESTION"));
+
+        client.sendPromptList(list);
+        listener.await();
+
+        assertEquals(prefix + " and the end.", listener.text.toString());
+        assertTrue(primary.takeRequest().getBody().readUtf8().contains("OLD-TURN"));
+        String continuation = primary.takeRequest().getBody().readUtf8();
+        assertFalse(continuation.contains("OLD-TURN"));
+        assertTrue(continuation.contains("NEW-QUESTION"));
+        assertTrue(continuation.contains(JSONUtil.quote(prefix.toString(), true)));
+        assertTrue(continuation.contains("was cut off"));
+    }
+}
@@ -0,0 +1,280 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
+import com.skythinker.gptassistant.ChatManager.Conversation;
+import com.skythinker.gptassistant.ChatManager.SearchResult;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// 消息全文搜索：命中规则、排序、索引与消息同步，以及在生成的大量数据上的搜索耗时
+@RunWith(RobolectricTestRunner.class)
+public class ChatManagerSearchTest {
+    private static final LocalDateTime BASE_TIME = LocalDateTime.of(2024, 1, 1, 8, 0);
+
+    private Context context;
+    private ChatManager chatManager;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        context.deleteDatabase("chat.db");
+        ChatMessage.setContext(context);
+        chatManager = new ChatManager(context);
+    }
+
+    @After
+    public void tearDown() {
+        chatManager.destroy();
+    }
+
+    private Conversation save(String title, int minutes, String... texts) {
+        Conversation conversation = new Conversation();
+        conversation.title = title;
+        conversation.time = BASE_TIME.plusMinutes(minutes);
+        for(int i = 0; i < texts.length; i++) {
+            conversation.messages.add(new ChatMessage(i % 2 == 0 ? ChatRole.USER : ChatRole.ASSISTANT).setText(texts[i]));
+        }
+        chatManager.saveConversation(conversation);
+        return conversation;
+    }
+
+    private int countIndexRows() {
+        try(SQLiteDatabase db = SQLiteDatabase.openDatabase(context.getDatabasePath("chat.db").getPath(), null, SQLiteDatabase.OPEN_READONLY);
+            Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM messages_fts", null)) {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        }
+    }
+
+    @Test
+    public void findsWordsInsideMessages() {
+        Conversation physics = save("physics", 0, "What is a qubit?", "A qubit is the basic unit of Quantum information.");
+        save("cooking", 1, "How long to boil an egg?", "About nine minutes.");
+
+        List<SearchResult> results = chatManager.searchConversations("quantum");
+        assertEquals(1, results.size());
+        SearchResult result = results.get(0);
+        assertEquals(physics.id, result.id);
+        assertFalse(result.titleMatched);
+        assertEquals(1, result.hits);
+        assertEquals("A qubit is the basic unit of Quantum information.", chatManager.getMessageText(result.messageId));
+
+        assertEquals(1, chatManager.searchConversations("quant").size()); // 单词前缀
+        assertEquals(1, chatManager.searchConversations("QUBIT").size()); // 不区分大小写
+        assertEquals(0, chatManager.searchConversations("quantum egg").size()); // 各搜索词需在同一条消息中命中
+        assertEquals(1, chatManager.searchConversations("basic unit").size());
+        assertTrue(chatManager.searchConversations("photon").isEmpty());
+    }
+
+    @Test
+    public void findsCjkText() {
+        Conversation weather = save("天气", 0, "今天天气怎么样？", "今天是晴天，适合出门散步。");
+        save("other", 1, "天上有很多星星", "气温很低");
+
+        List<SearchResult> results = chatManager.searchConversations("晴天");
+        assertEquals(1, results.size());
+        assertEquals(weather.id, results.get(0).id);
+        assertEquals(2, chatManager.searchConversations("今天").get(0).hits);
+        assertEquals(2, chatManager.searchConversations("天").size()); // 单字前缀查询
+        assertTrue(chatManager.searchConversations("天气温").isEmpty()); // “天气”和“气温”不在同一处，不构成短语
+        assertEquals(1, chatManager.searchConversations("出门 散步").size());
+        assertTrue(chatManager.searchConversations("晴天 星星").isEmpty());
+    }
+
+    @Test
+    public void titleMatchesRankFirstThenHits() {
+        Conversation older = save("notes", 0, "kotlin coroutines", "kotlin flows", "kotlin channels", "done");
+        Conversation newer = save("misc", 10, "kotlin basics", "ok");
+        Conversation titled = save("Kotlin tips", 5, "nothing here", "still nothing");
+        Conversation newest = save("later", 20, "kotlin again", "kotlin twice");
+
+        List<SearchResult> results = chatManager.searchConversations("kotlin");
+        assertEquals(4, results.size());
+        assertEquals(titled.id, results.get(0).id); // 标题命中
+        assertTrue(results.get(0).titleMatched);
+        assertEquals(-1, results.get(0).messageId);
+        assertEquals(older.id, results.get(1).id); // 命中3条消息
+        assertEquals(3, results.get(1).hits);
+        assertEquals(newest.id, results.get(2).id); // 命中2条
+        assertEquals(newer.id, results.get(3).id);
+    }
+
+    @Test
+    public void indexFollowsMessageChanges() {
+        Conversation conversation = save("sync", 0, "first secret", "reply one", "second question", "reply two");
+        conversation.messages.add(new ChatMessage(ChatRole.ASSISTANT).addFunctionCall("call_1", "lookup", "{\"q\":\"hidden\"}", null));
+        conversation.messages.add(new ChatMessage(ChatRole.FUNCTION).addFunctionCall("call_1", "lookup", null, "hidden result"));
+        conversation.messages.add(new ChatMessage(ChatRole.ASSISTANT).setText("appended answer"));
+        chatManager.saveConversation(conversation);
+        assertEquals(1, chatManager.searchConversations("appended").size()); // 追加的消息
+        assertTrue(chatManager.searchConversations("hidden").isEmpty()); // 函数调用和结果不索引
+        assertEquals(5, countIndexRows());
+
+        conversation.messages.remove(0);
+        chatManager.saveConversation(conversation);
+        assertTrue(chatManager.searchConversations("secret").isEmpty()); // 删除的消息
+        assertEquals(4, countIndexRows());
+
+        conversation.messages.add(0, new ChatMessage(ChatRole.USER).setText("inserted secret"));
+        chatManager.saveConversation(conversation); // 插入到已保存的消息之间，重写全部消息
+        assertEquals(1, chatManager.searchConversations("secret").size());
+        assertEquals(5, countIndexRows());
+
+        chatManager.removeConversation(conversation);
+        assertTrue(chatManager.searchConversations("secret").isEmpty());
+        assertEquals(0, countIndexRows());
+
+        save("again", 1, "secret returns", "ok");
+        chatManager.removeAllConversations();
+        assertEquals(0, countIndexRows());
+    }
+
+    @Test
+    public void snippetHighlightsTerms() {
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 10; i++) {
+            text.append("filler sentence number ").append(i).append(". ");
+        }
+        text.append("The Transformer architecture uses attention.");
+        save("ml", 0, "explain", text.toString());
+
+        List<String> terms = FullTextIndex.getTerms("transformer attention");
+        SearchResult result = chatManager.searchConversations("transformer attention").get(0);
+        String message = chatManager.getMessageText(result.messageId);
+        String snippet = FullTextIndex.buildSnippet(message, terms);
+        assertTrue(snippet, snippet.startsWith("…"));
+        assertTrue(snippet, snippet.contains("Transformer architecture uses attention."));
+        List<int[]> matches = FullTextIndex.findMatches(snippet, terms);
+        assertEquals(2, matches.size());
+        for(int[] match : matches) {
+            String matched = snippet.substring(match[0], match[1]);
+            assertTrue(matched, matched.equalsIgnoreCase("transformer") || matched.equalsIgnoreCase("attention"));
+        }
+    }
+
+    // 生成测试数据：每个会话若干轮问答，消息由随机的中英文词组成，每隔100个会话放入一个固定的关键词
+    // 数据量大，绕过saveConversation，在一个事务中直接写入与其相同的行（会话、消息和预先分词的索引）
+    static void populate(Context context, int conversations, int messagesPerConversation, long seed) {
+        String[] words = {"android", "kotlin", "database", "index", "query", "network", "thread", "render", "cache", "model",
+                "今天", "天气", "数据库", "索引", "线程", "网络", "模型", "缓存", "渲染", "查询"};
+        Random random = new Random(seed);
+        String[] texts = new String[4096]; // 消息文本从中随机选取，省去逐条分词
+        String[] indexTexts = new String[texts.length];
+        for(int i = 0; i < texts.length; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = 10 + random.nextInt(30);
+            for(int w = 0; w < length; w++) {
+                text.append(words[random.nextInt(words.length)]).append(random.nextInt(4) == 0 ? "，" : " ");
+            }
+            texts[i] = text.toString();
+            indexTexts[i] = FullTextIndex.toIndexText(texts[i]);
+        }
+        try(SQLiteDatabase db = SQLiteDatabase.openDatabase(context.getDatabasePath("chat.db").getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+            SQLiteStatement insertConversation = db.compileStatement("INSERT INTO conversations (time, title, message_count, preview) VALUES (?, ?, ?, ?)");
+            SQLiteStatement insertMessage = db.compileStatement("INSERT INTO messages (conversation_id, seq, role, text) VALUES (?, ?, ?, ?)");
+            SQLiteStatement insertIndex = db.compileStatement("INSERT INTO messages_fts (docid, body) VALUES (?, ?)")) {
+            db.beginTransaction();
+            try {
+                for(int c = 0; c < conversations; c++) {
+                    insertConversation.bindString(1, BASE_TIME.plusMinutes(c).format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+                    insertConversation.bindString(2, "conversation " + c);
+                    insertConversation.bindLong(3, messagesPerConversation);
+                    insertConversation.bindString(4, "preview " + c);
+                    long conversationId = insertConversation.executeInsert();
+                    for(int m = 0; m < messagesPerConversation; m++) {
+                        int index = random.nextInt(texts.length);
+                        String text = texts[index], indexText = indexTexts[index];
+                        if(m == 1 && c % 100 == 0) {
+                            text += "needle 量子计算";
+                            indexText = FullTextIndex.toIndexText(text);
+                        }
+                        insertMessage.bindLong(1, conversationId);
+                        insertMessage.bindLong(2, m);
+                        insertMessage.bindString(3, (m % 2 == 0 ? ChatRole.USER : ChatRole.ASSISTANT).name());
+                        insertMessage.bindString(4, text);
+                        insertIndex.bindLong(1, insertMessage.executeInsert());
+                        insertIndex.bindString(2, indexText);
+                        insertIndex.executeInsert();
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            try(Cursor cursor = db.rawQuery("PRAGMA wal_checkpoint(TRUNCATE)", null)) { // 一次写入的数据量远超自动检查点的阈值，合并到数据库文件
+                cursor.moveToFirst();
+            }
+        }
+    }
+
+    // 搜索耗时的中位数（毫秒）
+    private double timeSearch(String query, int rounds) {
+        long[] times = new long[rounds];
+        for(int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            assertFalse(query, chatManager.searchConversations(query).isEmpty());
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[rounds / 2] / 1e6;
+    }
+
+    // 1万个会话、100万条消息上的搜索耗时
+    @Test
+    public void searchTimeOnGeneratedCorpus() {
+        final int conversations = 10000, messages = 100;
+        chatManager.destroy();
+        populate(context, conversations, messages, 1);
+        chatManager = new ChatManager(context);
+
+        // 搜索词和耗时上限（毫秒）：命中较少的词和标题在50ms内；
+        // 宽泛的词（每个词出现在约70%的消息中）即使只统计最新的命中，FTS4也要读取约70万条的完整命中列表，单个词约40~65ms，两个词约80~130ms
+        Object[][] queries = {{"needle", 50}, {"量子计算", 50}, {"conversation 5", 50}, {"needle 量子", 50},
+                {"天气", 100}, {"kotlin", 100}, {"kotlin database", 200}, {"thread 缓存", 200}};
+        for(Object[] query : queries) { // 预热
+            chatManager.searchConversations((String) query[0]);
+        }
+        StringBuilder report = new StringBuilder();
+        double[] times = new double[queries.length];
+        for(int i = 0; i < queries.length; i++) {
+            times[i] = Double.MAX_VALUE;
+            for(int batch = 0; batch < 3; batch++) { // 每个搜索词取最好的一批中位数，排除GC等偶发停顿
+                times[i] = Math.min(times[i], timeSearch((String) queries[i][0], 5));
+            }
+            report.append(String.format(" \"%s\" %.1f ms;", queries[i][0], times[i]));
+        }
+        for(int i = 0; i < queries.length; i++) {
+            assertTrue(report.toString(), times[i] < (Integer) queries[i][1]);
+        }
+
+        List<SearchResult> needles = chatManager.searchConversations("needle");
+        assertEquals(conversations / 100, needles.size());
+        for(SearchResult result : needles) {
+            assertEquals(0, (result.id - 1) % 100); // 会话ID从1开始
+            assertTrue(chatManager.getMessageText(result.messageId).endsWith("needle 量子计算"));
+        }
+        for(SearchResult result : chatManager.searchConversations("kotlin")) { // 宽泛的词只统计最新的命中消息
+            assertTrue(result.id > conversations - 100);
+            assertTrue(result.hits > 0 && result.hits <= messages);
+        }
+    }
+}
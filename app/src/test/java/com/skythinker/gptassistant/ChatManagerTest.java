@@ -0,0 +1,502 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.Attachment;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
+import com.skythinker.gptassistant.ChatManager.Conversation;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+
+import static org.junit.Assert.*;
+
+// 在Robolectric的SQLite上测试会话的保存、追加写入、从旧版本数据库的迁移和各类写入的吞吐量
+@RunWith(RobolectricTestRunner.class)
+public class ChatManagerTest {
+    private Context context;
+    private ChatManager chatManager;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        context.deleteDatabase("chat.db");
+        ChatMessage.setContext(context);
+    }
+
+    @After
+    public void tearDown() {
+        if(chatManager != null) {
+            chatManager.destroy();
+        }
+    }
+
+    private ChatManager open() {
+        chatManager = new ChatManager(context);
+        return chatManager;
+    }
+
+    static Conversation conversation(String title, int turns) {
+        Conversation conversation = new Conversation();
+        conversation.title = title;
+        for(int i = 0; i < turns; i++) {
+            addTurn(conversation, i);
+        }
+        return conversation;
+    }
+
+    static void addTurn(Conversation conversation, int index) {
+        conversation.messages.add(new ChatMessage(ChatRole.USER).setText("question " + index));
+        conversation.messages.add(new ChatMessage(ChatRole.ASSISTANT).setText("answer " + index + "\nsecond line"));
+    }
+
+    private static List<String> describe(List<ChatMessage> messages) {
+        List<String> list = new ArrayList<>();
+        for(ChatMessage message : messages) {
+            list.add(message.toJson().toString());
+        }
+        return list;
+    }
+
+    private static void assertSameMessages(List<ChatMessage> expected, List<ChatMessage> actual) {
+        assertEquals(describe(expected), describe(actual));
+    }
+
+    // 通过另一个连接直接查询数据库
+    private int countRows(String table, String selection) {
+        try(SQLiteDatabase db = SQLiteDatabase.openDatabase(context.getDatabasePath("chat.db").getPath(), null, SQLiteDatabase.OPEN_READONLY);
+            Cursor cursor = db.rawQuery("SELECT COUNT(*) FROM " + table + (selection == null ? "" : " WHERE " + selection), null)) {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        }
+    }
+
+    @Test
+    public void saveAndReload() {
+        open();
+        Conversation conversation = conversation("greeting", 2);
+        conversation.messages.get(0).addAttachment(Attachment.createNew(Attachment.Type.TEXT, "notes.txt", "attached notes", true));
+        conversation.messages.add(new ChatMessage(ChatRole.ASSISTANT).addFunctionCall("call_1", "search", "{\"q\":\"x\"}", null));
+        conversation.messages.add(new ChatMessage(ChatRole.FUNCTION).addFunctionCall("call_1", "search", null, "result"));
+        conversation.summary = "earlier turns";
+        conversation.summaryIndex = 2;
+        chatManager.saveConversation(conversation);
+        assertTrue(conversation.id >= 0);
+
+        Conversation loaded = chatManager.getConversation(conversation.id);
+        assertEquals("greeting", loaded.title);
+        assertEquals(conversation.time, loaded.time);
+        assertSameMessages(conversation.messages, loaded.messages);
+        assertEquals("attached notes", loaded.messages.get(0).attachments.get(0).content);
+        assertEquals("earlier turns", loaded.summary);
+        assertEquals(2, loaded.summaryIndex);
+        assertEquals("answer 0 second line", chatManager.getConversationInfoPage(null, 10).get(0).preview);
+    }
+
+    @Test
+    public void appendKeepsSavedRows() {
+        open();
+        Conversation conversation = conversation("append", 3);
+        chatManager.saveConversation(conversation);
+        List<Long> rowIds = new ArrayList<>(conversation.savedRowIds);
+
+        addTurn(conversation, 3);
+        chatManager.saveConversation(conversation);
+
+        assertEquals(rowIds, conversation.savedRowIds.subList(0, rowIds.size())); // 已保存的行不重写
+        assertEquals(8, conversation.savedRowIds.size());
+        assertEquals(8, countRows("messages", null));
+        assertSameMessages(conversation.messages, chatManager.getConversation(conversation.id).messages);
+
+        Conversation reloaded = chatManager.getConversation(conversation.id); // 重新加载后继续追加
+        addTurn(reloaded, 4);
+        chatManager.saveConversation(reloaded);
+        assertEquals(rowIds, reloaded.savedRowIds.subList(0, rowIds.size()));
+        assertSameMessages(reloaded.messages, chatManager.getConversation(conversation.id).messages);
+    }
+
+    @Test
+    public void removedAndInsertedMessages() {
+        open();
+        Conversation conversation = conversation("edit", 3);
+        chatManager.saveConversation(conversation);
+        long keptRow = conversation.savedRowIds.get(0);
+
+        conversation.messages.remove(3); // 删除中间的消息只删除对应的行
+        chatManager.saveConversation(conversation);
+        assertEquals(keptRow, (long) conversation.savedRowIds.get(0));
+        assertEquals(5, countRows("messages", null));
+        assertSameMessages(conversation.messages, chatManager.getConversation(conversation.id).messages);
+
+        conversation.messages.add(1, new ChatMessage(ChatRole.USER).setText("inserted")); // 插入到已保存的消息之间时重写
+        chatManager.saveConversation(conversation);
+        assertEquals(6, countRows("messages", null));
+        Conversation loaded = chatManager.getConversation(conversation.id);
+        assertSameMessages(conversation.messages, loaded.messages);
+        assertEquals("inserted", loaded.messages.get(1).contentText);
+    }
+
+    @Test
+    public void savedAgainAfterRemoval() {
+        open();
+        Conversation conversation = conversation("removed", 2);
+        chatManager.saveConversation(conversation);
+        long oldId = conversation.id;
+        chatManager.removeConversation(conversation); // 在历史界面中被删除后继续对话
+        assertEquals(0, countRows("messages", null));
+
+        addTurn(conversation, 2);
+        chatManager.saveConversation(conversation);
+        assertNotEquals(oldId, conversation.id);
+        assertEquals(1, chatManager.getConversationCount());
+        assertSameMessages(conversation.messages, chatManager.getConversation(conversation.id).messages);
+    }
+
+    // 创建版本1的数据库：消息以JSON数组存储在会话表中，包括旧版本的单张图片和单个函数调用字段
+    private void createVersion1Database(int conversations) {
+        File path = context.getDatabasePath("chat.db");
+        path.getParentFile().mkdirs();
+        try(SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null)) {
+            db.execSQL("CREATE TABLE conversations (id INTEGER PRIMARY KEY AUTOINCREMENT, time TEXT, title TEXT, messages TEXT);");
+            for(int i = 0; i < conversations; i++) {
+                JSONArray messages = new JSONArray();
+                messages.add(new JSONObject().set("role", "USER").set("text", "old question " + i).set("image", "legacy-" + i));
+                messages.add(new JSONObject().set("role", "ASSISTANT").set("text", "{\"city\":\"Paris\"}").set("function", "get_weather"));
+                messages.add(new JSONObject().set("role", "FUNCTION").set("text", "sunny"));
+                messages.add(new JSONObject().set("role", "ASSISTANT").set("text", "old answer " + i + "\nwith two lines"));
+                messages.add(new JSONObject().set("role", "USER").set("text", "follow up")
+                        .set("attachments", new JSONArray().set(new JSONObject().set("uuid", "shared").set("name", "a.txt").set("type", "TEXT"))));
+                db.execSQL("INSERT INTO conversations (time, title, messages) VALUES (?, ?, ?)",
+                        new Object[]{"2024-01-0" + (i + 1) + "T10:00:00", "old " + i, messages.toString()});
+            }
+            db.execSQL("INSERT INTO conversations (time, title, messages) VALUES ('2024-02-01T10:00:00', 'empty', NULL)");
+            db.setVersion(1);
+        }
+    }
+
+    @Test
+    public void migratesFromVersion1() {
+        createVersion1Database(3);
+        open();
+
+        assertEquals(4, chatManager.getConversationCount());
+        Conversation conversation = chatManager.getConversation(2);
+        assertEquals("old 1", conversation.title);
+        assertEquals("2024-01-02T10:00", conversation.time.toString());
+        assertNull(conversation.summary);
+        assertEquals(5, conversation.messages.size());
+        ChatMessage first = conversation.messages.get(0);
+        assertEquals("old question 1", first.contentText);
+        assertEquals("legacy-1", first.attachments.get(0).uuid);
+        assertEquals(Attachment.Type.IMAGE, first.attachments.get(0).type);
+        ChatMessage call = conversation.messages.get(1);
+        assertNull(call.contentText);
+        assertEquals("get_weather", call.toolCalls.get(0).functionName);
+        assertEquals("{\"city\":\"Paris\"}", call.toolCalls.get(0).arguments);
+        assertEquals("old answer 1\nwith two lines", conversation.messages.get(3).contentText);
+        assertTrue(chatManager.getConversation(4).messages.isEmpty());
+
+        assertEquals(15, countRows("messages", null));
+        assertEquals(12, countRows("messages_fts", null)); // 函数结果和空会话不索引
+        assertEquals("old answer 2 with two lines", chatManager.getConversationInfoPage(null, 10).get(1).preview); // 跳过函数调用
+        assertEquals(1, countRows("blobs", "name = 'images/legacy-0.jpg' AND refs = 1"));
+        assertEquals(1, countRows("blobs", "name = 'texts/shared.txt' AND refs = 3"));
+
+        addTurn(conversation, 5); // 迁移后的会话可以继续追加
+        chatManager.saveConversation(conversation);
+        assertSameMessages(conversation.messages, chatManager.getConversation(2).messages);
+    }
+
+    // 每轮保存的耗时应与会话长度无关：比较500轮对话中最初和最后50轮的平均耗时
+    @Test
+    public void saveTimePerTurnIsConstant() {
+        open();
+        final int turns = 500, window = 50;
+        StringBuilder paragraph = new StringBuilder();
+        for(int i = 0; i < 30; i++) {
+            paragraph.append("lorem ipsum ");
+        }
+        Conversation conversation = new Conversation();
+        long[] nanos = new long[turns];
+        for(int i = 0; i < turns; i++) {
+            conversation.messages.add(new ChatMessage(ChatRole.USER).setText("question " + i));
+            conversation.messages.add(new ChatMessage(ChatRole.ASSISTANT).setText(paragraph + String.valueOf(i)));
+            long start = System.nanoTime();
+            chatManager.saveConversation(conversation);
+            nanos[i] = System.nanoTime() - start;
+        }
+        long early = 0, late = 0;
+        for(int i = 0; i < window; i++) {
+            early += nanos[window + i]; // 跳过最开始的预热
+            late += nanos[turns - window + i];
+        }
+        early /= window;
+        late /= window;
+        System.out.printf("saveConversation per turn: turns %d-%d %d us, turns %d-%d %d us%n",
+                window, 2 * window, early / 1000, turns - window, turns, late / 1000);
+        assertEquals(turns * 2, countRows("messages", null));
+        assertTrue("save time grew from " + early + "ns to " + late + "ns", late < early * 3 + 2_000_000);
+    }
+
+    @Test
+    public void usesWriteAheadLog() {
+        open();
+        try(SQLiteDatabase db = SQLiteDatabase.openDatabase(context.getDatabasePath("chat.db").getPath(), null, SQLiteDatabase.OPEN_READONLY);
+            Cursor cursor = db.rawQuery("PRAGMA journal_mode", null)) {
+            cursor.moveToFirst();
+            assertEquals("wal", cursor.getString(0).toLowerCase());
+        }
+        chatManager.saveConversation(conversation("wal", 1));
+        chatManager.destroy(); // 关闭预编译语句和数据库后可以重新打开
+        open();
+        assertEquals(1, chatManager.getConversationCount());
+        assertEquals(1, chatManager.getConversationCount(null));
+        assertEquals(1, chatManager.getConversationCount("wa"));
+        assertEquals(0, chatManager.getConversationCount("%"));
+    }
+
+    @Test
+    public void removeConversationDeletesAllRows() {
+        open();
+        Conversation kept = conversation("kept", 2);
+        Conversation removed = conversation("removed", 3);
+        chatManager.saveConversation(kept);
+        chatManager.saveConversation(removed);
+        chatManager.removeConversation(removed.id);
+
+        assertNull(chatManager.getConversation(removed.id));
+        assertEquals(4, countRows("messages", null));
+        assertEquals(0, countRows("messages", "conversation_id = " + removed.id));
+        assertEquals(4, countRows("messages_fts", null));
+        assertSameMessages(kept.messages, chatManager.getConversation(kept.id).messages);
+    }
+
+    // 插入新会话、追加消息、删除会话的吞吐量
+    @Test
+    public void insertUpdateDeleteThroughput() {
+        open();
+        final int count = 300;
+        List<Conversation> conversations = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            conversations.add(conversation("bench " + i, 5));
+        }
+        long start = System.nanoTime();
+        for(Conversation conversation : conversations) {
+            chatManager.saveConversation(conversation);
+        }
+        long insertNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for(Conversation conversation : conversations) {
+            addTurn(conversation, 5);
+            conversation.updateTime();
+            chatManager.saveConversation(conversation);
+        }
+        long updateNanos = System.nanoTime() - start;
+        assertEquals(count * 12, countRows("messages", null));
+        start = System.nanoTime();
+        for(Conversation conversation : conversations) {
+            chatManager.removeConversation(conversation);
+        }
+        long deleteNanos = System.nanoTime() - start;
+
+        System.out.printf("chat.db throughput: insert %.0f/s (10 messages each), append %.0f/s (2 messages), delete %.0f/s%n",
+                count * 1e9 / insertNanos, count * 1e9 / updateNanos, count * 1e9 / deleteNanos);
+        assertEquals(0, chatManager.getConversationCount());
+        assertEquals(0, countRows("messages", null));
+        assertEquals(0, countRows("messages_fts", null));
+    }
+
+    // 通过另一个连接修改数据库
+    private void execSql(String sql, Object... args) {
+        try(SQLiteDatabase db = SQLiteDatabase.openDatabase(context.getDatabasePath("chat.db").getPath(), null, SQLiteDatabase.OPEN_READWRITE)) {
+            db.execSQL(sql, args);
+        }
+    }
+
+    private static final long OLD = System.currentTimeMillis() - 2 * 60 * 60 * 1000; // 早于清理的保留期
+
+    // 使附件文件的修改时间和引用计数的释放时间早于保留期
+    private void age(Attachment attachment) {
+        assertTrue(new File(attachment.getFilePath()).setLastModified(OLD));
+        execSql("UPDATE blobs SET released = ? WHERE name = ?", OLD, attachment.getBlobName());
+    }
+
+    private int refs(Attachment attachment) {
+        assertEquals(1, countRows("blobs", "name = '" + attachment.getBlobName() + "'"));
+        try(SQLiteDatabase db = SQLiteDatabase.openDatabase(context.getDatabasePath("chat.db").getPath(), null, SQLiteDatabase.OPEN_READONLY);
+            Cursor cursor = db.rawQuery("SELECT refs FROM blobs WHERE name = ?", new String[]{attachment.getBlobName()})) {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        }
+    }
+
+    private void sweepAll() throws InterruptedException {
+        chatManager.sweepOrphanBlobs(Integer.MAX_VALUE);
+        chatManager.awaitSweep();
+    }
+
+    private static File touch(File dir, String name, long time) throws Exception {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), name.getBytes(StandardCharsets.UTF_8));
+        assertTrue(file.setLastModified(time));
+        return file;
+    }
+
+    // 相同内容的附件只写入一次文件，之后的添加和保存只更新修改时间
+    @Test
+    public void repeatedAttachmentsAreNotRewritten() {
+        open();
+        MetricsRegistry.reset();
+        Attachment first = Attachment.createNew(Attachment.Type.TEXT, "a.txt", "same notes", true);
+        Attachment second = Attachment.createNew(Attachment.Type.TEXT, "b.txt", "same notes", true);
+        assertEquals(first.uuid, second.uuid);
+        assertEquals(first.getFilePath(), second.getFilePath());
+        assertEquals(1, MetricsRegistry.getCounter("attachment.dedup_hits"));
+        assertEquals("same notes".length(), MetricsRegistry.getCounter("attachment.bytes_written"));
+        assertEquals(1, new File(Attachment.getDirPath(Attachment.Type.TEXT)).listFiles().length);
+
+        Conversation conversation = conversation("dedup", 2);
+        conversation.messages.get(0).addAttachment(first);
+        conversation.messages.get(2).addAttachment(second);
+        chatManager.saveConversation(conversation);
+        addTurn(conversation, 2);
+        chatManager.saveConversation(conversation); // 再次保存不重写已保存的消息
+        assertEquals(3, MetricsRegistry.getCounter("attachment.dedup_hits"));
+        assertEquals("same notes".length(), MetricsRegistry.getCounter("attachment.bytes_written"));
+        assertEquals(2, refs(first));
+        assertEquals("same notes", chatManager.getConversation(conversation.id).messages.get(2).attachments.get(0).content);
+    }
+
+    // 删除消息和会话时减少引用计数，引用归零后文件暂时保留
+    @Test
+    public void deletingMessagesReleasesReferences() {
+        open();
+        Attachment shared = Attachment.createNew(Attachment.Type.TEXT, "s.txt", "shared notes", true);
+        Conversation first = conversation("first", 2);
+        first.messages.get(0).addAttachment(shared);
+        first.messages.get(2).addAttachment(shared);
+        Conversation second = conversation("second", 1);
+        second.messages.get(0).addAttachment(shared);
+        chatManager.saveConversation(first);
+        chatManager.saveConversation(second);
+        assertEquals(3, refs(shared));
+
+        first.messages.remove(2); // 删除一条消息
+        chatManager.saveConversation(first);
+        assertEquals(2, refs(shared));
+        assertEquals(1, countRows("blobs", "released > 0"));
+
+        chatManager.removeConversation(second);
+        assertEquals(1, refs(shared));
+        first.messages.add(1, new ChatMessage(ChatRole.USER).setText("inserted")); // 重写全部消息，引用计数不变
+        chatManager.saveConversation(first);
+        assertEquals(1, refs(shared));
+        chatManager.removeConversation(first);
+        assertEquals(0, refs(shared));
+        assertTrue(new File(shared.getFilePath()).exists());
+    }
+
+    // 引用归零的文件在保留期内不删除，超过保留期后删除文件和记录；期间被重新添加的文件不删除
+    @Test
+    public void sweepHonorsGracePeriod() throws Exception {
+        open();
+        Attachment released = Attachment.createNew(Attachment.Type.TEXT, "r.txt", "released notes", true);
+        Attachment reused = Attachment.createNew(Attachment.Type.TEXT, "u.txt", "reused notes", true);
+        Attachment kept = Attachment.createNew(Attachment.Type.TEXT, "k.txt", "kept notes", true);
+        Conversation conversation = conversation("grace", 1);
+        conversation.messages.get(0).addAttachment(released).addAttachment(reused);
+        conversation.messages.get(1).addAttachment(kept);
+        chatManager.saveConversation(conversation);
+        conversation.messages.get(0).attachments.clear();
+        conversation.messages.set(0, new ChatMessage(ChatRole.USER).setText("replaced")); // 删除引用前两个附件的消息
+        chatManager.saveConversation(conversation);
+        assertEquals(0, refs(released));
+        assertEquals(1, refs(kept));
+
+        sweepAll(); // 刚释放，保留
+        assertTrue(new File(released.getFilePath()).exists());
+        assertEquals(0, refs(released));
+
+        age(released);
+        age(reused);
+        age(kept);
+        Attachment.createNew(Attachment.Type.TEXT, "again.txt", "reused notes", true); // 在输入框中重新添加
+        sweepAll();
+        assertFalse(new File(released.getFilePath()).exists());
+        assertEquals(0, countRows("blobs", "name = '" + released.getBlobName() + "'"));
+        assertTrue(new File(reused.getFilePath()).exists());
+        assertEquals(0, refs(reused));
+        assertTrue(new File(kept.getFilePath()).exists()); // 仍被引用
+        assertEquals(1, refs(kept));
+    }
+
+    // 没有引用记录的文件（未发送的附件）和中断写入的临时文件超过保留期后删除
+    @Test
+    public void sweepRemovesOrphanAndTempFiles() throws Exception {
+        open();
+        Attachment referenced = Attachment.createNew(Attachment.Type.TEXT, "ref.txt", "referenced notes", true);
+        Conversation conversation = conversation("orphans", 1);
+        conversation.messages.get(0).addAttachment(referenced);
+        chatManager.saveConversation(conversation);
+        assertTrue(new File(referenced.getFilePath()).setLastModified(OLD));
+
+        File dir = new File(Attachment.getDirPath(Attachment.Type.TEXT));
+        File images = new File(Attachment.getDirPath(Attachment.Type.IMAGE));
+        assertTrue(images.mkdirs() || images.isDirectory());
+        File orphan = touch(dir, "orphan.txt", OLD);
+        File orphanImage = touch(images, "orphan.jpg", OLD);
+        File unsent = touch(dir, "unsent.txt", System.currentTimeMillis());
+        File temp = touch(dir, "x.txt.1234" + BlobStore.TEMP_SUFFIX, OLD);
+        File writing = touch(dir, "y.txt.5678" + BlobStore.TEMP_SUFFIX, System.currentTimeMillis());
+
+        sweepAll();
+        assertFalse(orphan.exists());
+        assertFalse(orphanImage.exists());
+        assertFalse(temp.exists());
+        assertTrue(unsent.exists());
+        assertTrue(writing.exists());
+        assertTrue(new File(referenced.getFilePath()).exists());
+        assertEquals("referenced notes", chatManager.getConversation(conversation.id).messages.get(0).attachments.get(0).content);
+    }
+
+    // 清理与重新添加同一附件同时进行：保存后引用计数为1的附件文件必须存在
+    @Test
+    public void reattachDuringSweepKeepsFile() throws Exception {
+        open();
+        for(int i = 0; i < 100; i++) {
+            Attachment attachment = Attachment.createNew(Attachment.Type.TEXT, "race.txt", "race notes", true);
+            Conversation conversation = conversation("race " + i, 1);
+            conversation.messages.get(0).addAttachment(attachment);
+            chatManager.saveConversation(conversation);
+            chatManager.removeConversation(conversation);
+            age(attachment);
+
+            chatManager.sweepOrphanBlobs(Integer.MAX_VALUE);
+            Attachment again = Attachment.createNew(Attachment.Type.TEXT, "race.txt", "race notes", true);
+            Conversation next = conversation("race again " + i, 1);
+            next.messages.get(0).addAttachment(again);
+            chatManager.saveConversation(next);
+            chatManager.awaitSweep();
+
+            assertEquals(1, refs(again));
+            assertTrue("iteration " + i, new File(again.getFilePath()).exists());
+            chatManager.removeConversation(next);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.skythinker.gptassistant;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.Attachment;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+// 按裁剪顺序逐步加大超出量：函数结果 -> 旧附件 -> 最早的轮次 -> 截断当前轮次
+public class ContextBudgetTest {
+    private static final String MODEL = "gpt-4"; // 上下文窗口8192，预留回复2048
+    private static final int BUDGET = 8192 - 2048;
+
+    private final ContextBudget contextBudget = new ContextBudget(null);
+
+    @BeforeClass
+    public static void loadVocab() throws Exception {
+        try(InputStream in = TokenCounter.class.getResourceAsStream("/com/knuddels/jtokkit/cl100k_base.tiktoken")) {
+            TokenCounter.load(TokenCounter.CL100K_BASE, in);
+        }
+    }
+
+    // cl100k中每个" hello"都是一个token
+    private static String words(int tokens) {
+        StringBuilder sb = new StringBuilder("hello");
+        for(int i = 1; i < tokens; i++) {
+            sb.append(" hello");
+        }
+        return sb.toString();
+    }
+
+    // 系统消息 + 带附件和函数调用的第一轮 + 两个旧轮次 + 当前提问
+    private static List<ChatMessage> conversation(int functionTokens, int attachmentTokens, int secondTokens, int thirdTokens, int currentTokens) {
+        List<ChatMessage> list = new ArrayList<>();
+        list.add(new ChatMessage(ChatRole.SYSTEM).setText("You are a helpful assistant."));
+        list.add(new ChatMessage(ChatRole.USER).setText("Summarize the attached file.")
+                .addAttachment(Attachment.createNew(Attachment.Type.TEXT, "notes.txt", words(attachmentTokens), false)));
+        list.add(new ChatMessage(ChatRole.ASSISTANT).addFunctionCall("call_1", "read_file", "{\"name\":\"notes.txt\"}", null));
+        list.add(new ChatMessage(ChatRole.FUNCTION).addFunctionCall("call_1", "read_file", null, words(functionTokens)));
+        list.add(new ChatMessage(ChatRole.ASSISTANT).setText("Here is the summary."));
+        list.add(new ChatMessage(ChatRole.USER).setText("second question"));
+        list.add(new ChatMessage(ChatRole.ASSISTANT).setText(words(secondTokens)));
+        list.add(new ChatMessage(ChatRole.USER).setText("third question"));
+        list.add(new ChatMessage(ChatRole.ASSISTANT).setText(words(thirdTokens)));
+        list.add(new ChatMessage(ChatRole.USER).setText(words(currentTokens)));
+        return list;
+    }
+
+    private List<ChatMessage> fit(List<ChatMessage> list) {
+        List<ChatMessage> result = contextBudget.fit(list, MODEL, null, false);
+        assertTrue(contextBudget.countRequest(result, MODEL, null, false) <= BUDGET);
+        assertSame(list.get(0), result.get(0)); // 系统消息始终保留
+        return result;
+    }
+
+    private static boolean hasRole(List<ChatMessage> list, ChatRole role) {
+        for(ChatMessage message : list) {
+            if(message.role == role) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void withinBudgetReturnsOriginalList() {
+        List<ChatMessage> list = conversation(500, 500, 500, 500, 500);
+        assertSame(list, contextBudget.fit(list, MODEL, null, false));
+    }
+
+    @Test
+    public void dropsOldFunctionResultsFirst() {
+        List<ChatMessage> list = conversation(3000, 1500, 800, 800, 200);
+        List<ChatMessage> result = fit(list);
+
+        assertEquals(list.size() - 2, result.size()); // 函数结果及发起调用的消息
+        assertFalse(hasRole(result, ChatRole.FUNCTION));
+        assertEquals(1, result.get(1).attachments.size()); // 附件未受影响
+        assertSame(list.get(5), result.get(3));
+    }
+
+    @Test
+    public void thenDropsOldAttachments() {
+        List<ChatMessage> list = conversation(500, 3500, 1200, 1200, 300);
+        List<ChatMessage> result = fit(list);
+
+        assertEquals(list.size() - 2, result.size());
+        assertFalse(hasRole(result, ChatRole.FUNCTION));
+        assertTrue(result.get(1).attachments.isEmpty());
+        assertEquals("Summarize the attached file.", result.get(1).contentText);
+        assertEquals(1, list.get(1).attachments.size()); // 不修改原消息
+        assertSame(list.get(5), result.get(3)); // 旧轮次仍保留
+    }
+
+    @Test
+    public void thenDropsEarliestTurns() {
+        List<ChatMessage> list = conversation(500, 1000, 3500, 2000, 700);
+        List<ChatMessage> result = fit(list);
+
+        assertEquals(4, result.size()); // 第一轮和第二轮被丢弃，第三轮保留
+        assertSame(list.get(7), result.get(1));
+        assertSame(list.get(8), result.get(2));
+        assertSame(list.get(9), result.get(3));
+    }
+
+    @Test
+    public void finallyTruncatesCurrentTurn() {
+        List<ChatMessage> list = conversation(500, 500, 500, 500, 7000);
+        String original = list.get(9).contentText;
+        List<ChatMessage> result = fit(list);
+
+        assertEquals(2, result.size());
+        ChatMessage current = result.get(1);
+        assertNotSame(list.get(9), current);
+        assertTrue(current.contentText.endsWith("\n...[truncated]"));
+        assertTrue(original.startsWith(current.contentText.substring(0, current.contentText.length() - "\n...[truncated]".length())));
+        assertSame(original, list.get(9).contentText);
+    }
+
+    @Test
+    public void truncatesLongestFunctionResultInCurrentTurn() {
+        List<ChatMessage> list = new ArrayList<>();
+        list.add(new ChatMessage(ChatRole.SYSTEM).setText("system"));
+        list.add(new ChatMessage(ChatRole.USER).setText("look this up"));
+        list.add(new ChatMessage(ChatRole.ASSISTANT).addFunctionCall("call_1", "search", "{}", null));
+        list.add(new ChatMessage(ChatRole.FUNCTION).addFunctionCall("call_1", "search", null, words(9000)));
+        List<ChatMessage> result = fit(list);
+
+        assertEquals(4, result.size());
+        assertTrue(result.get(3).toolCalls.get(0).content.endsWith("\n...[truncated]"));
+        assertEquals("look this up", result.get(1).contentText);
+    }
+
+    // 续写请求：末尾的assistant前缀和续写提示与当前提问一起保留，裁剪更早的历史
+    @Test
+    public void keepsPinnedContinuation() {
+        List<ChatMessage> list = conversation(500, 500, 1500, 1500, 200);
+        assertSame(list, contextBudget.fit(list, MODEL, null, false));
+        ChatMessage prefix = new ChatMessage(ChatRole.ASSISTANT).setText(words(3000));
+        ChatMessage continuePrompt = new ChatMessage(ChatRole.USER).setText("Continue exactly from where it stopped.");
+        list.add(prefix);
+        list.add(continuePrompt);
+
+        List<ChatMessage> result = contextBudget.fit(list, MODEL, null, false, 2);
+        assertTrue(contextBudget.countRequest(result, MODEL, null, false) <= BUDGET);
+        assertSame(list.get(0), result.get(0));
+        assertEquals(6, result.size()); // 第一轮和第二轮被丢弃
+        assertSame(list.get(7), result.get(1));
+        assertSame(list.get(9), result.get(3)); // 原提问
+        assertSame(prefix, result.get(4));
+        assertSame(continuePrompt, result.get(5));
+    }
+}
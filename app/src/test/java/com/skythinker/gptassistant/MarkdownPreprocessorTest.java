@@ -0,0 +1,153 @@
+package com.skythinker.gptassistant;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+// 手写扫描与原正则替换链的结果必须完全一致
+public class MarkdownPreprocessorTest {
+    private static final String THINK = "Thought";
+    private static final String THINKING = "Thinking";
+
+    private final MarkdownPreprocessor preprocessor = new MarkdownPreprocessor(THINK, THINKING);
+
+    // 输入和期望输出
+    private static final String[][] GOLDEN = {
+            {"plain text", "plain text"},
+            {"a $x$ b", "a $$x$$ b"},
+            {"$$x$$ stays", "$$x$$ stays"},
+            {"$$$x$$$", "$$$x$$$"}, // 连续的“$”不作为定界符
+            {"$a$$b$", "$$a$$b$$"},
+            {"price $ and $$ and $", "price $$ and $$ and $$"},
+            {"$$ $x$ $$", "$$ $$x$$ $$"},
+            {"$$", "$$"},
+            {"$", "$"},
+            {"$$a$", "$$a$"},
+            {"cost $5\nand $6", "cost $5\nand $6"}, // “$...$”不跨行
+            {"$a$ $b$ $c", "$$a$$ $$b$$ $c"},
+            {"$$\\[x\\]$$", "$$$$x$$$$"},
+            {"see \\[x+y", "see \\[x+y"}, // 未闭合的“\[”
+            {"\\[a\\] and \\[b", "$$a$$ and \\[b"},
+            {"\\[\na\n\\]", "$$\na\n$$"}, // “\[...\]”可跨行
+            {"\\[a \\[b\\] c\\]", "$$a \\[b$$ c\\]"},
+            {"\\(a\nb\\)", "\\(a\nb\\)"}, // “\(...\)”不跨行
+            {"\\(a\\) \\(b\nc\\)", "$$a$$ \\(b\nc\\)"},
+            {"\\(a\\)\\(b\\)", "$$a$$$$b$$"},
+            {"\\(x", "\\(x"},
+            {"![a](b)", "[![a](b)](b)"},
+            {"![a](b", "![a](b"}, // 图片链接缺少右括号
+            {"![a](b\n)", "![a](b\n)"},
+            {"![a](b) ![c](d", "[![a](b)](b) ![c](d"},
+            {"![a] (b)", "![a] (b)"},
+            {"![](u) x ![y](v)", "[![](u)](u) x [![y](v)](v)"},
+            {"<think>\nhmm\n</think>\nanswer", "```text\nThought\n\nhmm\n```\nanswer"},
+            {"<think>\nhmm", "```text\nThinking\n\nhmm\n```\n"}, // 思考尚未结束
+            {"<think>\nhmm\n", "```text\nThinking\n\nhmm\n```\n\n"},
+            {"<think>\n", "```text\nThinking\n\n\n```\n"},
+            {" <think>\nx", " <think>\nx"}, // 不在开头
+            {"<think>\n$x$\n</think>\n![a](b)", "```text\nThought\n\n$$x$$\n```\n[![a](b)](b)"},
+            {"`$x$` ```\n$y$\n``` $z$", "`$$x$$` ```\n$y$\n``` $$z$$"}, // 代码块内不处理
+            {"```\n$y$", "```\n$y$"},
+            {"$a\r$", "$$a\r$$"}, // 含“\r”时退回正则
+            {"<think>\nx\r\n", "```text\nThinking\n\nx\n```\n\r\n"},
+            {"\\(a\r\\) $b$\r\n", "$$a\r$$ $$b$$\r\n"},
+    };
+
+    @Test
+    public void goldenPairs() {
+        for(String[] pair : GOLDEN) {
+            assertEquals(pair[0], pair[1], preprocessor.process(pair[0]));
+        }
+    }
+
+    // 标题中含有“$”或“\”时，正则替换串中的特殊字符按正则的规则处理，退回使用正则
+    @Test
+    public void specialCharsInHeaderFallBack() {
+        MarkdownPreprocessor special = new MarkdownPreprocessor("cost $1", "a\\$b");
+        String text = "<think>\nhmm";
+        assertEquals(special.processWithRegex(text), special.process(text));
+    }
+
+    private static final String[] PIECES = {"$", "$$", "\\[", "\\]", "\\(", "\\)", "![", "](", "(", ")", "]", "[", "\n", "\n\n",
+            "<think>\n", "\n</think>\n", "```", "x", "a b", "你好", " ", "\\", "!", "\r", "\r\n"};
+
+    private static String randomText(Random random, boolean withFences, boolean withCarriageReturn) {
+        StringBuilder sb = new StringBuilder();
+        if(random.nextInt(4) == 0) {
+            sb.append("<think>\n");
+        }
+        int count = random.nextInt(30);
+        for(int i = 0; i < count; i++) {
+            String piece = PIECES[random.nextInt(PIECES.length)];
+            if((!withFences && piece.equals("```")) || (!withCarriageReturn && piece.indexOf('\r') >= 0)) {
+                continue;
+            }
+            sb.append(piece);
+        }
+        return sb.toString();
+    }
+
+    // 原MarkdownRenderer中的做法：按“```”分段，对代码块之外的部分执行正则替换链
+    private String processBySegments(String markdown) {
+        List<String> sepList = new ArrayList<>(Arrays.asList(markdown.split("```", -1)));
+        for(int i = 0; i < sepList.size(); i += 2) {
+            sepList.set(i, preprocessor.processWithRegex(sepList.get(i)));
+        }
+        return String.join("```", sepList);
+    }
+
+    @Test
+    public void matchesRegexOnRandomCorpus() {
+        Random random = new Random(20240615);
+        for(int i = 0; i < 20000; i++) {
+            String text = randomText(random, false, i % 4 == 0);
+            assertEquals(text, preprocessor.processWithRegex(text), preprocessor.process(text));
+        }
+        for(int i = 0; i < 20000; i++) {
+            String text = randomText(random, true, i % 4 == 0);
+            assertEquals(text, processBySegments(text), preprocessor.process(text));
+        }
+    }
+
+    // 典型回复：段落中夹杂公式、图片和代码块
+    private static String sampleReply() {
+        StringBuilder sb = new StringBuilder("<think>\nLet me work through the integral step by step.\n</think>\n");
+        for(int i = 0; i < 40; i++) {
+            sb.append("The area is $\\int_0^").append(i).append(" x^2 dx$ and the mean is \\(\\frac{1}{n}\\sum x_i\\).\n")
+                    .append("\\[\nE = mc^2 + ").append(i).append("\n\\]\n")
+                    .append("See ![figure ").append(i).append("](https://example.com/").append(i).append(".png) for details.\n")
+                    .append("```java\nint price = $").append(i).append(";\n```\n")
+                    .append("普通的中文段落，没有任何公式，只是一些说明文字。\n\n");
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void processComparedWithRegex() {
+        String text = sampleReply();
+        assertEquals(processBySegments(text), preprocessor.process(text));
+        final int rounds = 1000;
+        long sink = 0;
+        for(int i = 0; i < rounds; i++) { // 预热，两种实现都需要充分JIT编译后再比较
+            sink += preprocessor.process(text).length() + processBySegments(text).length();
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < rounds; i++) {
+            sink += preprocessor.process(text).length();
+        }
+        long scanNanos = (System.nanoTime() - start) / rounds;
+        start = System.nanoTime();
+        for(int i = 0; i < rounds; i++) {
+            sink += processBySegments(text).length();
+        }
+        long regexNanos = (System.nanoTime() - start) / rounds;
+        System.out.printf("MarkdownPreprocessor on %d chars: scanner %d us, regex chain %d us (%.1fx)%n",
+                text.length(), scanNanos / 1000, regexNanos / 1000, (double) regexNanos / scanNanos);
+        assertTrue(sink > 0);
+    }
+}
@@ -0,0 +1,189 @@
+package com.skythinker.gptassistant;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.Attachment;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import okhttp3.RequestBody;
+import okio.Buffer;
+
+import static org.junit.Assert.*;
+
+// 缓存的片段必须与重新序列化的结果一致，消息变化后失效；新增一轮对话时的构建耗时与历史长度无关
+public class PromptPayloadBuilderTest {
+    private static final String MODEL = "gpt-4o";
+
+    private static String bodyOf(RequestBody body) throws Exception {
+        Buffer buffer = new Buffer();
+        body.writeTo(buffer);
+        assertEquals(body.contentLength(), buffer.size());
+        return buffer.readUtf8();
+    }
+
+    private static String build(PromptPayloadBuilder builder, List<ChatMessage> promptList) throws Exception {
+        return bodyOf(builder.build(promptList, MODEL, 0.5f, true));
+    }
+
+    // 不使用缓存的结果
+    private static String buildFresh(List<ChatMessage> promptList, JSONArray tools) throws Exception {
+        PromptPayloadBuilder builder = new PromptPayloadBuilder();
+        builder.setTools(tools);
+        return build(builder, promptList);
+    }
+
+    private static String text(int index) {
+        StringBuilder sb = new StringBuilder();
+        while(sb.length() < 400) {
+            sb.append("turn ").append(index).append(" 的内容，含有需要转义的\"引号\"和\n换行。");
+        }
+        return sb.toString();
+    }
+
+    private static void addTurn(List<ChatMessage> list, int index) {
+        list.add(new ChatMessage(ChatRole.USER).setText("question " + index + ": " + text(index)));
+        list.add(new ChatMessage(ChatRole.ASSISTANT).setText("<think>\nreasoning\n</think>\nanswer " + index + ": " + text(index)));
+    }
+
+    private static List<ChatMessage> conversation(int turns) {
+        List<ChatMessage> list = new ArrayList<>();
+        list.add(new ChatMessage(ChatRole.SYSTEM).setText("You are a helpful assistant."));
+        for(int i = 0; i < turns; i++) {
+            addTurn(list, i);
+        }
+        return list;
+    }
+
+    @Test
+    public void cachedBodyMatchesFreshBuild() throws Exception {
+        List<ChatMessage> list = conversation(3);
+        list.add(new ChatMessage(ChatRole.ASSISTANT).addFunctionCall("call_1", "get_weather", "{\"city\":\"Paris\"}", null));
+        list.add(new ChatMessage(ChatRole.FUNCTION).addFunctionCall("call_1", "get_weather", null, "{\"temp\":21}"));
+        list.add(new ChatMessage(ChatRole.ASSISTANT).setText("It is 21 degrees."));
+        JSONArray tools = JSONUtil.parseArray("[{\"type\":\"function\",\"function\":{\"name\":\"get_weather\",\"parameters\":{}}}]");
+        PromptPayloadBuilder builder = new PromptPayloadBuilder();
+        builder.setTools(tools);
+
+        String first = build(builder, list);
+        assertEquals(first, build(builder, list));
+        assertEquals(buildFresh(list, tools), first);
+
+        JSONObject json = JSONUtil.parseObj(first);
+        assertEquals(MODEL, json.getStr("model"));
+        assertEquals(list.size(), json.getJSONArray("messages").size());
+        assertEquals("auto", json.getStr("tool_choice"));
+        assertEquals("answer 0: " + text(0), json.getJSONArray("messages").getJSONObject(2).getStr("content")); // 去除思维链
+        assertEquals("call_1", json.getJSONArray("messages").getJSONObject(8).getStr("tool_call_id"));
+
+        builder.setTools(null);
+        assertEquals(buildFresh(list, null), build(builder, list));
+    }
+
+    @Test
+    public void fragmentsInvalidatedOnChange() throws Exception {
+        List<ChatMessage> list = conversation(2);
+        ChatMessage call = new ChatMessage(ChatRole.ASSISTANT).addFunctionCall("call_1", "search", "{\"q\":", null);
+        ChatMessage result = new ChatMessage(ChatRole.FUNCTION).addFunctionCall("call_1", "search", null, null);
+        list.add(call);
+        list.add(result);
+        PromptPayloadBuilder builder = new PromptPayloadBuilder();
+        build(builder, list);
+
+        call.toolCalls.get(0).arguments += "\"kotlin\"}"; // 流式接收参数时原地修改
+        result.toolCalls.get(0).content = "kotlin result"; // 函数执行完成后写入结果
+        String body = build(builder, list);
+        assertEquals(buildFresh(list, null), body);
+        assertTrue(body.contains("kotlin result"));
+        assertTrue(body.contains(JSONUtil.quote("{\"q\":\"kotlin\"}", true)));
+
+        call.toolCalls.get(0).id = "call_2"; // 替换函数调用的字段
+        result.toolCalls.set(0, new ChatMessage.ToolCall());
+        result.toolCalls.get(0).id = "call_2";
+        result.toolCalls.get(0).content = "replaced result";
+        body = build(builder, list);
+        assertEquals(buildFresh(list, null), body);
+        assertFalse(body.contains("call_1"));
+
+        Attachment attachment = Attachment.createNew(Attachment.Type.TEXT, "notes.txt", "first notes", false);
+        list.get(1).addAttachment(attachment); // 添加附件后所有消息切换为contentList格式
+        body = build(builder, list);
+        assertEquals(buildFresh(list, null), body);
+        assertTrue(body.contains("first notes"));
+
+        attachment.content = "second notes"; // 附件内容变化
+        body = build(builder, list);
+        assertEquals(buildFresh(list, null), body);
+        assertFalse(body.contains("first notes"));
+
+        list.get(1).attachments.set(0, Attachment.createNew(Attachment.Type.TEXT, "other.txt", "third notes", false)); // 替换附件
+        assertEquals(buildFresh(list, null), build(builder, list));
+
+        list.get(1).attachments.clear(); // 移除附件后恢复普通content格式
+        body = build(builder, list);
+        assertEquals(buildFresh(list, null), body);
+        assertFalse(body.contains("\"type\":\"text\""));
+
+        list.get(3).setText("edited question"); // 编辑消息文本
+        assertEquals(buildFresh(list, null), build(builder, list));
+    }
+
+    // 依次在10、100、1000轮历史的会话中各追加一轮并重新构建，交替进行使各规模受到相同的机器负载影响
+    // 返回每个规模首次构建（全部序列化）的耗时和追加一轮后重新构建的耗时中位数（纳秒）
+    private static long[][] measure(int[] sizes, int rounds) throws Exception {
+        List<List<ChatMessage>> lists = new ArrayList<>();
+        List<PromptPayloadBuilder> builders = new ArrayList<>();
+        long[][] result = new long[sizes.length][2];
+        for(int s = 0; s < sizes.length; s++) {
+            lists.add(conversation(sizes[s]));
+            builders.add(new PromptPayloadBuilder());
+            long start = System.nanoTime();
+            RequestBody body = builders.get(s).build(lists.get(s), MODEL, 0.5f, true);
+            result[s][0] = System.nanoTime() - start;
+            assertTrue(body.contentLength() > 0);
+        }
+        long[][] warm = new long[sizes.length][rounds];
+        for(int i = 0; i < rounds; i++) {
+            for(int s = 0; s < sizes.length; s++) {
+                addTurn(lists.get(s), sizes[s] + i);
+                long start = System.nanoTime();
+                RequestBody body = builders.get(s).build(lists.get(s), MODEL, 0.5f, true);
+                warm[s][i] = System.nanoTime() - start;
+                assertTrue(body.contentLength() > 0);
+            }
+        }
+        for(int s = 0; s < sizes.length; s++) {
+            Arrays.sort(warm[s]);
+            result[s][1] = warm[s][rounds / 2];
+        }
+        return result;
+    }
+
+    @Test
+    public void rebuildCostIndependentOfHistory() throws Exception {
+        int[] sizes = {10, 100, 1000};
+        measure(sizes, 300); // 预热
+        long[][] result = measure(sizes, 300);
+        for(int batch = 0; batch < 2; batch++) { // 多测几批，每个规模取最好的中位数，排除GC等偶发停顿
+            long[][] again = measure(sizes, 300);
+            for(int s = 0; s < sizes.length; s++) {
+                result[s][1] = Math.min(result[s][1], again[s][1]);
+            }
+        }
+        long[] small = result[0], medium = result[1], large = result[2];
+
+        String report = String.format("cold/warm us: 10 turns %d/%d, 100 turns %d/%d, 1000 turns %d/%d",
+                small[0] / 1000, small[1] / 1000, medium[0] / 1000, medium[1] / 1000, large[0] / 1000, large[1] / 1000);
+        // 历史增长100倍，重新构建只多出逐条核对缓存片段的开销（每条消息几十纳秒），与序列化新增一轮的开销相当
+        assertTrue(report, large[1] < small[1] * 4);
+        assertTrue(report, medium[1] < small[1] * 2);
+        assertTrue(report, large[1] * 20 < large[0]); // 与全部重新序列化相比
+    }
+}
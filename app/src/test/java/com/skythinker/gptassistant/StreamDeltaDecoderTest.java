@@ -0,0 +1,270 @@
+package com.skythinker.gptassistant;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+
+import static org.junit.Assert.*;
+
+public class StreamDeltaDecoderTest {
+    // 按回调顺序记录解码事件
+    private static class RecordingListener implements StreamDeltaDecoder.Listener {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onContent(String content) { events.add("content:" + content); }
+
+        @Override
+        public void onReasoning(String reasoning) { events.add("reasoning:" + reasoning); }
+
+        @Override
+        public void onToolCall(int index, String id, String name, String arguments) {
+            events.add("tool:" + index + "," + id + "," + name + "," + arguments);
+        }
+
+        @Override
+        public void onFinishReason(String reason) { events.add("finish:" + reason); }
+
+        @Override
+        public void onUsage(int promptTokens, int completionTokens, int totalTokens) {
+            events.add("usage:" + promptTokens + "," + completionTokens + "," + totalTokens);
+        }
+    }
+
+    private RecordingListener listener;
+    private StreamDeltaDecoder decoder;
+
+    @Before
+    public void setUp() {
+        listener = new RecordingListener();
+        decoder = new StreamDeltaDecoder(listener);
+    }
+
+    private List<String> decode(String chunk) {
+        listener.events.clear();
+        assertTrue("should decode: " + chunk, decoder.decode(chunk));
+        return new ArrayList<>(listener.events);
+    }
+
+    private void assertMalformed(String chunk) {
+        listener.events.clear();
+        assertFalse("should reject: " + chunk, decoder.decode(chunk));
+        assertEquals(Collections.emptyList(), listener.events);
+    }
+
+    private static String contentChunk(String escapedContent) {
+        return "{\"id\":\"chatcmpl-1\",\"object\":\"chat.completion.chunk\",\"created\":1700000000,\"model\":\"gpt-4o\","
+                + "\"choices\":[{\"index\":0,\"delta\":{\"content\":\"" + escapedContent + "\"},\"logprobs\":null,\"finish_reason\":null}]}";
+    }
+
+    @Test
+    public void plainContent() {
+        assertEquals(Arrays.asList("content:Hello"), decode(contentChunk("Hello")));
+    }
+
+    @Test
+    public void escapedQuotesAndControlCharacters() {
+        assertEquals(Arrays.asList("content:say \"hi\"\\ \n\t\r/\b\f"),
+                decode(contentChunk("say \\\"hi\\\"\\\\ \\n\\t\\r\\/\\b\\f")));
+        assertEquals(Arrays.asList("content:\"}]{["), decode(contentChunk("\\\"}]{[")));
+    }
+
+    @Test
+    public void unicodeEscapes() {
+        assertEquals(Arrays.asList("content:你好"), decode(contentChunk("\\u4f60\\u597D")));
+        assertEquals(Arrays.asList("content:a😀b"), decode(contentChunk("a\\ud83d\\ude00b"))); // 代理对
+        assertEquals(Arrays.asList("content:😀"), decode(contentChunk("😀"))); // 未转义的补充平面字符
+    }
+
+    @Test
+    public void nullAndEmptyContent() {
+        assertEquals(Collections.emptyList(),
+                decode("{\"choices\":[{\"index\":0,\"delta\":{\"role\":\"assistant\",\"content\":null},\"finish_reason\":null}]}"));
+        assertEquals(Collections.emptyList(),
+                decode("{\"choices\":[{\"index\":0,\"delta\":{\"content\":\"\"},\"finish_reason\":null}]}"));
+        assertEquals(Collections.emptyList(), decode("{\"choices\":[{\"index\":0,\"delta\":null}]}"));
+        assertEquals(Collections.emptyList(), decode("{\"choices\":[]}"));
+        assertEquals(Collections.emptyList(), decode("{}"));
+    }
+
+    @Test
+    public void reasoningContent() {
+        assertEquals(Arrays.asList("reasoning:Let me think"),
+                decode("{\"choices\":[{\"index\":0,\"delta\":{\"content\":null,\"reasoning_content\":\"Let me think\"}}]}"));
+        assertEquals(Arrays.asList("content:answer"), // 正文优先于思维链
+                decode("{\"choices\":[{\"index\":0,\"delta\":{\"content\":\"answer\",\"reasoning_content\":\"x\"}}]}"));
+    }
+
+    @Test
+    public void finishReasonAndUsage() {
+        assertEquals(Arrays.asList("content:end", "finish:length"),
+                decode("{\"choices\":[{\"index\":0,\"delta\":{\"content\":\"end\"},\"finish_reason\":\"length\"}]}"));
+        assertEquals(Arrays.asList("usage:12,34,46"),
+                decode("{\"id\":\"x\",\"choices\":[],\"usage\":{\"prompt_tokens\":12,\"completion_tokens\":34,\"total_tokens\":46,"
+                        + "\"prompt_tokens_details\":{\"cached_tokens\":0}}}"));
+        assertEquals(Arrays.asList("usage:5,-1,-1"), decode("{\"choices\":null,\"usage\":{\"prompt_tokens\":5,\"completion_tokens\":null}}"));
+    }
+
+    @Test
+    public void toolCallArgumentDeltas() {
+        assertEquals(Arrays.asList("tool:0,call_1,get_weather,"),
+                decode("{\"choices\":[{\"index\":0,\"delta\":{\"role\":\"assistant\",\"content\":null,\"tool_calls\":[{\"index\":0,"
+                        + "\"id\":\"call_1\",\"type\":\"function\",\"function\":{\"name\":\"get_weather\",\"arguments\":\"\"}}]}}]}"));
+        assertEquals(Arrays.asList("tool:0,null,null,{\"city\":"),
+                decode("{\"choices\":[{\"index\":0,\"delta\":{\"tool_calls\":[{\"index\":0,\"function\":{\"arguments\":\"{\\\"city\\\":\"}}]}}]}"));
+        assertEquals(Arrays.asList("tool:0,null,null,\"北京\"}", "finish:tool_calls"),
+                decode("{\"choices\":[{\"index\":0,\"delta\":{\"tool_calls\":[{\"index\":0,\"function\":{\"arguments\":\"\\\"\\u5317\\u4eac\\\"}\"}}]},"
+                        + "\"finish_reason\":\"tool_calls\"}]}"));
+        assertEquals(Arrays.asList("tool:-1,call_2,search,{}"), // index缺失
+                decode("{\"choices\":[{\"delta\":{\"content\":\"ignored\",\"tool_calls\":[{\"id\":\"call_2\",\"function\":{\"name\":\"search\",\"arguments\":\"{}\"}}]}}]}"));
+    }
+
+    @Test
+    public void multipleToolCallsInOneDelta() {
+        StringBuilder calls = new StringBuilder();
+        List<String> expected = new ArrayList<>();
+        for(int i = 0; i < 6; i++) { // 超过初始容量
+            if(i > 0) calls.append(',');
+            calls.append("{\"index\":").append(i).append(",\"id\":\"call_").append(i)
+                    .append("\",\"type\":\"function\",\"function\":{\"name\":\"f").append(i).append("\",\"arguments\":\"{}\"}}");
+            expected.add("tool:" + i + ",call_" + i + ",f" + i + ",{}");
+        }
+        assertEquals(expected, decode("{\"choices\":[{\"index\":0,\"delta\":{\"tool_calls\":[" + calls + "]}}]}"));
+        assertEquals(Arrays.asList("content:next"), decode(contentChunk("next"))); // 上一个chunk的函数调用已清除
+    }
+
+    @Test
+    public void onlyFirstChoiceAndUnknownFieldsSkipped() {
+        assertEquals(Arrays.asList("content:first"),
+                decode("{\"x\":{\"a\":[1,2,{\"b\":\"}\"}]},\"choices\":[{\"index\":0,\"delta\":{\"content\":\"first\",\"extra\":[true,false,null,-1.5e3]}},"
+                        + "{\"index\":1,\"delta\":{\"content\":\"second\"}}],\"system_fingerprint\":\"fp\\\"x\"}"));
+        assertEquals(Arrays.asList("content:spaced"),
+                decode(" {\n \"choices\" : [ { \"delta\" : { \"content\" : \"spaced\" } } ] }\n"));
+    }
+
+    @Test
+    public void doneMarkerIsNotJson() {
+        assertMalformed("[DONE]"); // [DONE]由ChatApiClient在解码前处理
+    }
+
+    @Test
+    public void malformedChunks() {
+        String valid = contentChunk("ok");
+        for(int i = 0; i < valid.length() - 1; i++) { // 任意位置截断
+            assertMalformed(valid.substring(0, i));
+        }
+        assertMalformed("{\"choices\":[{\"delta\":{\"content\":\"bad \\uZZZZ\"}}]}");
+        assertMalformed("{\"choices\":[{\"delta\":{\"content\":\"a\"}}]");
+        assertMalformed("{\"choices\" [{\"delta\":{\"content\":\"a\"}}]}");
+        assertMalformed("{'choices':[]}");
+        assertMalformed("data: " + valid);
+        assertEquals(Arrays.asList("content:ok"), decode(valid)); // 出错后状态已重置
+    }
+
+    // 与hutool构建JSON树后取值的结果比较，内容由随机字符（含控制字符、引号、代理对）组成
+    @Test
+    public void matchesHutoolOnRandomCorpus() {
+        Random random = new Random(20240601);
+        for(int i = 0; i < 5000; i++) {
+            String chunk = randomChunk(random);
+            List<String> expected = decodeWithHutool(chunk);
+            assertEquals(chunk, expected, decode(chunk));
+        }
+    }
+
+    private static String randomText(Random random) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(40);
+        for(int i = 0; i < length; i++) {
+            switch(random.nextInt(6)) {
+                case 0: sb.append((char) random.nextInt(0x20)); break;
+                case 1: sb.append("\"\\/{}[],:".charAt(random.nextInt(9))); break;
+                case 2: sb.appendCodePoint(0x1F600 + random.nextInt(64)); break;
+                case 3: sb.append((char) (0x4E00 + random.nextInt(0x5000))); break;
+                default: sb.append((char) (0x20 + random.nextInt(0x5F))); break;
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String randomChunk(Random random) {
+        JSONObject delta = new JSONObject();
+        switch(random.nextInt(3)) {
+            case 0: delta.set("content", randomText(random)); break;
+            case 1: delta.set("reasoning_content", randomText(random)); break;
+            default:
+                JSONObject function = new JSONObject().set("arguments", randomText(random));
+                if(random.nextBoolean()) function.set("name", randomText(random));
+                JSONObject toolCall = new JSONObject().set("index", random.nextInt(3)).set("function", function);
+                if(random.nextBoolean()) toolCall.set("id", "call_" + random.nextInt(1000));
+                delta.set("tool_calls", new JSONArray().put(toolCall));
+                break;
+        }
+        JSONObject choice = new JSONObject().set("index", 0).set("delta", delta);
+        if(random.nextInt(4) == 0) choice.set("finish_reason", random.nextBoolean() ? "stop" : "length");
+        return new JSONObject().set("id", randomText(random)).set("choices", new JSONArray().put(choice)).toString();
+    }
+
+    // 修改前ChatApiClient中基于hutool的取值逻辑（只取第一个函数调用）
+    private static List<String> decodeWithHutool(String chunk) {
+        List<String> events = new ArrayList<>();
+        JSONObject choice = new JSONObject(chunk).getJSONArray("choices").getJSONObject(0);
+        JSONObject delta = choice.getJSONObject("delta");
+        if(delta.containsKey("tool_calls")) {
+            JSONObject toolCall = delta.getJSONArray("tool_calls").getJSONObject(0);
+            JSONObject function = toolCall.getJSONObject("function");
+            events.add("tool:" + toolCall.getInt("index") + "," + toolCall.getStr("id") + "," + function.getStr("name") + "," + function.getStr("arguments"));
+        } else if(delta.getStr("content") != null && !delta.getStr("content").isEmpty()) {
+            events.add("content:" + delta.getStr("content"));
+        } else if(delta.getStr("reasoning_content") != null && !delta.getStr("reasoning_content").isEmpty()) {
+            events.add("reasoning:" + delta.getStr("reasoning_content"));
+        }
+        if(choice.getStr("finish_reason") != null) {
+            events.add("finish:" + choice.getStr("finish_reason"));
+        }
+        return events;
+    }
+
+    // 解码吞吐量对比：逐字输出的典型chunk，分别用StreamDeltaDecoder和hutool解析
+    @Test
+    public void decodeThroughputComparedWithHutool() {
+        String[] chunks = {
+                contentChunk("The"), contentChunk(" quick"), contentChunk(" brown\\n"), contentChunk("\\u4f60\\u597d"),
+                "{\"id\":\"chatcmpl-1\",\"choices\":[{\"index\":0,\"delta\":{\"content\":null,\"reasoning_content\":\" step\"},\"finish_reason\":null}]}",
+        };
+        final int rounds = 40000;
+        int[] sink = new int[1];
+        StreamDeltaDecoder benchDecoder = new StreamDeltaDecoder(new StreamDeltaDecoder.Listener() {
+            @Override public void onContent(String content) { sink[0] += content.length(); }
+            @Override public void onReasoning(String reasoning) { sink[0] += reasoning.length(); }
+            @Override public void onToolCall(int index, String id, String name, String arguments) { }
+            @Override public void onFinishReason(String reason) { }
+            @Override public void onUsage(int promptTokens, int completionTokens, int totalTokens) { }
+        });
+        for(int i = 0; i < rounds / 4; i++) { // 预热
+            benchDecoder.decode(chunks[i % chunks.length]);
+            sink[0] += decodeWithHutool(chunks[i % chunks.length]).size();
+        }
+        long start = System.nanoTime();
+        for(int i = 0; i < rounds; i++) {
+            benchDecoder.decode(chunks[i % chunks.length]);
+        }
+        long decoderNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for(int i = 0; i < rounds; i++) {
+            sink[0] += decodeWithHutool(chunks[i % chunks.length]).size();
+        }
+        long hutoolNanos = System.nanoTime() - start;
+        System.out.printf("StreamDeltaDecoder: %d ns/chunk, hutool JSONObject: %d ns/chunk (%.1fx)%n",
+                decoderNanos / rounds, hutoolNanos / rounds, (double) hutoolNanos / decoderNanos);
+        assertTrue(sink[0] > 0);
+    }
+}
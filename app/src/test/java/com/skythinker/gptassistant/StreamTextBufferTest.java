@@ -0,0 +1,236 @@
+package com.skythinker.gptassistant;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class StreamTextBufferTest {
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    // 模拟流式回复中的token：2~6个字符，混合中英文
+    private static List<String> tokens(int totalChars, long seed) {
+        String[] pieces = {"the", " quick", " brown", " fox", "你好", "，", "世界", "\n", "```", "$x$", " jumps", " over"};
+        Random random = new Random(seed);
+        List<String> list = new ArrayList<>();
+        for(int length = 0; length < totalChars; ) {
+            String piece = pieces[random.nextInt(pieces.length)];
+            list.add(piece);
+            length += piece.length();
+        }
+        return list;
+    }
+
+    @Test
+    public void appendAcrossChunkBoundaries() {
+        StreamTextBuffer buffer = new StreamTextBuffer();
+        StringBuilder expected = new StringBuilder();
+        String[] parts = {repeat('a', 4095), "bc", repeat('d', 4096), "", repeat('e', 9000), "f"}; // 分别落在块尾、跨块、整块和跨多块
+        for(String part : parts) {
+            buffer.append(part);
+            expected.append(part);
+            assertEquals(expected.length(), buffer.length());
+        }
+        buffer.append(new StringBuilder("gh")); // 非String的CharSequence逐字符复制
+        buffer.append(null);
+        expected.append("gh");
+
+        assertEquals(expected.toString(), buffer.toString());
+        assertEquals('a', buffer.charAt(4094));
+        assertEquals('b', buffer.charAt(4095));
+        assertEquals('c', buffer.charAt(4096));
+        assertEquals('h', buffer.charAt(buffer.length() - 1));
+        assertEquals(expected.substring(4090, 4100), buffer.subSequence(4090, 4100).toString());
+        try {
+            buffer.charAt(buffer.length());
+            fail();
+        } catch(IndexOutOfBoundsException ignored) {
+        }
+    }
+
+    @Test
+    public void snapshotCachedUntilModified() {
+        StreamTextBuffer buffer = new StreamTextBuffer();
+        assertEquals("", buffer.toString());
+        buffer.append("hello");
+        long version = buffer.getVersion();
+        String first = buffer.toString();
+        assertSame(first, buffer.toString()); // 内容未变时不重复拼接
+        buffer.append("");
+        assertEquals(version, buffer.getVersion()); // 空追加不算修改
+        assertSame(first, buffer.toString());
+
+        int clearCount = buffer.getClearCount();
+        buffer.append(" world");
+        assertTrue(buffer.getVersion() > version);
+        assertEquals(clearCount, buffer.getClearCount()); // 只追加，之前的快照仍是前缀
+        assertEquals("hello world", buffer.toString());
+        assertEquals("hello", first);
+
+        buffer.clear();
+        assertEquals(clearCount + 1, buffer.getClearCount());
+        assertEquals(0, buffer.length());
+        assertEquals("", buffer.toString());
+        buffer.append("again");
+        assertEquals("again", buffer.toString());
+    }
+
+    // 多个线程同时追加，主线程不断读取快照：每次快照都是完整追加的结果，长度和版本单调递增
+    @Test
+    public void concurrentAppendAndSnapshot() throws Exception {
+        final int writers = 4, appendsPerWriter = 5000;
+        StreamTextBuffer buffer = new StreamTextBuffer();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch finished = new CountDownLatch(writers);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        for(int w = 0; w < writers; w++) {
+            final String piece = "<" + (char) ('A' + w) + repeat((char) ('a' + w), w * 3) + ">"; // 每个线程的片段长度不同，便于跨块
+            new Thread(() -> {
+                try {
+                    start.await();
+                    for(int i = 0; i < appendsPerWriter; i++) {
+                        buffer.append(piece);
+                    }
+                } catch(Throwable e) {
+                    failed.set(true);
+                } finally {
+                    finished.countDown();
+                }
+            }).start();
+        }
+
+        start.countDown();
+        int lastLength = 0;
+        long lastVersion = 0;
+        String lastSnapshot = "";
+        int snapshots = 0;
+        while(finished.getCount() > 0 || snapshots == 0) {
+            long version = buffer.getVersion();
+            String snapshot = buffer.toString();
+            assertTrue(version >= lastVersion);
+            assertTrue(snapshot.length() >= lastLength);
+            assertTrue(snapshot.startsWith(lastSnapshot.substring(0, Math.min(lastSnapshot.length(), 256)))); // 只追加，不改写已有内容
+            assertWholePieces(snapshot);
+            lastLength = snapshot.length();
+            lastVersion = version;
+            lastSnapshot = snapshot;
+            snapshots++;
+        }
+        assertFalse(failed.get());
+
+        String result = buffer.toString();
+        assertWholePieces(result);
+        int expectedLength = 0;
+        for(int w = 0; w < writers; w++) {
+            expectedLength += (3 + w * 3) * appendsPerWriter;
+            assertEquals(appendsPerWriter, count(result, "<" + (char) ('A' + w)));
+        }
+        assertEquals(expectedLength, result.length());
+        assertEquals(expectedLength, buffer.length());
+        assertEquals(writers * appendsPerWriter, buffer.getVersion());
+    }
+
+    // 快照由若干完整片段组成，不会读到追加了一半的片段
+    private static void assertWholePieces(String text) {
+        int i = 0;
+        while(i < text.length()) {
+            assertEquals('<', text.charAt(i));
+            int w = text.charAt(i + 1) - 'A';
+            int end = i + 2 + w * 3;
+            for(int j = i + 2; j < end; j++) {
+                assertEquals((char) ('a' + w), text.charAt(j));
+            }
+            assertEquals('>', text.charAt(end));
+            i = end + 1;
+        }
+    }
+
+    private static int count(String text, String token) {
+        int count = 0;
+        for(int i = text.indexOf(token); i >= 0; i = text.indexOf(token, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+
+    // 逐个追加token，最后读取一次完整内容，返回耗时的中位数（纳秒）
+    private static long timeBuffer(List<String> tokens, int rounds) {
+        long[] times = new long[rounds];
+        for(int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            StreamTextBuffer buffer = new StreamTextBuffer();
+            for(String token : tokens) {
+                buffer.append(token);
+            }
+            assertTrue(buffer.toString().length() > 0);
+            times[r] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[rounds / 2];
+    }
+
+    // 原来的做法：chatApiBuffer += message，每个token都复制一次已有的全部内容
+    private static long timeStringConcat(List<String> tokens, int rounds) {
+        long[] times = new long[rounds];
+        for(int r = 0; r < rounds; r++) {
+            long start = System.nanoTime();
+            String text = "";
+            for(String token : tokens) {
+                text += token;
+            }
+            assertTrue(text.length() > 0);
+            times[r] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[rounds / 2];
+    }
+
+    private static int totalLength(List<String> tokens) {
+        int length = 0;
+        for(String token : tokens) {
+            length += token.length();
+        }
+        return length;
+    }
+
+    // 回复长度翻倍时，缓冲区每个字符的追加耗时基本不变（线性增长），字符串拼接则随长度增长（平方增长）
+    @Test
+    public void appendTimeGrowsLinearly() {
+        int[] sizes = {25000, 50000, 100000};
+        List<List<String>> tokenLists = new ArrayList<>();
+        for(int size : sizes) {
+            tokenLists.add(tokens(size, size));
+        }
+        for(int i = 0; i < 20; i++) { // 预热
+            timeBuffer(tokenLists.get(2), 1);
+            timeStringConcat(tokenLists.get(0), 1);
+        }
+
+        double[] bufferPerChar = new double[sizes.length];
+        double[] concatPerChar = new double[sizes.length];
+        StringBuilder report = new StringBuilder();
+        for(int i = 0; i < sizes.length; i++) {
+            List<String> tokens = tokenLists.get(i);
+            int chars = totalLength(tokens);
+            bufferPerChar[i] = (double) timeBuffer(tokens, 31) / chars;
+            concatPerChar[i] = (double) timeStringConcat(tokens, 3) / chars;
+            report.append(String.format(" %d chars: buffer %.2f ns/char, String += %.2f ns/char;", chars, bufferPerChar[i], concatPerChar[i]));
+        }
+
+        for(int i = 1; i < sizes.length; i++) {
+            assertTrue(report.toString(), bufferPerChar[i] < bufferPerChar[0] * 2); // 每字符耗时与长度无关
+            assertTrue(report.toString(), concatPerChar[i] > concatPerChar[i - 1] * 1.4); // 长度翻倍，每字符耗时接近翻倍
+        }
+        assertTrue(report.toString(), concatPerChar[1] > bufferPerChar[1] * 5); // 50k字符的回复
+    }
+}
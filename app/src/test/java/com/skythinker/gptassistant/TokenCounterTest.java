@@ -0,0 +1,159 @@
+package com.skythinker.gptassistant;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TokenCounterTest {
+    // 文本、cl100k_base和o200k_base的token数（与tiktoken的encode_ordinary一致）
+    private static final Object[][] KNOWN_COUNTS = {
+            {"tiktoken is great!", 6, 6},
+            {"Hello, world!", 4, 4},
+            {"你好，世界！今天天气怎么样？", 17, 9},
+            {"The quick brown fox jumps over the lazy dog.", 10, 10},
+            {"    for(int i = 0; i < 10; i++) {\n        sum += i;\n    }\n", 23, 23},
+            {"1234567890", 4, 4},
+            {"😀😃 emoji 🚀", 8, 6},
+            {"naïve café déjà vu", 6, 6},
+            {"I'm sure they've said it's fine", 9, 6},
+            {"  \n\n\t  spaces", 3, 3},
+    };
+
+    private static TokenCounter cl100k;
+    private static TokenCounter o200k;
+
+    @BeforeClass
+    public static void loadVocab() throws Exception {
+        try(InputStream in = TokenCounter.class.getResourceAsStream("/com/knuddels/jtokkit/cl100k_base.tiktoken")) { // chatgpt-java依赖的jtokkit中的词表
+            cl100k = TokenCounter.load(TokenCounter.CL100K_BASE, in);
+        }
+        try(InputStream in = new FileInputStream("src/main/assets/tokenizer/o200k_base.tiktoken")) {
+            o200k = TokenCounter.load(TokenCounter.O200K_BASE, in);
+        }
+    }
+
+    @Test
+    public void encodingForModel() {
+        assertEquals(TokenCounter.O200K_BASE, TokenCounter.getEncoding("gpt-4o-mini"));
+        assertEquals(TokenCounter.O200K_BASE, TokenCounter.getEncoding("o3-mini*"));
+        assertEquals(TokenCounter.CL100K_BASE, TokenCounter.getEncoding("gpt-4-turbo"));
+        assertEquals(TokenCounter.CL100K_BASE, TokenCounter.getEncoding("qwen-plus"));
+        assertSame(o200k, TokenCounter.forModel(null, "gpt-4o")); // 已加载的计数器不再需要Context
+        assertSame(cl100k, TokenCounter.forModel(null, "gpt-3.5-turbo"));
+    }
+
+    @Test
+    public void knownCounts() {
+        assertTrue(cl100k.isExact());
+        assertTrue(o200k.isExact());
+        for(Object[] item : KNOWN_COUNTS) {
+            assertEquals("cl100k: " + item[0], item[1], cl100k.count((String) item[0]));
+            assertEquals("o200k: " + item[0], item[2], o200k.count((String) item[0]));
+        }
+        assertEquals(0, cl100k.count(""));
+        assertEquals(0, cl100k.count(null));
+    }
+
+    private static String randomText(Random random) {
+        String[] words = {"the", "token", "Budget", "context", "I'm", "they'll", "GPT", "naïve", "über", "你好", "上下文", "窗口",
+                "こんにちは", "데이터", "😀", "🚀", "123", "4567", "3.14", "{", "}", "();", "=>", "\"", "'", "/", "#", "**", "-->"};
+        String[] gaps = {" ", " ", " ", "", "\n", "\n\n", "  ", "\t", " \n ", ",", ". "};
+        StringBuilder sb = new StringBuilder();
+        int length = 1 + random.nextInt(40);
+        for(int i = 0; i < length; i++) {
+            sb.append(words[random.nextInt(words.length)]).append(gaps[random.nextInt(gaps.length)]);
+        }
+        return sb.toString();
+    }
+
+    // 与jtokkit的cl100k_base实现比较（o200k_base需要更新版本的jtokkit，以上面的已知结果为准）
+    @Test
+    public void matchesJtokkitOnRandomCorpus() {
+        Encoding reference = Encodings.newDefaultEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+        Random random = new Random(42);
+        for(int i = 0; i < 2000; i++) {
+            String text = randomText(random);
+            assertEquals(text, reference.countTokensOrdinary(text), cl100k.count(text));
+        }
+    }
+
+    // 估算值应略高于实际值，用于预算时偏保守
+    @Test
+    public void estimateWithinTolerance() {
+        int exactTotal = 0, estimateTotal = 0;
+        for(Object[] item : KNOWN_COUNTS) {
+            String text = (String) item[0];
+            int exact = (Integer) item[1];
+            int estimate = TokenCounter.estimate(text);
+            assertTrue(text + ": " + estimate + " vs " + exact, estimate >= exact * 0.6 && estimate <= exact * 2 + 2);
+            exactTotal += exact;
+            estimateTotal += estimate;
+        }
+        Random random = new Random(7);
+        for(int i = 0; i < 500; i++) {
+            String text = randomText(random);
+            exactTotal += cl100k.count(text);
+            estimateTotal += TokenCounter.estimate(text);
+        }
+        assertTrue(estimateTotal + " vs " + exactTotal, estimateTotal >= exactTotal && estimateTotal <= exactTotal * 1.5);
+    }
+
+    // 生成指定长度的中英文混合文档：段落、代码和随机拼写的词
+    private static String document(int chars, long seed) {
+        String[] words = {"the", "model", "context", "window", "token", "request", "reply", "stream", "Android", "budget",
+                "上下文", "窗口", "模型", "请求", "回复", "流式", "计数", "裁剪", "历史", "消息", "中文", "段落"};
+        String[] gaps = {" ", " ", " ", "", "，", "。", ", ", ". ", "\n"};
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(chars + 64);
+        while(sb.length() < chars) {
+            if(random.nextInt(50) == 0) {
+                sb.append("\n```java\nint count = counter.count(text); // ").append(random.nextInt(1000)).append("\n```\n");
+            }
+            if(random.nextInt(8) == 0) { // 不常见的词，需要做完整的BPE合并
+                for(int i = 3 + random.nextInt(6); i > 0; i--) {
+                    sb.append((char) ('a' + random.nextInt(26)));
+                }
+                sb.append(' ');
+            }
+            sb.append(words[random.nextInt(words.length)]).append(gaps[random.nextInt(gaps.length)]);
+        }
+        return sb.toString();
+    }
+
+    // 耗时的中位数（毫秒）
+    private static double timeCount(TokenCounter counter, String text, int rounds) {
+        long[] times = new long[rounds];
+        for(int i = 0; i < rounds; i++) {
+            long start = System.nanoTime();
+            assertTrue(counter.count(text) > 0);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[rounds / 2] / 1e6;
+    }
+
+    // 100k字符的文档在几毫秒内完成计数
+    @Test
+    public void countsLargeDocumentQuickly() {
+        String text = document(100000, 3);
+        for(int i = 0; i < 20; i++) { // 预热
+            cl100k.count(document(100000, 100 + i));
+            o200k.count(document(100000, 100 + i));
+        }
+        double cl100kMs = timeCount(cl100k, text, 15);
+        double o200kMs = timeCount(o200k, text, 15);
+        String report = String.format("%d chars: cl100k %.1f ms, o200k %.1f ms", text.length(), cl100kMs, o200kMs);
+        assertTrue(report, cl100kMs < 25);
+        assertTrue(report, o200kMs < 25);
+    }
+}